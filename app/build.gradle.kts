@@ -29,6 +29,12 @@ android {
         sourceCompatibility = JavaVersion.VERSION_1_8
         targetCompatibility = JavaVersion.VERSION_1_8
     }
+    testOptions {
+        unitTests.all {
+            // Timing benchmarks only run when asked for: ./gradlew test -Pbenchmarks=true
+            it.systemProperty("benchmarks", project.findProperty("benchmarks") ?: "false")
+        }
+    }
 }
 
 dependencies {
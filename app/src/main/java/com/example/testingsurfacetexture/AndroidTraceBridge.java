@@ -0,0 +1,25 @@
+package com.example.testingsurfacetexture;
+
+import android.os.Build;
+import android.os.Trace;
+
+// Shows tracer sections in systrace/Perfetto captures next to the framework's own sections.
+public class AndroidTraceBridge implements Tracer.Bridge {
+
+    @Override
+    public void begin(String name) {
+        Trace.beginSection(name);
+    }
+
+    @Override
+    public void end(String name) {
+        Trace.endSection();
+    }
+
+    @Override
+    public void counter(String name, long value) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.setCounter(name, value);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.testingsurfacetexture;
+
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+
+import androidx.annotation.NonNull;
+
+// Reports every completed camera capture as a frame, so the pipeline can count what the camera
+// produced against what the encoder delivered. While recording, also hands each result's timing
+// and exposure to the metadata writer.
+public class CameraFrameSource extends CameraCaptureSession.CaptureCallback implements FrameSource {
+    private volatile FrameListener listener;
+    private volatile boolean running;
+    private volatile CaptureMetadataWriter metadataWriter;
+
+    @Override
+    public void setFrameListener(FrameListener listener) {
+        this.listener = listener;
+    }
+
+    public void setMetadataWriter(CaptureMetadataWriter metadataWriter) {
+        this.metadataWriter = metadataWriter;
+    }
+
+    @Override
+    public void start() {
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request,
+                                   @NonNull TotalCaptureResult result) {
+        FrameListener listener = this.listener;
+        if (!running || listener == null) {
+            return;
+        }
+        long timestampNs = get(result, CaptureResult.SENSOR_TIMESTAMP, 0L);
+        listener.onFrame(timestampNs);
+        CaptureMetadataWriter writer = metadataWriter;
+        if (writer != null) {
+            writer.onCaptureResult(result.getFrameNumber(), timestampNs,
+                    get(result, CaptureResult.SENSOR_EXPOSURE_TIME, 0L),
+                    get(result, CaptureResult.SENSOR_FRAME_DURATION, 0L),
+                    get(result, CaptureResult.SENSOR_SENSITIVITY, 0), 0);
+        }
+    }
+
+    @Override
+    public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request,
+                                @NonNull CaptureFailure failure) {
+        CaptureMetadataWriter writer = metadataWriter;
+        if (running && writer != null) {
+            writer.onCaptureResult(failure.getFrameNumber(), 0, 0, 0, 0, CaptureMetadataWriter.FLAG_FAILED);
+        }
+    }
+
+    private static <T> T get(CaptureResult result, CaptureResult.Key<T> key, T missing) {
+        T value = result.get(key);
+        return value != null ? value : missing;
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.testingsurfacetexture;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.Collections;
+
+// Records one camera without a preview: camera -> encoder input surface -> muxer. Every recorder
+// has its own encoder; only the callback thread and the CaptureBudget are shared.
+public class CameraRecorder {
+    private static final String TAG = "CameraRecorder";
+
+    private final CameraManager manager;
+    private final String cameraId;
+    private final Handler handler;
+    private final CaptureBudget budget;
+    private final CameraFrameSource frameSource = new CameraFrameSource();
+    private final MediaCodecEncoder encoder;
+    private final CapturePipeline pipeline;
+    private final Surface inputSurface;
+    private CameraDevice cameraDevice;
+    private CameraCaptureSession session;
+    private volatile boolean stopped;
+    // Set once the pipeline has started, so stop() only stops a pipeline that is running
+    private boolean started;
+
+    // The budget grant must already be held for cameraId; it is released on stop()
+    public CameraRecorder(CameraManager manager, String cameraId, Size size, EncoderProfile profile,
+                          SampleSink sink, Handler handler, CaptureBudget budget) throws IOException {
+        this.manager = manager;
+        this.cameraId = cameraId;
+        this.handler = handler;
+        this.budget = budget;
+        MediaFormat format = MediaFormats.createVideoFormat("video/avc", size.getWidth(), size.getHeight(), profile);
+        encoder = new MediaCodecEncoder(format);
+        inputSurface = encoder.createInputSurface();
+        pipeline = new CapturePipeline(frameSource, encoder, sink, Clock.SYSTEM);
+    }
+
+    public String getCameraId() {
+        return cameraId;
+    }
+
+    public Surface getInputSurface() {
+        return inputSurface;
+    }
+
+    public PipelineStats getStats() {
+        return pipeline.getStats();
+    }
+
+    @SuppressWarnings("MissingPermission")
+    public void start() throws CameraAccessException {
+        manager.openCamera(cameraId, new CameraDevice.StateCallback() {
+            @Override
+            public void onOpened(@NonNull CameraDevice camera) {
+                if (stopped) {
+                    camera.close();
+                    return;
+                }
+                cameraDevice = camera;
+                createSession();
+            }
+
+            @Override
+            public void onDisconnected(@NonNull CameraDevice camera) {
+                Log.w(TAG, "onDisconnected: camera " + cameraId);
+                stop();
+            }
+
+            @Override
+            public void onError(@NonNull CameraDevice camera, int error) {
+                Log.e(TAG, "onError: camera " + cameraId + " error " + error);
+                stop();
+            }
+        }, handler);
+    }
+
+    private void createSession() {
+        try {
+            cameraDevice.createCaptureSession(Collections.singletonList(inputSurface),
+                    new CameraCaptureSession.StateCallback() {
+                        @Override
+                        public void onConfigured(@NonNull CameraCaptureSession configured) {
+                            // Against a stop() from another thread releasing the pipeline meanwhile
+                            synchronized (CameraRecorder.this) {
+                                if (stopped) {
+                                    configured.close();
+                                    return;
+                                }
+                                session = configured;
+                                try {
+                                    CaptureRequest.Builder builder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+                                    builder.addTarget(inputSurface);
+                                    pipeline.start();
+                                    started = true;
+                                    session.setRepeatingRequest(builder.build(), frameSource, handler);
+                                    Log.d(TAG, "onConfigured: recording camera " + cameraId);
+                                } catch (CameraAccessException e) {
+                                    Log.e(TAG, "onConfigured: failed to start camera " + cameraId, e);
+                                }
+                            }
+                        }
+
+                        @Override
+                        public void onConfigureFailed(@NonNull CameraCaptureSession configured) {
+                            Log.e(TAG, "onConfigureFailed: camera " + cameraId);
+                            stop();
+                        }
+                    }, handler);
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "createSession: camera " + cameraId, e);
+        }
+    }
+
+    public synchronized void stop() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+        if (started) {
+            try {
+                pipeline.stop();
+            } catch (IllegalStateException e) {
+                // The sink has still been ended; the camera and budget are released below either way
+                Log.e(TAG, "stop: encoder for camera " + cameraId + " failed to stop", e);
+            }
+        }
+        pipeline.release();
+        inputSurface.release();
+        if (cameraDevice != null) {
+            cameraDevice.close();
+            cameraDevice = null;
+        }
+        budget.release(cameraId);
+        Log.d(TAG, "stop: camera " + cameraId + " " + pipeline.getStats());
+    }
+}
@@ -0,0 +1,196 @@
+package com.example.testingsurfacetexture;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.params.OutputConfiguration;
+import android.hardware.camera2.params.SessionConfiguration;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+// Knows the device's cameras and runs the extra recorders when several cameras record at once.
+// Every recorder shares one callback thread and the global encoder/bandwidth budget.
+public class CameraRegistry {
+    private static final String TAG = "CameraRegistry";
+
+    private final CameraManager manager;
+    private final CaptureBudget budget;
+    private final Map<String, CameraCharacteristics> characteristics = new HashMap<>();
+    private final List<CameraRecorder> recorders = new ArrayList<>();
+    private final List<StreamHealth> health = new ArrayList<>();
+    private String[] cameraIds;
+    private HandlerThread callbackThread;
+
+    public CameraRegistry(CameraManager manager, CaptureBudget budget) {
+        this.manager = manager;
+        this.budget = budget;
+    }
+
+    public CaptureBudget getBudget() {
+        return budget;
+    }
+
+    public synchronized String[] getCameraIds() throws CameraAccessException {
+        if (cameraIds == null) {
+            cameraIds = manager.getCameraIdList();
+        }
+        return cameraIds;
+    }
+
+    public synchronized CameraCharacteristics getCharacteristics(String cameraId) throws CameraAccessException {
+        CameraCharacteristics cached = characteristics.get(cameraId);
+        if (cached == null) {
+            cached = manager.getCameraCharacteristics(cameraId);
+            characteristics.put(cameraId, cached);
+        }
+        return cached;
+    }
+
+    public String getDefaultCameraId() throws CameraAccessException {
+        return getCameraIds()[0];
+    }
+
+    // Cameras that may stream at the same time as cameraId, empty when the device does not
+    // advertise concurrent streaming
+    public List<String> getConcurrentPartners(String cameraId) throws CameraAccessException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
+            return Collections.emptyList();
+        }
+        List<String> partners = new ArrayList<>();
+        for (Set<String> combination : manager.getConcurrentCameraIds()) {
+            if (!combination.contains(cameraId)) {
+                continue;
+            }
+            for (String id : combination) {
+                if (!id.equals(cameraId) && !partners.contains(id)) {
+                    partners.add(id);
+                }
+            }
+        }
+        return partners;
+    }
+
+    public interface SinkFactory {
+        SampleSink create(String cameraId) throws IOException;
+    }
+
+    // Starts a recorder for every partner camera the budget has room for and the device can stream
+    // together with the primary camera's session, given by its surfaces, and the partners before it
+    public synchronized void startPartnerRecorders(String primaryId, List<Surface> primarySurfaces, Size size,
+                                                   EncoderProfile profile, SinkFactory sinks) throws CameraAccessException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
+            return;
+        }
+        Map<String, SessionConfiguration> sessions = new HashMap<>();
+        sessions.put(primaryId, describeSession(primarySurfaces));
+        for (String id : getConcurrentPartners(primaryId)) {
+            int bitRate = budget.acquire(id, profile.bitRate);
+            if (bitRate == 0) {
+                Log.w(TAG, "startPartnerRecorders: no encoder budget left for camera " + id);
+                break;
+            }
+            CameraRecorder recorder = null;
+            try {
+                recorder = new CameraRecorder(manager, id, size, profile.withBitRate(bitRate),
+                        sinks.create(id), getCallbackHandler(), budget);
+                sessions.put(id, describeSession(Collections.singletonList(recorder.getInputSurface())));
+                if (!manager.isConcurrentSessionConfigurationSupported(sessions)) {
+                    Log.w(TAG, "startPartnerRecorders: camera " + id + " cannot stream with the others");
+                    sessions.remove(id);
+                    recorder.stop();
+                    continue;
+                }
+                recorder.start();
+                recorders.add(recorder);
+                health.add(new StreamHealth("camera " + id, recorder.getStats()));
+            } catch (IOException | IllegalArgumentException | CameraAccessException e) {
+                sessions.remove(id);
+                if (recorder != null) {
+                    recorder.stop();
+                } else {
+                    budget.release(id);
+                }
+                Log.e(TAG, "startPartnerRecorders: camera " + id + " failed", e);
+            }
+        }
+    }
+
+    // Only describes a session's streams for the concurrency query; never used to open one
+    private SessionConfiguration describeSession(List<Surface> surfaces) {
+        List<OutputConfiguration> outputs = new ArrayList<>();
+        for (Surface surface : surfaces) {
+            outputs.add(new OutputConfiguration(surface));
+        }
+        final Handler handler = getCallbackHandler();
+        return new SessionConfiguration(SessionConfiguration.SESSION_REGULAR, outputs, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        }, new CameraCaptureSession.StateCallback() {
+            @Override
+            public void onConfigured(@NonNull CameraCaptureSession session) {
+            }
+
+            @Override
+            public void onConfigureFailed(@NonNull CameraCaptureSession session) {
+            }
+        });
+    }
+
+    public synchronized void stopRecorders() {
+        for (CameraRecorder recorder : recorders) {
+            recorder.stop();
+        }
+        recorders.clear();
+        health.clear();
+    }
+
+    // The primary camera's pipeline is run by the activity but reported alongside the others
+    public synchronized void addStream(StreamHealth stream) {
+        health.add(stream);
+    }
+
+    public synchronized void removeStream(StreamHealth stream) {
+        health.remove(stream);
+    }
+
+    public synchronized List<StreamHealth> sampleHealth(long nowNs) {
+        for (StreamHealth stream : health) {
+            stream.sample(nowNs);
+        }
+        return new ArrayList<>(health);
+    }
+
+    private Handler getCallbackHandler() {
+        if (callbackThread == null) {
+            callbackThread = new HandlerThread("CameraRegistry");
+            callbackThread.start();
+        }
+        return new Handler(callbackThread.getLooper());
+    }
+
+    public synchronized void release() {
+        stopRecorders();
+        if (callbackThread != null) {
+            callbackThread.quitSafely();
+            callbackThread = null;
+        }
+    }
+}
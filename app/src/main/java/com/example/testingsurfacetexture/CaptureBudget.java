@@ -0,0 +1,69 @@
+package com.example.testingsurfacetexture;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Global limit on concurrently running encoders and their combined bitrate, shared by every
+// camera pipeline.
+public class CaptureBudget {
+    private final int maxEncoders;
+    private long maxTotalBitRate;
+    private final int minBitRate;
+    private final Map<String, Integer> grants = new LinkedHashMap<>();
+
+    public CaptureBudget(int maxEncoders, long maxTotalBitRate, int minBitRate) {
+        this.maxEncoders = maxEncoders;
+        this.maxTotalBitRate = maxTotalBitRate;
+        this.minBitRate = minBitRate;
+    }
+
+    // Returns the bitrate granted to the stream, at most the requested one, or 0 when there is
+    // no encoder slot or not even minBitRate left
+    public synchronized int acquire(String id, int requestedBitRate) {
+        release(id);
+        if (grants.size() >= maxEncoders) {
+            return 0;
+        }
+        long remaining = maxTotalBitRate - getAllocatedBitRate();
+        int granted = (int) Math.min(requestedBitRate, remaining);
+        if (granted < minBitRate) {
+            return 0;
+        }
+        grants.put(id, granted);
+        return granted;
+    }
+
+    // Existing grants are kept, the new limit applies to later acquire() calls
+    public synchronized void setMaxTotalBitRate(long maxTotalBitRate) {
+        this.maxTotalBitRate = maxTotalBitRate;
+    }
+
+    public synchronized long getMaxTotalBitRate() {
+        return maxTotalBitRate;
+    }
+
+    public synchronized void release(String id) {
+        grants.remove(id);
+    }
+
+    public int getMaxEncoders() {
+        return maxEncoders;
+    }
+
+    public synchronized int getActiveEncoders() {
+        return grants.size();
+    }
+
+    public synchronized long getAllocatedBitRate() {
+        long total = 0;
+        for (int bitRate : grants.values()) {
+            total += bitRate;
+        }
+        return total;
+    }
+
+    public synchronized int getGrantedBitRate(String id) {
+        Integer bitRate = grants.get(id);
+        return bitRate == null ? 0 : bitRate;
+    }
+}
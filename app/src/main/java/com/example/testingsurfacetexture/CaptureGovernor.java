@@ -0,0 +1,222 @@
+package com.example.testingsurfacetexture;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Steps the capture configuration down a ladder (bitrate, then frame rate, then resolution) when
+// the device heats up, the battery runs low or the camera stops delivering the target frame rate,
+// and back up once there is headroom again. Stepping up waits longer than stepping down, and the
+// wait doubles whenever a step up has to be undone, so the configuration does not oscillate.
+public class CaptureGovernor {
+    // PowerManager.THERMAL_STATUS_*
+    public static final int THERMAL_NONE = 0;
+    public static final int THERMAL_LIGHT = 1;
+    public static final int THERMAL_MODERATE = 2;
+    public static final int THERMAL_SEVERE = 3;
+    public static final int THERMAL_CRITICAL = 4;
+
+    private static final long SECOND_NS = 1000000000L;
+    private static final long SEVERE_DWELL_NS = 5 * SECOND_NS;
+    private static final long DOWN_DWELL_NS = 20 * SECOND_NS;
+    private static final long UP_DWELL_NS = 60 * SECOND_NS;
+    private static final long MAX_UP_DWELL_NS = 600 * SECOND_NS;
+    // PowerManager.getThermalHeadroom(): 1.0 is where throttling starts
+    private static final float HEADROOM_HIGH = 0.9f;
+    private static final float HEADROOM_LOW = 0.7f;
+    private static final double FPS_SHORTFALL = 0.9;
+    private static final int FPS_SHORTFALL_SAMPLES = 3;
+    private static final int BATTERY_LOW = 15;
+    private static final int BATTERY_CRITICAL = 5;
+    private static final int MIN_BIT_RATE = 500000;
+
+    public static class Rung {
+        public final int bitRate;
+        public final int frameRate;
+        public final int width;
+        public final int height;
+
+        public Rung(int bitRate, int frameRate, int width, int height) {
+            this.bitRate = bitRate;
+            this.frameRate = frameRate;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public String toString() {
+            return bitRate + "bps " + frameRate + "fps " + width + "x" + height;
+        }
+    }
+
+    private final List<Rung> ladder;
+    private final int batterySaverRung;
+    private int index;
+    private boolean started;
+    private long lastChangeNs;
+    private long lastUpNs;
+    private boolean steppedUp;
+    private long upDwellNs = UP_DWELL_NS;
+    private int fpsShortfalls;
+    private int stepsDown;
+    private int stepsUp;
+    private String reason = "start";
+
+    // batterySaverRung is the best rung allowed while the battery is low and not charging
+    public CaptureGovernor(List<Rung> ladder, int batterySaverRung) {
+        if (ladder.isEmpty()) {
+            throw new IllegalArgumentException("Empty ladder");
+        }
+        this.ladder = Collections.unmodifiableList(new ArrayList<>(ladder));
+        this.batterySaverRung = Math.min(batterySaverRung, ladder.size() - 1);
+    }
+
+    // Bitrate 100/70/50 %, then 24 and 15 fps, then 720p, keeping bits per pixel per frame
+    public static List<Rung> defaultLadder(int bitRate, int frameRate, int width, int height) {
+        List<Rung> ladder = new ArrayList<>();
+        ladder.add(new Rung(bitRate, frameRate, width, height));
+        ladder.add(new Rung(scale(bitRate, 0.7), frameRate, width, height));
+        int reduced = scale(bitRate, 0.5);
+        ladder.add(new Rung(reduced, frameRate, width, height));
+        for (int fps : new int[]{24, 15}) {
+            if (fps < frameRate) {
+                ladder.add(new Rung(scale(reduced, fps / (double) frameRate), fps, width, height));
+            }
+        }
+        Rung last = ladder.get(ladder.size() - 1);
+        if (height > 720) {
+            int smallWidth = width * 720 / height / 16 * 16;
+            double pixels = smallWidth * 720 / ((double) width * height);
+            ladder.add(new Rung(scale(last.bitRate, pixels), last.frameRate, smallWidth, 720));
+        }
+        return ladder;
+    }
+
+    // First rung that lowers the frame rate, which saves the most power per quality lost
+    public static int frameRateRung(List<Rung> ladder) {
+        for (int i = 0; i < ladder.size(); i++) {
+            if (ladder.get(i).frameRate < ladder.get(0).frameRate) {
+                return i;
+            }
+        }
+        return ladder.size() - 1;
+    }
+
+    private static int scale(int bitRate, double factor) {
+        return Math.max(MIN_BIT_RATE, (int) (bitRate * factor));
+    }
+
+    // thermalHeadroom is NaN when unknown, batteryPercent -1 when unknown and measuredFps negative
+    // when not measured. Returns true when the rung changed.
+    public synchronized boolean update(long nowNs, int thermalStatus, float thermalHeadroom, int batteryPercent,
+                                       boolean charging, double measuredFps) {
+        if (!started) {
+            started = true;
+            lastChangeNs = nowNs;
+        }
+        long sinceChangeNs = nowNs - lastChangeNs;
+        Rung rung = ladder.get(index);
+
+        // Auto-exposure also lowers the frame rate in low light, where stepping down does not help,
+        // so a shortfall only counts while the device is warm
+        if (measuredFps >= 0 && measuredFps < rung.frameRate * FPS_SHORTFALL && thermalStatus >= THERMAL_LIGHT) {
+            fpsShortfalls++;
+        } else {
+            fpsShortfalls = 0;
+        }
+
+        int target = index;
+        String why = null;
+        if (thermalStatus >= THERMAL_CRITICAL && sinceChangeNs >= SEVERE_DWELL_NS) {
+            target = index + 2;
+            why = "thermal critical";
+        } else if (thermalStatus >= THERMAL_SEVERE && sinceChangeNs >= SEVERE_DWELL_NS) {
+            target = index + 1;
+            why = "thermal severe";
+        } else if (thermalStatus >= THERMAL_SEVERE) {
+            // Wait for the last step to take effect
+        } else if (thermalStatus == THERMAL_MODERATE || thermalHeadroom >= HEADROOM_HIGH) {
+            if (sinceChangeNs >= DOWN_DWELL_NS) {
+                target = index + 1;
+                why = thermalStatus == THERMAL_MODERATE ? "thermal moderate" : "thermal headroom " + thermalHeadroom;
+            }
+        } else if (fpsShortfalls >= FPS_SHORTFALL_SAMPLES) {
+            if (sinceChangeNs >= DOWN_DWELL_NS) {
+                target = index + 1;
+                why = "frame rate " + Math.round(measuredFps) + " below " + rung.frameRate;
+            }
+        } else if (hasHeadroom(thermalStatus, thermalHeadroom) && fpsShortfalls == 0 && sinceChangeNs >= upDwellNs) {
+            target = index - 1;
+            why = "headroom";
+        }
+
+        int best = 0;
+        if (!charging && batteryPercent >= 0) {
+            if (batteryPercent <= BATTERY_CRITICAL) {
+                best = ladder.size() - 1;
+            } else if (batteryPercent <= BATTERY_LOW) {
+                best = batterySaverRung;
+            }
+        }
+        if (target < best) {
+            target = best;
+            why = best > index ? "battery " + batteryPercent + "%" : why;
+        }
+        target = Math.min(target, ladder.size() - 1);
+        if (target == index) {
+            return false;
+        }
+
+        if (target > index) {
+            stepsDown++;
+            if (steppedUp && nowNs - lastUpNs < upDwellNs) {
+                // The last step up did not hold
+                upDwellNs = Math.min(upDwellNs * 2, MAX_UP_DWELL_NS);
+            }
+        } else {
+            stepsUp++;
+            lastUpNs = nowNs;
+            steppedUp = true;
+        }
+        index = target;
+        lastChangeNs = nowNs;
+        fpsShortfalls = 0;
+        reason = why;
+        return true;
+    }
+
+    private static boolean hasHeadroom(int thermalStatus, float thermalHeadroom) {
+        if (Float.isNaN(thermalHeadroom)) {
+            return thermalStatus == THERMAL_NONE;
+        }
+        return thermalStatus <= THERMAL_LIGHT && thermalHeadroom < HEADROOM_LOW;
+    }
+
+    public synchronized Rung getRung() {
+        return ladder.get(index);
+    }
+
+    public synchronized int getRungIndex() {
+        return index;
+    }
+
+    public List<Rung> getLadder() {
+        return ladder;
+    }
+
+    public synchronized String getReason() {
+        return reason;
+    }
+
+    public synchronized int getStepsDown() {
+        return stepsDown;
+    }
+
+    public synchronized int getStepsUp() {
+        return stepsUp;
+    }
+
+    public synchronized long getUpDwellNs() {
+        return upDwellNs;
+    }
+}
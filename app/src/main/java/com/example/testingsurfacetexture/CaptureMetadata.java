@@ -0,0 +1,292 @@
+package com.example.testingsurfacetexture;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+// A capture metadata sidecar read back into columns, and the join of its camera frames with the
+// encoded samples. The encoder input surface stamps each buffer with the sensor timestamp, so an
+// encoded sample's pts is its frame's SENSOR_TIMESTAMP unless a clock offset was applied.
+public class CaptureMetadata {
+    // Samples match the nearest frame within this fraction of the frame interval
+    private static final double MATCH_TOLERANCE = 0.5;
+    // A timestamp step this many frame intervals long means the sensor skipped frames
+    private static final double GAP_FACTOR = 1.5;
+    private static final int OFFSET_SAMPLES = 64;
+
+    public final int frameCount;
+    public final long[] frameNumbers;
+    public final long[] timestampsNs;
+    public final long[] exposuresNs;
+    public final long[] frameDurationsNs;
+    public final int[] sensitivities;
+    public final int[] frameFlags;
+
+    public final int sampleCount;
+    public final long[] samplePtsUs;
+    public final int[] sampleSizes;
+    public final int[] sampleFlags;
+
+    CaptureMetadata(int frameCount, long[] frameNumbers, long[] timestampsNs, long[] exposuresNs,
+                    long[] frameDurationsNs, int[] sensitivities, int[] frameFlags,
+                    int sampleCount, long[] samplePtsUs, int[] sampleSizes, int[] sampleFlags) {
+        this.frameCount = frameCount;
+        this.frameNumbers = frameNumbers;
+        this.timestampsNs = timestampsNs;
+        this.exposuresNs = exposuresNs;
+        this.frameDurationsNs = frameDurationsNs;
+        this.sensitivities = sensitivities;
+        this.frameFlags = frameFlags;
+        this.sampleCount = sampleCount;
+        this.samplePtsUs = samplePtsUs;
+        this.sampleSizes = sampleSizes;
+        this.sampleFlags = sampleFlags;
+    }
+
+    public static CaptureMetadata read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != CaptureMetadataWriter.MAGIC) {
+            throw new IOException("Not a capture metadata file");
+        }
+        LongColumn frameNumbers = new LongColumn();
+        LongColumn timestamps = new LongColumn();
+        LongColumn exposures = new LongColumn();
+        LongColumn frameDurations = new LongColumn();
+        IntColumn sensitivities = new IntColumn();
+        IntColumn frameFlags = new IntColumn();
+        LongColumn pts = new LongColumn();
+        IntColumn sizes = new IntColumn();
+        IntColumn sampleFlags = new IntColumn();
+        while (true) {
+            int type = data.read();
+            if (type < 0) {
+                break;
+            }
+            int count = data.readInt();
+            if (count < 0) {
+                throw new IOException("Bad block size " + count);
+            }
+            try {
+                if (type == CaptureMetadataWriter.FRAME_BLOCK) {
+                    frameNumbers.read(data, count);
+                    timestamps.read(data, count);
+                    exposures.read(data, count);
+                    frameDurations.read(data, count);
+                    sensitivities.read(data, count);
+                    frameFlags.read(data, count);
+                } else if (type == CaptureMetadataWriter.SAMPLE_BLOCK) {
+                    pts.read(data, count);
+                    sizes.read(data, count);
+                    sampleFlags.read(data, count);
+                } else {
+                    throw new IOException("Unknown block type " + type);
+                }
+            } catch (EOFException e) {
+                // A recording that was cut off; keep the rows whose columns were all read
+                frameNumbers.size = timestamps.size = exposures.size = frameDurations.size = sensitivities.size =
+                        frameFlags.size = Math.min(frameNumbers.size, frameFlags.size);
+                pts.size = sizes.size = sampleFlags.size = Math.min(pts.size, sampleFlags.size);
+                break;
+            }
+        }
+        return new CaptureMetadata(frameNumbers.size, frameNumbers.values, timestamps.values, exposures.values,
+                frameDurations.values, sensitivities.values, frameFlags.values,
+                pts.size, pts.values, sizes.values, sampleFlags.values);
+    }
+
+    public static class Alignment {
+        // Frame index for each sample, -1 when no frame matched
+        public final int[] sampleFrames;
+        // Added to sensor timestamps to get sample pts
+        public final long offsetNs;
+        public final long frameIntervalNs;
+        public final int matchedSamples;
+        // Frames the HAL reported but the encoder did not output, within the matched range
+        public final int encoderDrops;
+        // Frames the sensor skipped, from steps in the sensor timestamps that no failed or missing
+        // result explains
+        public final int sensorDrops;
+        // Frame numbers with no result at all, or a failed one
+        public final int missingResults;
+
+        Alignment(int[] sampleFrames, long offsetNs, long frameIntervalNs, int matchedSamples,
+                  int encoderDrops, int sensorDrops, int missingResults) {
+            this.sampleFrames = sampleFrames;
+            this.offsetNs = offsetNs;
+            this.frameIntervalNs = frameIntervalNs;
+            this.matchedSamples = matchedSamples;
+            this.encoderDrops = encoderDrops;
+            this.sensorDrops = sensorDrops;
+            this.missingResults = missingResults;
+        }
+
+        @Override
+        public String toString() {
+            return "matched " + matchedSamples + "/" + sampleFrames.length + " offset " + offsetNs / 1000
+                    + "us interval " + frameIntervalNs / 1000 + "us encoder drops " + encoderDrops
+                    + " sensor drops " + sensorDrops + " missing results " + missingResults;
+        }
+    }
+
+    // Frames and samples are expected in capture order, which is how they were recorded
+    public Alignment align() {
+        int[] valid = validFrames();
+        long intervalNs = medianFrameInterval(valid);
+        long offsetNs = estimateOffset(valid);
+        long toleranceNs = intervalNs > 0 ? (long) (intervalNs * MATCH_TOLERANCE) : Long.MAX_VALUE;
+
+        int[] sampleFrames = new int[sampleCount];
+        boolean[] used = new boolean[frameCount];
+        int matched = 0;
+        int firstFrame = Integer.MAX_VALUE;
+        int lastFrame = -1;
+        for (int s = 0; s < sampleCount; s++) {
+            sampleFrames[s] = -1;
+            int v = nearest(valid, samplePtsUs[s] * 1000 - offsetNs);
+            if (v < 0) {
+                continue;
+            }
+            int frame = valid[v];
+            long distance = Math.abs(timestampsNs[frame] + offsetNs - samplePtsUs[s] * 1000);
+            if (distance <= toleranceNs && !used[frame]) {
+                used[frame] = true;
+                sampleFrames[s] = frame;
+                matched++;
+                firstFrame = Math.min(firstFrame, frame);
+                lastFrame = Math.max(lastFrame, frame);
+            }
+        }
+
+        int encoderDrops = 0;
+        for (int v = 0; v < valid.length; v++) {
+            int frame = valid[v];
+            if (frame > firstFrame && frame < lastFrame && !used[frame]) {
+                encoderDrops++;
+            }
+        }
+
+        int sensorDrops = 0;
+        if (intervalNs > 0) {
+            for (int v = 1; v < valid.length; v++) {
+                long step = timestampsNs[valid[v]] - timestampsNs[valid[v - 1]];
+                if (step > intervalNs * GAP_FACTOR) {
+                    // Failed and missing results already account for some of the gap
+                    long skipped = Math.round((double) step / intervalNs) - 1;
+                    long explained = frameNumbers[valid[v]] - frameNumbers[valid[v - 1]] - 1;
+                    sensorDrops += Math.max(0, skipped - explained);
+                }
+            }
+        }
+
+        int missingResults = 0;
+        for (int i = 0; i < frameCount; i++) {
+            if ((frameFlags[i] & CaptureMetadataWriter.FLAG_FAILED) != 0) {
+                missingResults++;
+            }
+            if (i > 0 && frameNumbers[i] > frameNumbers[i - 1] + 1) {
+                missingResults += frameNumbers[i] - frameNumbers[i - 1] - 1;
+            }
+        }
+        return new Alignment(sampleFrames, offsetNs, intervalNs, matched, encoderDrops, sensorDrops, missingResults);
+    }
+
+    // Indices of the frames that produced an image
+    private int[] validFrames() {
+        int[] valid = new int[frameCount];
+        int count = 0;
+        for (int i = 0; i < frameCount; i++) {
+            if ((frameFlags[i] & CaptureMetadataWriter.FLAG_FAILED) == 0) {
+                valid[count++] = i;
+            }
+        }
+        return Arrays.copyOf(valid, count);
+    }
+
+    private long medianFrameInterval(int[] valid) {
+        if (valid.length < 2) {
+            return 0;
+        }
+        long[] steps = new long[valid.length - 1];
+        for (int v = 1; v < valid.length; v++) {
+            steps[v - 1] = timestampsNs[valid[v]] - timestampsNs[valid[v - 1]];
+        }
+        return median(steps, steps.length);
+    }
+
+    // Median distance from the first samples to their nearest frame, which is 0 when both use
+    // the sensor clock and the encoder's offset otherwise. Assumes the offset is under half a
+    // frame interval or that the recording starts on a frame, as it does with a surface input.
+    private long estimateOffset(int[] valid) {
+        if (valid.length == 0 || sampleCount == 0) {
+            return 0;
+        }
+        long firstPtsNs = samplePtsUs[0] * 1000;
+        int start = nearest(valid, firstPtsNs);
+        long coarseNs = firstPtsNs - timestampsNs[valid[start]];
+        long[] offsets = new long[Math.min(sampleCount, OFFSET_SAMPLES)];
+        for (int s = 0; s < offsets.length; s++) {
+            long ptsNs = samplePtsUs[s] * 1000;
+            offsets[s] = ptsNs - timestampsNs[valid[nearest(valid, ptsNs - coarseNs)]];
+        }
+        return median(offsets, offsets.length);
+    }
+
+    // Index into valid of the frame closest to timeNs, -1 when there are none
+    private int nearest(int[] valid, long timeNs) {
+        if (valid.length == 0) {
+            return -1;
+        }
+        int low = 0;
+        int high = valid.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestampsNs[valid[mid]] < timeNs) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (low > 0 && timeNs - timestampsNs[valid[low - 1]] <= timestampsNs[valid[low]] - timeNs) {
+            return low - 1;
+        }
+        return low;
+    }
+
+    private static long median(long[] values, int count) {
+        long[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        return sorted[count / 2];
+    }
+
+    private static class LongColumn {
+        long[] values = new long[256];
+        int size;
+
+        void read(DataInputStream in, int count) throws IOException {
+            if (size + count > values.length) {
+                values = Arrays.copyOf(values, Math.max(values.length * 2, size + count));
+            }
+            for (int i = 0; i < count; i++) {
+                values[size] = in.readLong();
+                size++;
+            }
+        }
+    }
+
+    private static class IntColumn {
+        int[] values = new int[256];
+        int size;
+
+        void read(DataInputStream in, int count) throws IOException {
+            if (size + count > values.length) {
+                values = Arrays.copyOf(values, Math.max(values.length * 2, size + count));
+            }
+            for (int i = 0; i < count; i++) {
+                values[size] = in.readInt();
+                size++;
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.example.testingsurfacetexture;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Writes per-frame camera capture metadata and the encoded samples' timestamps to a columnar
+// sidecar file, so CaptureMetadata can later join them. Passes samples through to the delegate.
+//
+// Each stream fills one of two preallocated column blocks; a full block is written on the
+// executor while the other one fills, so recording does not allocate or block. If the executor
+// falls a whole block behind, records are dropped and counted.
+//
+// File layout (big-endian): MAGIC, then blocks of
+//   'F' count frameNumber[] timestampNs[] exposureNs[] frameDurationNs[] sensitivity[] flags[]
+//   'S' count ptsUs[] size[] flags[]
+public class CaptureMetadataWriter implements SampleSink {
+    static final int MAGIC = 0x434d4431; // "CMD1"
+    static final byte FRAME_BLOCK = 'F';
+    static final byte SAMPLE_BLOCK = 'S';
+
+    public static final int FLAG_FAILED = 1;
+
+    private final SampleSink delegate;
+    private final DataOutputStream out;
+    private final Executor executor;
+    private final FrameBlock[] frameBlocks;
+    private final SampleBlock[] sampleBlocks;
+    private int frameBlock;
+    private int sampleBlock;
+    private final AtomicLong droppedRecords = new AtomicLong();
+    private volatile boolean closed;
+    private volatile IOException error;
+
+    public CaptureMetadataWriter(SampleSink delegate, OutputStream out, int blockSize, Executor executor) throws IOException {
+        this.delegate = delegate;
+        this.out = new DataOutputStream(out);
+        this.executor = executor;
+        frameBlocks = new FrameBlock[]{new FrameBlock(blockSize), new FrameBlock(blockSize)};
+        sampleBlocks = new SampleBlock[]{new SampleBlock(blockSize), new SampleBlock(blockSize)};
+        this.out.writeInt(MAGIC);
+    }
+
+    // Called from the camera's capture callback thread
+    public void onCaptureResult(long frameNumber, long timestampNs, long exposureNs, long frameDurationNs,
+                                int sensitivity, int flags) {
+        if (closed) {
+            return;
+        }
+        FrameBlock block = frameBlocks[frameBlock];
+        if (block.pending) {
+            droppedRecords.incrementAndGet();
+            return;
+        }
+        int i = block.count++;
+        block.frameNumbers[i] = frameNumber;
+        block.timestamps[i] = timestampNs;
+        block.exposures[i] = exposureNs;
+        block.frameDurations[i] = frameDurationNs;
+        block.sensitivities[i] = sensitivity;
+        block.flags[i] = flags;
+        if (block.count == block.frameNumbers.length) {
+            submit(block);
+            frameBlock ^= 1;
+        }
+    }
+
+    @Override
+    public void onFormat(TrackFormat format) {
+        delegate.onFormat(format);
+    }
+
+    @Override
+    public void onSample(ByteBuffer data, SampleInfo info) {
+        delegate.onSample(data, info);
+        if (closed) {
+            return;
+        }
+        SampleBlock block = sampleBlocks[sampleBlock];
+        if (block.pending) {
+            droppedRecords.incrementAndGet();
+            return;
+        }
+        int i = block.count++;
+        block.pts[i] = info.presentationTimeUs;
+        block.sizes[i] = info.size;
+        block.flags[i] = info.flags;
+        if (block.count == block.pts.length) {
+            submit(block);
+            sampleBlock ^= 1;
+        }
+    }
+
+    // Writes what is left and closes the file on the executor
+    @Override
+    public void onEnd() {
+        delegate.onEnd();
+        close();
+    }
+
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        FrameBlock frames = frameBlocks[frameBlock];
+        if (!frames.pending && frames.count > 0) {
+            submit(frames);
+        }
+        SampleBlock samples = sampleBlocks[sampleBlock];
+        if (!samples.pending && samples.count > 0) {
+            submit(samples);
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+        });
+    }
+
+    public long getDroppedRecords() {
+        return droppedRecords.get();
+    }
+
+    // The first write error, null when everything was written
+    public IOException getError() {
+        return error;
+    }
+
+    private void submit(Block block) {
+        block.pending = true;
+        executor.execute(block);
+    }
+
+    private abstract class Block implements Runnable {
+        int count;
+        volatile boolean pending;
+
+        abstract void write() throws IOException;
+
+        @Override
+        public void run() {
+            try {
+                if (error == null) {
+                    write();
+                }
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                count = 0;
+                pending = false;
+            }
+        }
+    }
+
+    private class FrameBlock extends Block {
+        final long[] frameNumbers;
+        final long[] timestamps;
+        final long[] exposures;
+        final long[] frameDurations;
+        final int[] sensitivities;
+        final int[] flags;
+
+        FrameBlock(int size) {
+            frameNumbers = new long[size];
+            timestamps = new long[size];
+            exposures = new long[size];
+            frameDurations = new long[size];
+            sensitivities = new int[size];
+            flags = new int[size];
+        }
+
+        @Override
+        void write() throws IOException {
+            out.writeByte(FRAME_BLOCK);
+            out.writeInt(count);
+            writeLongs(frameNumbers, count);
+            writeLongs(timestamps, count);
+            writeLongs(exposures, count);
+            writeLongs(frameDurations, count);
+            writeInts(sensitivities, count);
+            writeInts(flags, count);
+            out.flush();
+        }
+    }
+
+    private class SampleBlock extends Block {
+        final long[] pts;
+        final int[] sizes;
+        final int[] flags;
+
+        SampleBlock(int size) {
+            pts = new long[size];
+            sizes = new int[size];
+            flags = new int[size];
+        }
+
+        @Override
+        void write() throws IOException {
+            out.writeByte(SAMPLE_BLOCK);
+            out.writeInt(count);
+            writeLongs(pts, count);
+            writeInts(sizes, count);
+            writeInts(flags, count);
+            out.flush();
+        }
+    }
+
+    private void writeLongs(long[] values, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            out.writeLong(values[i]);
+        }
+    }
+
+    private void writeInts(int[] values, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            out.writeInt(values[i]);
+        }
+    }
+}
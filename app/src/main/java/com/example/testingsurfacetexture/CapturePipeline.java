@@ -0,0 +1,80 @@
+package com.example.testingsurfacetexture;
+
+import java.nio.ByteBuffer;
+
+// Wires frame source -> encoder -> sink and keeps statistics about what flows through.
+public class CapturePipeline {
+    private static final int TRACE_FRAME = Tracer.registerEvent("frame_captured", Tracer.LEVEL_FRAME, "timestamp_us", null);
+    private static final int TRACE_SAMPLE = Tracer.registerEvent("sample_encoded", Tracer.LEVEL_FRAME, "pts_us", "latency_us");
+
+    private final FrameSource source;
+    private final VideoEncoder encoder;
+    private final SampleSink sink;
+    private final Clock clock;
+    private final PipelineStats stats = new PipelineStats();
+
+    // source may be null when the camera feeds the encoder's input surface directly
+    public CapturePipeline(FrameSource source, VideoEncoder encoder, SampleSink sink, Clock clock) {
+        this.source = source;
+        this.encoder = encoder;
+        this.sink = sink;
+        this.clock = clock;
+    }
+
+    public void start() {
+        encoder.setSink(statsSink);
+        encoder.start();
+        if (source != null) {
+            source.setFrameListener(frameListener);
+            source.start();
+        }
+    }
+
+    public void stop() {
+        if (source != null) {
+            source.stop();
+        }
+        encoder.stop();
+    }
+
+    public void release() {
+        encoder.release();
+    }
+
+    public VideoEncoder getEncoder() {
+        return encoder;
+    }
+
+    public PipelineStats getStats() {
+        return stats;
+    }
+
+    private final FrameSource.FrameListener frameListener = new FrameSource.FrameListener() {
+        @Override
+        public void onFrame(long timestampNs) {
+            stats.onFrameCaptured();
+            Tracer.GLOBAL.instant(TRACE_FRAME, timestampNs / 1000, 0);
+            encoder.onFrameAvailable(timestampNs);
+        }
+    };
+
+    private final SampleSink statsSink = new SampleSink() {
+        @Override
+        public void onFormat(TrackFormat format) {
+            sink.onFormat(format);
+        }
+
+        @Override
+        public void onSample(ByteBuffer data, SampleInfo info) {
+            long latencyNs = clock.nanoTime() - info.presentationTimeUs * 1000;
+            stats.onSampleEncoded(info, latencyNs);
+            Tracer.GLOBAL.instant(TRACE_SAMPLE, info.presentationTimeUs, latencyNs / 1000);
+            sink.onSample(data, info);
+        }
+
+        @Override
+        public void onEnd() {
+            sink.onEnd();
+        }
+    };
+}
@@ -0,0 +1,12 @@
+package com.example.testingsurfacetexture;
+
+public interface Clock {
+    long nanoTime();
+
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+}
@@ -0,0 +1,64 @@
+package com.example.testingsurfacetexture;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Counts what it is given and discards it, for benchmarks and for checking what reached an output.
+public class CountingSink implements SampleSink {
+    private final AtomicLong formats = new AtomicLong();
+    private final AtomicLong samples = new AtomicLong();
+    private final AtomicLong keyFrames = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile long lastPtsUs = -1;
+    private volatile boolean ended;
+
+    @Override
+    public void onFormat(TrackFormat format) {
+        formats.incrementAndGet();
+    }
+
+    @Override
+    public void onSample(ByteBuffer data, SampleInfo info) {
+        samples.incrementAndGet();
+        bytes.addAndGet(info.size);
+        if (info.isKeyFrame()) {
+            keyFrames.incrementAndGet();
+        }
+        lastPtsUs = info.presentationTimeUs;
+    }
+
+    @Override
+    public void onEnd() {
+        ended = true;
+    }
+
+    public long getFormats() {
+        return formats.get();
+    }
+
+    public long getSamples() {
+        return samples.get();
+    }
+
+    public long getKeyFrames() {
+        return keyFrames.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getLastPtsUs() {
+        return lastPtsUs;
+    }
+
+    public boolean isEnded() {
+        return ended;
+    }
+
+    @Override
+    public String toString() {
+        return samples.get() + " samples (" + keyFrames.get() + " key frames), " + bytes.get() + " bytes"
+                + (ended ? ", ended" : "");
+    }
+}
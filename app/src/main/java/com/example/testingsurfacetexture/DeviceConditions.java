@@ -0,0 +1,62 @@
+package com.example.testingsurfacetexture;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+// Reads the capture governor's inputs from the platform. Safe to call off the main thread.
+public class DeviceConditions {
+    // How far ahead getThermalHeadroom() forecasts
+    private static final int HEADROOM_FORECAST_S = 10;
+
+    private final Context context;
+    private final PowerManager powerManager;
+    private int batteryPercent = -1;
+    private boolean charging;
+
+    public DeviceConditions(Context context) {
+        this.context = context.getApplicationContext();
+        powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+    }
+
+    // PowerManager.THERMAL_STATUS_*, which CaptureGovernor.THERMAL_* mirrors
+    public int getThermalStatus() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return CaptureGovernor.THERMAL_NONE;
+        }
+        return powerManager.getCurrentThermalStatus();
+    }
+
+    // NaN when the device cannot forecast
+    public float getThermalHeadroom() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
+            return Float.NaN;
+        }
+        return powerManager.getThermalHeadroom(HEADROOM_FORECAST_S);
+    }
+
+    // Refreshes the battery state from the sticky ACTION_BATTERY_CHANGED broadcast
+    public void updateBattery() {
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) {
+            batteryPercent = -1;
+            return;
+        }
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        batteryPercent = level >= 0 && scale > 0 ? level * 100 / scale : -1;
+        int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        charging = status == BatteryManager.BATTERY_STATUS_CHARGING || status == BatteryManager.BATTERY_STATUS_FULL;
+    }
+
+    public int getBatteryPercent() {
+        return batteryPercent;
+    }
+
+    public boolean isCharging() {
+        return charging;
+    }
+}
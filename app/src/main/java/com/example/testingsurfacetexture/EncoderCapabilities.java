@@ -0,0 +1,53 @@
+package com.example.testingsurfacetexture;
+
+// What an encoder reports it can do for a given mime type and frame size.
+public class EncoderCapabilities {
+    // Unrestricted capabilities, for when the codec cannot be queried
+    public static final EncoderCapabilities ANY = new EncoderCapabilities(1, Integer.MAX_VALUE, Integer.MAX_VALUE,
+            new boolean[]{true, true, true}, null, true);
+
+    public final int minBitRate;
+    public final int maxBitRate;
+    public final int maxFrameRate;
+    // Indexed by EncoderProfile.BITRATE_MODE_*
+    private final boolean[] bitrateModes;
+    // {profile, maxLevel} pairs, null when unknown
+    private final int[][] profileLevels;
+    public final boolean intraRefresh;
+
+    public EncoderCapabilities(int minBitRate, int maxBitRate, int maxFrameRate, boolean[] bitrateModes,
+                               int[][] profileLevels, boolean intraRefresh) {
+        this.minBitRate = minBitRate;
+        this.maxBitRate = maxBitRate;
+        this.maxFrameRate = maxFrameRate;
+        this.bitrateModes = bitrateModes.clone();
+        this.profileLevels = profileLevels;
+        this.intraRefresh = intraRefresh;
+    }
+
+    public boolean isBitrateModeSupported(int mode) {
+        return mode >= 0 && mode < bitrateModes.length && bitrateModes[mode];
+    }
+
+    public boolean isProfileSupported(int profile) {
+        return getMaxLevel(profile) > 0;
+    }
+
+    int[][] getProfileLevels() {
+        return profileLevels;
+    }
+
+    // Highest level supported for the profile, 0 when the profile is not supported
+    public int getMaxLevel(int profile) {
+        if (profileLevels == null) {
+            return Integer.MAX_VALUE;
+        }
+        int maxLevel = 0;
+        for (int[] profileLevel : profileLevels) {
+            if (profileLevel[0] == profile) {
+                maxLevel = Math.max(maxLevel, profileLevel[1]);
+            }
+        }
+        return maxLevel;
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.testingsurfacetexture;
+
+// An encoder error together with what it takes to recover from it. MediaCodecEncoder classifies
+// its CodecExceptions into these; errors of any other type are treated as FATAL.
+public class EncoderFault extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public enum Kind {
+        // The codec keeps working, only the frame or request at hand was lost
+        TRANSIENT,
+        // The codec has to be reset and configured again
+        RECOVERABLE,
+        // The codec is unusable, for example reclaimed by the system, and has to be recreated
+        FATAL
+    }
+
+    public final Kind kind;
+    public final int errorCode;
+
+    public EncoderFault(Kind kind, int errorCode, String message, Throwable cause) {
+        super(message, cause);
+        this.kind = kind;
+        this.errorCode = errorCode;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + " (" + kind + ", code " + errorCode + ")";
+    }
+}
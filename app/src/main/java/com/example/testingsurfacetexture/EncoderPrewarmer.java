@@ -0,0 +1,131 @@
+package com.example.testingsurfacetexture;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+// Creates and configures the encoder for the next recording ahead of time, so the record tap does
+// not wait for codec allocation and configuration (often 100+ ms). The input surface is a persistent
+// one, so an encoder recreated after a codec error can take it over.
+public class EncoderPrewarmer {
+    private static final String TAG = "EncoderPrewarmer";
+
+    public static class Prepared {
+        public final MediaCodecEncoder encoder;
+        public final Surface inputSurface;
+
+        Prepared(MediaCodecEncoder encoder, Surface inputSurface) {
+            this.encoder = encoder;
+            this.inputSurface = inputSurface;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final StartupTimer timer;
+    private String mime;
+    private int width;
+    private int height;
+    private EncoderProfile profile;
+    private Future<Prepared> pending;
+
+    public EncoderPrewarmer(ExecutorService executor, StartupTimer timer) {
+        this.executor = executor;
+        this.timer = timer;
+    }
+
+    // Starts preparing an encoder, replacing one prepared for a different configuration
+    public synchronized void prepare(final String mime, final int width, final int height, final EncoderProfile profile) {
+        if (pending != null) {
+            if (matches(mime, width, height, profile)) {
+                return;
+            }
+            discard();
+        }
+        this.mime = mime;
+        this.width = width;
+        this.height = height;
+        this.profile = profile;
+        pending = executor.submit(new Callable<Prepared>() {
+            @Override
+            public Prepared call() throws Exception {
+                timer.begin("encoder_prewarm");
+                MediaFormat format = MediaFormats.createVideoFormat(mime, width, height, profile);
+                Surface inputSurface = MediaCodec.createPersistentInputSurface();
+                MediaCodecEncoder encoder;
+                try {
+                    encoder = new MediaCodecEncoder(format, inputSurface);
+                } catch (IOException | RuntimeException e) {
+                    inputSurface.release();
+                    throw e;
+                }
+                Prepared prepared = new Prepared(encoder, inputSurface);
+                timer.end("encoder_prewarm");
+                Log.d(TAG, "prepare: " + profile + " " + width + "x" + height + " ready");
+                return prepared;
+            }
+        });
+    }
+
+    // The prepared encoder when it matches the configuration, null when the caller has to create
+    // one itself. Waits for a preparation that is still running, it is further along than a new one.
+    public synchronized Prepared take(String mime, int width, int height, EncoderProfile profile) {
+        if (pending == null) {
+            return null;
+        }
+        if (!matches(mime, width, height, profile)) {
+            Log.d(TAG, "take: prepared " + this.profile + " does not match " + profile);
+            discard();
+            return null;
+        }
+        Future<Prepared> future = pending;
+        pending = null;
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "take: preparing the encoder failed", e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            discard(future);
+            return null;
+        }
+    }
+
+    public synchronized void release() {
+        if (pending != null) {
+            discard();
+        }
+    }
+
+    private boolean matches(String mime, int width, int height, EncoderProfile profile) {
+        return mime.equals(this.mime) && width == this.width && height == this.height && profile.equals(this.profile);
+    }
+
+    private void discard() {
+        discard(pending);
+        pending = null;
+    }
+
+    // Releases the encoder on the executor once it has been created
+    private void discard(final Future<Prepared> future) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Prepared prepared = future.get();
+                    prepared.inputSurface.release();
+                    prepared.encoder.release();
+                } catch (ExecutionException | InterruptedException e) {
+                    // Nothing was created
+                }
+            }
+        });
+    }
+}
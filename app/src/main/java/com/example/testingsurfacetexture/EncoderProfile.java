@@ -0,0 +1,281 @@
+package com.example.testingsurfacetexture;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+// Named set of encoder parameters, loaded from a properties file. Optional settings are
+// UNSET and left to the codec's defaults.
+public class EncoderProfile {
+    public static final int UNSET = -1;
+
+    // Same values as MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_*
+    public static final int BITRATE_MODE_CQ = 0;
+    public static final int BITRATE_MODE_VBR = 1;
+    public static final int BITRATE_MODE_CBR = 2;
+
+    // Same values as MediaCodecInfo.CodecProfileLevel.AVCProfile*
+    public static final int AVC_PROFILE_BASELINE = 0x01;
+    public static final int AVC_PROFILE_MAIN = 0x02;
+    public static final int AVC_PROFILE_HIGH = 0x08;
+
+    // MediaFormat.KEY_PRIORITY
+    public static final int PRIORITY_REALTIME = 0;
+    public static final int PRIORITY_BEST_EFFORT = 1;
+
+    public final String name;
+    public final int bitRate;
+    public final int frameRate;
+    public final float iFrameIntervalSeconds;
+    public final int bitrateMode;
+    public final int avcProfile;
+    public final int avcLevel;
+    public final int quality;
+    public final int maxBFrames;
+    public final int intraRefreshPeriod;
+    public final int latency;
+    public final int priority;
+
+    public EncoderProfile(String name, int bitRate, int frameRate, float iFrameIntervalSeconds, int bitrateMode,
+                          int avcProfile, int avcLevel, int quality, int maxBFrames, int intraRefreshPeriod,
+                          int latency, int priority) {
+        this.name = name;
+        this.bitRate = bitRate;
+        this.frameRate = frameRate;
+        this.iFrameIntervalSeconds = iFrameIntervalSeconds;
+        this.bitrateMode = bitrateMode;
+        this.avcProfile = avcProfile;
+        this.avcLevel = avcLevel;
+        this.quality = quality;
+        this.maxBFrames = maxBFrames;
+        this.intraRefreshPeriod = intraRefreshPeriod;
+        this.latency = latency;
+        this.priority = priority;
+    }
+
+    public static EncoderProfile defaults(String name, int bitRate, int frameRate, float iFrameIntervalSeconds) {
+        return new EncoderProfile(name, bitRate, frameRate, iFrameIntervalSeconds,
+                UNSET, UNSET, UNSET, UNSET, UNSET, UNSET, UNSET, UNSET);
+    }
+
+    public EncoderProfile withBitRate(int bitRate) {
+        return new EncoderProfile(name, bitRate, frameRate, iFrameIntervalSeconds, bitrateMode, avcProfile, avcLevel,
+                quality, maxBFrames, intraRefreshPeriod, latency, priority);
+    }
+
+    public EncoderProfile withFrameRate(int frameRate) {
+        return new EncoderProfile(name, bitRate, frameRate, iFrameIntervalSeconds, bitrateMode, avcProfile, avcLevel,
+                quality, maxBFrames, intraRefreshPeriod, latency, priority);
+    }
+
+    public EncoderProfile withMaxBFrames(int maxBFrames) {
+        return new EncoderProfile(name, bitRate, frameRate, iFrameIntervalSeconds, bitrateMode, avcProfile, avcLevel,
+                quality, maxBFrames, intraRefreshPeriod, latency, priority);
+    }
+
+    public List<String> validate(EncoderCapabilities capabilities) {
+        List<String> problems = new ArrayList<>();
+        if (bitRate < capabilities.minBitRate || bitRate > capabilities.maxBitRate) {
+            problems.add("bitrate " + bitRate + " outside " + capabilities.minBitRate + ".." + capabilities.maxBitRate);
+        }
+        if (frameRate > capabilities.maxFrameRate) {
+            problems.add("frame rate " + frameRate + " above " + capabilities.maxFrameRate);
+        }
+        if (bitrateMode != UNSET && !capabilities.isBitrateModeSupported(bitrateMode)) {
+            problems.add("bitrate mode " + bitrateMode + " not supported");
+        }
+        if (quality != UNSET && bitrateMode != BITRATE_MODE_CQ) {
+            problems.add("quality only applies to constant quality mode");
+        }
+        if (avcProfile != UNSET && !capabilities.isProfileSupported(avcProfile)) {
+            problems.add("profile " + avcProfile + " not supported");
+        } else if (avcProfile != UNSET && avcLevel != UNSET && avcLevel > capabilities.getMaxLevel(avcProfile)) {
+            problems.add("level " + avcLevel + " above " + capabilities.getMaxLevel(avcProfile));
+        }
+        if (maxBFrames > 0 && avcProfile == AVC_PROFILE_BASELINE) {
+            problems.add("baseline profile has no B-frames");
+        }
+        if (intraRefreshPeriod != UNSET && !capabilities.intraRefresh) {
+            problems.add("intra refresh not supported");
+        }
+        return problems;
+    }
+
+    // Closest profile the encoder accepts: numbers are clamped, unsupported features dropped
+    public EncoderProfile clampTo(EncoderCapabilities capabilities) {
+        int mode = bitrateMode != UNSET && capabilities.isBitrateModeSupported(bitrateMode) ? bitrateMode : UNSET;
+        int profile = avcProfile != UNSET && capabilities.isProfileSupported(avcProfile) ? avcProfile : UNSET;
+        int level = profile != UNSET && avcLevel != UNSET ? Math.min(avcLevel, capabilities.getMaxLevel(profile)) : UNSET;
+        return new EncoderProfile(name,
+                Math.max(capabilities.minBitRate, Math.min(capabilities.maxBitRate, bitRate)),
+                Math.min(capabilities.maxFrameRate, frameRate),
+                iFrameIntervalSeconds,
+                mode,
+                profile,
+                level,
+                mode == BITRATE_MODE_CQ ? quality : UNSET,
+                profile == AVC_PROFILE_BASELINE ? Math.min(0, maxBFrames) : maxBFrames,
+                capabilities.intraRefresh ? intraRefreshPeriod : UNSET,
+                latency,
+                priority);
+    }
+
+    // Loads every profile in the file; "<name>.<key>=value" defines profile <name>
+    public static Map<String, EncoderProfile> load(InputStream in) throws IOException {
+        Properties properties = new Properties();
+        properties.load(in);
+        return parse(properties);
+    }
+
+    static Map<String, EncoderProfile> parse(Properties properties) {
+        TreeSet<String> names = new TreeSet<>();
+        for (String key : properties.stringPropertyNames()) {
+            int dot = key.indexOf('.');
+            if (dot > 0) {
+                names.add(key.substring(0, dot));
+            }
+        }
+        Map<String, EncoderProfile> profiles = new LinkedHashMap<>();
+        for (String name : names) {
+            profiles.put(name, parse(name, properties));
+        }
+        return profiles;
+    }
+
+    private static EncoderProfile parse(String name, Properties p) {
+        int bitRate = getInt(p, name, "bitrate", UNSET);
+        int frameRate = getInt(p, name, "frame_rate", UNSET);
+        String interval = get(p, name, "i_frame_interval");
+        if (bitRate <= 0 || frameRate <= 0 || interval == null) {
+            throw new IllegalArgumentException("Profile " + name + " needs bitrate, frame_rate and i_frame_interval");
+        }
+        return new EncoderProfile(name, bitRate, frameRate, parseFloat(name, "i_frame_interval", interval),
+                parseBitrateMode(name, get(p, name, "bitrate_mode")),
+                parseAvcProfile(name, get(p, name, "avc_profile")),
+                parseAvcLevel(name, get(p, name, "avc_level")),
+                getInt(p, name, "quality", UNSET),
+                getInt(p, name, "max_b_frames", UNSET),
+                getInt(p, name, "intra_refresh_period", UNSET),
+                getInt(p, name, "latency", UNSET),
+                parsePriority(name, get(p, name, "priority")));
+    }
+
+    private static String get(Properties p, String name, String key) {
+        String value = p.getProperty(name + "." + key);
+        return value == null ? null : value.trim();
+    }
+
+    private static int getInt(Properties p, String name, String key, int fallback) {
+        String value = get(p, name, key);
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Profile " + name + ": " + key + " is not a number: " + value);
+        }
+    }
+
+    private static float parseFloat(String name, String key, String value) {
+        try {
+            return Float.parseFloat(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Profile " + name + ": " + key + " is not a number: " + value);
+        }
+    }
+
+    private static int parseBitrateMode(String name, String value) {
+        if (value == null) {
+            return UNSET;
+        }
+        switch (value) {
+            case "cq":
+                return BITRATE_MODE_CQ;
+            case "vbr":
+                return BITRATE_MODE_VBR;
+            case "cbr":
+                return BITRATE_MODE_CBR;
+            default:
+                throw new IllegalArgumentException("Profile " + name + ": unknown bitrate_mode " + value);
+        }
+    }
+
+    private static int parseAvcProfile(String name, String value) {
+        if (value == null) {
+            return UNSET;
+        }
+        switch (value) {
+            case "baseline":
+                return AVC_PROFILE_BASELINE;
+            case "main":
+                return AVC_PROFILE_MAIN;
+            case "high":
+                return AVC_PROFILE_HIGH;
+            default:
+                throw new IllegalArgumentException("Profile " + name + ": unknown avc_profile " + value);
+        }
+    }
+
+    // MediaCodecInfo.CodecProfileLevel.AVCLevel* for "3" through "5.2"
+    private static int parseAvcLevel(String name, String value) {
+        if (value == null) {
+            return UNSET;
+        }
+        String[] levels = {"3", "3.1", "3.2", "4", "4.1", "4.2", "5", "5.1", "5.2"};
+        for (int i = 0; i < levels.length; i++) {
+            if (levels[i].equals(value)) {
+                return 0x100 << i;
+            }
+        }
+        throw new IllegalArgumentException("Profile " + name + ": unknown avc_level " + value);
+    }
+
+    private static int parsePriority(String name, String value) {
+        if (value == null) {
+            return UNSET;
+        }
+        switch (value) {
+            case "realtime":
+                return PRIORITY_REALTIME;
+            case "best_effort":
+                return PRIORITY_BEST_EFFORT;
+            default:
+                throw new IllegalArgumentException("Profile " + name + ": unknown priority " + value);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof EncoderProfile)) {
+            return false;
+        }
+        EncoderProfile other = (EncoderProfile) o;
+        return name.equals(other.name) && bitRate == other.bitRate && frameRate == other.frameRate
+                && Float.compare(iFrameIntervalSeconds, other.iFrameIntervalSeconds) == 0
+                && bitrateMode == other.bitrateMode && avcProfile == other.avcProfile && avcLevel == other.avcLevel
+                && quality == other.quality && maxBFrames == other.maxBFrames
+                && intraRefreshPeriod == other.intraRefreshPeriod && latency == other.latency
+                && priority == other.priority;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(new Object[]{name, bitRate, frameRate, iFrameIntervalSeconds, bitrateMode, avcProfile,
+                avcLevel, quality, maxBFrames, intraRefreshPeriod, latency, priority});
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + bitRate + "bps " + frameRate + "fps gop " + iFrameIntervalSeconds + "s";
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.testingsurfacetexture;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+// Decrypts one segment written by EncryptedSegmentWriter and replays it into a sink, for export
+// to MP4 through MuxerSink or for checking a recording.
+public class EncryptedSegmentReader {
+    private final KeyWrapper keyWrapper;
+    private int segment;
+    private int orientation;
+
+    public EncryptedSegmentReader(KeyWrapper keyWrapper) {
+        this.keyWrapper = keyWrapper;
+    }
+
+    // Returns the number of samples replayed. A segment cut short by a crash replays up to its
+    // last complete record; onEnd() is left to the caller so segments can be joined.
+    public int read(InputStream in, SampleSink sink) throws IOException, GeneralSecurityException {
+        DataInputStream header = new DataInputStream(in);
+        if (header.readInt() != EncryptedSegmentWriter.MAGIC) {
+            throw new IOException("Not an encrypted segment");
+        }
+        int version = header.readUnsignedByte();
+        if (version != EncryptedSegmentWriter.VERSION) {
+            throw new IOException("Unsupported segment version " + version);
+        }
+        byte[] wrappedKey = new byte[header.readUnsignedShort()];
+        header.readFully(wrappedKey);
+        byte[] iv = new byte[EncryptedSegmentWriter.IV_SIZE];
+        header.readFully(iv);
+        segment = header.readInt();
+        orientation = header.readInt();
+
+        SecretKey dataKey = keyWrapper.unwrap(wrappedKey);
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, dataKey, new IvParameterSpec(iv));
+        DataInputStream records = new DataInputStream(new BufferedInputStream(new CipherInputStream(in, cipher)));
+
+        SampleInfo info = new SampleInfo();
+        byte[] payload = new byte[0];
+        int samples = 0;
+        while (true) {
+            byte type;
+            try {
+                type = records.readByte();
+            } catch (EOFException e) {
+                return samples;
+            }
+            long ptsUs;
+            int flags;
+            int size;
+            try {
+                ptsUs = records.readLong();
+                flags = records.readInt();
+                size = records.readInt();
+                if (size > payload.length) {
+                    payload = new byte[size];
+                }
+                records.readFully(payload, 0, size);
+            } catch (EOFException e) {
+                return samples;
+            }
+            ByteBuffer data = ByteBuffer.wrap(payload, 0, size);
+            if (type == EncryptedSegmentWriter.RECORD_FORMAT) {
+                sink.onFormat(readFormat(data));
+            } else if (type == EncryptedSegmentWriter.RECORD_SAMPLE) {
+                info.set(0, size, ptsUs, flags);
+                sink.onSample(data, info);
+                samples++;
+            } else {
+                throw new IOException("Unknown record type " + type + ", wrong key?");
+            }
+        }
+    }
+
+    private static TrackFormat readFormat(ByteBuffer data) {
+        byte[] mime = new byte[data.getShort()];
+        data.get(mime);
+        int width = data.getInt();
+        int height = data.getInt();
+        ByteBuffer csd0 = readBytes(data);
+        ByteBuffer csd1 = readBytes(data);
+        return new TrackFormat(new String(mime), width, height, csd0, csd1);
+    }
+
+    private static ByteBuffer readBytes(ByteBuffer data) {
+        int size = data.getInt();
+        if (size == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[size];
+        data.get(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    // The index and orientation of the last segment read
+    public int getSegment() {
+        return segment;
+    }
+
+    public int getOrientation() {
+        return orientation;
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.testingsurfacetexture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+// Writes the encoded stream encrypted at rest, in segments that each start with the track format
+// and a key frame so they decrypt and decode on their own. Every segment gets a fresh random
+// AES-CTR IV; the rest of the segment is one keystream, so any byte offset can be decrypted
+// without reading what comes before it.
+//
+// The encoder's buffer may be shared with other sinks, so it is not encrypted in place. The
+// cipher reads it once and writes the ciphertext straight into a reused direct buffer that goes
+// to the channel, which is the only copy a plain write makes as well.
+//
+// Segment layout (big-endian):
+//   clear:     MAGIC, VERSION, wrapped key length (short), wrapped key, IV (16), index, orientation
+//   encrypted: records of type (byte), pts (long), flags, size, payload; the first is the format
+public class EncryptedSegmentWriter implements SampleSink {
+    static final int MAGIC = 0x45534731; // "ESG1"
+    static final int VERSION = 1;
+    static final int IV_SIZE = 16;
+    static final byte RECORD_FORMAT = 1;
+    static final byte RECORD_SAMPLE = 2;
+    static final int RECORD_HEADER_SIZE = 1 + 8 + 4 + 4;
+
+    public interface SegmentOutput {
+        WritableByteChannel open(int segment) throws IOException;
+    }
+
+    private final SegmentOutput output;
+    private final SecretKey dataKey;
+    private final byte[] wrappedKey;
+    private final int orientation;
+    private final long segmentDurationUs;
+    private final SecureRandom random;
+    private final Cipher cipher;
+    private final byte[] iv = new byte[IV_SIZE];
+    private final ByteBuffer recordHeader = ByteBuffer.allocateDirect(RECORD_HEADER_SIZE);
+    private ByteBuffer scratch = ByteBuffer.allocateDirect(256 * 1024);
+    private ByteBuffer formatRecord;
+    private WritableByteChannel channel;
+    private int segments;
+    private long segmentStartUs;
+    private long bytesWritten;
+    private long droppedSamples;
+    private IOException error;
+
+    // wrappedKey is dataKey as KeyWrapper.wrap() stored it; it is copied into every segment
+    public EncryptedSegmentWriter(SegmentOutput output, SecretKey dataKey, byte[] wrappedKey, int orientation,
+                                  long segmentDurationUs, SecureRandom random) throws GeneralSecurityException {
+        this.output = output;
+        this.dataKey = dataKey;
+        this.wrappedKey = wrappedKey.clone();
+        this.orientation = orientation;
+        this.segmentDurationUs = segmentDurationUs;
+        this.random = random;
+        cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    }
+
+    @Override
+    public void onFormat(TrackFormat format) {
+        ByteBuffer csd0 = format.getCsd0();
+        ByteBuffer csd1 = format.getCsd1();
+        byte[] mime = format.mime.getBytes();
+        int size = 2 + mime.length + 4 + 4 + 4 + (csd0 != null ? csd0.remaining() : 0)
+                + 4 + (csd1 != null ? csd1.remaining() : 0);
+        formatRecord = ByteBuffer.allocate(size);
+        formatRecord.putShort((short) mime.length).put(mime).putInt(format.width).putInt(format.height);
+        putBytes(formatRecord, csd0);
+        putBytes(formatRecord, csd1);
+        formatRecord.flip();
+    }
+
+    private static void putBytes(ByteBuffer out, ByteBuffer bytes) {
+        if (bytes == null) {
+            out.putInt(0);
+            return;
+        }
+        out.putInt(bytes.remaining());
+        out.put(bytes);
+    }
+
+    @Override
+    public void onSample(ByteBuffer data, SampleInfo info) {
+        if (error != null || formatRecord == null) {
+            droppedSamples++;
+            return;
+        }
+        try {
+            if (channel == null || (info.isKeyFrame() && info.presentationTimeUs - segmentStartUs >= segmentDurationUs)) {
+                if (channel == null && !info.isKeyFrame()) {
+                    // A segment has to start decodable
+                    droppedSamples++;
+                    return;
+                }
+                startSegment(info.presentationTimeUs);
+            }
+            int position = data.position();
+            writeRecord(RECORD_SAMPLE, info.presentationTimeUs, info.flags, data);
+            data.position(position);
+        } catch (IOException e) {
+            fail(e);
+        } catch (GeneralSecurityException e) {
+            fail(new IOException(e));
+        }
+    }
+
+    @Override
+    public void onEnd() {
+        try {
+            closeSegment();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        if (error == null) {
+            error = e;
+        }
+        droppedSamples++;
+        try {
+            closeSegment();
+        } catch (IOException ignored) {
+            // Already failed
+        }
+    }
+
+    private void startSegment(long ptsUs) throws IOException, GeneralSecurityException {
+        closeSegment();
+        channel = output.open(segments);
+        random.nextBytes(iv);
+        cipher.init(Cipher.ENCRYPT_MODE, dataKey, new IvParameterSpec(iv));
+
+        ensureScratch(4 + 1 + 2 + wrappedKey.length + IV_SIZE + 4 + 4);
+        scratch.clear();
+        scratch.putInt(MAGIC).put((byte) VERSION).putShort((short) wrappedKey.length).put(wrappedKey)
+                .put(iv).putInt(segments).putInt(orientation);
+        scratch.flip();
+        write(scratch);
+
+        segments++;
+        segmentStartUs = ptsUs;
+        writeRecord(RECORD_FORMAT, ptsUs, 0, formatRecord.duplicate());
+    }
+
+    private void writeRecord(byte type, long ptsUs, int flags, ByteBuffer payload) throws IOException, GeneralSecurityException {
+        int size = payload.remaining();
+        ensureScratch(RECORD_HEADER_SIZE + size);
+        recordHeader.clear();
+        recordHeader.put(type).putLong(ptsUs).putInt(flags).putInt(size);
+        recordHeader.flip();
+        scratch.clear();
+        cipher.update(recordHeader, scratch);
+        cipher.update(payload, scratch);
+        scratch.flip();
+        write(scratch);
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            bytesWritten += channel.write(buffer);
+        }
+    }
+
+    private void ensureScratch(int size) {
+        if (scratch.capacity() < size) {
+            scratch = ByteBuffer.allocateDirect(Integer.highestOneBit(size) << 1);
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        if (channel != null) {
+            WritableByteChannel closing = channel;
+            channel = null;
+            closing.close();
+        }
+    }
+
+    public int getSegments() {
+        return segments;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+    // The first write error, null when everything was written
+    public IOException getError() {
+        return error;
+    }
+}
@@ -0,0 +1,473 @@
+package com.example.testingsurfacetexture;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Delivers the encoder's output to several sinks, each isolated from the others. An inline
+// output is called on the producer's thread with the codec's own buffer, as TeeSink does. A
+// queued output has a bounded queue drained on its own executor: the sample is copied once into
+// a pooled, reference counted buffer that every queued output shares, and the output's overflow
+// policy decides what happens when it falls behind, so a slow sink only loses its own samples.
+// Formats and the end are never dropped. A sink that throws is counted and skipped, not removed.
+//
+// Outputs are added before the first callback; they cannot change while samples flow.
+public class FanOutSink implements SampleSink {
+    public enum Overflow {
+        // Drop the sample and the rest of its GOP, so what the sink gets stays decodable
+        SKIP_TO_KEY_FRAME,
+        // Stop feeding the sink for good and end it, as for an evicted network client
+        DISCONNECT,
+        // Hold the producer up to the output's wait time for room, then skip to the next key
+        // frame; for a sink that should ride out short stalls without losing frames
+        WAIT
+    }
+
+    private static final Object END = new Object();
+
+    static class SharedSample {
+        final AtomicInteger refs = new AtomicInteger();
+        final SampleInfo info = new SampleInfo();
+        ByteBuffer data;
+        // One view per output, so outputs reading at the same time have their own positions
+        ByteBuffer[] views;
+        long enqueuedNs;
+    }
+
+    private final Clock clock;
+    private Output[] outputs = new Output[0];
+    private ArrayBlockingQueue<SharedSample> pool;
+    private boolean started;
+    private final AtomicLong allocatedSamples = new AtomicLong();
+
+    public FanOutSink(Clock clock) {
+        this.clock = clock;
+    }
+
+    // Returns the output's index for the metric getters
+    public synchronized int addInline(String name, SampleSink sink) {
+        return add(new Output(name, sink, null, 0, null, 0));
+    }
+
+    public synchronized int addQueued(String name, SampleSink sink, Executor executor, int capacity, Overflow overflow,
+                                      long maxWaitNs) {
+        return add(new Output(name, sink, executor, capacity, overflow, maxWaitNs));
+    }
+
+    private int add(Output output) {
+        if (started) {
+            throw new IllegalStateException("Outputs must be added before the first sample");
+        }
+        Output[] grown = new Output[outputs.length + 1];
+        System.arraycopy(outputs, 0, grown, 0, outputs.length);
+        grown[outputs.length] = output;
+        outputs = grown;
+        return outputs.length - 1;
+    }
+
+    private synchronized Output[] start() {
+        if (!started) {
+            started = true;
+            int capacity = 1;
+            for (Output output : outputs) {
+                capacity += output.capacity;
+            }
+            pool = new ArrayBlockingQueue<>(capacity);
+        }
+        return outputs;
+    }
+
+    @Override
+    public void onFormat(TrackFormat format) {
+        for (Output output : start()) {
+            if (output.executor == null) {
+                output.formatInline(format);
+            } else {
+                output.offerControl(format);
+            }
+        }
+    }
+
+    @Override
+    public void onSample(ByteBuffer data, SampleInfo info) {
+        Output[] outputs = start();
+        int position = data.position();
+        int limit = data.limit();
+        SharedSample shared = null;
+        for (Output output : outputs) {
+            if (output.executor == null) {
+                data.limit(limit).position(position);
+                output.sampleInline(data, info);
+                continue;
+            }
+            if (shared == null) {
+                data.limit(limit).position(position);
+                shared = copy(data, info, outputs.length);
+            }
+            output.offerSample(shared);
+        }
+        data.limit(limit).position(position);
+        if (shared != null) {
+            release(shared);
+        }
+    }
+
+    @Override
+    public void onEnd() {
+        for (Output output : start()) {
+            if (output.executor == null) {
+                output.endInline();
+            } else {
+                output.offerControl(END);
+            }
+        }
+    }
+
+    private SharedSample copy(ByteBuffer data, SampleInfo info, int outputCount) {
+        SharedSample shared = pool.poll();
+        if (shared == null) {
+            shared = new SharedSample();
+            allocatedSamples.incrementAndGet();
+        }
+        if (shared.data == null || shared.data.capacity() < info.size) {
+            shared.data = ByteBuffer.allocate(info.size + info.size / 4);
+            shared.views = new ByteBuffer[outputCount];
+            for (int i = 0; i < outputCount; i++) {
+                shared.views[i] = shared.data.duplicate();
+            }
+        }
+        data.limit(data.position() + info.size);
+        shared.data.clear();
+        shared.data.put(data);
+        shared.info.set(0, info.size, info.presentationTimeUs, info.flags);
+        shared.enqueuedNs = clock.nanoTime();
+        // The producer's own reference, released once every output has queued it or passed
+        shared.refs.set(1);
+        return shared;
+    }
+
+    private void release(SharedSample shared) {
+        if (shared.refs.decrementAndGet() == 0) {
+            pool.offer(shared);
+        }
+    }
+
+    private class Output implements Runnable {
+        final String name;
+        final SampleSink sink;
+        final Executor executor;
+        final int capacity;
+        final Overflow overflow;
+        final long maxWaitNs;
+        final int index;
+        final ArrayDeque<Object> queue = new ArrayDeque<>();
+        final SampleInfo info = new SampleInfo();
+        // Time spent queued and inside the sink, in microseconds
+        final LatencyHistogram queueLatency = new LatencyHistogram();
+        final LatencyHistogram sinkLatency = new LatencyHistogram();
+        // Formats and the end in the queue do not count against the capacity
+        int queuedSamples;
+        boolean scheduled;
+        boolean skipping;
+        boolean disconnected;
+        long delivered;
+        long dropped;
+        long sinkErrors;
+        long waitNs;
+        int maxDepth;
+
+        Output(String name, SampleSink sink, Executor executor, int capacity, Overflow overflow, long maxWaitNs) {
+            this.name = name;
+            this.sink = sink;
+            this.executor = executor;
+            this.capacity = capacity;
+            this.overflow = overflow;
+            this.maxWaitNs = maxWaitNs;
+            this.index = outputs.length;
+        }
+
+        void formatInline(TrackFormat format) {
+            try {
+                sink.onFormat(format);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    sinkErrors++;
+                }
+            }
+        }
+
+        void sampleInline(ByteBuffer data, SampleInfo info) {
+            long startNs = clock.nanoTime();
+            boolean failed = false;
+            try {
+                sink.onSample(data, info);
+            } catch (RuntimeException e) {
+                failed = true;
+            }
+            long durationUs = (clock.nanoTime() - startNs) / 1000;
+            synchronized (this) {
+                sinkLatency.record(durationUs);
+                queueLatency.record(0);
+                delivered++;
+                if (failed) {
+                    sinkErrors++;
+                }
+            }
+        }
+
+        void endInline() {
+            try {
+                sink.onEnd();
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    sinkErrors++;
+                }
+            }
+        }
+
+        // Formats and the end are queued past the capacity
+        void offerControl(Object item) {
+            synchronized (this) {
+                if (disconnected) {
+                    return;
+                }
+                queue.add(item);
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            executor.execute(this);
+        }
+
+        void offerSample(SharedSample shared) {
+            boolean keyFrame = shared.info.isKeyFrame();
+            synchronized (this) {
+                if (disconnected) {
+                    return;
+                }
+                if (skipping && !keyFrame) {
+                    dropped++;
+                    return;
+                }
+                skipping = false;
+                if (queuedSamples >= capacity && overflow == Overflow.WAIT) {
+                    awaitRoom();
+                }
+                if (queuedSamples >= capacity) {
+                    dropped++;
+                    if (overflow == Overflow.DISCONNECT) {
+                        disconnect();
+                    } else {
+                        skipping = true;
+                        return;
+                    }
+                } else {
+                    shared.refs.incrementAndGet();
+                    queue.add(shared);
+                    queuedSamples++;
+                    maxDepth = Math.max(maxDepth, queuedSamples);
+                }
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            executor.execute(this);
+        }
+
+        // Called holding the lock; the drain notifies as it takes items
+        private void awaitRoom() {
+            long startNs = clock.nanoTime();
+            long deadlineNs = startNs + maxWaitNs;
+            boolean interrupted = false;
+            long remainingNs;
+            while (queuedSamples >= capacity && !disconnected && (remainingNs = deadlineNs - clock.nanoTime()) > 0) {
+                try {
+                    wait(remainingNs / 1000000, (int) (remainingNs % 1000000));
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            waitNs += clock.nanoTime() - startNs;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Called holding the lock: whatever is queued is given back and the sink gets its end
+        private void disconnect() {
+            disconnected = true;
+            Object item;
+            while ((item = queue.poll()) != null) {
+                if (item instanceof SharedSample) {
+                    release((SharedSample) item);
+                }
+            }
+            queuedSamples = 0;
+            queue.add(END);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Object item;
+                synchronized (this) {
+                    item = queue.poll();
+                    if (item == null) {
+                        scheduled = false;
+                        return;
+                    }
+                    if (item instanceof SharedSample) {
+                        queuedSamples--;
+                        notifyAll();
+                    }
+                }
+                if (item instanceof SharedSample) {
+                    deliver((SharedSample) item);
+                } else if (item == END) {
+                    endInline();
+                } else {
+                    formatInline((TrackFormat) item);
+                }
+            }
+        }
+
+        private void deliver(SharedSample shared) {
+            long startNs = clock.nanoTime();
+            ByteBuffer view = shared.views[index];
+            view.clear();
+            view.limit(shared.info.size);
+            info.copyFrom(shared.info);
+            boolean failed = false;
+            try {
+                sink.onSample(view, info);
+            } catch (RuntimeException e) {
+                failed = true;
+            }
+            long endNs = clock.nanoTime();
+            long queuedUs = (startNs - shared.enqueuedNs) / 1000;
+            release(shared);
+            synchronized (this) {
+                queueLatency.record(queuedUs);
+                sinkLatency.record((endNs - startNs) / 1000);
+                delivered++;
+                if (failed) {
+                    sinkErrors++;
+                }
+            }
+        }
+
+        synchronized boolean isIdle() {
+            return !scheduled && queue.isEmpty();
+        }
+
+        @Override
+        public synchronized String toString() {
+            return name + ": " + delivered + " delivered, " + dropped + " dropped"
+                    + (disconnected ? " (disconnected)" : "") + (sinkErrors > 0 ? ", " + sinkErrors + " errors" : "")
+                    + ", queue p99 " + queueLatency.getPercentile(99) / 1000 + " ms max depth " + maxDepth
+                    + ", sink p50 " + sinkLatency.getPercentile(50) + " us p99 " + sinkLatency.getPercentile(99) + " us";
+        }
+    }
+
+    private synchronized Output output(int index) {
+        return outputs[index];
+    }
+
+    public long getDelivered(int output) {
+        Output o = output(output);
+        synchronized (o) {
+            return o.delivered;
+        }
+    }
+
+    public long getDropped(int output) {
+        Output o = output(output);
+        synchronized (o) {
+            return o.dropped;
+        }
+    }
+
+    public long getSinkErrors(int output) {
+        Output o = output(output);
+        synchronized (o) {
+            return o.sinkErrors;
+        }
+    }
+
+    public boolean isDisconnected(int output) {
+        Output o = output(output);
+        synchronized (o) {
+            return o.disconnected;
+        }
+    }
+
+    public int getMaxQueueDepth(int output) {
+        Output o = output(output);
+        synchronized (o) {
+            return o.maxDepth;
+        }
+    }
+
+    // Total time the producer was held up waiting for this output's queue
+    public long getWaitNs(int output) {
+        Output o = output(output);
+        synchronized (o) {
+            return o.waitNs;
+        }
+    }
+
+    // From the copy to the start of delivery; zero for inline outputs
+    public long getQueueLatencyUs(int output, double percentile) {
+        Output o = output(output);
+        synchronized (o) {
+            return o.queueLatency.getPercentile(percentile);
+        }
+    }
+
+    public long getSinkLatencyUs(int output, double percentile) {
+        Output o = output(output);
+        synchronized (o) {
+            return o.sinkLatency.getPercentile(percentile);
+        }
+    }
+
+    // Shared sample buffers ever created; stays flat once the pool covers the queues
+    public long getAllocatedSamples() {
+        return allocatedSamples.get();
+    }
+
+    // True when every queued output has delivered everything given to it
+    public boolean isIdle() {
+        Output[] outputs;
+        synchronized (this) {
+            outputs = this.outputs;
+        }
+        for (Output output : outputs) {
+            if (!output.isIdle()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        Output[] outputs;
+        synchronized (this) {
+            outputs = this.outputs;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Output output : outputs) {
+            if (sb.length() > 0) {
+                sb.append("; ");
+            }
+            sb.append(output);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,475 @@
+package com.example.testingsurfacetexture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Writes H.264 as a fragmented MP4 that needs the same memory after a day as after a minute.
+// MediaMuxer keeps the sample table of the whole file in memory until stop(); here the table of
+// each fragment goes to disk in its moof as soon as the fragment is complete, and the file plays
+// up to the last complete fragment if the app dies mid-recording.
+//
+// Samples are copied into one of two fragments preallocated against the memory budget,
+// converted on the way from Annex-B to the length-prefixed NAL units MP4 wants. A complete
+// fragment is written on the executor while the other fills; if storage falls a whole fragment
+// behind, samples are dropped and counted until a fragment frees up and a key frame arrives.
+// The executor must run tasks in order, like a single storage thread.
+//
+// Sample durations are the gaps between consecutive timestamps and no composition offsets are
+// written, so the encoder must not use B-frames: output in decode order would play out of order.
+public class FragmentedMp4Writer implements SampleSink {
+    private static final String MIME_AVC = "video/avc";
+    private static final int TIMESCALE = 90000;
+    private static final int TRACK_ID = 1;
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+    private static final int TRUN_ENTRY_BYTES = 12;
+    // In-memory sample table: pts, size and sync flag
+    private static final int TABLE_ENTRY_BYTES = 8 + 4 + 1;
+
+    private static final int MOOF = fourcc("moof");
+    private static final int MFHD = fourcc("mfhd");
+    private static final int TRAF = fourcc("traf");
+    private static final int TFHD = fourcc("tfhd");
+    private static final int TFDT = fourcc("tfdt");
+    private static final int TRUN = fourcc("trun");
+    private static final int MDAT = fourcc("mdat");
+
+    private final WritableByteChannel out;
+    private final int orientation;
+    private final long fragmentDurationUs;
+    private final MemoryBudget budget;
+    private final Executor executor;
+    private final long reservedBytes;
+    private final Fragment[] fragments;
+    private int current;
+    private boolean started;
+    private boolean closed;
+    private boolean waitingForKeyFrame = true;
+    private long firstPtsUs = -1;
+    private long lastPtsUs;
+    private long lastDurationUs;
+    private int sequence;
+    private final AtomicLong droppedSamples = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong fragmentsWritten = new AtomicLong();
+    private volatile IOException error;
+
+    // fragmentBytes and fragmentSamples bound a fragment; one is cut early when it fills up
+    public FragmentedMp4Writer(WritableByteChannel out, int orientation, long fragmentDurationUs, int fragmentBytes,
+                               int fragmentSamples, MemoryBudget budget, Executor executor) {
+        this.out = out;
+        this.orientation = orientation;
+        this.fragmentDurationUs = fragmentDurationUs;
+        this.budget = budget;
+        this.executor = executor;
+        reservedBytes = 2 * ((long) fragmentBytes + moofCapacity(fragmentSamples)
+                + (long) fragmentSamples * TABLE_ENTRY_BYTES);
+        budget.reserve(reservedBytes);
+        fragments = new Fragment[]{new Fragment(fragmentBytes, fragmentSamples), new Fragment(fragmentBytes, fragmentSamples)};
+    }
+
+    private static int moofCapacity(int samples) {
+        // moof, mfhd, traf, tfhd, tfdt, trun and the mdat header after it
+        return 8 + 16 + 8 + 16 + 20 + 20 + TRUN_ENTRY_BYTES * samples + 8;
+    }
+
+    @Override
+    public void onFormat(TrackFormat format) {
+        if (started) {
+            return;
+        }
+        if (!MIME_AVC.equals(format.mime)) {
+            error = new IOException("Unsupported format " + format);
+            return;
+        }
+        started = true;
+        final ByteBuffer header = initSegment(format, orientation);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(header);
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onSample(ByteBuffer data, SampleInfo info) {
+        if (!started || closed || error != null || (waitingForKeyFrame && !info.isKeyFrame())) {
+            droppedSamples.incrementAndGet();
+            return;
+        }
+        long ptsUs = info.presentationTimeUs;
+        Fragment fragment = fragments[current];
+        if (!fragment.pending && fragment.count > 0 && info.isKeyFrame()
+                && ptsUs - fragment.ptsUs[0] >= fragmentDurationUs) {
+            fragment = submit(fragment, ptsUs);
+        }
+        boolean added = !fragment.pending && fragment.add(data, info);
+        if (!added && !fragment.pending && fragment.count > 0) {
+            // Full before its time was up
+            fragment = submit(fragment, ptsUs);
+            added = !fragment.pending && fragment.add(data, info);
+        }
+        if (!added) {
+            // Storage is behind, or the sample is bigger than a fragment
+            droppedSamples.incrementAndGet();
+            waitingForKeyFrame = true;
+            return;
+        }
+        waitingForKeyFrame = false;
+        if (firstPtsUs < 0) {
+            firstPtsUs = ptsUs;
+        } else {
+            lastDurationUs = ptsUs - lastPtsUs;
+        }
+        lastPtsUs = ptsUs;
+    }
+
+    // Writes the last fragment and closes the channel on the executor, then hands the memory back
+    @Override
+    public void onEnd() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        Fragment fragment = fragments[current];
+        if (!fragment.pending && fragment.count > 0) {
+            submit(fragment, lastPtsUs + lastDurationUs);
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                } finally {
+                    budget.release(reservedBytes);
+                }
+            }
+        });
+    }
+
+    // Queues the fragment for writing and returns the one to fill next, which may still be pending
+    private Fragment submit(Fragment fragment, long endPtsUs) {
+        fragment.endPtsUs = endPtsUs;
+        fragment.basePtsUs = firstPtsUs;
+        fragment.sequence = ++sequence;
+        fragment.pending = true;
+        executor.execute(fragment);
+        current ^= 1;
+        return fragments[current];
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            bytesWritten.addAndGet(out.write(buffer));
+        }
+    }
+
+    private static long ticks(long us) {
+        return us * TIMESCALE / 1000000;
+    }
+
+    public long getDroppedSamples() {
+        return droppedSamples.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public long getFragmentsWritten() {
+        return fragmentsWritten.get();
+    }
+
+    // What the writer holds against the budget until the file is closed
+    public long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    // The first write error, null when everything was written
+    public IOException getError() {
+        return error;
+    }
+
+    private class Fragment implements Runnable {
+        final ByteBuffer data;
+        final ByteBuffer moof;
+        final long[] ptsUs;
+        final int[] sizes;
+        final boolean[] sync;
+        int count;
+        long endPtsUs;
+        long basePtsUs;
+        int sequence;
+        volatile boolean pending;
+
+        Fragment(int bytes, int samples) {
+            data = ByteBuffer.allocateDirect(bytes);
+            moof = ByteBuffer.allocateDirect(moofCapacity(samples));
+            ptsUs = new long[samples];
+            sizes = new int[samples];
+            sync = new boolean[samples];
+        }
+
+        boolean add(ByteBuffer src, SampleInfo info) {
+            if (count == ptsUs.length) {
+                return false;
+            }
+            int start = data.position();
+            if (!copyAsLengthPrefixed(src, data)) {
+                data.position(start);
+                return false;
+            }
+            ptsUs[count] = info.presentationTimeUs;
+            sizes[count] = data.position() - start;
+            sync[count] = info.isKeyFrame();
+            count++;
+            return true;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (error == null) {
+                    write();
+                    fragmentsWritten.incrementAndGet();
+                }
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                data.clear();
+                count = 0;
+                pending = false;
+            }
+        }
+
+        private void write() throws IOException {
+            int trunSize = 20 + TRUN_ENTRY_BYTES * count;
+            int trafSize = 8 + 16 + 20 + trunSize;
+            int moofSize = 8 + 16 + trafSize;
+            moof.clear();
+            moof.putInt(moofSize).putInt(MOOF);
+            moof.putInt(16).putInt(MFHD).putInt(0).putInt(sequence);
+            moof.putInt(trafSize).putInt(TRAF);
+            // default-base-is-moof: data offsets count from the start of this moof
+            moof.putInt(16).putInt(TFHD).putInt(0x020000).putInt(TRACK_ID);
+            moof.putInt(20).putInt(TFDT).putInt(0x01000000).putLong(ticks(ptsUs[0] - basePtsUs));
+            // data offset, sample duration, size and flags present
+            moof.putInt(trunSize).putInt(TRUN).putInt(0x000701).putInt(count).putInt(moofSize + 8);
+            for (int i = 0; i < count; i++) {
+                long endUs = i + 1 < count ? ptsUs[i + 1] : endPtsUs;
+                long duration = ticks(endUs - basePtsUs) - ticks(ptsUs[i] - basePtsUs);
+                moof.putInt((int) Math.max(0, duration));
+                moof.putInt(sizes[i]);
+                moof.putInt(sync[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            }
+            moof.putInt(8 + data.position()).putInt(MDAT);
+            moof.flip();
+            data.flip();
+            FragmentedMp4Writer.this.write(moof);
+            FragmentedMp4Writer.this.write(data);
+        }
+    }
+
+    // Copies the Annex-B NAL units between src's position and limit to dst with 4-byte length
+    // prefixes instead of start codes. Returns false if dst is too small. src is left as it was.
+    static boolean copyAsLengthPrefixed(ByteBuffer src, ByteBuffer dst) {
+        int position = src.position();
+        int limit = src.limit();
+        boolean fits = true;
+        int startCode = findStartCode(src, position, limit);
+        if (startCode < 0) {
+            fits = copyNal(src, position, limit, dst);
+        } else {
+            int nalStart = startCode + 3;
+            while (fits && nalStart < limit) {
+                int next = findStartCode(src, nalStart, limit);
+                int nalEnd = next < 0 ? limit : next;
+                // The leading zero of a 4-byte start code
+                while (nalEnd > nalStart && src.get(nalEnd - 1) == 0) {
+                    nalEnd--;
+                }
+                if (nalEnd > nalStart) {
+                    fits = copyNal(src, nalStart, nalEnd, dst);
+                }
+                if (next < 0) {
+                    break;
+                }
+                nalStart = next + 3;
+            }
+        }
+        src.limit(limit);
+        src.position(position);
+        return fits;
+    }
+
+    private static boolean copyNal(ByteBuffer src, int start, int end, ByteBuffer dst) {
+        if (dst.remaining() < 4 + end - start) {
+            return false;
+        }
+        int limit = src.limit();
+        dst.putInt(end - start);
+        src.limit(end);
+        src.position(start);
+        dst.put(src);
+        src.limit(limit);
+        return true;
+    }
+
+    static int findStartCode(ByteBuffer data, int from, int to) {
+        int i = from;
+        while (i + 2 < to) {
+            byte third = data.get(i + 2);
+            if (third != 0 && third != 1) {
+                // No start code can begin at i, i + 1 or i + 2
+                i += 3;
+            } else if (third == 1 && data.get(i + 1) == 0 && data.get(i) == 0) {
+                return i;
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    // The NAL unit after the start code of an SPS or PPS
+    private static ByteBuffer firstNal(ByteBuffer csd) {
+        ByteBuffer nal = ByteBuffer.allocate(csd.remaining() + 4);
+        copyAsLengthPrefixed(csd, nal);
+        nal.flip();
+        nal.limit(4 + nal.getInt());
+        return nal.slice();
+    }
+
+    static ByteBuffer initSegment(TrackFormat format, int orientation) {
+        ByteBuffer sps = firstNal(format.getCsd0());
+        ByteBuffer pps = firstNal(format.getCsd1());
+        ByteBuffer b = ByteBuffer.allocate(1024 + sps.remaining() + pps.remaining());
+
+        int ftyp = begin(b, "ftyp");
+        b.putInt(fourcc("isom")).putInt(0x200)
+                .putInt(fourcc("isom")).putInt(fourcc("iso6")).putInt(fourcc("avc1")).putInt(fourcc("mp41"));
+        end(b, ftyp);
+
+        int moov = begin(b, "moov");
+        int mvhd = begin(b, "mvhd");
+        b.putInt(0).putInt(0).putInt(0).putInt(1000).putInt(0);
+        b.putInt(0x00010000).putShort((short) 0x0100).putShort((short) 0).putLong(0);
+        putMatrix(b, 0);
+        b.put(new byte[24]).putInt(TRACK_ID + 1);
+        end(b, mvhd);
+
+        int trak = begin(b, "trak");
+        int tkhd = begin(b, "tkhd");
+        // Enabled and in the movie
+        b.putInt(0x000003).putInt(0).putInt(0).putInt(TRACK_ID).putInt(0).putInt(0);
+        b.putLong(0).putShort((short) 0).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        putMatrix(b, orientation);
+        b.putInt(format.width << 16).putInt(format.height << 16);
+        end(b, tkhd);
+
+        int mdia = begin(b, "mdia");
+        int mdhd = begin(b, "mdhd");
+        // Language "und"
+        b.putInt(0).putInt(0).putInt(0).putInt(TIMESCALE).putInt(0).putShort((short) 0x55c4).putShort((short) 0);
+        end(b, mdhd);
+        int hdlr = begin(b, "hdlr");
+        b.putInt(0).putInt(0).putInt(fourcc("vide")).putInt(0).putInt(0).putInt(0).put("VideoHandle".getBytes()).put((byte) 0);
+        end(b, hdlr);
+
+        int minf = begin(b, "minf");
+        int vmhd = begin(b, "vmhd");
+        b.putInt(1).putShort((short) 0).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        end(b, vmhd);
+        int dinf = begin(b, "dinf");
+        int dref = begin(b, "dref");
+        b.putInt(0).putInt(1);
+        // Self-contained
+        b.putInt(12).putInt(fourcc("url ")).putInt(1);
+        end(b, dref);
+        end(b, dinf);
+
+        int stbl = begin(b, "stbl");
+        int stsd = begin(b, "stsd");
+        b.putInt(0).putInt(1);
+        int avc1 = begin(b, "avc1");
+        b.put(new byte[6]).putShort((short) 1).put(new byte[16]);
+        b.putShort((short) format.width).putShort((short) format.height);
+        b.putInt(0x00480000).putInt(0x00480000).putInt(0).putShort((short) 1).put(new byte[32]);
+        b.putShort((short) 0x0018).putShort((short) -1);
+        int avcC = begin(b, "avcC");
+        b.put((byte) 1).put(sps.get(1)).put(sps.get(2)).put(sps.get(3));
+        // 4-byte NAL lengths, one SPS, one PPS
+        b.put((byte) 0xff).put((byte) 0xe1).putShort((short) sps.remaining()).put(sps.duplicate());
+        b.put((byte) 1).putShort((short) pps.remaining()).put(pps.duplicate());
+        end(b, avcC);
+        end(b, avc1);
+        end(b, stsd);
+        // The samples are all in the fragments
+        b.putInt(16).putInt(fourcc("stts")).putInt(0).putInt(0);
+        b.putInt(16).putInt(fourcc("stsc")).putInt(0).putInt(0);
+        b.putInt(20).putInt(fourcc("stsz")).putInt(0).putInt(0).putInt(0);
+        b.putInt(16).putInt(fourcc("stco")).putInt(0).putInt(0);
+        end(b, stbl);
+        end(b, minf);
+        end(b, mdia);
+        end(b, trak);
+
+        int mvex = begin(b, "mvex");
+        int trex = begin(b, "trex");
+        b.putInt(0).putInt(TRACK_ID).putInt(1).putInt(0).putInt(0).putInt(0);
+        end(b, trex);
+        end(b, mvex);
+        end(b, moov);
+
+        b.flip();
+        return b;
+    }
+
+    // Rotation the way MediaMuxer writes setOrientationHint()
+    private static void putMatrix(ByteBuffer b, int degrees) {
+        int cos = 0;
+        int sin = 0;
+        switch (degrees) {
+            case 90:
+                sin = 0x10000;
+                break;
+            case 180:
+                cos = -0x10000;
+                break;
+            case 270:
+                sin = -0x10000;
+                break;
+            default:
+                cos = 0x10000;
+        }
+        b.putInt(cos).putInt(sin).putInt(0);
+        b.putInt(-sin).putInt(cos).putInt(0);
+        b.putInt(0).putInt(0).putInt(0x40000000);
+    }
+
+    private static int begin(ByteBuffer b, String type) {
+        int start = b.position();
+        b.putInt(0).putInt(fourcc(type));
+        return start;
+    }
+
+    private static void end(ByteBuffer b, int start) {
+        b.putInt(start, b.position() - start);
+    }
+
+    static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+}
@@ -0,0 +1,165 @@
+package com.example.testingsurfacetexture;
+
+import java.util.concurrent.Executor;
+
+// Hands camera frames to analyzers on the executor, at most maxInFlight at a time. A frame that
+// arrives while every slot is taken is skipped, so the camera, and with it the encoder fed from
+// the same capture, never waits for the analyzers. The frame slots and their tasks are allocated
+// once; each frame is released through the releaser as soon as the analyzers are done with it.
+public class FrameAnalysis {
+    public interface Releaser {
+        // Gives the frame's buffers back, for an Image by closing it
+        void release(YuvFrame frame);
+    }
+
+    private final FrameAnalyzer[] analyzers;
+    private final Executor executor;
+    private final Clock clock;
+    private final Releaser releaser;
+    private final YuvFrame[] frames;
+    private final Runnable[] tasks;
+    private final boolean[] busy;
+    // Time in each analyzer, and from arrival to release, in microseconds
+    private final LatencyHistogram[] analyzerLatencies;
+    private final LatencyHistogram frameLatency = new LatencyHistogram();
+    private boolean stopped;
+    private long offeredFrames;
+    private long skippedFrames;
+    private long analyzedFrames;
+    private long analyzerErrors;
+
+    public FrameAnalysis(FrameAnalyzer[] analyzers, Executor executor, Clock clock, Releaser releaser, int maxInFlight) {
+        this.analyzers = analyzers.clone();
+        this.executor = executor;
+        this.clock = clock;
+        this.releaser = releaser;
+        frames = new YuvFrame[maxInFlight];
+        tasks = new Runnable[maxInFlight];
+        busy = new boolean[maxInFlight];
+        for (int i = 0; i < maxInFlight; i++) {
+            final YuvFrame frame = new YuvFrame(i);
+            frames[i] = frame;
+            tasks[i] = new Runnable() {
+                @Override
+                public void run() {
+                    analyze(frame);
+                }
+            };
+        }
+        analyzerLatencies = new LatencyHistogram[analyzers.length];
+        for (int i = 0; i < analyzers.length; i++) {
+            analyzerLatencies[i] = new LatencyHistogram();
+        }
+    }
+
+    // Camera thread: a free frame to fill and submit(), or null if the frame has to be skipped
+    public synchronized YuvFrame acquire() {
+        if (stopped) {
+            return null;
+        }
+        offeredFrames++;
+        for (int i = 0; i < busy.length; i++) {
+            if (!busy[i]) {
+                busy[i] = true;
+                frames[i].arrivalNs = clock.nanoTime();
+                return frames[i];
+            }
+        }
+        skippedFrames++;
+        return null;
+    }
+
+    public void submit(YuvFrame frame) {
+        executor.execute(tasks[frame.index]);
+    }
+
+    // Frames already submitted are still analyzed and released
+    public synchronized void stop() {
+        stopped = true;
+    }
+
+    // True once stopped with nothing left in flight, when the buffers behind the frames can go
+    public synchronized boolean isIdle() {
+        if (!stopped) {
+            return false;
+        }
+        for (boolean b : busy) {
+            if (b) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void analyze(YuvFrame frame) {
+        try {
+            for (int i = 0; i < analyzers.length; i++) {
+                long startNs = clock.nanoTime();
+                try {
+                    analyzers[i].analyze(frame);
+                } catch (RuntimeException e) {
+                    // One broken analyzer must not keep the frame or starve the others
+                    synchronized (this) {
+                        analyzerErrors++;
+                    }
+                }
+                long durationUs = (clock.nanoTime() - startNs) / 1000;
+                synchronized (this) {
+                    analyzerLatencies[i].record(durationUs);
+                }
+            }
+        } finally {
+            releaser.release(frame);
+            frame.clear();
+            long latencyUs = (clock.nanoTime() - frame.arrivalNs) / 1000;
+            synchronized (this) {
+                frameLatency.record(latencyUs);
+                analyzedFrames++;
+                busy[frame.index] = false;
+            }
+        }
+    }
+
+    public synchronized long getOfferedFrames() {
+        return offeredFrames;
+    }
+
+    public synchronized long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    public synchronized long getAnalyzedFrames() {
+        return analyzedFrames;
+    }
+
+    public synchronized long getAnalyzerErrors() {
+        return analyzerErrors;
+    }
+
+    public synchronized double getSkipRate() {
+        return offeredFrames == 0 ? 0 : (double) skippedFrames / offeredFrames;
+    }
+
+    public synchronized long getAnalyzerLatencyUs(int analyzer, double percentile) {
+        return analyzerLatencies[analyzer].getPercentile(percentile);
+    }
+
+    // From arrival to release, including the wait for the executor
+    public synchronized long getFrameLatencyUs(double percentile) {
+        return frameLatency.getPercentile(percentile);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(analyzedFrames).append(" of ").append(offeredFrames).append(" frames analyzed, ")
+                .append(Math.round(getSkipRate() * 100)).append("% skipped, latency p50 ")
+                .append(frameLatency.getPercentile(50) / 1000).append(" ms p99 ")
+                .append(frameLatency.getPercentile(99) / 1000).append(" ms");
+        for (int i = 0; i < analyzers.length; i++) {
+            sb.append(", ").append(analyzers[i].getClass().getSimpleName()).append(" p99 ")
+                    .append(analyzerLatencies[i].getPercentile(99) / 1000).append(" ms");
+        }
+        return sb.toString();
+    }
+}
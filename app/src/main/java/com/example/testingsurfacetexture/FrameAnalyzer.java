@@ -0,0 +1,6 @@
+package com.example.testingsurfacetexture;
+
+public interface FrameAnalyzer {
+    // Runs on the analysis thread. The frame and its planes are only valid until this returns.
+    void analyze(YuvFrame frame);
+}
@@ -0,0 +1,13 @@
+package com.example.testingsurfacetexture;
+
+public interface FrameSource {
+    interface FrameListener {
+        void onFrame(long timestampNs);
+    }
+
+    void setFrameListener(FrameListener listener);
+
+    void start();
+
+    void stop();
+}
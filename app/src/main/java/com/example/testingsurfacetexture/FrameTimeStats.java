@@ -0,0 +1,63 @@
+package com.example.testingsurfacetexture;
+
+// Intervals between frames reaching a consumer, for the preview the TextureView's updates. A
+// frame is late when it comes more than half an interval after it was due. Not thread-safe; the
+// preview's frames all arrive on the UI thread.
+public class FrameTimeStats {
+    private final long expectedIntervalNs;
+    // Microseconds between consecutive frames
+    private final LatencyHistogram intervals = new LatencyHistogram();
+    private long firstNs = -1;
+    private long lastNs = -1;
+    private long frames;
+    private long lateFrames;
+
+    public FrameTimeStats(int frameRate) {
+        expectedIntervalNs = 1000000000L / frameRate;
+    }
+
+    public void onFrame(long nowNs) {
+        if (lastNs >= 0) {
+            long intervalNs = nowNs - lastNs;
+            intervals.record(intervalNs / 1000);
+            if (2 * intervalNs > 3 * expectedIntervalNs) {
+                lateFrames++;
+            }
+        } else {
+            firstNs = nowNs;
+        }
+        lastNs = nowNs;
+        frames++;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getLateFrames() {
+        return lateFrames;
+    }
+
+    public double getFps() {
+        return frames < 2 ? 0 : (frames - 1) * 1e9 / (lastNs - firstNs);
+    }
+
+    public long getIntervalUs(double percentile) {
+        return intervals.getPercentile(percentile);
+    }
+
+    // Starts a new window, keeping the last frame so the next interval is still measured
+    public void reset() {
+        intervals.reset();
+        firstNs = lastNs;
+        frames = lastNs >= 0 ? 1 : 0;
+        lateFrames = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d frames at %.1f fps, interval p50 %.1f ms p99 %.1f ms max %.1f ms, %d late",
+                frames, getFps(), intervals.getPercentile(50) / 1000.0, intervals.getPercentile(99) / 1000.0,
+                intervals.getMax() / 1000.0, lateFrames);
+    }
+}
@@ -0,0 +1,186 @@
+package com.example.testingsurfacetexture;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// Offline analysis of a GopStatsSink trace: recommends a key frame interval and bitrate.
+public class GopAnalyzer {
+    public enum ContentProfile {
+        // Viewers join mid-stream, so key frames have to be frequent
+        LIVE(2, 0.25),
+        // Local recordings that are scrubbed through now and then
+        RECORDING(4, 0.15),
+        // Long-term storage where size matters most
+        ARCHIVE(10, 0.08);
+
+        final double maxGopSeconds;
+        final double targetKeyFrameShare;
+
+        ContentProfile(double maxGopSeconds, double targetKeyFrameShare) {
+            this.maxGopSeconds = maxGopSeconds;
+            this.targetKeyFrameShare = targetKeyFrameShare;
+        }
+    }
+
+    public static class Gop {
+        public final long startUs;
+        public final long durationUs;
+        public final int frames;
+        public final int iBytes;
+        public final long pBytes;
+        public final int pMin;
+        public final int pMax;
+        public final int targetBitRate;
+
+        public Gop(long startUs, long durationUs, int frames, int iBytes, long pBytes, int pMin, int pMax, int targetBitRate) {
+            this.startUs = startUs;
+            this.durationUs = durationUs;
+            this.frames = frames;
+            this.iBytes = iBytes;
+            this.pBytes = pBytes;
+            this.pMin = pMin;
+            this.pMax = pMax;
+            this.targetBitRate = targetBitRate;
+        }
+
+        public double getBitRate() {
+            return durationUs <= 0 ? 0 : (iBytes + pBytes) * 8e6 / durationUs;
+        }
+
+        double getMeanPFrameBytes() {
+            return frames > 1 ? pBytes / (double) (frames - 1) : 0;
+        }
+    }
+
+    public static class Recommendation {
+        public final double currentGopSeconds;
+        public final double gopSeconds;
+        public final double keyFrameShare;
+        public final double achievedBitRate;
+        public final int targetBitRate;
+        public final int bitRate;
+
+        Recommendation(double currentGopSeconds, double gopSeconds, double keyFrameShare,
+                       double achievedBitRate, int targetBitRate, int bitRate) {
+            this.currentGopSeconds = currentGopSeconds;
+            this.gopSeconds = gopSeconds;
+            this.keyFrameShare = keyFrameShare;
+            this.achievedBitRate = achievedBitRate;
+            this.targetBitRate = targetBitRate;
+            this.bitRate = bitRate;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("gop %.1fs -> %.1fs, key frames %.0f%% of bytes, achieved %.2f of %.2f Mbps -> %.2f Mbps",
+                    currentGopSeconds, gopSeconds, keyFrameShare * 100, achievedBitRate / 1e6,
+                    targetBitRate / 1e6, bitRate / 1e6);
+        }
+    }
+
+    private static final double MIN_GOP_SECONDS = 0.5;
+    private static final double BITRATE_HEADROOM = 1.1;
+    private static final int BITRATE_STEP = 500000;
+
+    public static List<Gop> readCsv(Reader reader) throws IOException {
+        BufferedReader in = new BufferedReader(reader);
+        List<Gop> gops = new ArrayList<>();
+        String line = in.readLine();
+        if (line == null || !line.equals(GopStatsSink.CSV_HEADER)) {
+            throw new IOException("Not a GOP trace: " + line);
+        }
+        while ((line = in.readLine()) != null) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] f = line.split(",");
+            if (f.length != 8) {
+                throw new IOException("Malformed GOP trace line: " + line);
+            }
+            gops.add(new Gop(Long.parseLong(f[0]), Long.parseLong(f[1]), Integer.parseInt(f[2]),
+                    Integer.parseInt(f[3]), Long.parseLong(f[4]), Integer.parseInt(f[5]),
+                    Integer.parseInt(f[6]), Integer.parseInt(f[7])));
+        }
+        return gops;
+    }
+
+    public static Recommendation analyze(List<Gop> gops, ContentProfile profile) {
+        if (gops.isEmpty()) {
+            throw new IllegalArgumentException("No GOPs to analyze");
+        }
+        long iBytes = 0;
+        long pBytes = 0;
+        long frames = 0;
+        long durationUs = 0;
+        int targetBitRate = 0;
+        for (Gop gop : gops) {
+            iBytes += gop.iBytes;
+            pBytes += gop.pBytes;
+            frames += gop.frames;
+            durationUs += gop.durationUs;
+            targetBitRate = Math.max(targetBitRate, gop.targetBitRate);
+        }
+        double frameRate = frames * 1e6 / durationUs;
+        double currentGopSeconds = durationUs / 1e6 / gops.size();
+        double keyFrameShare = iBytes / (double) (iBytes + pBytes);
+        double achievedBitRate = (iBytes + pBytes) * 8e6 / durationUs;
+
+        // Solve I / (I + (n - 1) * P) = share for the GOP length n that brings key frames down
+        // to the profile's share of the bytes
+        double gopSeconds = currentGopSeconds;
+        double meanI = iBytes / (double) gops.size();
+        double meanP = pBytes / (double) Math.max(1, frames - gops.size());
+        double share = profile.targetKeyFrameShare;
+        if (keyFrameShare > share && meanP > 0) {
+            double gopFrames = 1 + meanI * (1 - share) / (share * meanP);
+            gopSeconds = gopFrames / frameRate;
+        }
+        gopSeconds = Math.round(Math.max(MIN_GOP_SECONDS, Math.min(profile.maxGopSeconds, gopSeconds)) * 2) / 2.0;
+
+        // Project every GOP onto the new length and size the bitrate for the 95th percentile,
+        // never above what was asked for originally
+        double newGopFrames = gopSeconds * frameRate;
+        double[] projected = new double[gops.size()];
+        for (int i = 0; i < projected.length; i++) {
+            Gop gop = gops.get(i);
+            projected[i] = (gop.iBytes + gop.getMeanPFrameBytes() * (newGopFrames - 1)) * 8 * frameRate / newGopFrames;
+        }
+        Arrays.sort(projected);
+        double p95 = projected[Math.min(projected.length - 1, (int) Math.ceil(projected.length * 0.95) - 1)];
+        long bitRate = (long) Math.ceil(p95 * BITRATE_HEADROOM / BITRATE_STEP) * BITRATE_STEP;
+        if (targetBitRate > 0) {
+            bitRate = Math.min(bitRate, targetBitRate);
+        }
+        return new Recommendation(currentGopSeconds, gopSeconds, keyFrameShare, achievedBitRate, targetBitRate, (int) bitRate);
+    }
+
+    // For a trace pulled off the device, e.g. from a JVM with the app's classes on the classpath:
+    // java com.example.testingsurfacetexture.GopAnalyzer video_<time>.mp4.gop.csv recording
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: GopAnalyzer <trace.gop.csv> <live|recording|archive>");
+            System.exit(2);
+        }
+        ContentProfile profile;
+        try {
+            profile = ContentProfile.valueOf(args[1].toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("unknown content profile " + args[1] + ", use live, recording or archive");
+            System.exit(2);
+            return;
+        }
+        List<Gop> gops;
+        try (Reader reader = new FileReader(args[0])) {
+            gops = readCsv(reader);
+        }
+        System.out.println(args[0] + ": " + gops.size() + " GOPs, " + profile.name().toLowerCase(Locale.ROOT)
+                + " profile");
+        System.out.println(analyze(gops, profile));
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.testingsurfacetexture;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+// Collects per-GOP frame size and bitrate statistics into a fixed ring of primitive columns
+// while passing samples through. Recording a sample never allocates.
+public class GopStatsSink implements SampleSink {
+    public static final String CSV_HEADER = "start_us,duration_us,frames,i_bytes,p_bytes,p_min,p_max,target_bps";
+
+    private final SampleSink delegate;
+    private final int capacity;
+    private final long[] startUs;
+    private final long[] durationUs;
+    private final int[] frames;
+    private final int[] iBytes;
+    private final long[] pBytes;
+    private final int[] pMin;
+    private final int[] pMax;
+    private final int[] targetBitRate;
+    private final LatencyHistogram iFrameSizes = new LatencyHistogram();
+    private final LatencyHistogram pFrameSizes = new LatencyHistogram();
+    private long gopCount;
+
+    // GOP currently being accumulated
+    private boolean gopOpen;
+    private long gopStartUs;
+    private long lastPtsUs;
+    private int gopFrames;
+    private int gopIBytes;
+    private long gopPBytes;
+    private int gopPMin;
+    private int gopPMax;
+    private volatile int currentTargetBitRate;
+
+    public GopStatsSink(SampleSink delegate, int capacity, int targetBitRate) {
+        this.delegate = delegate;
+        this.capacity = capacity;
+        startUs = new long[capacity];
+        durationUs = new long[capacity];
+        frames = new int[capacity];
+        iBytes = new int[capacity];
+        pBytes = new long[capacity];
+        pMin = new int[capacity];
+        pMax = new int[capacity];
+        this.targetBitRate = new int[capacity];
+        currentTargetBitRate = targetBitRate;
+    }
+
+    // Called when the encoder bitrate is changed at runtime
+    public void setTargetBitRate(int bitRate) {
+        currentTargetBitRate = bitRate;
+    }
+
+    @Override
+    public void onFormat(TrackFormat format) {
+        delegate.onFormat(format);
+    }
+
+    @Override
+    public void onSample(ByteBuffer data, SampleInfo info) {
+        record(info);
+        delegate.onSample(data, info);
+    }
+
+    private synchronized void record(SampleInfo info) {
+        if (info.isKeyFrame()) {
+            if (gopOpen) {
+                closeGop(info.presentationTimeUs - gopStartUs);
+            }
+            gopOpen = true;
+            gopStartUs = info.presentationTimeUs;
+            gopFrames = 1;
+            gopIBytes = info.size;
+            gopPBytes = 0;
+            gopPMin = Integer.MAX_VALUE;
+            gopPMax = 0;
+            iFrameSizes.record(info.size);
+        } else if (gopOpen) {
+            gopFrames++;
+            gopPBytes += info.size;
+            gopPMin = Math.min(gopPMin, info.size);
+            gopPMax = Math.max(gopPMax, info.size);
+            pFrameSizes.record(info.size);
+        }
+        lastPtsUs = info.presentationTimeUs;
+    }
+
+    private void closeGop(long duration) {
+        int slot = (int) (gopCount % capacity);
+        startUs[slot] = gopStartUs;
+        durationUs[slot] = duration;
+        frames[slot] = gopFrames;
+        iBytes[slot] = gopIBytes;
+        pBytes[slot] = gopPBytes;
+        pMin[slot] = gopPMin == Integer.MAX_VALUE ? 0 : gopPMin;
+        pMax[slot] = gopPMax;
+        targetBitRate[slot] = currentTargetBitRate;
+        gopCount++;
+    }
+
+    @Override
+    public void onEnd() {
+        synchronized (this) {
+            if (gopOpen && gopFrames > 1) {
+                // The last frame's duration is unknown, assume the GOP's average frame spacing
+                long spanUs = lastPtsUs - gopStartUs;
+                closeGop(spanUs + spanUs / (gopFrames - 1));
+            }
+            gopOpen = false;
+        }
+        delegate.onEnd();
+    }
+
+    public synchronized long getGopCount() {
+        return gopCount;
+    }
+
+    public synchronized long getIFramePercentileSize(double percentile) {
+        return iFrameSizes.getPercentile(percentile);
+    }
+
+    public synchronized long getPFramePercentileSize(double percentile) {
+        return pFrameSizes.getPercentile(percentile);
+    }
+
+    // Writes the retained GOPs, oldest first
+    public synchronized void writeCsv(Writer writer) throws IOException {
+        writer.write(CSV_HEADER);
+        writer.write('\n');
+        long first = Math.max(0, gopCount - capacity);
+        for (long i = first; i < gopCount; i++) {
+            int slot = (int) (i % capacity);
+            writer.write(startUs[slot] + "," + durationUs[slot] + "," + frames[slot] + "," + iBytes[slot] + ","
+                    + pBytes[slot] + "," + pMin[slot] + "," + pMax[slot] + "," + targetBitRate[slot] + "\n");
+        }
+        writer.flush();
+    }
+}
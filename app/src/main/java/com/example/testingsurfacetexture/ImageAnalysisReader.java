@@ -0,0 +1,97 @@
+package com.example.testingsurfacetexture;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Surface;
+
+import java.util.concurrent.Executor;
+
+// The CPU branch off the camera: a YUV_420_888 ImageReader added to the capture session next to
+// the preview and the encoder's input surface. Each image's planes go to the analyzers as they
+// are, through FrameAnalysis. The reader holds two images more than can be in flight, the newest
+// is taken and older ones are closed at once, and one that FrameAnalysis skips is closed right
+// away, so the reader always has a free buffer and the camera never stalls on it.
+public class ImageAnalysisReader implements ImageReader.OnImageAvailableListener {
+    private static final String TAG = "ImageAnalysisReader";
+
+    private final ImageReader reader;
+    private final FrameAnalysis analysis;
+    private final Image[] images;
+    private final Executor executor;
+
+    // executor runs the analyzers; handler is where the reader delivers its images
+    public ImageAnalysisReader(int width, int height, FrameAnalyzer[] analyzers, int maxInFlight,
+                               Executor executor, Handler handler) {
+        this.executor = executor;
+        images = new Image[maxInFlight];
+        reader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, maxInFlight + 2);
+        analysis = new FrameAnalysis(analyzers, executor, Clock.SYSTEM, new FrameAnalysis.Releaser() {
+            @Override
+            public void release(YuvFrame frame) {
+                Image image;
+                synchronized (images) {
+                    image = images[frame.index];
+                    images[frame.index] = null;
+                }
+                image.close();
+            }
+        }, maxInFlight);
+        reader.setOnImageAvailableListener(this, handler);
+    }
+
+    public Surface getSurface() {
+        return reader.getSurface();
+    }
+
+    public FrameAnalysis getAnalysis() {
+        return analysis;
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        Image image;
+        try {
+            image = reader.acquireLatestImage();
+        } catch (IllegalStateException e) {
+            // All images are held, the analyzers will hand some back
+            return;
+        }
+        if (image == null) {
+            return;
+        }
+        YuvFrame frame = analysis.acquire();
+        if (frame == null) {
+            image.close();
+            return;
+        }
+        synchronized (images) {
+            images[frame.index] = image;
+        }
+        Image.Plane[] planes = image.getPlanes();
+        frame.set(image.getWidth(), image.getHeight(), image.getTimestamp(),
+                planes[0].getBuffer(), planes[0].getRowStride(),
+                planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride());
+        analysis.submit(frame);
+    }
+
+    // Stops taking images; the reader is closed on the executor once the frames in flight are
+    // released, since closing it frees the buffers under an analyzer still reading them
+    public void close() {
+        analysis.stop();
+        reader.setOnImageAvailableListener(null, null);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!analysis.isIdle()) {
+                    executor.execute(this);
+                    return;
+                }
+                reader.close();
+                Log.d(TAG, "close: " + analysis);
+            }
+        });
+    }
+}
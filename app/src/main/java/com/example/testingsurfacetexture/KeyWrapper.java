@@ -0,0 +1,56 @@
+package com.example.testingsurfacetexture;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+// Envelope encryption for recordings: each recording gets a fresh AES data key, which is stored
+// next to the data encrypted (AES-GCM) with a master key. The master key can live in the Android
+// keystore, where it never leaves secure hardware; the data key is used with the regular,
+// CPU-accelerated AES so bulk encryption does not go through the keystore.
+public class KeyWrapper {
+    private static final int TAG_BITS = 128;
+    private static final int DATA_KEY_BITS = 128;
+
+    private final SecretKey masterKey;
+
+    public KeyWrapper(SecretKey masterKey) {
+        this.masterKey = masterKey;
+    }
+
+    public static SecretKey newDataKey(SecureRandom random) throws GeneralSecurityException {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(DATA_KEY_BITS, random);
+        return generator.generateKey();
+    }
+
+    // IV length, IV, then the encrypted key and its tag
+    public byte[] wrap(SecretKey dataKey) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        // The provider picks the IV; the Android keystore refuses caller-chosen ones
+        cipher.init(Cipher.ENCRYPT_MODE, masterKey);
+        byte[] iv = cipher.getIV();
+        byte[] encrypted = cipher.doFinal(dataKey.getEncoded());
+        byte[] wrapped = new byte[1 + iv.length + encrypted.length];
+        wrapped[0] = (byte) iv.length;
+        System.arraycopy(iv, 0, wrapped, 1, iv.length);
+        System.arraycopy(encrypted, 0, wrapped, 1 + iv.length, encrypted.length);
+        return wrapped;
+    }
+
+    public SecretKey unwrap(byte[] wrapped) throws GeneralSecurityException {
+        int ivLength = wrapped[0] & 0xff;
+        if (wrapped.length < 1 + ivLength) {
+            throw new GeneralSecurityException("Truncated wrapped key");
+        }
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, masterKey, new GCMParameterSpec(TAG_BITS, wrapped, 1, ivLength));
+        byte[] key = cipher.doFinal(wrapped, 1 + ivLength, wrapped.length - 1 - ivLength);
+        return new SecretKeySpec(key, "AES");
+    }
+}
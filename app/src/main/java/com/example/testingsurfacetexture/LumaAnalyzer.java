@@ -0,0 +1,71 @@
+package com.example.testingsurfacetexture;
+
+// Motion and blur checks on a grid of luma samples, cheap enough for every analyzed frame.
+// Motion is the mean absolute change of the samples since the previous frame, from 0 to 1.
+// Sharpness is the variance of the Laplacian at the samples: a blurred or out of focus picture
+// has weak edges and scores low.
+public class LumaAnalyzer implements FrameAnalyzer {
+    private final int gridWidth;
+    private final int gridHeight;
+    private final int[] previous;
+    private final int[] current;
+    private boolean hasPrevious;
+    private int previousWidth;
+    private int previousHeight;
+    private volatile double motion;
+    private volatile double sharpness;
+    private volatile long frames;
+
+    public LumaAnalyzer(int gridWidth, int gridHeight) {
+        this.gridWidth = gridWidth;
+        this.gridHeight = gridHeight;
+        previous = new int[gridWidth * gridHeight];
+        current = new int[gridWidth * gridHeight];
+    }
+
+    @Override
+    public void analyze(YuvFrame frame) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        // Samples stay one pixel away from the edges for the Laplacian
+        long difference = 0;
+        double sum = 0;
+        double sumSquares = 0;
+        for (int gy = 0; gy < gridHeight; gy++) {
+            int row = 1 + (int) ((long) (height - 2) * (2 * gy + 1) / (2 * gridHeight));
+            for (int gx = 0; gx < gridWidth; gx++) {
+                int x = 1 + (int) ((long) (width - 2) * (2 * gx + 1) / (2 * gridWidth));
+                int center = frame.luma(x, row);
+                int laplacian = 4 * center - frame.luma(x - 1, row) - frame.luma(x + 1, row)
+                        - frame.luma(x, row - 1) - frame.luma(x, row + 1);
+                sum += laplacian;
+                sumSquares += (double) laplacian * laplacian;
+                int i = gy * gridWidth + gx;
+                current[i] = center;
+                difference += Math.abs(center - previous[i]);
+            }
+        }
+        int samples = gridWidth * gridHeight;
+        double mean = sum / samples;
+        sharpness = sumSquares / samples - mean * mean;
+        boolean comparable = hasPrevious && width == previousWidth && height == previousHeight;
+        motion = comparable ? difference / (255.0 * samples) : 0;
+        System.arraycopy(current, 0, previous, 0, samples);
+        hasPrevious = true;
+        previousWidth = width;
+        previousHeight = height;
+        frames++;
+    }
+
+    public double getMotion() {
+        return motion;
+    }
+
+    public double getSharpness() {
+        return sharpness;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+}
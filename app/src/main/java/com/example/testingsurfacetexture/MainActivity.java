@@ -1,9 +1,14 @@
 package com.example.testingsurfacetexture;
 
 import android.Manifest;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.graphics.Matrix;
 import android.graphics.SurfaceTexture;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
@@ -12,11 +17,17 @@ import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.storage.StorageManager;
+import android.os.storage.StorageVolume;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.view.Surface;
 import android.view.TextureView;
@@ -29,16 +40,117 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
 
 
 public class MainActivity extends AppCompatActivity {
 
     private static final String TAG = "MainActivity";
+    private static final String MIME_TYPE = "video/avc";
+    private static final String ENCODER_PROFILES_FILE = "encoder_profiles.properties";
+    private static final long STORAGE_BENCHMARK_BYTES = 32 * 1024 * 1024;
+    // The benchmark is kept per storage volume and run again once it is this old
+    private static final String STORAGE_BENCHMARK_FILE = "storage_benchmark.properties";
+    private static final long STORAGE_BENCHMARK_MAX_AGE_MS = 7 * 24 * 3600 * 1000L;
+    private static final int STORAGE_PROBE_BYTES = 1024 * 1024;
+    private static final long STORAGE_PROBE_INTERVAL_S = 10;
+    private static final int GOP_STATS_CAPACITY = 4096;
+    // While the scene is static, encode one frame in this many at this fraction of the bitrate. Off
+    // by default since it leaves variable frame rate files; never used with CBR, whose padded
+    // frames say nothing about the scene.
+    private static final boolean STATIC_SCENE_MODE = false;
+    private static final int STATIC_SCENE_SKIP_FRAMES = 5;
+    private static final double STATIC_SCENE_BIT_RATE_FACTOR = 0.25;
+    // Time-lapse: one shot every interval, warming the camera up before each, played back at 30 fps
+    private static final long TIME_LAPSE_INTERVAL_MS = 5000;
+    private static final long TIME_LAPSE_WARMUP_MS = 500;
+    private static final int TIME_LAPSE_PLAYBACK_FPS = 30;
+    // Frames per sidecar column block, about 34 s at 30 fps
+    private static final int METADATA_BLOCK_SIZE = 1024;
+    // Serve the recording live over RTSP. Unauthenticated and unencrypted on every interface, so
+    // off unless asked for, and never with ENCRYPT_RECORDINGS
+    private static final boolean LIVE_STREAM = false;
+    private static final int RTSP_PORT = 8554;
+    private static final int RTSP_CLIENT_QUEUE_FRAMES = 30;
+    // Samples the live stream output may fall behind the file before it skips to a key frame
+    private static final int STREAM_OUTPUT_QUEUE_FRAMES = 30;
+    // Concurrent camera combinations are only guaranteed up to 720p
+    // Also records the cameras that can stream alongside the primary one, each to its own file. Off
+    // by default: every partner is another camera open and another encoder running.
+    private static final boolean MULTI_CAMERA_RECORDING = false;
+    private static final Size PARTNER_VIDEO_SIZE = new Size(1280, 720);
+    private static final int MIN_STREAM_BIT_RATE = 1000000;
+    private static final long STREAM_HEALTH_INTERVAL_S = 5;
+    private static final String STARTUP_CONFIG_FILE = "startup_config.properties";
+    private static final long GOVERNOR_INTERVAL_S = 5;
+    // Write recordings as AES-CTR encrypted segments instead of an MP4
+    private static final boolean ENCRYPT_RECORDINGS = false;
+    private static final long ENCRYPTED_SEGMENT_DURATION_S = 10;
+    // Write a fragmented MP4 whose memory use is fixed when recording starts, for long sessions
+    private static final boolean BOUNDED_MEMORY_RECORDING = false;
+    // Shorter than a GOP, so every key frame starts a fragment
+    private static final long FRAGMENT_DURATION_MS = 500;
+    private static final long RECORDING_MEMORY_BYTES = 64 * 1024 * 1024;
+    // Accelerometer and gyroscope samples in a timed metadata track of the MP4: the sensor type
+    // as a byte, then x, y and z as floats
+    private static final boolean RECORD_IMU = true;
+    private static final String IMU_MIME = "application/x-imu";
+    private static final int IMU_TRACK = 0;
+    private static final int IMU_RECORD_BYTES = 1 + 3 * 4;
+    // About five seconds of both sensors at the game rate
+    private static final int METADATA_QUEUE_RECORDS = 1024;
+    private static final int METADATA_WINDOW_RECORDS = 256;
+    // Reset or recreate the encoder after codec errors, up to this many times a minute
+    private static final boolean SELF_HEALING_ENCODER = true;
+    private static final int MAX_ENCODER_RECOVERIES = 3;
+    private static final long ENCODER_RECOVERY_WINDOW_S = 60;
+    // Motion and blur checks on the CPU, from a small YUV stream captured with the recording. Off
+    // by default: a third stream costs ISP bandwidth and not every camera can add one.
+    private static final boolean ANALYZE_FRAMES = false;
+    private static final Size ANALYSIS_SIZE = new Size(640, 480);
+    private static final int ANALYSIS_MAX_IN_FLIGHT = 2;
+    private static final int ANALYSIS_GRID_WIDTH = 32;
+    private static final int ANALYSIS_GRID_HEIGHT = 24;
+    // Chrome trace of each recording next to it: always in debuggable builds, otherwise only when
+    // launched with --ez export_trace true
+    private static final String EXTRA_EXPORT_TRACE = "export_trace";
+    // Recordings are verified at startup; every sync sample and one sample in this many is
+    // checked NAL by NAL. Files touched within the minimum age may still be being written.
+    private static final int VERIFY_SAMPLE_STRIDE = 30;
+    private static final long VERIFY_MIN_AGE_MS = 10000;
+    private static final String REPAIR_QUEUE_FILE = "repair_queue.txt";
+    // Preview frame intervals are logged once per this many frames
+    private static final int PREVIEW_STATS_FRAMES = 300;
 
     private TextureView textureView;
     private Button recordButton;
@@ -46,20 +158,103 @@ public class MainActivity extends AppCompatActivity {
     private CameraDevice cameraDevice;
     private CaptureRequest.Builder previewRequestBuilder;
     private CameraCaptureSession cameraCaptureSession;
-    private MediaCodec mediaCodec;
+    private MediaCodecEncoder encoder;
+    private SelfHealingEncoder healingEncoder;
+    private SegmentingSink segmentingSink;
+    private StaticSceneEncoder sceneEncoder;
+    private ImageAnalysisReader analysisReader;
+    private LumaAnalyzer lumaAnalyzer;
+    private HandlerThread analysisThread;
+    private final ExecutorService analysisExecutor = Executors.newSingleThreadExecutor();
+    private final ForkJoinPool verifierPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    // Set while recording, or about to record, a time-lapse
+    private boolean timeLapseMode;
+    private TimeLapseController timeLapse;
+    private CaptureRequest.Builder shotRequestBuilder;
+    private final Handler timeLapseHandler = new Handler(Looper.getMainLooper());
+    private CapturePipeline capturePipeline;
+    private GopStatsSink gopStatsSink;
+    private CaptureMetadataWriter metadataWriter;
+    private FragmentedMp4Writer fragmentedWriter;
+    private volatile TimedMetadataQueue metadataQueue;
+    private MetadataInterleaver metadataInterleaver;
+    private final MemoryBudget recordingMemory = new MemoryBudget(RECORDING_MEMORY_BYTES);
+    // Fragments only, in order: with two fragments in memory, a probe or trace write queued on the
+    // storage thread ahead of one would make the writer drop whole GOPs
+    private final ExecutorService fragmentExecutor = Executors.newSingleThreadExecutor();
+    private RtspServer rtspServer;
+    private FanOutSink outputSinks;
+    private final ExecutorService streamExecutor = Executors.newSingleThreadExecutor();
+    private String videoPath;
     private EncoderSurface encoderSurface;
-    private MediaMuxer mediaMuxer;
+
+    private EncoderProfile encoderProfile = EncoderProfile.defaults("default", 10000000, 30, 1);
+    private volatile int currentBitRate;
+    private StorageProfiler storageProfiler;
+    private final ScheduledExecutorService storageExecutor = Executors.newSingleThreadScheduledExecutor();
+    private ScheduledFuture<?> storageProbe;
+    private CameraRegistry cameraRegistry;
+    private final CameraFrameSource primaryFrameSource = new CameraFrameSource();
+    private StreamHealth primaryHealth;
+    private ScheduledFuture<?> streamHealthLog;
+    private EncoderProfile recordingProfile;
+    private final StartupTimer startupTimer = new StartupTimer(Clock.SYSTEM);
+    private StartupConfig startupConfig;
+    // Per video size, since the limits depend on it and the governor can change the size
+    private final Map<Size, EncoderCapabilities> encoderCapabilities = new HashMap<>();
+    private final ExecutorService encoderExecutor = Executors.newSingleThreadExecutor();
+    private final EncoderPrewarmer encoderPrewarmer = new EncoderPrewarmer(encoderExecutor, startupTimer);
+    private Surface recordSurface;
+    private boolean cameraOpening;
+    private boolean firstPreviewFrame;
+    // Sized for the view rather than the recording; chosen again when either changes
+    private Size previewSize;
+    private Size previewViewSize;
+    private Size previewVideoSize;
+    private int sensorOrientation;
+    private final FrameTimeStats previewFrameStats = new FrameTimeStats(30);
+    private CaptureGovernor captureGovernor;
+    private DeviceConditions deviceConditions;
+    private StreamHealth governorHealth;
+    private ScheduledFuture<?> governorTick;
 
     private boolean isRecording = false;
+    private boolean exportEventTrace;
     private Size videoSize;
     private String cameraId;
-    private int trackIndex;
-    private boolean muxerStarted;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        startupTimer.begin("startup");
+        boolean debuggable = (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+        if (debuggable) {
+            // Per-frame events and systrace sections only in debuggable builds
+            Tracer.GLOBAL.setLevel(Tracer.LEVEL_FRAME);
+            Tracer.GLOBAL.setBridge(new AndroidTraceBridge());
+        }
+        exportEventTrace = debuggable || getIntent().getBooleanExtra(EXTRA_EXPORT_TRACE, false);
+        CameraManager manager = (CameraManager) getSystemService(CAMERA_SERVICE);
+        startupConfig = loadStartupConfig();
+        int maxEncoders;
+        if (startupConfig != null) {
+            // Known camera, open it while the layout is inflated
+            cameraId = startupConfig.cameraId;
+            videoSize = new Size(startupConfig.videoWidth, startupConfig.videoHeight);
+            sensorOrientation = startupConfig.sensorOrientation;
+            encoderCapabilities.put(videoSize, startupConfig.capabilities);
+            maxEncoders = startupConfig.maxEncoders;
+            if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) == PackageManager.PERMISSION_GRANTED) {
+                openCameraDevice(manager);
+            }
+        } else {
+            maxEncoders = MediaFormats.queryMaxEncoderInstances(MIME_TYPE);
+        }
+        cameraRegistry = new CameraRegistry(manager, new CaptureBudget(maxEncoders, Long.MAX_VALUE, MIN_STREAM_BIT_RATE));
+
+        startupTimer.begin("layout");
         setContentView(R.layout.activity_main);
+        startupTimer.end("layout");
 
         textureView = findViewById(R.id.textureView);
         recordButton = findViewById(R.id.recordButton);
@@ -70,14 +265,484 @@ public class MainActivity extends AppCompatActivity {
                 if (isRecording) {
                     stopRecordingVideo();
                 } else {
+                    timeLapseMode = false;
                     startRecordingVideo();
                 }
             }
         });
+        recordButton.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                if (isRecording) {
+                    return false;
+                }
+                timeLapseMode = true;
+                startRecordingVideo();
+                return true;
+            }
+        });
 
         textureView.setSurfaceTextureListener(surfaceTextureListener);
 
+        deviceConditions = new DeviceConditions(this);
         checkPermissions();
+        loadEncoderProfile();
+        prewarmEncoder();
+        startStorageBenchmark();
+        verifyRecordings();
+    }
+
+    private StartupConfig loadStartupConfig() {
+        File file = new File(getFilesDir(), STARTUP_CONFIG_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            StartupConfig config = StartupConfig.load(in, Build.FINGERPRINT);
+            Log.d(TAG, "loadStartupConfig: " + (config != null ? config : "stale, negotiating again"));
+            return config;
+        } catch (IOException e) {
+            Log.e(TAG, "loadStartupConfig: failed to read " + file, e);
+            return null;
+        }
+    }
+
+    private StorageProfiler.BenchmarkResult loadStorageBenchmark(File file, String volume, long nowMs) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            return StorageProfiler.BenchmarkResult.load(in, volume, nowMs, STORAGE_BENCHMARK_MAX_AGE_MS);
+        } catch (IOException e) {
+            Log.e(TAG, "loadStorageBenchmark: failed to read " + file, e);
+            return null;
+        }
+    }
+
+    // Another card, or the same path on a reformatted one, is measured again
+    private String storageVolumeKey(File directory) {
+        StorageVolume volume = directory == null ? null
+                : ((StorageManager) getSystemService(STORAGE_SERVICE)).getStorageVolume(directory);
+        String uuid = volume != null ? volume.getUuid() : null;
+        return (uuid != null ? uuid : "primary") + ":" + (directory != null ? directory.getAbsolutePath() : "");
+    }
+
+    private void saveStartupConfig(final StartupConfig config) {
+        final File file = new File(getFilesDir(), STARTUP_CONFIG_FILE);
+        encoderExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try (OutputStream out = new FileOutputStream(file)) {
+                    config.store(out);
+                } catch (IOException e) {
+                    Log.e(TAG, "saveStartupConfig: failed to write " + file, e);
+                }
+            }
+        });
+    }
+
+    // Queries what the persisted config would otherwise provide; only runs on the first launch
+    // and after an OS update
+    private void negotiateStartupConfig() throws CameraAccessException {
+        startupTimer.begin("negotiate");
+        cameraId = cameraRegistry.getDefaultCameraId();
+        CameraCharacteristics characteristics = cameraRegistry.getCharacteristics(cameraId);
+        logSupportedSizes(characteristics);
+        StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (map != null) {
+            videoSize = new Size(1920, 1080); // Use 1920x1080 as the video size
+        }
+        Integer orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        sensorOrientation = orientation != null ? orientation : 90;
+        if (videoSize != null) {
+            startupConfig = new StartupConfig(Build.FINGERPRINT, cameraId, videoSize.getWidth(), videoSize.getHeight(),
+                    cameraRegistry.getBudget().getMaxEncoders(), capabilitiesFor(videoSize), sensorOrientation);
+            saveStartupConfig(startupConfig);
+        }
+        startupTimer.end("negotiate");
+    }
+
+    // Has the encoder for the next recording created and configured in the background, at the size
+    // the governor will record at
+    private void prewarmEncoder() {
+        Size size = videoSize;
+        if (captureGovernor != null) {
+            CaptureGovernor.Rung rung = captureGovernor.getRung();
+            size = new Size(rung.width, rung.height);
+        }
+        if (size == null || encoderCapabilities.isEmpty()) {
+            return;
+        }
+        encoderPrewarmer.prepare(MIME_TYPE, size.getWidth(), size.getHeight(),
+                governedProfile().clampTo(capabilitiesFor(size)));
+    }
+
+    private EncoderCapabilities capabilitiesFor(Size size) {
+        EncoderCapabilities capabilities = encoderCapabilities.get(size);
+        if (capabilities == null) {
+            capabilities = MediaFormats.queryEncoderCapabilities(MIME_TYPE, size.getWidth(), size.getHeight());
+            encoderCapabilities.put(size, capabilities);
+        }
+        return capabilities;
+    }
+
+    private void loadEncoderProfile() {
+        File override = new File(getExternalFilesDir(null), ENCODER_PROFILES_FILE);
+        try (InputStream in = override.exists() ? new FileInputStream(override) : getAssets().open(ENCODER_PROFILES_FILE)) {
+            Properties properties = new Properties();
+            properties.load(in);
+            Map<String, EncoderProfile> profiles = EncoderProfile.parse(properties);
+            String name = properties.getProperty("profile", "default");
+            EncoderProfile profile = profiles.get(name);
+            if (profile == null) {
+                Log.e(TAG, "loadEncoderProfile: unknown profile " + name + ", using built-in defaults");
+                return;
+            }
+            encoderProfile = profile;
+            Log.d(TAG, "loadEncoderProfile: using " + encoderProfile);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "loadEncoderProfile: failed to load encoder profiles, using built-in defaults", e);
+        }
+    }
+
+    // Runtime bitrate change, the codec keeps running
+    private void setEncoderBitRate(int bitRate) {
+        if (capturePipeline == null || bitRate == currentBitRate) {
+            return;
+        }
+        capturePipeline.getEncoder().setBitRate(bitRate);
+        gopStatsSink.setTargetBitRate(bitRate);
+        currentBitRate = bitRate;
+        Log.d(TAG, "setEncoderBitRate: " + bitRate);
+    }
+
+    private void startStorageBenchmark() {
+        File directory = getExternalFilesDir(null);
+        storageProfiler = new StorageProfiler(directory, Clock.SYSTEM);
+        final String volume = storageVolumeKey(directory);
+        final File file = new File(getFilesDir(), STORAGE_BENCHMARK_FILE);
+        storageExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long nowMs = System.currentTimeMillis();
+                StorageProfiler.BenchmarkResult stored = loadStorageBenchmark(file, volume, nowMs);
+                if (stored != null) {
+                    storageProfiler.useBenchmark(stored);
+                    Log.d(TAG, "startStorageBenchmark: stored " + stored);
+                    return;
+                }
+                StorageProfiler.BenchmarkResult result;
+                try {
+                    result = storageProfiler.benchmark(STORAGE_BENCHMARK_BYTES, 1024 * 1024);
+                    Log.d(TAG, "startStorageBenchmark: " + result);
+                } catch (IOException e) {
+                    Log.e(TAG, "startStorageBenchmark: benchmark failed", e);
+                    return;
+                }
+                try (OutputStream out = new FileOutputStream(file)) {
+                    result.store(out, volume, nowMs);
+                } catch (IOException e) {
+                    Log.e(TAG, "startStorageBenchmark: failed to write " + file, e);
+                }
+            }
+        });
+    }
+
+    // Finds recordings left broken by a crash or a full disk, and cuts fragmented ones back to
+    // their last complete fragment
+    private void verifyRecordings() {
+        final File directory = getExternalFilesDir(null);
+        verifierPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                Mp4Verifier verifier = new Mp4Verifier(VERIFY_SAMPLE_STRIDE);
+                RecordingScanner.Result result = new RecordingScanner(verifierPool, verifier, Clock.SYSTEM)
+                        .scan(directory, VERIFY_MIN_AGE_MS);
+                Log.d(TAG, "verifyRecordings: " + result);
+                try {
+                    RepairQueue queue = new RepairQueue(new File(getFilesDir(), REPAIR_QUEUE_FILE));
+                    for (Mp4Verifier.Report report : result.getBroken()) {
+                        Log.w(TAG, "verifyRecordings: " + report);
+                        queue.add(report);
+                    }
+                    int repaired = queue.repairAll(verifier);
+                    Log.d(TAG, "verifyRecordings: " + repaired + " repaired, " + queue.getPending() + " left");
+                } catch (IOException e) {
+                    Log.e(TAG, "verifyRecordings: repair failed", e);
+                }
+            }
+        });
+    }
+
+    private void startStorageProbes() {
+        storageProbe = storageExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    storageProfiler.probe(STORAGE_PROBE_BYTES);
+                    if (storageProfiler.assess(currentBitRate) != StorageProfiler.Verdict.OK) {
+                        Log.w(TAG, "startStorageProbes: storage falling behind, "
+                                + storageProfiler.getSustainedBytesPerSecond() / 1e6 + "MB/s p99 "
+                                + storageProfiler.getP99LatencyNs() / 1000000 + "ms");
+                        final int bitRate = storageProfiler.recommendBitRate(currentBitRate);
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                setEncoderBitRate(bitRate);
+                            }
+                        });
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "startStorageProbes: probe failed", e);
+                }
+            }
+        }, STORAGE_PROBE_INTERVAL_S, STORAGE_PROBE_INTERVAL_S, TimeUnit.SECONDS);
+    }
+
+    // IMU and camera timestamps only line up when the camera uses the sensors' clock
+    private boolean cameraClockIsRealtime() {
+        Integer source = cameraRegistry.getCharacteristics(cameraId).get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+        return source != null && source == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+    }
+
+    private final SensorEventListener imuListener = new SensorEventListener() {
+        private final byte[] record = new byte[IMU_RECORD_BYTES];
+        private final ByteBuffer recordBuffer = ByteBuffer.wrap(record);
+
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            TimedMetadataQueue queue = metadataQueue;
+            if (queue == null) {
+                return;
+            }
+            recordBuffer.clear();
+            recordBuffer.put((byte) event.sensor.getType())
+                    .putFloat(event.values[0]).putFloat(event.values[1]).putFloat(event.values[2]);
+            queue.offer(IMU_TRACK, event.timestamp / 1000, record, 0, recordBuffer.position());
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        }
+    };
+
+    private void startImu() {
+        if (metadataQueue == null) {
+            return;
+        }
+        SensorManager sensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
+        for (int type : new int[]{Sensor.TYPE_ACCELEROMETER, Sensor.TYPE_GYROSCOPE}) {
+            Sensor sensor = sensorManager.getDefaultSensor(type);
+            if (sensor != null) {
+                sensorManager.registerListener(imuListener, sensor, SensorManager.SENSOR_DELAY_GAME);
+            }
+        }
+    }
+
+    private void stopImu() {
+        ((SensorManager) getSystemService(SENSOR_SERVICE)).unregisterListener(imuListener);
+    }
+
+    private void stopStorageProbes() {
+        if (storageProbe != null) {
+            storageProbe.cancel(false);
+            storageProbe = null;
+        }
+    }
+
+    // Encoder settings for the governor's current rung
+    private EncoderProfile governedProfile() {
+        EncoderProfile profile = encoderProfile;
+        if (BOUNDED_MEMORY_RECORDING && !ENCRYPT_RECORDINGS && profile.maxBFrames != 0) {
+            // FragmentedMp4Writer times samples in the order they arrive, without composition offsets
+            profile = profile.withMaxBFrames(0);
+        }
+        if (captureGovernor == null) {
+            return profile;
+        }
+        CaptureGovernor.Rung rung = captureGovernor.getRung();
+        return profile.withBitRate(rung.bitRate).withFrameRate(Math.min(profile.frameRate, rung.frameRate));
+    }
+
+    // Drives the time-lapse from the main thread, which owns the capture session
+    private void startTimeLapse() {
+        timeLapse = new TimeLapseController(TIME_LAPSE_INTERVAL_MS * 1000000, TIME_LAPSE_WARMUP_MS * 1000000,
+                new TimeLapseController.Camera() {
+                    @Override
+                    public void startStreaming() {
+                        updatePreview();
+                    }
+
+                    @Override
+                    public void stopStreaming() {
+                        try {
+                            cameraCaptureSession.stopRepeating();
+                        } catch (CameraAccessException e) {
+                            Log.e(TAG, "startTimeLapse: failed to stop the preview", e);
+                        }
+                    }
+
+                    @Override
+                    public void captureFrame() {
+                        try {
+                            cameraCaptureSession.capture(shotRequestBuilder.build(), primaryFrameSource, null);
+                        } catch (CameraAccessException e) {
+                            Log.e(TAG, "startTimeLapse: capture failed", e);
+                        }
+                    }
+                });
+        scheduleTimeLapseTick(timeLapse.start(SystemClock.elapsedRealtimeNanos()));
+    }
+
+    private void scheduleTimeLapseTick(long atNs) {
+        long delayMs = Math.max(0, (atNs - SystemClock.elapsedRealtimeNanos()) / 1000000);
+        timeLapseHandler.postDelayed(timeLapseTick, delayMs);
+    }
+
+    private final Runnable timeLapseTick = new Runnable() {
+        @Override
+        public void run() {
+            if (timeLapse != null) {
+                scheduleTimeLapseTick(timeLapse.onTick(SystemClock.elapsedRealtimeNanos()));
+            }
+        }
+    };
+
+    private void stopTimeLapse() {
+        timeLapseHandler.removeCallbacks(timeLapseTick);
+        if (timeLapse != null) {
+            Log.d(TAG, "stopTimeLapse: " + timeLapse.getShots() + " shots, " + timeLapse.getMissedShots()
+                    + " missed, camera streamed " + timeLapse.getStreamingNs() / 1000000000 + " s");
+            timeLapse = null;
+        }
+    }
+
+    private void startGovernor() {
+        governorHealth = new StreamHealth("governor", capturePipeline.getStats());
+        governorHealth.sample(System.nanoTime());
+        governorTick = storageExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                governorHealth.sample(now);
+                deviceConditions.updateBattery();
+                boolean changed = captureGovernor.update(now, deviceConditions.getThermalStatus(),
+                        deviceConditions.getThermalHeadroom(), deviceConditions.getBatteryPercent(),
+                        deviceConditions.isCharging(), governorHealth.getCaptureFps());
+                if (changed) {
+                    final CaptureGovernor.Rung rung = captureGovernor.getRung();
+                    Log.w(TAG, "startGovernor: " + captureGovernor.getReason() + ", switching to " + rung);
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            applyRung(rung);
+                        }
+                    });
+                }
+            }
+        }, GOVERNOR_INTERVAL_S, GOVERNOR_INTERVAL_S, TimeUnit.SECONDS);
+    }
+
+    private void stopGovernor() {
+        if (governorTick != null) {
+            governorTick.cancel(false);
+            governorTick = null;
+        }
+    }
+
+    private void applyRung(CaptureGovernor.Rung rung) {
+        if (!isRecording || capturePipeline == null) {
+            return;
+        }
+        if (rung.width != videoSize.getWidth() || rung.height != videoSize.getHeight()) {
+            // A new size would need a new encoder, capture session and file; the next recording
+            // starts at it, and the encoder prewarmed after this one is already that size
+            Log.d(TAG, "applyRung: " + rung.width + "x" + rung.height + " from the next recording");
+        }
+        setEncoderBitRate(storageProfiler.recommendBitRate(rung.bitRate));
+        int frameRate = Math.min(encoderProfile.frameRate, rung.frameRate);
+        if (frameRate != recordingProfile.frameRate) {
+            recordingProfile = recordingProfile.withFrameRate(frameRate);
+            if (sceneEncoder != null) {
+                sceneEncoder.setFrameRate(frameRate);
+            }
+            applyFrameRate(previewRequestBuilder, frameRate);
+            updatePreview();
+        }
+    }
+
+    // Pins auto-exposure to the supported fps range closest to frameRate, preferring fixed ranges
+    private void applyFrameRate(CaptureRequest.Builder builder, int frameRate) {
+        try {
+            Range<Integer>[] ranges = cameraRegistry.getCharacteristics(cameraId)
+                    .get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+            if (ranges == null) {
+                return;
+            }
+            Range<Integer> best = null;
+            for (Range<Integer> range : ranges) {
+                if (range.getUpper() > frameRate) {
+                    continue;
+                }
+                if (best == null || range.getUpper() > best.getUpper()
+                        || (range.getUpper().equals(best.getUpper()) && range.getLower() > best.getLower())) {
+                    best = range;
+                }
+            }
+            if (best != null) {
+                builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, best);
+            }
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "applyFrameRate: failed", e);
+        }
+    }
+
+    // Records the cameras that can stream alongside the primary one, each without a preview
+    private void startPartnerRecorders(List<Surface> primarySurfaces) {
+        if (MULTI_CAMERA_RECORDING) {
+            final String basePath = videoPath.substring(0, videoPath.length() - ".mp4".length());
+            try {
+                cameraRegistry.startPartnerRecorders(cameraId, primarySurfaces, PARTNER_VIDEO_SIZE, recordingProfile,
+                        new CameraRegistry.SinkFactory() {
+                            @Override
+                            public SampleSink create(String id) throws IOException {
+                                SampleSink fileSink = createFileSink(basePath + "_cam" + id + ".mp4", 0,
+                                        recordingProfile, false);
+                                return new TimedSink(fileSink, storageProfiler, Clock.SYSTEM);
+                            }
+                        });
+            } catch (CameraAccessException e) {
+                Log.e(TAG, "startPartnerRecorders: failed", e);
+            }
+        }
+        primaryHealth = new StreamHealth("camera " + cameraId, capturePipeline.getStats());
+        cameraRegistry.addStream(primaryHealth);
+        streamHealthLog = storageExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                List<StreamHealth> streams = cameraRegistry.sampleHealth(System.nanoTime());
+                for (StreamHealth stream : streams) {
+                    Log.d(TAG, "streamHealth: " + stream);
+                }
+                StreamHealth worst = StreamHealth.worst(streams, recordingProfile.frameRate);
+                if (streams.size() > 1 && worst != null) {
+                    Log.d(TAG, "streamHealth: worst is " + worst.name);
+                }
+            }
+        }, STREAM_HEALTH_INTERVAL_S, STREAM_HEALTH_INTERVAL_S, TimeUnit.SECONDS);
+    }
+
+    private void stopPartnerRecorders() {
+        if (streamHealthLog != null) {
+            streamHealthLog.cancel(false);
+            streamHealthLog = null;
+        }
+        cameraRegistry.stopRecorders();
+        if (primaryHealth != null) {
+            cameraRegistry.removeStream(primaryHealth);
+            primaryHealth = null;
+        }
+        cameraRegistry.getBudget().release(cameraId);
     }
 
     private void checkPermissions() {
@@ -91,23 +756,69 @@ public class MainActivity extends AppCompatActivity {
 
     private void startRecordingVideo() {
         Log.d(TAG, "startRecordingVideo: starting video recording");
+        startupTimer.begin("record_start");
         if (cameraDevice == null || !textureView.isAvailable() || videoSize == null) {
             Log.e(TAG, "startRecordingVideo: CameraDevice is null, TextureView is not available, or VideoSize is null");
             return;
         }
+        // The exported trace covers this recording only
+        Tracer.GLOBAL.clear();
+        if (captureGovernor == null) {
+            List<CaptureGovernor.Rung> ladder = CaptureGovernor.defaultLadder(encoderProfile.bitRate,
+                    encoderProfile.frameRate, videoSize.getWidth(), videoSize.getHeight());
+            captureGovernor = new CaptureGovernor(ladder, CaptureGovernor.frameRateRung(ladder));
+        }
+        // The governor only ticks while recording, so catch it up on how the device has cooled or
+        // drained since. A device still hot from the last recording starts lower on the ladder.
+        deviceConditions.updateBattery();
+        if (captureGovernor.update(System.nanoTime(), deviceConditions.getThermalStatus(),
+                deviceConditions.getThermalHeadroom(), deviceConditions.getBatteryPercent(),
+                deviceConditions.isCharging(), -1)) {
+            Log.d(TAG, "startRecordingVideo: " + captureGovernor.getReason() + ", starting at " + captureGovernor.getRung());
+        }
+        CaptureGovernor.Rung rung = captureGovernor.getRung();
+        videoSize = new Size(rung.width, rung.height);
+        int bitRate = governedProfile().bitRate;
+        StorageProfiler.Verdict verdict = storageProfiler.assess(bitRate);
+        if (verdict == StorageProfiler.Verdict.REFUSE) {
+            Log.e(TAG, "startRecordingVideo: storage too slow, " + storageProfiler.getSustainedBytesPerSecond() / 1e6 + "MB/s");
+            Toast.makeText(this, "Storage is too slow to record", Toast.LENGTH_LONG).show();
+            return;
+        } else if (verdict == StorageProfiler.Verdict.WARN) {
+            bitRate = storageProfiler.recommendBitRate(bitRate);
+            Log.w(TAG, "startRecordingVideo: storage is slow, lowering bitrate to " + bitRate);
+            Toast.makeText(this, "Storage is slow, recording at " + bitRate / 1000000 + " Mbps", Toast.LENGTH_LONG).show();
+        }
+        // Every camera writes to the same storage, so its sustained rate caps the combined bitrate
+        CaptureBudget budget = cameraRegistry.getBudget();
+        if (storageProfiler.hasEstimate()) {
+            budget.setMaxTotalBitRate(storageProfiler.recommendBitRate(Integer.MAX_VALUE));
+        }
+        bitRate = budget.acquire(cameraId, bitRate);
+        if (bitRate == 0) {
+            Log.e(TAG, "startRecordingVideo: no encoder budget left, " + budget.getActiveEncoders() + " encoders active");
+            Toast.makeText(this, "No encoder available to record", Toast.LENGTH_LONG).show();
+            return;
+        }
         try {
             closePreviewSession();
-            setUpMediaCodec();
+            startupTimer.begin("encoder_setup");
+            setUpMediaCodec(bitRate);
+            startupTimer.end("encoder_setup");
+            createAnalysisReader();
 
+            // The governor may have picked another video size than the preview was chosen for
+            configureTransform(textureView.getWidth(), textureView.getHeight());
             SurfaceTexture texture = textureView.getSurfaceTexture();
             assert texture != null;
-            texture.setDefaultBufferSize(videoSize.getWidth(), videoSize.getHeight());
+            texture.setDefaultBufferSize(previewSize.getWidth(), previewSize.getHeight());
             Surface previewSurface = new Surface(texture);
-            Surface recordSurface = mediaCodec.createInputSurface();
+            final Surface recordSurface = this.recordSurface;
 
             // First configure the preview surface
             previewRequestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
             previewRequestBuilder.addTarget(previewSurface);
+            applyFrameRate(previewRequestBuilder, recordingProfile.frameRate);
 
             Log.d(TAG, "startRecordingVideo: creating capture session for preview");
             cameraDevice.createCaptureSession(Arrays.asList(previewSurface),
@@ -138,11 +849,23 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    private void addRecordingSurface(Surface previewSurface, Surface recordSurface) {
+    private void addRecordingSurface(final Surface previewSurface, final Surface recordSurface) {
         try {
-            previewRequestBuilder.addTarget(recordSurface);
+            if (timeLapseMode) {
+                // The preview streams on its own; shots go to both surfaces so the preview shows them
+                shotRequestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+                shotRequestBuilder.addTarget(previewSurface);
+                shotRequestBuilder.addTarget(recordSurface);
+            } else {
+                previewRequestBuilder.addTarget(recordSurface);
+            }
+            final List<Surface> surfaces = new ArrayList<>(Arrays.asList(previewSurface, recordSurface));
+            if (analysisReader != null) {
+                previewRequestBuilder.addTarget(analysisReader.getSurface());
+                surfaces.add(analysisReader.getSurface());
+            }
             Log.d(TAG, "addRecordingSurface: adding recording surface");
-            cameraDevice.createCaptureSession(Arrays.asList(previewSurface, recordSurface),
+            cameraDevice.createCaptureSession(surfaces,
                     new CameraCaptureSession.StateCallback() {
                         @Override
                         public void onConfigured(@NonNull CameraCaptureSession session) {
@@ -157,7 +880,19 @@ public class MainActivity extends AppCompatActivity {
                                 @Override
                                 public void run() {
                                     isRecording = true;
-                                    mediaCodec.start();
+                                    capturePipeline.start();
+                                    startStorageProbes();
+                                    if (timeLapseMode) {
+                                        startTimeLapse();
+                                    } else {
+                                        startPartnerRecorders(surfaces);
+                                        startGovernor();
+                                        startImu();
+                                    }
+                                    if (!startupTimer.isEnded("record_start")) {
+                                        startupTimer.end("record_start");
+                                        Log.d(TAG, "startup: " + startupTimer);
+                                    }
                                     recordButton.setText("Stop Recording");
                                     Log.d(TAG, "startRecordingVideo: video recording started");
                                 }
@@ -166,6 +901,14 @@ public class MainActivity extends AppCompatActivity {
 
                         @Override
                         public void onConfigureFailed(@NonNull CameraCaptureSession session) {
+                            if (analysisReader != null && cameraDevice != null) {
+                                // The camera may not support the third stream; record without it
+                                Log.w(TAG, "onConfigureFailed: retrying without frame analysis");
+                                previewRequestBuilder.removeTarget(analysisReader.getSurface());
+                                closeAnalysisReader();
+                                addRecordingSurface(previewSurface, recordSurface);
+                                return;
+                            }
                             Log.e(TAG, "onConfigureFailed: Camera configuration failed with recording surface");
                             Toast.makeText(MainActivity.this, "Camera configuration failed with recording surface", Toast.LENGTH_SHORT).show();
                         }
@@ -181,26 +924,144 @@ public class MainActivity extends AppCompatActivity {
 
     private void stopRecordingVideo() {
         Log.d(TAG, "stopRecordingVideo: stopping video recording");
+        stopTimeLapse();
+        stopStorageProbes();
+        stopGovernor();
+        stopImu();
+        stopPartnerRecorders();
         try {
-            if (mediaCodec != null) {
-                mediaCodec.stop();
-                mediaCodec.release();
+            if (capturePipeline != null) {
+                capturePipeline.stop();
+                Log.d(TAG, "stopRecordingVideo: " + capturePipeline.getStats());
+                capturePipeline.release();
+                capturePipeline = null;
+                encoder = null;
+                releaseRecordSurface();
+                if (healingEncoder != null) {
+                    Log.d(TAG, "stopRecordingVideo: encoder recovery: " + healingEncoder);
+                    healingEncoder = null;
+                }
+                if (segmentingSink != null) {
+                    if (segmentingSink.getError() != null) {
+                        Log.e(TAG, "stopRecordingVideo: recording cut short at segment " + segmentingSink.getSegment(),
+                                segmentingSink.getError());
+                    }
+                    segmentingSink = null;
+                }
+                if (sceneEncoder != null) {
+                    Log.d(TAG, "stopRecordingVideo: static scene for " + sceneEncoder.getStaticDurationUs() / 1000000
+                            + " s, " + sceneEncoder.getTransitions() + " transitions, "
+                            + sceneEncoder.getSkippedFrames() + " frames skipped");
+                    sceneEncoder = null;
+                }
+                writeGopTrace(gopStatsSink, videoPath + ".gop.csv");
+                writeEventTrace(videoPath + ".trace.json");
+                gopStatsSink = null;
+                if (metadataWriter != null) {
+                    primaryFrameSource.setMetadataWriter(null);
+                    Log.d(TAG, "stopRecordingVideo: capture metadata in " + videoPath + ".meta, "
+                            + metadataWriter.getDroppedRecords() + " records dropped");
+                    metadataWriter = null;
+                }
+                if (metadataInterleaver != null) {
+                    Log.d(TAG, "stopRecordingVideo: " + metadataInterleaver.getEmittedRecords() + " IMU records, "
+                            + metadataInterleaver.getLateRecords() + " late, "
+                            + metadataQueue.getDroppedRecords() + " dropped");
+                    metadataInterleaver = null;
+                    metadataQueue = null;
+                }
+                if (fragmentedWriter != null) {
+                    Log.d(TAG, "stopRecordingVideo: " + fragmentedWriter.getFragmentsWritten() + " fragments, "
+                            + fragmentedWriter.getDroppedSamples() + " samples dropped, memory " + recordingMemory);
+                    fragmentedWriter = null;
+                }
+                rtspServer = null;
+                if (outputSinks != null) {
+                    Log.d(TAG, "stopRecordingVideo: outputs " + outputSinks);
+                    outputSinks = null;
+                }
             }
             if (encoderSurface != null) {
                 encoderSurface.release();
             }
-            if (mediaMuxer != null) {
-                mediaMuxer.stop();
-                mediaMuxer.release();
-            }
         } catch (Exception e) {
             Log.e(TAG, "stopRecordingVideo: Error stopping recording", e);
         }
 
         isRecording = false;
+        timeLapseMode = false;
         recordButton.setText("Start Recording");
 
         startPreview();
+        // The new session no longer draws into the reader
+        closeAnalysisReader();
+        prewarmEncoder();
+    }
+
+    private void createAnalysisReader() {
+        if (!ANALYZE_FRAMES || timeLapseMode) {
+            return;
+        }
+        if (analysisThread == null) {
+            analysisThread = new HandlerThread("analysis");
+            analysisThread.start();
+        }
+        lumaAnalyzer = new LumaAnalyzer(ANALYSIS_GRID_WIDTH, ANALYSIS_GRID_HEIGHT);
+        analysisReader = new ImageAnalysisReader(ANALYSIS_SIZE.getWidth(), ANALYSIS_SIZE.getHeight(),
+                new FrameAnalyzer[]{lumaAnalyzer}, ANALYSIS_MAX_IN_FLIGHT, analysisExecutor,
+                new Handler(analysisThread.getLooper()));
+    }
+
+    private void closeAnalysisReader() {
+        if (analysisReader == null) {
+            return;
+        }
+        Log.d(TAG, "closeAnalysisReader: " + analysisReader.getAnalysis() + ", last motion "
+                + lumaAnalyzer.getMotion() + ", sharpness " + lumaAnalyzer.getSharpness());
+        analysisReader.close();
+        analysisReader = null;
+        lumaAnalyzer = null;
+    }
+
+    // The persistent input surface outlives the encoders that drew from it
+    private void releaseRecordSurface() {
+        if (recordSurface != null) {
+            recordSurface.release();
+            recordSurface = null;
+        }
+    }
+
+    private void writeGopTrace(final GopStatsSink stats, final String path) {
+        storageExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try (Writer writer = new BufferedWriter(new FileWriter(path))) {
+                    stats.writeCsv(writer);
+                    Log.d(TAG, "writeGopTrace: " + stats.getGopCount() + " GOPs written to " + path);
+                } catch (IOException e) {
+                    Log.e(TAG, "writeGopTrace: failed to write " + path, e);
+                }
+            }
+        });
+    }
+
+    // Chrome trace JSON of the recent tracer events, open it in ui.perfetto.dev
+    private void writeEventTrace(final String path) {
+        if (!exportEventTrace || Tracer.GLOBAL.getLevel() == Tracer.LEVEL_OFF) {
+            return;
+        }
+        storageExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try (Writer writer = new BufferedWriter(new FileWriter(path))) {
+                    Tracer.GLOBAL.writeChromeJson(writer);
+                    Log.d(TAG, "writeEventTrace: written to " + path + ", "
+                            + Tracer.GLOBAL.getOverwrittenEvents() + " older events overwritten");
+                } catch (IOException e) {
+                    Log.e(TAG, "writeEventTrace: failed to write " + path, e);
+                }
+            }
+        });
     }
 
     public static String getCurrentDateTimeFileName() {
@@ -218,17 +1079,55 @@ public class MainActivity extends AppCompatActivity {
         return "/video_" + formattedDate + ".mp4";
     }
 
-    private void setUpMediaCodec() throws IOException {
+    private void setUpMediaCodec(int bitRate) throws IOException {
         Log.d(TAG, "setUpMediaCodec: setting up media codec");
-        mediaCodec = MediaCodec.createEncoderByType("video/avc");
-        MediaFormat format = MediaFormat.createVideoFormat("video/avc", videoSize.getWidth(), videoSize.getHeight());
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, 10000000);
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, 30);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
-        mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        EncoderCapabilities capabilities = capabilitiesFor(videoSize);
+        EncoderProfile profile = governedProfile().withBitRate(bitRate);
+        for (String problem : profile.validate(capabilities)) {
+            Log.w(TAG, "setUpMediaCodec: profile " + profile.name + ": " + problem);
+        }
+        profile = profile.clampTo(capabilities);
+        currentBitRate = profile.bitRate;
+        recordingProfile = profile;
+        if (timeLapseMode) {
+            // The encoder's frame rate is the playback rate
+            profile = profile.withFrameRate(TIME_LAPSE_PLAYBACK_FPS);
+        }
+        // The prewarmed encoder stays for the next regular recording
+        EncoderPrewarmer.Prepared prepared = timeLapseMode ? null
+                : encoderPrewarmer.take(MIME_TYPE, videoSize.getWidth(), videoSize.getHeight(), profile);
+        final MediaFormat format = MediaFormats.createVideoFormat(MIME_TYPE, videoSize.getWidth(), videoSize.getHeight(), profile);
+        if (timeLapseMode) {
+            // Lets the encoder's input surface space the timestamps and size the GOP for playback
+            format.setFloat(MediaFormat.KEY_CAPTURE_RATE, 1000f / TIME_LAPSE_INTERVAL_MS);
+        }
+        if (prepared != null) {
+            encoder = prepared.encoder;
+            recordSurface = prepared.inputSurface;
+        } else {
+            // Persistent, so a recreated encoder can take it over without a new capture session
+            recordSurface = MediaCodec.createPersistentInputSurface();
+            encoder = new MediaCodecEncoder(format, recordSurface);
+        }
+        VideoEncoder baseEncoder = encoder;
+        if (SELF_HEALING_ENCODER) {
+            final Surface inputSurface = recordSurface;
+            healingEncoder = new SelfHealingEncoder(encoder, new SelfHealingEncoder.Factory() {
+                @Override
+                public VideoEncoder create() throws IOException {
+                    Log.d(TAG, "setUpMediaCodec: recreating the encoder");
+                    return new MediaCodecEncoder(format, inputSurface);
+                }
+            }, encoderExecutor, Clock.SYSTEM, MAX_ENCODER_RECOVERIES, ENCODER_RECOVERY_WINDOW_S * 1000000000L);
+            baseEncoder = healingEncoder;
+        }
+        baseEncoder.setErrorListener(new VideoEncoder.ErrorListener() {
+            @Override
+            public void onError(Exception e) {
+                Log.e(TAG, "setUpMediaCodec: encoder error", e);
+            }
+        });
         String fileName = getCurrentDateTimeFileName();
-        mediaMuxer = new MediaMuxer(getExternalFilesDir(null).getAbsolutePath() + fileName, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
 
         // Set the orientation hint based on the device's rotation
         int rotation = getWindowManager().getDefaultDisplay().getRotation();
@@ -249,68 +1148,116 @@ public class MainActivity extends AppCompatActivity {
             default:
                 orientationHint = 90; // Default orientation hint
         }
-        mediaMuxer.setOrientationHint(orientationHint);
-
-
-        trackIndex = -1;
-        muxerStarted = false;
-
-        mediaCodec.setCallback(new MediaCodec.Callback() {
-            @Override
-            public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
-                // No input buffer is needed for this use case
-            }
-
-            @Override
-            public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
-                Log.d(TAG, "onOutputBufferAvailable: Output buffer available");
-                ByteBuffer encodedData = mediaCodec.getOutputBuffer(index);
-                if (encodedData == null) {
-                    throw new RuntimeException("encoderOutputBuffer " + index + " was null");
+        videoPath = getExternalFilesDir(null).getAbsolutePath() + fileName;
+        SampleSink fileSink = createFileSink(videoPath, orientationHint, profile, true);
+        if (SELF_HEALING_ENCODER) {
+            // A recreated encoder with other parameter sets continues in the next file
+            final String basePath = videoPath.substring(0, videoPath.length() - ".mp4".length());
+            final int segmentOrientationHint = orientationHint;
+            final EncoderProfile segmentProfile = profile;
+            segmentingSink = new SegmentingSink(fileSink, new SegmentingSink.Factory() {
+                @Override
+                public SampleSink open(int segment) throws IOException {
+                    String path = String.format(Locale.US, "%s_%03d.mp4", basePath, segment);
+                    Log.d(TAG, "setUpMediaCodec: encoder format changed, continuing in " + path);
+                    return createFileSink(path, segmentOrientationHint, segmentProfile, true);
                 }
+            });
+            fileSink = segmentingSink;
+        }
 
-                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    info.size = 0;
-                }
-
-                if (info.size != 0) {
-                    if (!muxerStarted) {
-                        MediaFormat newFormat = mediaCodec.getOutputFormat();
-                        trackIndex = mediaMuxer.addTrack(newFormat);
-                        mediaMuxer.start();
-                        muxerStarted = true;
-                    }
-
-                    encodedData.position(info.offset);
-                    encodedData.limit(info.offset + info.size);
-                    mediaMuxer.writeSampleData(trackIndex, encodedData, info);
-                }
+        // The file is written on the codec thread as before; the live stream gets its own thread
+        // and queue so a stalled network path cannot hold up the recording
+        outputSinks = new FanOutSink(Clock.SYSTEM);
+        outputSinks.addInline("file", new TimedSink(fileSink, storageProfiler, Clock.SYSTEM));
+        if (LIVE_STREAM && !ENCRYPT_RECORDINGS) {
+            try {
+                rtspServer = new RtspServer(null, RTSP_PORT, RTSP_CLIENT_QUEUE_FRAMES);
+                rtspServer.start();
+                Log.d(TAG, "setUpMediaCodec: live stream at rtsp://<device>:" + rtspServer.getPort() + "/live");
+                outputSinks.addQueued("rtsp", rtspServer, streamExecutor, STREAM_OUTPUT_QUEUE_FRAMES,
+                        FanOutSink.Overflow.SKIP_TO_KEY_FRAME, 0);
+            } catch (IOException e) {
+                Log.e(TAG, "setUpMediaCodec: live streaming unavailable", e);
+            }
+        }
 
-                mediaCodec.releaseOutputBuffer(index, false);
+        gopStatsSink = new GopStatsSink(outputSinks, GOP_STATS_CAPACITY, currentBitRate);
+        SampleSink recordSink = gopStatsSink;
+        if (timeLapseMode) {
+            recordSink = new TimeLapseSink(gopStatsSink, TIME_LAPSE_PLAYBACK_FPS);
+        }
+        // The metadata keeps capture timestamps so samples can be joined with the camera results
+        SampleSink pipelineSink = recordSink;
+        String metadataPath = videoPath + ".meta";
+        try {
+            metadataWriter = new CaptureMetadataWriter(recordSink,
+                    new BufferedOutputStream(new FileOutputStream(metadataPath)), METADATA_BLOCK_SIZE, storageExecutor);
+            pipelineSink = metadataWriter;
+        } catch (IOException e) {
+            Log.e(TAG, "setUpMediaCodec: failed to create " + metadataPath, e);
+        }
+        primaryFrameSource.setMetadataWriter(metadataWriter);
+        VideoEncoder pipelineEncoder = baseEncoder;
+        if (STATIC_SCENE_MODE && !timeLapseMode && profile.bitrateMode != EncoderProfile.BITRATE_MODE_CBR) {
+            sceneEncoder = new StaticSceneEncoder(baseEncoder, currentBitRate, profile.frameRate,
+                    STATIC_SCENE_SKIP_FRAMES, STATIC_SCENE_BIT_RATE_FACTOR);
+            pipelineEncoder = sceneEncoder;
+        }
+        capturePipeline = new CapturePipeline(primaryFrameSource, pipelineEncoder, pipelineSink, Clock.SYSTEM);
+    }
 
-                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    Log.d(TAG, "onOutputBufferAvailable: End of stream");
+    // The MP4, or with ENCRYPT_RECORDINGS encrypted segments next to where it would have been. Only
+    // the primary camera's file gets the IMU track and is the one whose fragment stats are logged.
+    private SampleSink createFileSink(String path, int orientationHint, EncoderProfile profile, boolean primary)
+            throws IOException {
+        if (!ENCRYPT_RECORDINGS) {
+            if (!BOUNDED_MEMORY_RECORDING) {
+                if (!primary || !RECORD_IMU || timeLapseMode || !cameraClockIsRealtime()) {
+                    return new MuxerSink(path, orientationHint);
                 }
+                MuxerSink muxerSink = new MuxerSink(path, orientationHint, IMU_MIME);
+                metadataQueue = new TimedMetadataQueue(METADATA_QUEUE_RECORDS, IMU_RECORD_BYTES);
+                metadataInterleaver = new MetadataInterleaver(muxerSink, muxerSink, metadataQueue, 1,
+                        METADATA_WINDOW_RECORDS);
+                return metadataInterleaver;
             }
-
-            @Override
-            public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
-                Log.e(TAG, "onError: MediaCodec error", e);
-                e.printStackTrace();
+            // Room for two GOPs per fragment, so fragments are only cut at key frames
+            float gopSeconds = Math.max(1, profile.iFrameIntervalSeconds);
+            int fragmentBytes = (int) (profile.bitRate / 8 * gopSeconds * 2);
+            int fragmentSamples = (int) (profile.frameRate * gopSeconds * 2);
+            WritableByteChannel channel = new FileOutputStream(path).getChannel();
+            FragmentedMp4Writer writer;
+            try {
+                writer = new FragmentedMp4Writer(channel, orientationHint, FRAGMENT_DURATION_MS * 1000,
+                        fragmentBytes, fragmentSamples, recordingMemory, fragmentExecutor);
+            } catch (IllegalStateException e) {
+                channel.close();
+                throw new IOException("Not enough memory for " + profile, e);
             }
-
-            @Override
-            public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
-                if (muxerStarted) {
-                    throw new RuntimeException("format changed twice");
-                }
-                MediaFormat newFormat = mediaCodec.getOutputFormat();
-                trackIndex = mediaMuxer.addTrack(newFormat);
-                mediaMuxer.start();
-                muxerStarted = true;
-                Log.d(TAG, "onOutputFormatChanged: Output format changed, muxer started");
+            if (primary) {
+                fragmentedWriter = writer;
             }
-        });
+            Log.d(TAG, "createFileSink: fragmented MP4, memory " + recordingMemory);
+            return writer;
+        }
+        final String basePath = path.substring(0, path.length() - ".mp4".length());
+        try {
+            SecureRandom random = new SecureRandom();
+            SecretKey dataKey = KeyWrapper.newDataKey(random);
+            byte[] wrappedKey = RecordingKeyStore.open().wrap(dataKey);
+            return new EncryptedSegmentWriter(new EncryptedSegmentWriter.SegmentOutput() {
+                @Override
+                public WritableByteChannel open(int segment) throws IOException {
+                    String segmentPath = String.format(Locale.US, "%s_%03d.enc", basePath, segment);
+                    Log.d(TAG, "createFileSink: writing " + segmentPath);
+                    return new FileOutputStream(segmentPath).getChannel();
+                }
+            }, dataKey, wrappedKey, orientationHint, ENCRYPTED_SEGMENT_DURATION_S * 1000000L, random);
+        } catch (GeneralSecurityException e) {
+            // Never fall back to writing the video in the clear
+            throw new IOException("Recording key unavailable", e);
+        }
     }
 
     private void startPreview() {
@@ -321,9 +1268,10 @@ public class MainActivity extends AppCompatActivity {
         }
         try {
             closePreviewSession();
+            configureTransform(textureView.getWidth(), textureView.getHeight());
             SurfaceTexture texture = textureView.getSurfaceTexture();
             assert texture != null;
-            texture.setDefaultBufferSize(videoSize.getWidth(), videoSize.getHeight());
+            texture.setDefaultBufferSize(previewSize.getWidth(), previewSize.getHeight());
             Surface surface = new Surface(texture);
             previewRequestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
             previewRequestBuilder.addTarget(surface);
@@ -359,7 +1307,8 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
         try {
-            cameraCaptureSession.setRepeatingRequest(previewRequestBuilder.build(), null, null);
+            // During a time-lapse only the shots count as frames
+            cameraCaptureSession.setRepeatingRequest(previewRequestBuilder.build(), timeLapseMode ? null : primaryFrameSource, null);
         } catch (CameraAccessException e) {
             Log.e(TAG, "Error updating preview", e);
             e.printStackTrace();
@@ -381,7 +1330,12 @@ public class MainActivity extends AppCompatActivity {
 
         @Override
         public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width, int height) {
+            Size previous = previewSize;
             configureTransform(width, height);
+            if (!isRecording && cameraCaptureSession != null && previous != null && !previous.equals(previewSize)) {
+                // The running session still fills buffers of the old size
+                startPreview();
+            }
         }
 
         @Override
@@ -391,6 +1345,16 @@ public class MainActivity extends AppCompatActivity {
 
         @Override
         public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+            if (!firstPreviewFrame) {
+                firstPreviewFrame = true;
+                startupTimer.end("startup");
+                Log.d(TAG, "startup: " + startupTimer);
+            }
+            previewFrameStats.onFrame(System.nanoTime());
+            if (previewFrameStats.getFrames() >= PREVIEW_STATS_FRAMES) {
+                Log.d(TAG, "preview " + previewSize + ": " + previewFrameStats);
+                previewFrameStats.reset();
+            }
         }
     };
 
@@ -405,60 +1369,120 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void openCamera(int width, int height) {
-        CameraManager manager = (CameraManager) getSystemService(CAMERA_SERVICE);
         try {
-            cameraId = manager.getCameraIdList()[0];
-            CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
-            logSupportedSizes(characteristics);  // Log supported sizes
-            StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-            if (map != null) {
-                videoSize = new Size(1920, 1080); // Use 1920x1080 as the video size
+            if (startupConfig == null) {
+                negotiateStartupConfig();
+                prewarmEncoder();
             }
             configureTransform(width, height);
+            if (cameraDevice != null) {
+                // Opened from onCreate before the view was ready
+                startPreview();
+                return;
+            }
+            if (cameraOpening) {
+                return;
+            }
             if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
                 ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.CAMERA}, 101);
                 return;
             }
-            manager.openCamera(cameraId, stateCallback, null);
+            openCameraDevice((CameraManager) getSystemService(CAMERA_SERVICE));
         } catch (CameraAccessException e) {
             Log.e(TAG, "Error opening camera", e);
             e.printStackTrace();
         }
     }
 
+    @SuppressWarnings("MissingPermission")
+    private void openCameraDevice(CameraManager manager) {
+        try {
+            cameraOpening = true;
+            startupTimer.begin("camera_open");
+            manager.openCamera(cameraId, stateCallback, null);
+        } catch (CameraAccessException e) {
+            cameraOpening = false;
+            Log.e(TAG, "Error opening camera", e);
+        }
+    }
+
 
 
+    // The camera scales the preview stream to the smallest size covering the view, instead of
+    // filling a recording-sized buffer that the compositor then shrinks every frame
+    private void choosePreviewSize(int viewWidth, int viewHeight) throws CameraAccessException {
+        if (startupConfig != null && startupConfig.hasPreviewFor(viewWidth, viewHeight,
+                videoSize.getWidth(), videoSize.getHeight())) {
+            previewSize = new Size(startupConfig.previewWidth, startupConfig.previewHeight);
+            Log.d(TAG, "choosePreviewSize: " + previewSize + " from the startup config");
+            return;
+        }
+        CameraCharacteristics characteristics = cameraRegistry.getCharacteristics(cameraId);
+        StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        Size[] sizes = map != null ? map.getOutputSizes(SurfaceTexture.class) : new Size[0];
+        int[][] supported = new int[sizes.length][];
+        for (int i = 0; i < sizes.length; i++) {
+            supported[i] = new int[]{sizes[i].getWidth(), sizes[i].getHeight()};
+        }
+        int[] size = PreviewGeometry.chooseSize(supported, viewWidth, viewHeight,
+                videoSize.getWidth(), videoSize.getHeight(), sensorOrientation);
+        previewSize = new Size(size[0], size[1]);
+        Log.d(TAG, "choosePreviewSize: " + previewSize + " for a " + viewWidth + "x" + viewHeight
+                + " view, recording at " + videoSize);
+        // Only a preview for the size the next launch starts at is worth keeping
+        if (startupConfig != null && startupConfig.videoWidth == videoSize.getWidth()
+                && startupConfig.videoHeight == videoSize.getHeight()) {
+            startupConfig = startupConfig.withPreview(size[0], size[1], viewWidth, viewHeight);
+            saveStartupConfig(startupConfig);
+        }
+    }
+
     private void configureTransform(int viewWidth, int viewHeight) {
-        if (textureView == null || videoSize == null) {
+        if (textureView == null || videoSize == null || viewWidth == 0 || viewHeight == 0) {
             return;
         }
-        Matrix matrix = new Matrix();
-        int rotation = getWindowManager().getDefaultDisplay().getRotation();
-        int viewRotation = 90;
-        if (rotation == Surface.ROTATION_0 || rotation == Surface.ROTATION_180) {
-            viewRotation = 90;
-        } else if (rotation == Surface.ROTATION_90 || rotation == Surface.ROTATION_270) {
-            viewRotation = 0;
+        Size viewSize = new Size(viewWidth, viewHeight);
+        // A running recording keeps the buffers it was configured with until it stops
+        if (previewSize == null || (!isRecording
+                && (!viewSize.equals(previewViewSize) || !videoSize.equals(previewVideoSize)))) {
+            try {
+                choosePreviewSize(viewWidth, viewHeight);
+            } catch (CameraAccessException e) {
+                Log.e(TAG, "configureTransform: falling back to the video size", e);
+                previewSize = videoSize;
+            }
+            previewViewSize = viewSize;
+            previewVideoSize = videoSize;
         }
+        int rotation = getWindowManager().getDefaultDisplay().getRotation();
+        Matrix matrix = new Matrix();
+        matrix.setValues(PreviewGeometry.transform(viewWidth, viewHeight, previewSize.getWidth(),
+                previewSize.getHeight(), sensorOrientation, rotation * 90));
         textureView.setTransform(matrix);
     }
 
     private final CameraDevice.StateCallback stateCallback = new CameraDevice.StateCallback() {
         @Override
         public void onOpened(@NonNull CameraDevice camera) {
+            startupTimer.end("camera_open");
+            cameraOpening = false;
             cameraDevice = camera;
-            startPreview();
+            if (textureView.isAvailable()) {
+                startPreview();
+            }
         }
 
         @Override
         public void onDisconnected(@NonNull CameraDevice camera) {
-            cameraDevice.close();
+            cameraOpening = false;
+            camera.close();
             cameraDevice = null;
         }
 
         @Override
         public void onError(@NonNull CameraDevice camera, int error) {
-            cameraDevice.close();
+            cameraOpening = false;
+            camera.close();
             cameraDevice = null;
             MainActivity.this.finish();
         }
@@ -479,20 +1503,52 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onPause() {
         super.onPause();
+        stopTimeLapse();
+        stopStorageProbes();
+        stopGovernor();
+        stopImu();
+        stopPartnerRecorders();
+        encoderPrewarmer.release();
         closePreviewSession();
+        closeAnalysisReader();
         if (cameraDevice != null) {
             cameraDevice.close();
             cameraDevice = null;
         }
-        if (mediaCodec != null) {
-            mediaCodec.release();
-            mediaCodec = null;
+        if (capturePipeline != null) {
+            capturePipeline.release();
+            capturePipeline = null;
+            encoder = null;
+            healingEncoder = null;
+            segmentingSink = null;
+            sceneEncoder = null;
+            releaseRecordSurface();
+        }
+        if (rtspServer != null) {
+            rtspServer.close();
+            rtspServer = null;
         }
         if (encoderSurface != null) {
             encoderSurface.release();
             encoderSurface = null;
         }
     }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        cameraRegistry.release();
+        storageExecutor.shutdownNow();
+        // Lets the last fragments reach the file
+        fragmentExecutor.shutdown();
+        encoderExecutor.shutdown();
+        analysisExecutor.shutdown();
+        verifierPool.shutdownNow();
+        streamExecutor.shutdown();
+        if (analysisThread != null) {
+            analysisThread.quitSafely();
+        }
+    }
 }
 
 
@@ -0,0 +1,212 @@
+package com.example.testingsurfacetexture;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Surface-fed MediaCodec encoder running in asynchronous mode. Errors reach the error listener
+// as EncoderFaults, classified by whether the codec survives them.
+public class MediaCodecEncoder implements VideoEncoder, SelfHealingEncoder.Resettable {
+    private static final String TAG = "MediaCodecEncoder";
+    private static final int TRACE_OUTPUT = Tracer.registerEvent("encoder_output", Tracer.LEVEL_FRAME, "pts_us", "size");
+    private static final int TRACE_FORMAT = Tracer.registerEvent("encoder_format", Tracer.LEVEL_SESSION, null, null);
+    private static final int TRACE_END = Tracer.registerEvent("encoder_end_of_stream", Tracer.LEVEL_SESSION, "pts_us", null);
+    private static final int TRACE_ERROR = Tracer.registerEvent("encoder_error", Tracer.LEVEL_SESSION, "code", null);
+    private static final int TRACE_BITRATE = Tracer.registerEvent("encoder_bitrate", Tracer.LEVEL_SESSION, null, null);
+    private static final int TRACE_KEY_FRAME = Tracer.registerEvent("encoder_key_frame_request", Tracer.LEVEL_SESSION, null, null);
+    private static final int TRACE_SUSPEND = Tracer.registerEvent("encoder_suspend", Tracer.LEVEL_SESSION, "suspended", null);
+
+    private final MediaCodec mediaCodec;
+    private final MediaFormat format;
+    private final Surface persistentSurface;
+    private final SampleInfo sampleInfo = new SampleInfo();
+    private SampleSink sink;
+    private ErrorListener errorListener;
+    private TrackFormat sentFormat;
+
+    public MediaCodecEncoder(MediaFormat format) throws IOException {
+        this(format, null);
+    }
+
+    // Fed from a surface made by MediaCodec.createPersistentInputSurface(), which outlives the
+    // codec: a reset or recreated encoder takes over the same surface and the camera keeps
+    // drawing into it
+    public MediaCodecEncoder(MediaFormat format, Surface persistentSurface) throws IOException {
+        this.format = format;
+        this.persistentSurface = persistentSurface;
+        mediaCodec = MediaCodec.createEncoderByType(format.getString(MediaFormat.KEY_MIME));
+        configure();
+    }
+
+    private void configure() {
+        // The callback has to be installed before configure() for asynchronous mode
+        mediaCodec.setCallback(callback);
+        mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        if (persistentSurface != null) {
+            mediaCodec.setInputSurface(persistentSurface);
+        }
+    }
+
+    // Only for encoders without a persistent surface
+    public Surface createInputSurface() {
+        return mediaCodec.createInputSurface();
+    }
+
+    // Back to configured, ready to start. Without a persistent surface the input surface would be
+    // lost with the reset, so the encoder has to be recreated instead.
+    @Override
+    public void reset() {
+        if (persistentSurface == null) {
+            throw new IllegalStateException("No persistent input surface to keep");
+        }
+        mediaCodec.reset();
+        sentFormat = null;
+        configure();
+    }
+
+    @Override
+    public void setSink(SampleSink sink) {
+        this.sink = sink;
+    }
+
+    @Override
+    public void setErrorListener(ErrorListener listener) {
+        errorListener = listener;
+    }
+
+    @Override
+    public void start() {
+        mediaCodec.start();
+    }
+
+    @Override
+    public void onFrameAvailable(long timestampNs) {
+        // Frames arrive through the input surface
+    }
+
+    @Override
+    public void setBitRate(int bitRate) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        mediaCodec.setParameters(params);
+        Tracer.GLOBAL.counter(TRACE_BITRATE, bitRate);
+    }
+
+    @Override
+    public void requestKeyFrame() {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mediaCodec.setParameters(params);
+        Tracer.GLOBAL.instant(TRACE_KEY_FRAME, 0, 0);
+    }
+
+    @Override
+    public void setSuspended(boolean suspended) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_SUSPEND, suspended ? 1 : 0);
+        mediaCodec.setParameters(params);
+        Tracer.GLOBAL.instant(TRACE_SUSPEND, suspended ? 1 : 0, 0);
+    }
+
+    @Override
+    public void stop() {
+        try {
+            mediaCodec.stop();
+        } finally {
+            // The sink still finishes what it has if the codec fails to stop
+            if (sink != null) {
+                sink.onEnd();
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        mediaCodec.release();
+    }
+
+    private void sendFormat(MediaFormat format) {
+        sentFormat = MediaFormats.toTrackFormat(format);
+        sink.onFormat(sentFormat);
+    }
+
+    static EncoderFault.Kind classify(MediaCodec.CodecException e) {
+        if (e.isTransient()) {
+            return EncoderFault.Kind.TRANSIENT;
+        }
+        if (e.isRecoverable()) {
+            return EncoderFault.Kind.RECOVERABLE;
+        }
+        return EncoderFault.Kind.FATAL;
+    }
+
+    private final MediaCodec.Callback callback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            // No input buffer is needed for this use case
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            ByteBuffer encodedData = codec.getOutputBuffer(index);
+            if (encodedData == null) {
+                throw new RuntimeException("encoderOutputBuffer " + index + " was null");
+            }
+
+            // Codec config is delivered through onOutputFormatChanged as csd-0/csd-1
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                info.size = 0;
+            }
+
+            Tracer.GLOBAL.begin(TRACE_OUTPUT, info.presentationTimeUs, info.size);
+            if (info.size != 0 && sink != null) {
+                if (sentFormat == null) {
+                    sendFormat(codec.getOutputFormat());
+                }
+                encodedData.position(info.offset);
+                encodedData.limit(info.offset + info.size);
+                sampleInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+                sink.onSample(encodedData, sampleInfo);
+            }
+
+            codec.releaseOutputBuffer(index, false);
+            Tracer.GLOBAL.end(TRACE_OUTPUT, info.presentationTimeUs, info.size);
+
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                Tracer.GLOBAL.instant(TRACE_END, info.presentationTimeUs, 0);
+                Log.d(TAG, "onOutputBufferAvailable: End of stream");
+            }
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            Log.e(TAG, "onError: MediaCodec error", e);
+            Tracer.GLOBAL.instant(TRACE_ERROR, e.getErrorCode(), 0);
+            if (errorListener != null) {
+                errorListener.onError(new EncoderFault(classify(e), e.getErrorCode(), e.getDiagnosticInfo(), e));
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            // Some codecs announce the format again, or new parameter sets mid-stream; the sink
+            // decides what a different one means
+            if (sentFormat != null && sentFormat.equals(MediaFormats.toTrackFormat(format))) {
+                Log.d(TAG, "onOutputFormatChanged: same format again");
+                return;
+            }
+            if (sink != null) {
+                sendFormat(format);
+            }
+            Tracer.GLOBAL.instant(TRACE_FORMAT, 0, 0);
+            Log.d(TAG, "onOutputFormatChanged: Output format changed");
+        }
+    };
+}
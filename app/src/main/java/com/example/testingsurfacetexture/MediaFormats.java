@@ -0,0 +1,120 @@
+package com.example.testingsurfacetexture;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Range;
+
+public class MediaFormats {
+    private MediaFormats() {
+    }
+
+    public static TrackFormat toTrackFormat(MediaFormat format) {
+        return new TrackFormat(format.getString(MediaFormat.KEY_MIME),
+                format.getInteger(MediaFormat.KEY_WIDTH),
+                format.getInteger(MediaFormat.KEY_HEIGHT),
+                format.containsKey("csd-0") ? format.getByteBuffer("csd-0") : null,
+                format.containsKey("csd-1") ? format.getByteBuffer("csd-1") : null);
+    }
+
+    public static MediaFormat toMediaFormat(TrackFormat format) {
+        MediaFormat mediaFormat = MediaFormat.createVideoFormat(format.mime, format.width, format.height);
+        if (format.getCsd0() != null) {
+            mediaFormat.setByteBuffer("csd-0", format.getCsd0());
+        }
+        if (format.getCsd1() != null) {
+            mediaFormat.setByteBuffer("csd-1", format.getCsd1());
+        }
+        return mediaFormat;
+    }
+
+    public static MediaFormat createVideoFormat(String mime, int width, int height, EncoderProfile profile) {
+        MediaFormat format = MediaFormat.createVideoFormat(mime, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, profile.bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, profile.frameRate);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N_MR1) {
+            format.setFloat(MediaFormat.KEY_I_FRAME_INTERVAL, profile.iFrameIntervalSeconds);
+        } else {
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, Math.max(1, Math.round(profile.iFrameIntervalSeconds)));
+        }
+        if (profile.bitrateMode != EncoderProfile.UNSET) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, profile.bitrateMode);
+        }
+        if (profile.avcProfile != EncoderProfile.UNSET) {
+            format.setInteger(MediaFormat.KEY_PROFILE, profile.avcProfile);
+            if (profile.avcLevel != EncoderProfile.UNSET) {
+                format.setInteger(MediaFormat.KEY_LEVEL, profile.avcLevel);
+            }
+        }
+        if (profile.priority != EncoderProfile.UNSET) {
+            format.setInteger(MediaFormat.KEY_PRIORITY, profile.priority);
+        }
+        if (profile.intraRefreshPeriod != EncoderProfile.UNSET) {
+            format.setInteger(MediaFormat.KEY_INTRA_REFRESH_PERIOD, profile.intraRefreshPeriod);
+        }
+        if (profile.quality != EncoderProfile.UNSET && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            format.setInteger(MediaFormat.KEY_QUALITY, profile.quality);
+        }
+        if (profile.maxBFrames != EncoderProfile.UNSET && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            format.setInteger(MediaFormat.KEY_MAX_B_FRAMES, profile.maxBFrames);
+        }
+        if (profile.latency != EncoderProfile.UNSET && Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            format.setInteger(MediaFormat.KEY_LATENCY, profile.latency);
+        }
+        return format;
+    }
+
+    // Capabilities of the first encoder for the mime type, the one createEncoderByType() picks
+    public static EncoderCapabilities queryEncoderCapabilities(String mime, int width, int height) {
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (MediaCodecInfo info : codecList.getCodecInfos()) {
+            if (!info.isEncoder() || !supportsType(info, mime)) {
+                continue;
+            }
+            MediaCodecInfo.CodecCapabilities caps = info.getCapabilitiesForType(mime);
+            MediaCodecInfo.VideoCapabilities video = caps.getVideoCapabilities();
+            MediaCodecInfo.EncoderCapabilities encoder = caps.getEncoderCapabilities();
+            Range<Integer> bitrates = video.getBitrateRange();
+            int maxFrameRate;
+            try {
+                maxFrameRate = (int) Math.floor(video.getSupportedFrameRatesFor(width, height).getUpper());
+            } catch (IllegalArgumentException e) {
+                maxFrameRate = video.getSupportedFrameRates().getUpper();
+            }
+            boolean[] modes = new boolean[3];
+            for (int mode = 0; mode < modes.length; mode++) {
+                modes[mode] = encoder.isBitrateModeSupported(mode);
+            }
+            int[][] profileLevels = new int[caps.profileLevels.length][];
+            for (int i = 0; i < profileLevels.length; i++) {
+                profileLevels[i] = new int[]{caps.profileLevels[i].profile, caps.profileLevels[i].level};
+            }
+            return new EncoderCapabilities(bitrates.getLower(), bitrates.getUpper(), maxFrameRate, modes,
+                    profileLevels.length > 0 ? profileLevels : null,
+                    caps.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_IntraRefresh));
+        }
+        return EncoderCapabilities.ANY;
+    }
+
+    // How many instances of the first encoder for mime the device can run at once
+    public static int queryMaxEncoderInstances(String mime) {
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (MediaCodecInfo info : codecList.getCodecInfos()) {
+            if (info.isEncoder() && supportsType(info, mime)) {
+                return info.getCapabilitiesForType(mime).getMaxSupportedInstances();
+            }
+        }
+        return 1;
+    }
+
+    private static boolean supportsType(MediaCodecInfo info, String mime) {
+        for (String type : info.getSupportedTypes()) {
+            if (type.equalsIgnoreCase(mime)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.testingsurfacetexture;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A ceiling on the memory that recording components set aside. They reserve everything they will
+// need when they are created, so a session that starts within budget cannot grow past it however
+// long it runs, and one that would not fit fails at the start instead of hours in.
+public class MemoryBudget {
+    private final long maxBytes;
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong peakBytes = new AtomicLong();
+
+    public MemoryBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public boolean tryReserve(long bytes) {
+        while (true) {
+            long used = usedBytes.get();
+            if (used + bytes > maxBytes) {
+                return false;
+            }
+            if (usedBytes.compareAndSet(used, used + bytes)) {
+                long peak;
+                while ((peak = peakBytes.get()) < used + bytes && !peakBytes.compareAndSet(peak, used + bytes)) {
+                    // Retry with the new peak
+                }
+                return true;
+            }
+        }
+    }
+
+    public void reserve(long bytes) {
+        if (!tryReserve(bytes)) {
+            throw new IllegalStateException("Memory budget exceeded: " + bytes + " bytes requested, "
+                    + usedBytes.get() + " of " + maxBytes + " in use");
+        }
+    }
+
+    public void release(long bytes) {
+        usedBytes.addAndGet(-bytes);
+    }
+
+    public ByteBuffer allocateDirect(int bytes) {
+        reserve(bytes);
+        return ByteBuffer.allocateDirect(bytes);
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getPeakBytes() {
+        return peakBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return (usedBytes.get() >> 10) + " of " + (maxBytes >> 10) + " KiB, peak " + (peakBytes.get() >> 10) + " KiB";
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.testingsurfacetexture;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Merges records from a TimedMetadataQueue into the recording by timestamp: each record goes to
+// the metadata sink just before the first video sample at or after its time, so the tracks reach
+// the muxer interleaved. Producers are not ordered with each other, so records wait in a small
+// window sorted by time. When the window is full the oldest record goes out early, which keeps
+// the buffering bounded while the video stalls. A record older than one already written on its
+// track is too late for the track and is dropped and counted.
+public class MetadataInterleaver implements SampleSink {
+    private final SampleSink delegate;
+    private final TimedMetadataSink metadataSink;
+    private final TimedMetadataQueue queue;
+    private final long[] lastTimestampUs;
+    private final int maxRecordBytes;
+    // The window: slots of records, with order[] holding slot numbers sorted by timestamp
+    private final int[] tracks;
+    private final long[] timestamps;
+    private final int[] lengths;
+    private final byte[] payloads;
+    private final ByteBuffer payloadView;
+    private final int[] order;
+    private int pending;
+    private final int[] free;
+    private int freeCount;
+    private long emittedRecords;
+    private long lateRecords;
+
+    private final TimedMetadataQueue.Reader drain = new TimedMetadataQueue.Reader() {
+        @Override
+        public void onRecord(int track, long timestampUs, byte[] data, int offset, int length) {
+            insert(track, timestampUs, data, offset, length);
+        }
+    };
+
+    // Tracks are numbered from 0 to trackCount - 1
+    public MetadataInterleaver(SampleSink delegate, TimedMetadataSink metadataSink, TimedMetadataQueue queue,
+                               int trackCount, int windowRecords) {
+        this.delegate = delegate;
+        this.metadataSink = metadataSink;
+        this.queue = queue;
+        lastTimestampUs = new long[trackCount];
+        Arrays.fill(lastTimestampUs, Long.MIN_VALUE);
+        maxRecordBytes = queue.getMaxRecordBytes();
+        tracks = new int[windowRecords];
+        timestamps = new long[windowRecords];
+        lengths = new int[windowRecords];
+        payloads = new byte[windowRecords * maxRecordBytes];
+        payloadView = ByteBuffer.wrap(payloads);
+        order = new int[windowRecords];
+        free = new int[windowRecords];
+        for (int i = 0; i < windowRecords; i++) {
+            free[i] = i;
+        }
+        freeCount = windowRecords;
+    }
+
+    @Override
+    public void onFormat(TrackFormat format) {
+        delegate.onFormat(format);
+    }
+
+    @Override
+    public void onSample(ByteBuffer data, SampleInfo info) {
+        while (queue.poll(drain)) {
+            // Sorted into the window
+        }
+        emitUntil(info.presentationTimeUs);
+        delegate.onSample(data, info);
+    }
+
+    @Override
+    public void onEnd() {
+        while (queue.poll(drain)) {
+            // Sorted into the window
+        }
+        emitUntil(Long.MAX_VALUE);
+        delegate.onEnd();
+    }
+
+    private void insert(int track, long timestampUs, byte[] data, int offset, int length) {
+        if (pending == order.length) {
+            emitOldest();
+        }
+        if (track < 0 || track >= lastTimestampUs.length || timestampUs < lastTimestampUs[track]) {
+            lateRecords++;
+            return;
+        }
+        int slot = free[--freeCount];
+        tracks[slot] = track;
+        timestamps[slot] = timestampUs;
+        lengths[slot] = length;
+        System.arraycopy(data, offset, payloads, slot * maxRecordBytes, length);
+        // Records mostly arrive in order, so this rarely moves far
+        int i = pending;
+        while (i > 0 && timestamps[order[i - 1]] > timestampUs) {
+            order[i] = order[i - 1];
+            i--;
+        }
+        order[i] = slot;
+        pending++;
+    }
+
+    private void emitUntil(long timestampUs) {
+        while (pending > 0 && timestamps[order[0]] <= timestampUs) {
+            emitOldest();
+        }
+    }
+
+    private void emitOldest() {
+        int slot = order[0];
+        System.arraycopy(order, 1, order, 0, pending - 1);
+        pending--;
+        int track = tracks[slot];
+        payloadView.clear();
+        payloadView.position(slot * maxRecordBytes);
+        payloadView.limit(slot * maxRecordBytes + lengths[slot]);
+        metadataSink.onMetadata(track, payloadView, timestamps[slot]);
+        lastTimestampUs[track] = timestamps[slot];
+        free[freeCount++] = slot;
+        emittedRecords++;
+    }
+
+    public long getEmittedRecords() {
+        return emittedRecords;
+    }
+
+    // Records that arrived after a later one on their track was written
+    public long getLateRecords() {
+        return lateRecords;
+    }
+}
@@ -0,0 +1,654 @@
+package com.example.testingsurfacetexture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+// Checks a recording without decoding it. The file is read a region at a time and walked box by
+// box: every box has to fit its parent, there has to be a moov, and every sample the sample tables
+// (or, in a fragmented file, the moofs) describe has to lie inside an mdat. Every sampleStride-th
+// sample and every sync sample of an H.264 track is also walked NAL by NAL, so a sample table that
+// points at the wrong bytes shows up without reading the whole file.
+//
+// A recording the app died in, or whose muxer was never stopped, has no moov, or a box running
+// past the end of the file. A fragmented one that only lost its tail can be repaired by cutting
+// it after the last complete fragment; the report says where. Damage with good fragments after it
+// is only reported, since cutting there would throw them away.
+public class Mp4Verifier {
+    private static final int MAX_PROBLEMS = 16;
+    // Box headers and NAL lengths are small; a window this size covers a run of them per read
+    private static final int DEFAULT_REGION_BYTES = 64 * 1024;
+    private static final int SAMPLE_NON_SYNC = 0x00010000;
+
+    private static final int FTYP = fourcc("ftyp");
+    private static final int MOOV = fourcc("moov");
+    private static final int MDAT = fourcc("mdat");
+    private static final int MOOF = fourcc("moof");
+    private static final int TRAK = fourcc("trak");
+    private static final int TKHD = fourcc("tkhd");
+    private static final int MDIA = fourcc("mdia");
+    private static final int HDLR = fourcc("hdlr");
+    private static final int MINF = fourcc("minf");
+    private static final int STBL = fourcc("stbl");
+    private static final int STSD = fourcc("stsd");
+    private static final int STTS = fourcc("stts");
+    private static final int STSS = fourcc("stss");
+    private static final int STSC = fourcc("stsc");
+    private static final int STSZ = fourcc("stsz");
+    private static final int STCO = fourcc("stco");
+    private static final int CO64 = fourcc("co64");
+    private static final int AVC1 = fourcc("avc1");
+    private static final int AVC3 = fourcc("avc3");
+    private static final int AVCC = fourcc("avcC");
+    private static final int MVEX = fourcc("mvex");
+    private static final int TREX = fourcc("trex");
+    private static final int TRAF = fourcc("traf");
+    private static final int TFHD = fourcc("tfhd");
+    private static final int TRUN = fourcc("trun");
+
+    public static class Report {
+        public final File file;
+        public final List<String> problems = new ArrayList<>();
+        public long bytes;
+        public long samples;
+        public long checkedSamples;
+        public boolean fragmented;
+        // Cutting the file to this length leaves a valid recording; -1 when that does not help
+        public long repairLength = -1;
+        private int hiddenProblems;
+
+        Report(File file) {
+            this.file = file;
+        }
+
+        public boolean isValid() {
+            return problems.isEmpty();
+        }
+
+        void problem(String problem) {
+            if (problems.size() < MAX_PROBLEMS) {
+                problems.add(problem);
+            } else {
+                hiddenProblems++;
+            }
+        }
+
+        @Override
+        public String toString() {
+            String result = file.getName() + ": " + bytes + " bytes, " + samples + " samples, " + checkedSamples + " checked";
+            if (isValid()) {
+                return result + ", ok";
+            }
+            return result + ", " + problems + (hiddenProblems > 0 ? " and " + hiddenProblems + " more" : "")
+                    + (repairLength >= 0 ? ", repairable at " + repairLength : "");
+        }
+    }
+
+    // A file read through one region at a time with positional reads, so a long recording never needs
+    // more than a region of memory or address space
+    static class RegionReader {
+        final long size;
+        private final FileChannel channel;
+        private final int regionBytes;
+        private final ByteBuffer region;
+        private long regionIndex = -1;
+
+        RegionReader(FileChannel channel, int regionBytes) throws IOException {
+            this.channel = channel;
+            this.regionBytes = regionBytes;
+            size = channel.size();
+            region = ByteBuffer.allocate(regionBytes);
+        }
+
+        int get(long position) throws IOException {
+            return region(position).get((int) (position % regionBytes)) & 0xff;
+        }
+
+        long getUnsignedInt(long position) throws IOException {
+            int offset = (int) (position % regionBytes);
+            if (offset <= regionBytes - 4) {
+                return region(position).getInt(offset) & 0xffffffffL;
+            }
+            // Straddles two regions
+            return ((long) get(position) << 24) | (get(position + 1) << 16) | (get(position + 2) << 8) | get(position + 3);
+        }
+
+        int getInt(long position) throws IOException {
+            return (int) getUnsignedInt(position);
+        }
+
+        long getLong(long position) throws IOException {
+            return (getUnsignedInt(position) << 32) | getUnsignedInt(position + 4);
+        }
+
+        private ByteBuffer region(long position) throws IOException {
+            if (position < 0 || position >= size) {
+                throw new IndexOutOfBoundsException("Read at " + position + " of " + size);
+            }
+            long index = position / regionBytes;
+            if (index != regionIndex) {
+                long start = index * regionBytes;
+                region.clear();
+                region.limit((int) Math.min(regionBytes, size - start));
+                regionIndex = -1;
+                while (region.hasRemaining()) {
+                    if (channel.read(region, start + region.position()) < 0) {
+                        throw new IOException("Ended at " + (start + region.position()) + " of " + size);
+                    }
+                }
+                regionIndex = index;
+            }
+            return region;
+        }
+    }
+
+    // A box's type and extent; payload starts after the header
+    static class Box {
+        final int type;
+        final long start;
+        final long payload;
+        final long end;
+
+        Box(int type, long start, long payload, long end) {
+            this.type = type;
+            this.start = start;
+            this.payload = payload;
+            this.end = end;
+        }
+    }
+
+    private static class Track {
+        int id;
+        int handler;
+        // 0 unless the track is H.264
+        int nalLengthSize;
+        Box stbl;
+        int defaultSampleSize;
+        int defaultSampleFlags;
+    }
+
+    private final int sampleStride;
+    private final int regionBytes;
+
+    public Mp4Verifier(int sampleStride) {
+        this(sampleStride, DEFAULT_REGION_BYTES);
+    }
+
+    Mp4Verifier(int sampleStride, int regionBytes) {
+        this.sampleStride = sampleStride;
+        this.regionBytes = regionBytes;
+    }
+
+    public Report verify(File file) {
+        Report report = new Report(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            RegionReader reader = new RegionReader(raf.getChannel(), regionBytes);
+            report.bytes = reader.size;
+            verify(reader, report);
+        } catch (IOException e) {
+            report.problem("unreadable: " + e.getMessage());
+        } catch (IndexOutOfBoundsException e) {
+            report.problem("malformed: " + e.getMessage());
+        }
+        return report;
+    }
+
+    private void verify(RegionReader m, Report report) throws IOException {
+        List<Box> top = new ArrayList<>();
+        boolean complete = children(m, 0, m.size, "file", top, report);
+        if (top.isEmpty() || top.get(0).type != FTYP) {
+            report.problem("no ftyp at the start");
+        }
+        Box moov = find(top, MOOV);
+        if (moov == null) {
+            report.problem("no moov: the recording was never finalized");
+            return;
+        }
+        List<Box> moovChildren = new ArrayList<>();
+        children(m, moov.payload, moov.end, "moov", moovChildren, report);
+        List<Track> tracks = new ArrayList<>();
+        for (Box box : moovChildren) {
+            if (box.type == TRAK) {
+                Track track = parseTrack(m, box, report);
+                if (track != null) {
+                    tracks.add(track);
+                }
+            }
+        }
+        if (tracks.isEmpty()) {
+            report.problem("no tracks");
+            return;
+        }
+        Box mvex = find(moovChildren, MVEX);
+        report.fragmented = mvex != null;
+        if (mvex != null) {
+            readTrackDefaults(m, mvex, tracks, report);
+            verifyFragments(m, top, moov, tracks, report, complete);
+        } else {
+            List<Box> mdats = new ArrayList<>();
+            for (Box box : top) {
+                if (box.type == MDAT) {
+                    mdats.add(box);
+                }
+            }
+            for (Track track : tracks) {
+                verifySampleTable(m, track, mdats, report);
+            }
+        }
+    }
+
+    // Lists the boxes between start and end; false if one is malformed or runs past end
+    static boolean children(RegionReader m, long start, long end, String parent, List<Box> boxes, Report report)
+            throws IOException {
+        long position = start;
+        while (position < end) {
+            if (end - position < 8) {
+                report.problem(end - position + " stray bytes at the end of " + parent);
+                return false;
+            }
+            long size = m.getUnsignedInt(position);
+            int type = m.getInt(position + 4);
+            long header = 8;
+            if (size == 1) {
+                if (end - position < 16) {
+                    report.problem("truncated " + name(type) + " header at " + position);
+                    return false;
+                }
+                size = m.getLong(position + 8);
+                header = 16;
+            } else if (size == 0) {
+                // Runs to the end of its parent
+                size = end - position;
+            }
+            if (size < header) {
+                report.problem(name(type) + " at " + position + " has size " + size);
+                return false;
+            }
+            if (size > end - position) {
+                report.problem(name(type) + " at " + position + " runs " + (size - (end - position))
+                        + " bytes past the end of " + parent);
+                return false;
+            }
+            boxes.add(new Box(type, position, position + header, position + size));
+            position += size;
+        }
+        return true;
+    }
+
+    private static Box find(List<Box> boxes, int type) {
+        for (Box box : boxes) {
+            if (box.type == type) {
+                return box;
+            }
+        }
+        return null;
+    }
+
+    private static Box child(RegionReader m, Box parent, int type, Report report) throws IOException {
+        if (parent == null) {
+            return null;
+        }
+        List<Box> boxes = new ArrayList<>();
+        children(m, parent.payload, parent.end, name(parent.type), boxes, report);
+        return find(boxes, type);
+    }
+
+    private static Track parseTrack(RegionReader m, Box trak, Report report) throws IOException {
+        Track track = new Track();
+        Box tkhd = child(m, trak, TKHD, report);
+        Box mdia = child(m, trak, MDIA, report);
+        Box hdlr = child(m, mdia, HDLR, report);
+        Box minf = child(m, mdia, MINF, report);
+        track.stbl = child(m, minf, STBL, report);
+        if (tkhd == null || hdlr == null || track.stbl == null) {
+            report.problem("incomplete trak at " + trak.start);
+            return null;
+        }
+        int version = m.get(tkhd.payload);
+        track.id = m.getInt(tkhd.payload + (version == 1 ? 20 : 12));
+        track.handler = m.getInt(hdlr.payload + 8);
+        Box stsd = child(m, track.stbl, STSD, report);
+        if (stsd == null || m.getInt(stsd.payload + 4) < 1) {
+            report.problem("track " + track.id + " has no sample description");
+            return null;
+        }
+        List<Box> entries = new ArrayList<>();
+        children(m, stsd.payload + 8, stsd.end, "stsd", entries, report);
+        if (!entries.isEmpty() && (entries.get(0).type == AVC1 || entries.get(0).type == AVC3)) {
+            // The visual sample entry's fields come before its child boxes
+            Box entry = entries.get(0);
+            Box avcC = child(m, new Box(entry.type, entry.start, entry.payload + 78, entry.end), AVCC, report);
+            if (avcC == null || avcC.end - avcC.payload < 7) {
+                report.problem("track " + track.id + " has no avcC");
+                return null;
+            }
+            track.nalLengthSize = (m.get(avcC.payload + 4) & 3) + 1;
+        }
+        return track;
+    }
+
+    private void verifySampleTable(RegionReader m, Track track, List<Box> mdats, Report report) throws IOException {
+        Box stsz = child(m, track.stbl, STSZ, report);
+        Box stsc = child(m, track.stbl, STSC, report);
+        Box stts = child(m, track.stbl, STTS, report);
+        Box stss = child(m, track.stbl, STSS, report);
+        Box stco = child(m, track.stbl, STCO, report);
+        int offsetBytes = 4;
+        if (stco == null) {
+            stco = child(m, track.stbl, CO64, report);
+            offsetBytes = 8;
+        }
+        String where = "track " + track.id;
+        if (stsz == null || stsc == null || stts == null || stco == null) {
+            report.problem(where + " is missing a sample table");
+            return;
+        }
+        int constantSize = m.getInt(stsz.payload + 4);
+        long sampleCount = m.getUnsignedInt(stsz.payload + 8);
+        long chunkCount = m.getUnsignedInt(stco.payload + 4);
+        long stscCount = m.getUnsignedInt(stsc.payload + 4);
+        long sttsCount = m.getUnsignedInt(stts.payload + 4);
+        long syncCount = stss != null ? m.getUnsignedInt(stss.payload + 4) : 0;
+        if (!fits(stsz, 12, constantSize == 0 ? sampleCount : 0, 4, report)
+                || !fits(stco, 8, chunkCount, offsetBytes, report)
+                || !fits(stsc, 8, stscCount, 12, report)
+                || !fits(stts, 8, sttsCount, 8, report)
+                || (stss != null && !fits(stss, 8, syncCount, 4, report))) {
+            return;
+        }
+        long timed = 0;
+        for (long i = 0; i < sttsCount; i++) {
+            timed += m.getUnsignedInt(stts.payload + 8 + i * 8);
+        }
+        if (timed != sampleCount) {
+            report.problem(where + " has times for " + timed + " of " + sampleCount + " samples");
+        }
+
+        long sample = 0;
+        long syncIndex = 0;
+        long nextSync = syncCount > 0 ? m.getUnsignedInt(stss.payload + 8) : 0;
+        for (long e = 0; e < stscCount && sample < sampleCount; e++) {
+            long entry = stsc.payload + 8 + e * 12;
+            long firstChunk = m.getUnsignedInt(entry);
+            long perChunk = m.getUnsignedInt(entry + 4);
+            long nextFirst = e + 1 < stscCount ? m.getUnsignedInt(entry + 12) : chunkCount + 1;
+            if (firstChunk < 1 || nextFirst <= firstChunk || nextFirst > chunkCount + 1 || perChunk == 0) {
+                report.problem(where + " has a bad sample-to-chunk entry " + e);
+                return;
+            }
+            for (long chunk = firstChunk; chunk < nextFirst && sample < sampleCount; chunk++) {
+                long position = offsetBytes == 4 ? m.getUnsignedInt(stco.payload + 8 + (chunk - 1) * 4)
+                        : m.getLong(stco.payload + 8 + (chunk - 1) * 8);
+                for (long k = 0; k < perChunk && sample < sampleCount; k++) {
+                    long size = constantSize != 0 ? constantSize & 0xffffffffL : m.getUnsignedInt(stsz.payload + 12 + sample * 4);
+                    // stss numbers samples from 1; without one every sample is a sync sample
+                    boolean sync = stss == null || sample + 1 == nextSync;
+                    if (sync && stss != null && ++syncIndex < syncCount) {
+                        nextSync = m.getUnsignedInt(stss.payload + 8 + syncIndex * 4);
+                    }
+                    if (!inside(mdats, position, size)) {
+                        report.problem(where + " sample " + sample + " at " + position + " is outside the mdat");
+                        return;
+                    }
+                    checkSample(m, track, sample, position, size, sync, report);
+                    position += size;
+                    sample++;
+                }
+            }
+        }
+        report.samples += sample;
+        if (sample != sampleCount) {
+            report.problem(where + " has chunks for " + sample + " of " + sampleCount + " samples");
+        }
+    }
+
+    private static boolean fits(Box box, int header, long entries, int entryBytes, Report report) {
+        if (box.end - box.payload < header + entries * entryBytes) {
+            report.problem(name(box.type) + " at " + box.start + " is too short for its " + entries + " entries");
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean inside(List<Box> mdats, long position, long size) {
+        for (Box mdat : mdats) {
+            if (position >= mdat.payload && position + size <= mdat.end) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void checkSample(RegionReader m, Track track, long sample, long position, long size, boolean sync,
+                             Report report) throws IOException {
+        if (track.nalLengthSize == 0 || (!sync && sample % sampleStride != 0)) {
+            return;
+        }
+        report.checkedSamples++;
+        String problem = checkNals(m, position, size, track.nalLengthSize, sync);
+        if (problem != null) {
+            report.problem("track " + track.id + " sample " + sample + " at " + position + ": " + problem);
+        }
+    }
+
+    // Null when the sample is a sequence of well-formed length-prefixed NAL units filling it exactly
+    static String checkNals(RegionReader m, long position, long size, int lengthSize, boolean sync) throws IOException {
+        if (size == 0) {
+            return "empty sample";
+        }
+        long end = position + size;
+        boolean idr = false;
+        while (position < end) {
+            if (end - position < lengthSize + 1) {
+                return "NAL length runs past the sample";
+            }
+            long length = 0;
+            for (int i = 0; i < lengthSize; i++) {
+                length = (length << 8) | m.get(position + i);
+            }
+            position += lengthSize;
+            if (length == 0 || length > end - position) {
+                return "NAL of " + length + " bytes with " + (end - position) + " left";
+            }
+            int header = m.get(position);
+            int type = header & 0x1f;
+            // forbidden_zero_bit, and the types H.264 leaves unspecified
+            if ((header & 0x80) != 0 || type == 0 || type > 23) {
+                return "bad NAL header " + Integer.toHexString(header);
+            }
+            if (type == 5) {
+                idr = true;
+            }
+            position += length;
+        }
+        if (sync && !idr) {
+            return "sync sample without an IDR slice";
+        }
+        return null;
+    }
+
+    private static void readTrackDefaults(RegionReader m, Box mvex, List<Track> tracks, Report report) throws IOException {
+        List<Box> boxes = new ArrayList<>();
+        children(m, mvex.payload, mvex.end, "mvex", boxes, report);
+        for (Box box : boxes) {
+            if (box.type == TREX && box.end - box.payload >= 24) {
+                Track track = track(tracks, m.getInt(box.payload + 4));
+                if (track != null) {
+                    track.defaultSampleSize = m.getInt(box.payload + 16);
+                    track.defaultSampleFlags = m.getInt(box.payload + 20);
+                }
+            }
+        }
+    }
+
+    private static Track track(List<Track> tracks, int id) {
+        for (Track track : tracks) {
+            if (track.id == id) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    // Each moof's samples have to lie in the mdat right after it. The file is good up to the end
+    // of the last such pair, which is where a damaged tail can be cut off.
+    private void verifyFragments(RegionReader m, List<Box> top, Box moov, List<Track> tracks, Report report,
+                                 boolean complete) throws IOException {
+        long goodEnd = moov.end;
+        boolean damaged = !complete;
+        int problems = report.problems.size();
+        for (int i = 0; i < top.size(); i++) {
+            Box box = top.get(i);
+            if (box.type != MOOF) {
+                continue;
+            }
+            Box mdat = i + 1 < top.size() && top.get(i + 1).type == MDAT ? top.get(i + 1) : null;
+            if (mdat == null) {
+                report.problem("fragment at " + box.start + " has no mdat");
+            } else if (verifyFragment(m, box, mdat, tracks, report)) {
+                goodEnd = mdat.end;
+                continue;
+            }
+            // Cutting back is only safe when nothing good follows the damage
+            for (int j = i + 1; j < top.size(); j++) {
+                if (top.get(j).type == MOOF) {
+                    return;
+                }
+            }
+            damaged = true;
+            break;
+        }
+        if (damaged) {
+            if (report.problems.size() == problems && complete) {
+                report.problem("damaged fragment after " + goodEnd);
+            }
+            report.repairLength = goodEnd;
+        }
+    }
+
+    private boolean verifyFragment(RegionReader m, Box moof, Box mdat, List<Track> tracks, Report report)
+            throws IOException {
+        List<Box> trafs = new ArrayList<>();
+        if (!children(m, moof.payload, moof.end, "moof", trafs, report)) {
+            return false;
+        }
+        for (Box traf : trafs) {
+            if (traf.type != TRAF) {
+                continue;
+            }
+            List<Box> boxes = new ArrayList<>();
+            if (!children(m, traf.payload, traf.end, "traf", boxes, report)) {
+                return false;
+            }
+            Box tfhd = find(boxes, TFHD);
+            if (tfhd == null) {
+                report.problem("traf at " + traf.start + " has no tfhd");
+                return false;
+            }
+            int tfhdFlags = m.getInt(tfhd.payload) & 0xffffff;
+            Track track = track(tracks, m.getInt(tfhd.payload + 4));
+            if (track == null) {
+                report.problem("traf at " + traf.start + " is for an unknown track");
+                return false;
+            }
+            long field = tfhd.payload + 8;
+            long base = moof.start;
+            if ((tfhdFlags & 0x1) != 0) {
+                base = m.getLong(field);
+                field += 8;
+            }
+            if ((tfhdFlags & 0x2) != 0) {
+                field += 4;
+            }
+            if ((tfhdFlags & 0x8) != 0) {
+                field += 4;
+            }
+            int defaultSize = track.defaultSampleSize;
+            if ((tfhdFlags & 0x10) != 0) {
+                defaultSize = m.getInt(field);
+                field += 4;
+            }
+            int defaultFlags = track.defaultSampleFlags;
+            if ((tfhdFlags & 0x20) != 0) {
+                defaultFlags = m.getInt(field);
+            }
+            long position = base;
+            for (Box trun : boxes) {
+                if (trun.type != TRUN) {
+                    continue;
+                }
+                position = verifyRun(m, trun, track, position, base, defaultSize, defaultFlags, mdat, report);
+                if (position < 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Returns where the next run's data starts by default, -1 if the run is bad
+    private long verifyRun(RegionReader m, Box trun, Track track, long position, long base, int defaultSize,
+                           int defaultFlags, Box mdat, Report report) throws IOException {
+        int flags = m.getInt(trun.payload) & 0xffffff;
+        long count = m.getUnsignedInt(trun.payload + 4);
+        long field = trun.payload + 8;
+        if ((flags & 0x1) != 0) {
+            position = base + m.getInt(field);
+            field += 4;
+        }
+        int firstFlags = defaultFlags;
+        boolean hasFirstFlags = (flags & 0x4) != 0;
+        if (hasFirstFlags) {
+            firstFlags = m.getInt(field);
+            field += 4;
+        }
+        int entryBytes = 4 * Integer.bitCount(flags & 0xf00);
+        if (trun.end - field < count * entryBytes) {
+            report.problem("trun at " + trun.start + " is too short for its " + count + " samples");
+            return -1;
+        }
+        for (long i = 0; i < count; i++) {
+            if ((flags & 0x100) != 0) {
+                field += 4;
+            }
+            long size = defaultSize & 0xffffffffL;
+            if ((flags & 0x200) != 0) {
+                size = m.getUnsignedInt(field);
+                field += 4;
+            }
+            int sampleFlags = i == 0 && hasFirstFlags ? firstFlags : defaultFlags;
+            if ((flags & 0x400) != 0) {
+                sampleFlags = m.getInt(field);
+                field += 4;
+            }
+            if ((flags & 0x800) != 0) {
+                field += 4;
+            }
+            if (position < mdat.payload || position + size > mdat.end) {
+                report.problem("track " + track.id + " sample at " + position + " is outside the mdat at " + mdat.start);
+                return -1;
+            }
+            checkSample(m, track, report.samples, position, size, (sampleFlags & SAMPLE_NON_SYNC) == 0, report);
+            report.samples++;
+            position += size;
+        }
+        return position;
+    }
+
+    static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    private static String name(int type) {
+        char[] chars = new char[4];
+        for (int i = 0; i < 4; i++) {
+            int c = (type >>> (24 - 8 * i)) & 0xff;
+            chars[i] = c >= 0x20 && c < 0x7f ? (char) c : '?';
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.testingsurfacetexture;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class MuxerSink implements SampleSink, TimedMetadataSink {
+    private static final String TAG = "MuxerSink";
+
+    private final MediaMuxer mediaMuxer;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private final String[] metadataMimes;
+    private final int[] metadataTrackIndices;
+    private int trackIndex = -1;
+    private boolean muxerStarted;
+
+    public MuxerSink(String path, int orientationHint) throws IOException {
+        this(path, orientationHint, new String[0]);
+    }
+
+    // Each metadata MIME type, "application/..." for an ISO-BMFF timed metadata (mett) track,
+    // becomes a track numbered by its index. They need Android 8.0; before that their records
+    // are dropped.
+    public MuxerSink(String path, int orientationHint, String... metadataMimes) throws IOException {
+        mediaMuxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        mediaMuxer.setOrientationHint(orientationHint);
+        this.metadataMimes = metadataMimes.clone();
+        metadataTrackIndices = new int[metadataMimes.length];
+    }
+
+    @Override
+    public void onFormat(TrackFormat format) {
+        trackIndex = mediaMuxer.addTrack(MediaFormats.toMediaFormat(format));
+        for (int i = 0; i < metadataMimes.length; i++) {
+            metadataTrackIndices[i] = -1;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                MediaFormat metadataFormat = new MediaFormat();
+                metadataFormat.setString(MediaFormat.KEY_MIME, metadataMimes[i]);
+                metadataTrackIndices[i] = mediaMuxer.addTrack(metadataFormat);
+            }
+        }
+        mediaMuxer.start();
+        muxerStarted = true;
+        Log.d(TAG, "onFormat: muxer started with " + format);
+    }
+
+    @Override
+    public void onSample(ByteBuffer data, SampleInfo info) {
+        if (!muxerStarted) {
+            return;
+        }
+        bufferInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+        mediaMuxer.writeSampleData(trackIndex, data, bufferInfo);
+    }
+
+    @Override
+    public void onMetadata(int track, ByteBuffer data, long timestampUs) {
+        if (!muxerStarted || metadataTrackIndices[track] < 0) {
+            return;
+        }
+        // Every metadata record stands alone
+        bufferInfo.set(data.position(), data.remaining(), timestampUs, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+        mediaMuxer.writeSampleData(metadataTrackIndices[track], data, bufferInfo);
+    }
+
+    @Override
+    public void onEnd() {
+        try {
+            if (muxerStarted) {
+                mediaMuxer.stop();
+            }
+        } finally {
+            muxerStarted = false;
+            mediaMuxer.release();
+        }
+    }
+}
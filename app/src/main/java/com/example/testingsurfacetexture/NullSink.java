@@ -0,0 +1,18 @@
+package com.example.testingsurfacetexture;
+
+import java.nio.ByteBuffer;
+
+// Discards everything; as the only output it measures what the pipeline costs without a sink.
+public class NullSink implements SampleSink {
+    @Override
+    public void onFormat(TrackFormat format) {
+    }
+
+    @Override
+    public void onSample(ByteBuffer data, SampleInfo info) {
+    }
+
+    @Override
+    public void onEnd() {
+    }
+}
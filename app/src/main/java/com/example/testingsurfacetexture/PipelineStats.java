@@ -0,0 +1,111 @@
+package com.example.testingsurfacetexture;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Counters are written from the capture and codec threads and read from anywhere.
+public class PipelineStats {
+    private final AtomicLong framesCaptured = new AtomicLong();
+    private final AtomicLong samplesEncoded = new AtomicLong();
+    private final AtomicLong keyFrames = new AtomicLong();
+    private final AtomicLong bytesEncoded = new AtomicLong();
+    private final AtomicLong latencySumNs = new AtomicLong();
+    private final AtomicLong maxLatencyNs = new AtomicLong();
+    private final AtomicLong maxSampleSize = new AtomicLong();
+    private volatile long firstSampleUs = -1;
+    private volatile long lastSampleUs = -1;
+
+    void onFrameCaptured() {
+        framesCaptured.incrementAndGet();
+    }
+
+    void onSampleEncoded(SampleInfo info, long latencyNs) {
+        samplesEncoded.incrementAndGet();
+        bytesEncoded.addAndGet(info.size);
+        if (info.isKeyFrame()) {
+            keyFrames.incrementAndGet();
+        }
+        latencySumNs.addAndGet(latencyNs);
+        updateMax(maxLatencyNs, latencyNs);
+        updateMax(maxSampleSize, info.size);
+        if (firstSampleUs < 0) {
+            firstSampleUs = info.presentationTimeUs;
+        }
+        lastSampleUs = info.presentationTimeUs;
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    public long getFramesCaptured() {
+        return framesCaptured.get();
+    }
+
+    public long getSamplesEncoded() {
+        return samplesEncoded.get();
+    }
+
+    // Only exact once the encoder has been stopped; while running it includes frames still in flight.
+    public long getFramesDropped() {
+        return Math.max(0, framesCaptured.get() - samplesEncoded.get());
+    }
+
+    public long getKeyFrames() {
+        return keyFrames.get();
+    }
+
+    public long getBytesEncoded() {
+        return bytesEncoded.get();
+    }
+
+    public long getMaxSampleSize() {
+        return maxSampleSize.get();
+    }
+
+    public long getMaxLatencyNs() {
+        return maxLatencyNs.get();
+    }
+
+    public long getMeanLatencyNs() {
+        long samples = samplesEncoded.get();
+        return samples == 0 ? 0 : latencySumNs.get() / samples;
+    }
+
+    public long getDurationUs() {
+        return firstSampleUs < 0 ? 0 : lastSampleUs - firstSampleUs;
+    }
+
+    public double getBitrate() {
+        long samples = samplesEncoded.get();
+        long durationUs = getDurationUs();
+        if (samples < 2 || durationUs <= 0) {
+            return 0;
+        }
+        // The last sample's duration is not covered by the pts span, extrapolate it.
+        double frameUs = durationUs / (double) (samples - 1);
+        return bytesEncoded.get() * 8 * 1000000.0 / (durationUs + frameUs);
+    }
+
+    public double getFrameRate() {
+        long samples = samplesEncoded.get();
+        long durationUs = getDurationUs();
+        return durationUs <= 0 ? 0 : (samples - 1) * 1000000.0 / durationUs;
+    }
+
+    @Override
+    public String toString() {
+        return "captured=" + getFramesCaptured()
+                + " encoded=" + getSamplesEncoded()
+                + " keyFrames=" + getKeyFrames()
+                + " bytes=" + getBytesEncoded()
+                + " fps=" + String.format("%.1f", getFrameRate())
+                + " bitrate=" + String.format("%.0f", getBitrate())
+                + " latencyMeanMs=" + getMeanLatencyNs() / 1000000
+                + " latencyMaxMs=" + getMaxLatencyNs() / 1000000;
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.testingsurfacetexture;
+
+// Sizes and transforms the on-screen preview apart from the recording. The camera scales the
+// preview stream itself, so a buffer the size of the view, rather than the recording, saves the
+// memory bandwidth of every preview frame in the ISP and the compositor. The preview keeps the
+// recording's aspect ratio, since otherwise the camera crops the two streams differently and the
+// preview no longer shows what is recorded.
+public class PreviewGeometry {
+    private PreviewGeometry() {
+    }
+
+    // The smallest supported {width, height} with the video's aspect ratio that still covers the
+    // view without upscaling, never larger than the video. Sizes are in sensor orientation; the
+    // view is in display orientation, swapped when the sensor is mounted at 90 or 270 degrees.
+    public static int[] chooseSize(int[][] supported, int viewWidth, int viewHeight, int videoWidth, int videoHeight,
+                                   int sensorOrientation) {
+        if (sensorOrientation % 180 != 0) {
+            int swap = viewWidth;
+            viewWidth = viewHeight;
+            viewHeight = swap;
+        }
+        // Center-cropped into the view, the buffer covers it once it is this wide
+        long neededWidth = Math.max(viewWidth, ((long) viewHeight * videoWidth + videoHeight - 1) / videoHeight);
+        int[] best = null;
+        int[] largest = null;
+        for (int[] size : supported) {
+            if ((long) size[0] * videoHeight != (long) size[1] * videoWidth || size[0] > videoWidth) {
+                continue;
+            }
+            if (size[0] >= neededWidth && (best == null || size[0] < best[0])) {
+                best = size;
+            }
+            if (largest == null || size[0] > largest[0]) {
+                largest = size;
+            }
+        }
+        if (best != null) {
+            return new int[]{best[0], best[1]};
+        }
+        if (largest != null) {
+            return new int[]{largest[0], largest[1]};
+        }
+        return new int[]{videoWidth, videoHeight};
+    }
+
+    // A TextureView stretches the buffer, already turned upright for the device's natural
+    // orientation, over the whole view. The returned matrix, in android.graphics.Matrix value
+    // order, undoes the stretch, turns the picture upright for the display's current rotation
+    // and scales it to fill the view, cropping the overflow equally on both sides.
+    public static float[] transform(int viewWidth, int viewHeight, int bufferWidth, int bufferHeight,
+                                    int sensorOrientation, int displayRotation) {
+        double contentWidth = bufferWidth;
+        double contentHeight = bufferHeight;
+        if (sensorOrientation % 180 != 0) {
+            contentWidth = bufferHeight;
+            contentHeight = bufferWidth;
+        }
+        double rotatedWidth = contentWidth;
+        double rotatedHeight = contentHeight;
+        if (displayRotation % 180 != 0) {
+            rotatedWidth = contentHeight;
+            rotatedHeight = contentWidth;
+        }
+        double fill = Math.max(viewWidth / rotatedWidth, viewHeight / rotatedHeight);
+        double radians = Math.toRadians(-displayRotation);
+        double cos = Math.round(Math.cos(radians));
+        double sin = Math.round(Math.sin(radians));
+        // About the view's center: back to the content's own size, rotate, fill
+        double scaleX = contentWidth / viewWidth * fill;
+        double scaleY = contentHeight / viewHeight * fill;
+        double a = cos * scaleX;
+        double b = -sin * scaleY;
+        double c = sin * scaleX;
+        double d = cos * scaleY;
+        double centerX = viewWidth / 2.0;
+        double centerY = viewHeight / 2.0;
+        return new float[]{
+                (float) a, (float) b, (float) (centerX - a * centerX - b * centerY),
+                (float) c, (float) d, (float) (centerY - c * centerX - d * centerY),
+                0, 0, 1};
+    }
+}
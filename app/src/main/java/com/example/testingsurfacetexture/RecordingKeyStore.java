@@ -0,0 +1,36 @@
+package com.example.testingsurfacetexture;
+
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+// The master key for recordings, created once in the Android keystore. It only ever wraps the
+// per-recording data keys, so the keystore sees a few dozen bytes per recording, never video.
+public class RecordingKeyStore {
+    private static final String PROVIDER = "AndroidKeyStore";
+    private static final String ALIAS = "recordings";
+
+    public static KeyWrapper open() throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance(PROVIDER);
+        keyStore.load(null);
+        KeyStore.Entry entry = keyStore.getEntry(ALIAS, null);
+        if (entry instanceof KeyStore.SecretKeyEntry) {
+            return new KeyWrapper(((KeyStore.SecretKeyEntry) entry).getSecretKey());
+        }
+        KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, PROVIDER);
+        generator.init(new KeyGenParameterSpec.Builder(ALIAS,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(256)
+                .build());
+        SecretKey masterKey = generator.generateKey();
+        return new KeyWrapper(masterKey);
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.testingsurfacetexture;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Verifies every recording in a directory on a fork-join pool. The file list is split in halves
+// down to single files, so idle workers steal the remaining halves and one long recording does
+// not hold up the rest; with a worker per core the scan runs as fast as storage can be read.
+// Files modified within minAgeMs are skipped, since one of them may still be being recorded.
+public class RecordingScanner {
+    public static class Result {
+        public final List<Mp4Verifier.Report> reports;
+        public final long bytes;
+        public final long elapsedNs;
+
+        Result(List<Mp4Verifier.Report> reports, long elapsedNs) {
+            this.reports = reports;
+            this.elapsedNs = elapsedNs;
+            long total = 0;
+            for (Mp4Verifier.Report report : reports) {
+                total += report.bytes;
+            }
+            bytes = total;
+        }
+
+        public List<Mp4Verifier.Report> getBroken() {
+            List<Mp4Verifier.Report> broken = new ArrayList<>();
+            for (Mp4Verifier.Report report : reports) {
+                if (!report.isValid()) {
+                    broken.add(report);
+                }
+            }
+            return broken;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = elapsedNs / 1e9;
+            return String.format("%d files, %d broken, %.1fMB in %.2fs (%.1fMB/s)", reports.size(), getBroken().size(),
+                    bytes / 1e6, seconds, seconds > 0 ? bytes / 1e6 / seconds : 0);
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final Mp4Verifier verifier;
+    private final Clock clock;
+
+    public RecordingScanner(ForkJoinPool pool, Mp4Verifier verifier, Clock clock) {
+        this.pool = pool;
+        this.verifier = verifier;
+        this.clock = clock;
+    }
+
+    // Blocks until the whole directory has been verified; reports are in file name order
+    public Result scan(File directory, long minAgeMs) {
+        final long modifiedBefore = System.currentTimeMillis() - minAgeMs;
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(".mp4") && file.lastModified() <= modifiedBefore;
+            }
+        });
+        long startNs = clock.nanoTime();
+        if (files == null || files.length == 0) {
+            return new Result(Collections.<Mp4Verifier.Report>emptyList(), 0);
+        }
+        Arrays.sort(files);
+        List<Mp4Verifier.Report> reports = pool.invoke(new ScanTask(files, 0, files.length));
+        return new Result(reports, clock.nanoTime() - startNs);
+    }
+
+    private class ScanTask extends RecursiveTask<List<Mp4Verifier.Report>> {
+        private static final long serialVersionUID = 1L;
+
+        private final File[] files;
+        private final int from;
+        private final int to;
+
+        ScanTask(File[] files, int from, int to) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Mp4Verifier.Report> compute() {
+            if (to - from == 1) {
+                List<Mp4Verifier.Report> reports = new ArrayList<>(1);
+                reports.add(verifier.verify(files[from]));
+                return reports;
+            }
+            int middle = (from + to) >>> 1;
+            ScanTask second = new ScanTask(files, middle, to);
+            second.fork();
+            List<Mp4Verifier.Report> reports = new ScanTask(files, from, middle).compute();
+            reports.addAll(second.join());
+            return reports;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.testingsurfacetexture;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Broken recordings waiting for repair, one path per line in a file so the list survives the
+// app being killed. The only repair done here is cutting a fragmented recording back to its last
+// complete fragment. A progressive file without a moov has lost its whole index; it stays queued
+// for a tool that can rebuild one from the mdat.
+public class RepairQueue {
+    private final File queueFile;
+    private final List<String> paths = new ArrayList<>();
+
+    public RepairQueue(File queueFile) throws IOException {
+        this.queueFile = queueFile;
+        if (queueFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(queueFile))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty() && !paths.contains(line)) {
+                        paths.add(line);
+                    }
+                }
+            }
+        }
+    }
+
+    public synchronized void add(Mp4Verifier.Report report) throws IOException {
+        String path = report.file.getAbsolutePath();
+        if (!paths.contains(path)) {
+            paths.add(path);
+            save();
+        }
+    }
+
+    public synchronized List<String> getPending() {
+        return new ArrayList<>(paths);
+    }
+
+    // Verifies each queued file again and repairs what can be; returns the number of files that
+    // left the queue, repaired, already valid again or gone
+    public synchronized int repairAll(Mp4Verifier verifier) throws IOException {
+        int done = 0;
+        for (int i = paths.size() - 1; i >= 0; i--) {
+            File file = new File(paths.get(i));
+            if (!file.exists() || repair(file, verifier)) {
+                paths.remove(i);
+                done++;
+            }
+        }
+        if (done > 0) {
+            save();
+        }
+        return done;
+    }
+
+    private static boolean repair(File file, Mp4Verifier verifier) throws IOException {
+        Mp4Verifier.Report report = verifier.verify(file);
+        if (report.isValid()) {
+            return true;
+        }
+        if (report.repairLength < 0) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(report.repairLength);
+            raf.getFD().sync();
+        }
+        return verifier.verify(file).isValid();
+    }
+
+    // Written next to the queue and renamed over it, so a crash leaves the old or the new list
+    private void save() throws IOException {
+        File temp = new File(queueFile.getPath() + ".tmp");
+        try (Writer writer = new FileWriter(temp)) {
+            for (String path : paths) {
+                writer.write(path);
+                writer.write('\n');
+            }
+        }
+        if (!temp.renameTo(queueFile)) {
+            throw new IOException("Cannot replace " + queueFile);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.testingsurfacetexture;
+
+import java.io.IOException;
+
+// RFC 6184 packetization of H.264 access units: NAL units that fit go out as single NAL unit
+// packets, larger ones are split into FU-A fragments. Payloads are handed out as slices of the
+// caller's array; only the header is written per packet.
+public class RtpPacketizer {
+    public interface PacketListener {
+        void onPacket(byte[] header, int headerLength, byte[] payload, int offset, int length) throws IOException;
+    }
+
+    public static final int PAYLOAD_TYPE = 96;
+    public static final int CLOCK_RATE = 90000;
+    static final int RTP_HEADER_SIZE = 12;
+    static final int FU_A = 28;
+
+    private final int maxPayloadSize;
+    private final int ssrc;
+    private final byte[] header = new byte[RTP_HEADER_SIZE + 2];
+    private int sequence;
+
+    public RtpPacketizer(int maxPacketSize, int ssrc) {
+        this.maxPayloadSize = maxPacketSize - RTP_HEADER_SIZE;
+        this.ssrc = ssrc;
+    }
+
+    public int getSequence() {
+        return sequence & 0xffff;
+    }
+
+    // Packetizes one Annex-B access unit; the marker bit is set on its last packet
+    public void packetize(byte[] data, int offset, int length, long ptsUs, PacketListener listener) throws IOException {
+        int timestamp = (int) (ptsUs * (CLOCK_RATE / 1000) / 1000);
+        int end = offset + length;
+        int startCode = findStartCode(data, offset, end);
+        if (startCode < 0) {
+            sendNal(data, offset, length, timestamp, true, listener);
+            return;
+        }
+        int nalStart = startCode + 3;
+        while (nalStart < end) {
+            int next = findStartCode(data, nalStart, end);
+            int nalEnd = next < 0 ? end : next;
+            // Zero bytes before a start code belong to it, not to the NAL unit
+            while (nalEnd > nalStart && data[nalEnd - 1] == 0) {
+                nalEnd--;
+            }
+            if (nalEnd > nalStart) {
+                sendNal(data, nalStart, nalEnd - nalStart, timestamp, next < 0, listener);
+            }
+            if (next < 0) {
+                break;
+            }
+            nalStart = next + 3;
+        }
+    }
+
+    // Sends one NAL unit (without start code) on its own
+    public void packetizeNal(byte[] data, int offset, int length, long ptsUs, boolean marker,
+                             PacketListener listener) throws IOException {
+        sendNal(data, offset, length, (int) (ptsUs * (CLOCK_RATE / 1000) / 1000), marker, listener);
+    }
+
+    static int findStartCode(byte[] data, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if ((data[i + 2] & 0xff) > 1) {
+                // Skip ahead: no start code can end at i + 2
+                i += 2;
+            } else if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void sendNal(byte[] data, int offset, int length, int timestamp, boolean lastNal,
+                         PacketListener listener) throws IOException {
+        if (length <= maxPayloadSize) {
+            writeHeader(timestamp, lastNal);
+            listener.onPacket(header, RTP_HEADER_SIZE, data, offset, length);
+            return;
+        }
+        int nalHeader = data[offset] & 0xff;
+        byte indicator = (byte) ((nalHeader & 0xe0) | FU_A);
+        int type = nalHeader & 0x1f;
+        int position = offset + 1;
+        int remaining = length - 1;
+        int fragmentSize = maxPayloadSize - 2;
+        boolean first = true;
+        while (remaining > 0) {
+            int size = Math.min(fragmentSize, remaining);
+            boolean last = size == remaining;
+            writeHeader(timestamp, lastNal && last);
+            header[RTP_HEADER_SIZE] = indicator;
+            header[RTP_HEADER_SIZE + 1] = (byte) ((first ? 0x80 : 0) | (last ? 0x40 : 0) | type);
+            listener.onPacket(header, RTP_HEADER_SIZE + 2, data, position, size);
+            position += size;
+            remaining -= size;
+            first = false;
+        }
+    }
+
+    private void writeHeader(int timestamp, boolean marker) {
+        header[0] = (byte) 0x80;
+        header[1] = (byte) ((marker ? 0x80 : 0) | PAYLOAD_TYPE);
+        header[2] = (byte) (sequence >> 8);
+        header[3] = (byte) sequence;
+        header[4] = (byte) (timestamp >> 24);
+        header[5] = (byte) (timestamp >> 16);
+        header[6] = (byte) (timestamp >> 8);
+        header[7] = (byte) timestamp;
+        header[8] = (byte) (ssrc >> 24);
+        header[9] = (byte) (ssrc >> 16);
+        header[10] = (byte) (ssrc >> 8);
+        header[11] = (byte) ssrc;
+        sequence = (sequence + 1) & 0xffff;
+    }
+}
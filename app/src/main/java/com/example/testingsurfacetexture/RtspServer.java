@@ -0,0 +1,462 @@
+package com.example.testingsurfacetexture;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Minimal RTSP server streaming the encoder output as RTP/H.264 interleaved on the RTSP TCP
+// connection (RFC 2326 section 10.12), e.g. "ffplay rtsp://<phone>:8554/live".
+//
+// Each encoded sample is copied once into a pooled, reference counted frame that every
+// client's queue shares; packets are written straight from that array. The encoder thread
+// never blocks: a client whose queue is full is evicted.
+public class RtspServer implements SampleSink {
+    private static final int MAX_PACKET_SIZE = 1400;
+    private static final String SESSION_ID = "1";
+    // Limits on what a client can make the server hold: connections, and per request the length
+    // of a line, the number of headers and the body that is skipped
+    static final int MAX_CLIENTS = 8;
+    static final int MAX_LINE_LENGTH = 4096;
+    static final int MAX_HEADERS = 64;
+    static final int MAX_CONTENT_LENGTH = 64 * 1024;
+    private static final int TRACE_SEND = Tracer.registerEvent("rtsp_send", Tracer.LEVEL_FRAME, "pts_us", "size");
+    private static final int TRACE_EVICT = Tracer.registerEvent("rtsp_evict", Tracer.LEVEL_SESSION, "evicted", null);
+
+    static class SharedFrame {
+        final AtomicInteger refs = new AtomicInteger();
+        byte[] data = new byte[0];
+        int length;
+        long ptsUs;
+        boolean keyFrame;
+    }
+
+    private final ServerSocket serverSocket;
+    private final int queueCapacity;
+    private final CopyOnWriteArrayList<Client> clients = new CopyOnWriteArrayList<>();
+    private final ArrayBlockingQueue<SharedFrame> framePool;
+    private final AtomicLong evictedClients = new AtomicLong();
+    private final AtomicLong framesSent = new AtomicLong();
+    private volatile byte[] sps;
+    private volatile byte[] pps;
+    private volatile boolean closed;
+    private Thread acceptThread;
+
+    public RtspServer(InetAddress bindAddress, int port, int queueCapacity) throws IOException {
+        this.serverSocket = new ServerSocket();
+        // Restarting a recording rebinds the port while old connections are in TIME_WAIT
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(bindAddress, port), 4);
+        this.queueCapacity = queueCapacity;
+        this.framePool = new ArrayBlockingQueue<>(queueCapacity * 4);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getPlayingClients() {
+        int playing = 0;
+        for (Client client : clients) {
+            if (client.playing) {
+                playing++;
+            }
+        }
+        return playing;
+    }
+
+    public long getEvictedClients() {
+        return evictedClients.get();
+    }
+
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    public void start() {
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!closed) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        if (clients.size() >= MAX_CLIENTS) {
+                            socket.close();
+                            continue;
+                        }
+                        socket.setTcpNoDelay(true);
+                        Client client = new Client(socket);
+                        clients.add(client);
+                        client.start();
+                    } catch (IOException e) {
+                        // Closed
+                    }
+                }
+            }
+        }, "RtspServer-accept");
+        acceptThread.start();
+    }
+
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        for (Client client : clients) {
+            client.close();
+        }
+    }
+
+    @Override
+    public void onFormat(TrackFormat format) {
+        sps = stripStartCode(format.getCsd0());
+        pps = stripStartCode(format.getCsd1());
+    }
+
+    static byte[] stripStartCode(ByteBuffer csd) {
+        if (csd == null) {
+            return null;
+        }
+        byte[] bytes = new byte[csd.remaining()];
+        csd.get(bytes);
+        int start = RtpPacketizer.findStartCode(bytes, 0, bytes.length);
+        int offset = start < 0 ? 0 : start + 3;
+        byte[] nal = new byte[bytes.length - offset];
+        System.arraycopy(bytes, offset, nal, 0, nal.length);
+        return nal;
+    }
+
+    @Override
+    public void onSample(ByteBuffer data, SampleInfo info) {
+        if (getPlayingClients() == 0) {
+            return;
+        }
+        SharedFrame frame = framePool.poll();
+        if (frame == null) {
+            frame = new SharedFrame();
+        }
+        if (frame.data.length < info.size) {
+            frame.data = new byte[info.size + info.size / 4];
+        }
+        data.duplicate().get(frame.data, 0, info.size);
+        frame.length = info.size;
+        frame.ptsUs = info.presentationTimeUs;
+        frame.keyFrame = info.isKeyFrame();
+        frame.refs.set(1);
+        for (Client client : clients) {
+            if (!client.playing) {
+                continue;
+            }
+            frame.refs.incrementAndGet();
+            if (!client.queue.offer(frame)) {
+                release(frame);
+                Tracer.GLOBAL.instant(TRACE_EVICT, evictedClients.incrementAndGet(), 0);
+                client.close();
+            }
+        }
+        release(frame);
+    }
+
+    private void release(SharedFrame frame) {
+        if (frame.refs.decrementAndGet() == 0) {
+            framePool.offer(frame);
+        }
+    }
+
+    @Override
+    public void onEnd() {
+        close();
+    }
+
+    private class Client {
+        final Socket socket;
+        final ArrayBlockingQueue<SharedFrame> queue = new ArrayBlockingQueue<>(queueCapacity);
+        final RtpPacketizer packetizer = new RtpPacketizer(MAX_PACKET_SIZE, (int) System.nanoTime());
+        final byte[] interleaved = new byte[4];
+        OutputStream out;
+        volatile boolean playing;
+        volatile boolean closing;
+        Thread writer;
+
+        Client(Socket socket) {
+            this.socket = socket;
+        }
+
+        void start() throws IOException {
+            out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        readRequests(new DataInputStream(socket.getInputStream()));
+                    } catch (IOException e) {
+                        // Disconnected, or a request over the limits
+                    } catch (RuntimeException e) {
+                        // Whatever the client sent, only its own connection goes
+                    } finally {
+                        close();
+                    }
+                }
+            }, "RtspServer-client").start();
+        }
+
+        void close() {
+            if (closing) {
+                return;
+            }
+            closing = true;
+            playing = false;
+            clients.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            if (writer != null) {
+                // The writer releases whatever is still queued on its way out
+                writer.interrupt();
+            }
+        }
+
+        private void readRequests(DataInputStream in) throws IOException {
+            while (!closing) {
+                int first = in.read();
+                if (first < 0) {
+                    return;
+                }
+                if (first == '$') {
+                    // Interleaved RTCP from the client, not used
+                    in.readUnsignedByte();
+                    in.skipBytes(in.readUnsignedShort());
+                    continue;
+                }
+                if (first == '\r' || first == '\n') {
+                    // Blank lines between requests
+                    continue;
+                }
+                String[] requestLine = ((char) first + readLine(in)).split(" ");
+                String line;
+                int headers = 0;
+                int contentLength = 0;
+                boolean badRequest = false;
+                String cseq = "0";
+                String transport = "";
+                while (!(line = readLine(in)).isEmpty()) {
+                    if (++headers > MAX_HEADERS) {
+                        throw new ProtocolException("Too many headers");
+                    }
+                    int colon = line.indexOf(':');
+                    if (colon < 0) {
+                        continue;
+                    }
+                    String name = line.substring(0, colon).trim();
+                    String value = line.substring(colon + 1).trim();
+                    if (name.equalsIgnoreCase("CSeq")) {
+                        cseq = value;
+                    } else if (name.equalsIgnoreCase("Content-Length")) {
+                        try {
+                            contentLength = Integer.parseInt(value);
+                        } catch (NumberFormatException e) {
+                            contentLength = -1;
+                        }
+                        badRequest = contentLength < 0 || contentLength > MAX_CONTENT_LENGTH;
+                    } else if (name.equalsIgnoreCase("Transport")) {
+                        transport = value;
+                    }
+                }
+                if (badRequest) {
+                    // Where the body ends is unknown, so nothing after it can be read either
+                    respond(cseq, "400 Bad Request", "", null);
+                    return;
+                }
+                in.skipBytes(contentLength);
+                handle(requestLine[0], requestLine.length > 1 ? requestLine[1] : "", cseq, transport);
+            }
+        }
+
+        private String readLine(DataInputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) {
+                    throw new EOFException();
+                }
+                if (c != '\r') {
+                    if (line.length() == MAX_LINE_LENGTH) {
+                        throw new ProtocolException("Line too long");
+                    }
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        private void handle(String method, String url, String cseq, String transport) throws IOException {
+            switch (method) {
+                case "OPTIONS":
+                    respond(cseq, "200 OK", "Public: OPTIONS, DESCRIBE, SETUP, PLAY, TEARDOWN, GET_PARAMETER\r\n", null);
+                    break;
+                case "DESCRIBE":
+                    String sdp = describe();
+                    respond(cseq, "200 OK", "Content-Base: " + url + "/\r\nContent-Type: application/sdp\r\n", sdp);
+                    break;
+                case "SETUP":
+                    if (!transport.contains("TCP")) {
+                        respond(cseq, "461 Unsupported Transport", "", null);
+                        break;
+                    }
+                    respond(cseq, "200 OK", "Transport: RTP/AVP/TCP;unicast;interleaved=0-1\r\nSession: " + SESSION_ID + "\r\n", null);
+                    break;
+                case "PLAY":
+                    respond(cseq, "200 OK", "Session: " + SESSION_ID + "\r\nRange: npt=0.000-\r\n", null);
+                    startWriter();
+                    break;
+                case "GET_PARAMETER":
+                    respond(cseq, "200 OK", "Session: " + SESSION_ID + "\r\n", null);
+                    break;
+                case "TEARDOWN":
+                    respond(cseq, "200 OK", "Session: " + SESSION_ID + "\r\n", null);
+                    close();
+                    break;
+                default:
+                    respond(cseq, "501 Not Implemented", "", null);
+            }
+        }
+
+        private String describe() {
+            StringBuilder sdp = new StringBuilder()
+                    .append("v=0\r\n")
+                    .append("o=- 0 0 IN IP4 ").append(socket.getLocalAddress().getHostAddress()).append("\r\n")
+                    .append("s=Live\r\n")
+                    .append("c=IN IP4 0.0.0.0\r\n")
+                    .append("t=0 0\r\n")
+                    .append("m=video 0 RTP/AVP ").append(RtpPacketizer.PAYLOAD_TYPE).append("\r\n")
+                    .append("a=rtpmap:").append(RtpPacketizer.PAYLOAD_TYPE).append(" H264/").append(RtpPacketizer.CLOCK_RATE).append("\r\n")
+                    .append("a=fmtp:").append(RtpPacketizer.PAYLOAD_TYPE).append(" packetization-mode=1");
+            byte[] sps = RtspServer.this.sps;
+            byte[] pps = RtspServer.this.pps;
+            if (sps != null && pps != null) {
+                sdp.append(";sprop-parameter-sets=").append(base64(sps)).append(',').append(base64(pps));
+            }
+            return sdp.append("\r\na=control:track0\r\n").toString();
+        }
+
+        private void respond(String cseq, String status, String headers, String body) throws IOException {
+            StringBuilder response = new StringBuilder()
+                    .append("RTSP/1.0 ").append(status).append("\r\n")
+                    .append("CSeq: ").append(cseq).append("\r\n")
+                    .append(headers);
+            if (body != null) {
+                response.append("Content-Length: ").append(body.getBytes(StandardCharsets.UTF_8).length).append("\r\n");
+            }
+            response.append("\r\n");
+            if (body != null) {
+                response.append(body);
+            }
+            synchronized (out) {
+                out.write(response.toString().getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        }
+
+        private void startWriter() {
+            if (writer != null) {
+                return;
+            }
+            writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writeFrames();
+                    } catch (IOException | InterruptedException e) {
+                        // Disconnected or evicted
+                    } finally {
+                        close();
+                        SharedFrame frame;
+                        while ((frame = queue.poll()) != null) {
+                            release(frame);
+                        }
+                    }
+                }
+            }, "RtspServer-writer");
+            writer.start();
+            playing = true;
+        }
+
+        private void writeFrames() throws IOException, InterruptedException {
+            boolean synced = false;
+            while (true) {
+                SharedFrame frame = queue.take();
+                try {
+                    // Start on a key frame, and repeat the parameter sets in front of each one
+                    synced |= frame.keyFrame;
+                    if (!synced) {
+                        continue;
+                    }
+                    Tracer.GLOBAL.begin(TRACE_SEND, frame.ptsUs, frame.length);
+                    synchronized (out) {
+                        byte[] sps = RtspServer.this.sps;
+                        byte[] pps = RtspServer.this.pps;
+                        if (frame.keyFrame && sps != null && pps != null) {
+                            packetizer.packetizeNal(sps, 0, sps.length, frame.ptsUs, false, packetWriter);
+                            packetizer.packetizeNal(pps, 0, pps.length, frame.ptsUs, false, packetWriter);
+                        }
+                        packetizer.packetize(frame.data, 0, frame.length, frame.ptsUs, packetWriter);
+                        out.flush();
+                    }
+                    Tracer.GLOBAL.end(TRACE_SEND, frame.ptsUs, frame.length);
+                    framesSent.incrementAndGet();
+                } finally {
+                    release(frame);
+                }
+            }
+        }
+
+        private final RtpPacketizer.PacketListener packetWriter = new RtpPacketizer.PacketListener() {
+            @Override
+            public void onPacket(byte[] header, int headerLength, byte[] payload, int offset, int length) throws IOException {
+                int size = headerLength + length;
+                interleaved[0] = '$';
+                interleaved[1] = 0;
+                interleaved[2] = (byte) (size >> 8);
+                interleaved[3] = (byte) size;
+                out.write(interleaved, 0, 4);
+                out.write(header, 0, headerLength);
+                out.write(payload, offset, length);
+            }
+        };
+    }
+
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    static String base64(byte[] bytes) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < bytes.length; i += 3) {
+            int b = (bytes[i] & 0xff) << 16;
+            if (i + 1 < bytes.length) {
+                b |= (bytes[i + 1] & 0xff) << 8;
+            }
+            if (i + 2 < bytes.length) {
+                b |= bytes[i + 2] & 0xff;
+            }
+            out.append(BASE64[(b >> 18) & 63]).append(BASE64[(b >> 12) & 63]);
+            out.append(i + 1 < bytes.length ? BASE64[(b >> 6) & 63] : '=');
+            out.append(i + 2 < bytes.length ? BASE64[b & 63] : '=');
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,12 @@
+package com.example.testingsurfacetexture;
+
+import java.nio.ByteBuffer;
+
+public interface SampleSink {
+    void onFormat(TrackFormat format);
+
+    // data is positioned on the sample and is only valid until this call returns
+    void onSample(ByteBuffer data, SampleInfo info);
+
+    void onEnd();
+}
@@ -0,0 +1,79 @@
+package com.example.testingsurfacetexture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Starts a new segment whenever the track format changes mid-recording, as when a recreated
+// encoder comes back with other parameter sets, so every file holds one format. The same format
+// again is ignored. If the next segment cannot be opened the rest of the recording is dropped and
+// the error kept.
+public class SegmentingSink implements SampleSink {
+    public interface Factory {
+        SampleSink open(int segment) throws IOException;
+    }
+
+    private final Factory factory;
+    private SampleSink delegate;
+    private TrackFormat format;
+    private int segment;
+    private long droppedSamples;
+    private volatile IOException error;
+
+    // first is segment 0
+    public SegmentingSink(SampleSink first, Factory factory) {
+        this.delegate = first;
+        this.factory = factory;
+    }
+
+    @Override
+    public void onFormat(TrackFormat format) {
+        if (this.format != null) {
+            if (this.format.equals(format)) {
+                return;
+            }
+            if (delegate != null) {
+                delegate.onEnd();
+                delegate = null;
+            }
+            segment++;
+            try {
+                delegate = factory.open(segment);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        this.format = format;
+        if (delegate != null) {
+            delegate.onFormat(format);
+        }
+    }
+
+    @Override
+    public void onSample(ByteBuffer data, SampleInfo info) {
+        if (delegate == null) {
+            droppedSamples++;
+            return;
+        }
+        delegate.onSample(data, info);
+    }
+
+    @Override
+    public void onEnd() {
+        if (delegate != null) {
+            delegate.onEnd();
+            delegate = null;
+        }
+    }
+
+    public int getSegment() {
+        return segment;
+    }
+
+    public long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+    public IOException getError() {
+        return error;
+    }
+}
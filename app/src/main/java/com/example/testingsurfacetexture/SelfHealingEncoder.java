@@ -0,0 +1,484 @@
+package com.example.testingsurfacetexture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+// Keeps a recording going through encoder errors. A transient error is only counted, with a key
+// frame requested in case a frame was damaged. A recoverable one resets the encoder and configures
+// it again; a fatal one, or a reset that fails, releases the encoder and creates a new one from the
+// factory, which has to feed it from the same input (for MediaCodec, the same persistent input
+// surface), so the camera session is left alone. The recovery runs on the executor, never on the
+// codec's callback thread.
+//
+// Downstream sees one continuous stream: everything from the broken encoder after the error is
+// dropped, the healed one resumes at a key frame with timestamps after the last sample written,
+// and its format is only passed on when it differs, for the sink to start a new segment. More
+// than maxRecoveries recoveries within windowNs mean the encoder cannot be healed, and the error
+// goes to the error listener.
+public class SelfHealingEncoder implements VideoEncoder {
+    private static final int TRACE_RECOVERY = Tracer.registerEvent("encoder_recovery", Tracer.LEVEL_SESSION, "recreated", "duration_us");
+    private static final int MAX_CREATE_ATTEMPTS = 3;
+
+    public interface Factory {
+        // A configured, not yet started encoder fed from the same input as the others
+        VideoEncoder create() throws IOException;
+    }
+
+    // Encoders that can go back to their configured state without being recreated
+    public interface Resettable {
+        // Afterwards the encoder can be started again; throws when it has to be recreated instead
+        void reset();
+    }
+
+    private final Factory factory;
+    private final Executor executor;
+    private final Clock clock;
+    private final long windowNs;
+    // Start times of the last maxRecoveries recoveries
+    private final long[] recoveryTimesNs;
+    private int recoveryCount;
+    private VideoEncoder delegate;
+    private SampleSink sink;
+    private ErrorListener errorListener;
+    private int bitRate = -1;
+    private boolean suspended;
+    private boolean running;
+    private boolean recovering;
+    private boolean failed;
+    // Output and errors of older encoders carry an older generation and are ignored
+    private volatile int generation;
+    // An error from the healed encoder while it was still being started
+    private Exception pendingFault;
+
+    // Serializes the output of the encoders, old and new. The sinks may call back into this
+    // encoder, so nothing holding the encoder's own lock takes this one.
+    private final Object output = new Object();
+    private TrackFormat format;
+    // Highest timestamp passed on. Output comes in decode order, so with B-frames a timestamp can
+    // be lower than the one before; only a healed encoder's output is held to this floor, taken
+    // when it resumes, since it may repeat frames the broken one already produced.
+    private long maxPtsUs = Long.MIN_VALUE;
+    private long floorPtsUs = Long.MIN_VALUE;
+    // Handed from the recovery to the output path
+    private volatile boolean awaitingKeyFrame;
+    private volatile long recoveryStartNs = -1;
+    private volatile boolean recreated;
+
+    private long transientErrors;
+    private long resets;
+    private long recreations;
+    private long failedAttempts;
+    private long droppedFrames;
+    private long droppedSamples;
+    private long formatChanges;
+    private long lastRecoveryNs;
+    private long maxRecoveryNs;
+    private long totalRecoveryNs;
+
+    public SelfHealingEncoder(VideoEncoder encoder, Factory factory, Executor executor, Clock clock,
+                              int maxRecoveries, long windowNs) {
+        this.delegate = encoder;
+        this.factory = factory;
+        this.executor = executor;
+        this.clock = clock;
+        this.windowNs = windowNs;
+        recoveryTimesNs = new long[maxRecoveries];
+    }
+
+    @Override
+    public synchronized void setSink(SampleSink sink) {
+        this.sink = sink;
+        delegate.setSink(new Output(generation));
+    }
+
+    // Only hears about errors that could not be recovered from
+    @Override
+    public synchronized void setErrorListener(ErrorListener listener) {
+        errorListener = listener;
+        delegate.setErrorListener(new Faults(generation));
+    }
+
+    @Override
+    public synchronized void start() {
+        running = true;
+        delegate.start();
+    }
+
+    @Override
+    public synchronized void onFrameAvailable(long timestampNs) {
+        if (recovering || failed) {
+            droppedFrames++;
+            return;
+        }
+        delegate.onFrameAvailable(timestampNs);
+    }
+
+    @Override
+    public synchronized void setBitRate(int bitRate) {
+        this.bitRate = bitRate;
+        if (!recovering && !failed) {
+            delegate.setBitRate(bitRate);
+        }
+    }
+
+    @Override
+    public synchronized void requestKeyFrame() {
+        if (!recovering && !failed) {
+            delegate.requestKeyFrame();
+        }
+    }
+
+    @Override
+    public synchronized void setSuspended(boolean suspended) {
+        this.suspended = suspended;
+        if (!recovering && !failed) {
+            delegate.setSuspended(suspended);
+        }
+    }
+
+    @Override
+    public void stop() {
+        VideoEncoder encoder;
+        boolean healthy;
+        SampleSink sink;
+        synchronized (this) {
+            running = false;
+            encoder = delegate;
+            healthy = !recovering && !failed;
+            sink = this.sink;
+        }
+        // A broken encoder may refuse to stop; what it still holds is lost either way
+        if (healthy) {
+            encoder.stop();
+        }
+        if (sink != null) {
+            synchronized (output) {
+                sink.onEnd();
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        VideoEncoder encoder;
+        synchronized (this) {
+            running = false;
+            // A recovery in flight releases what it creates
+            generation++;
+            encoder = delegate;
+        }
+        releaseQuietly(encoder);
+    }
+
+    public synchronized boolean isRecovering() {
+        return recovering;
+    }
+
+    // Counters below are read from other threads for logging; they may lag a little
+    public synchronized long getTransientErrors() {
+        return transientErrors;
+    }
+
+    public synchronized long getResets() {
+        return resets;
+    }
+
+    public synchronized long getRecreations() {
+        return recreations;
+    }
+
+    // Encoder creations that failed during a recovery
+    public synchronized long getFailedAttempts() {
+        return failedAttempts;
+    }
+
+    // Frames that arrived while there was no working encoder
+    public synchronized long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    // Samples held back to keep the stream decodable and in order across a recovery
+    public long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+    // Times a healed encoder came back with a different format
+    public long getFormatChanges() {
+        return formatChanges;
+    }
+
+    // From the error to the first key frame of the healed encoder
+    public long getLastRecoveryNs() {
+        return lastRecoveryNs;
+    }
+
+    public long getMaxRecoveryNs() {
+        return maxRecoveryNs;
+    }
+
+    public long getTotalRecoveryNs() {
+        return totalRecoveryNs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return transientErrors + " transient errors, " + resets + " resets, " + recreations + " recreations, "
+                + failedAttempts + " failed attempts, longest recovery " + maxRecoveryNs / 1000000 + " ms, "
+                + droppedFrames + " frames dropped" + (failed ? ", gave up" : "");
+    }
+
+    private void onFault(int faultGeneration, Exception e) {
+        ErrorListener giveUpListener = null;
+        synchronized (this) {
+            if (faultGeneration != generation || !running || failed) {
+                return;
+            }
+            if (recovering) {
+                // From the healed encoder before recover() handed it over; dealt with there
+                if (pendingFault == null) {
+                    pendingFault = e;
+                }
+                return;
+            }
+            EncoderFault.Kind kind = e instanceof EncoderFault ? ((EncoderFault) e).kind : EncoderFault.Kind.FATAL;
+            if (kind == EncoderFault.Kind.TRANSIENT) {
+                transientErrors++;
+                delegate.requestKeyFrame();
+                return;
+            }
+            long nowNs = clock.nanoTime();
+            if (!allowRecovery(nowNs)) {
+                failed = true;
+                generation++;
+                giveUpListener = errorListener;
+            } else {
+                recovering = true;
+                final int brokenGeneration = ++generation;
+                final VideoEncoder broken = delegate;
+                final boolean reset = kind == EncoderFault.Kind.RECOVERABLE;
+                if (recoveryStartNs < 0) {
+                    recoveryStartNs = nowNs;
+                }
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        recover(brokenGeneration, broken, reset);
+                    }
+                });
+            }
+        }
+        if (giveUpListener != null) {
+            giveUpListener.onError(e);
+        }
+    }
+
+    private boolean allowRecovery(long nowNs) {
+        int slot = recoveryCount % recoveryTimesNs.length;
+        if (recoveryCount >= recoveryTimesNs.length && nowNs - recoveryTimesNs[slot] < windowNs) {
+            return false;
+        }
+        recoveryTimesNs[slot] = nowNs;
+        recoveryCount++;
+        return true;
+    }
+
+    // On the executor, with no lock held while the codec is touched: a codec can wait for its own
+    // callbacks, and those take the lock. Until recovering is cleared the healed encoder gets no
+    // frames, and settings made meanwhile are only stored, then applied here before the handover.
+    private void recover(int brokenGeneration, VideoEncoder broken, boolean reset) {
+        VideoEncoder healed = null;
+        Exception cause = null;
+        if (reset && broken instanceof Resettable) {
+            try {
+                ((Resettable) broken).reset();
+                healed = broken;
+            } catch (RuntimeException e) {
+                cause = e;
+            }
+        }
+        if (healed == null) {
+            releaseQuietly(broken);
+            for (int attempt = 0; attempt < MAX_CREATE_ATTEMPTS && healed == null; attempt++) {
+                try {
+                    healed = factory.create();
+                } catch (IOException | RuntimeException e) {
+                    cause = e;
+                    synchronized (this) {
+                        failedAttempts++;
+                    }
+                }
+            }
+        }
+
+        ErrorListener giveUpListener = null;
+        synchronized (this) {
+            if (brokenGeneration != generation || !running) {
+                // Stopped or released meanwhile
+                recovering = false;
+                if (healed != null) {
+                    releaseQuietly(healed);
+                }
+                return;
+            }
+            if (healed == null) {
+                recovering = false;
+                failed = true;
+                generation++;
+                giveUpListener = errorListener;
+            } else {
+                recreated = healed != broken;
+                awaitingKeyFrame = true;
+                pendingFault = null;
+            }
+        }
+        if (giveUpListener != null) {
+            giveUpListener.onError(cause != null ? cause : new IOException("Encoder could not be recovered"));
+            return;
+        }
+
+        Exception fault = null;
+        try {
+            healed.setSink(new Output(brokenGeneration));
+            healed.setErrorListener(new Faults(brokenGeneration));
+            healed.start();
+        } catch (RuntimeException e) {
+            fault = e;
+        }
+        // Runtime settings made to the broken encoder, or while there was none
+        int appliedBitRate = -1;
+        boolean appliedSuspended = false;
+        while (true) {
+            int wantedBitRate;
+            boolean wantedSuspended;
+            synchronized (this) {
+                if (brokenGeneration != generation || !running) {
+                    recovering = false;
+                    fault = null;
+                    break;
+                }
+                if (fault != null || (bitRate == appliedBitRate && suspended == appliedSuspended)) {
+                    if (healed == broken) {
+                        resets++;
+                    } else {
+                        recreations++;
+                    }
+                    delegate = healed;
+                    recovering = false;
+                    if (fault == null) {
+                        fault = pendingFault;
+                    }
+                    pendingFault = null;
+                    healed = null;
+                    break;
+                }
+                wantedBitRate = bitRate;
+                wantedSuspended = suspended;
+            }
+            try {
+                if (wantedBitRate != appliedBitRate) {
+                    healed.setBitRate(wantedBitRate);
+                }
+                if (wantedSuspended != appliedSuspended) {
+                    healed.setSuspended(wantedSuspended);
+                }
+            } catch (RuntimeException e) {
+                fault = e;
+            }
+            appliedBitRate = wantedBitRate;
+            appliedSuspended = wantedSuspended;
+        }
+        if (healed != null) {
+            // Not handed over
+            releaseQuietly(healed);
+        }
+        if (fault != null) {
+            // The healed encoder broke too; counts as another recovery
+            onFault(brokenGeneration, fault);
+        }
+    }
+
+    private static void releaseQuietly(VideoEncoder encoder) {
+        try {
+            encoder.release();
+        } catch (RuntimeException e) {
+            // Already gone
+        }
+    }
+
+    private void onFormat(int outputGeneration, TrackFormat newFormat) {
+        synchronized (output) {
+            if (outputGeneration != generation) {
+                return;
+            }
+            if (format != null && format.equals(newFormat)) {
+                return;
+            }
+            if (format != null) {
+                formatChanges++;
+            }
+            format = newFormat;
+            sink.onFormat(newFormat);
+        }
+    }
+
+    private void onSample(int outputGeneration, ByteBuffer data, SampleInfo info) {
+        synchronized (output) {
+            if (outputGeneration != generation
+                    || (awaitingKeyFrame && (!info.isKeyFrame() || info.presentationTimeUs <= maxPtsUs))
+                    || info.presentationTimeUs <= floorPtsUs) {
+                droppedSamples++;
+                return;
+            }
+            if (awaitingKeyFrame) {
+                awaitingKeyFrame = false;
+                floorPtsUs = maxPtsUs;
+                if (recoveryStartNs >= 0) {
+                    lastRecoveryNs = clock.nanoTime() - recoveryStartNs;
+                    maxRecoveryNs = Math.max(maxRecoveryNs, lastRecoveryNs);
+                    totalRecoveryNs += lastRecoveryNs;
+                    recoveryStartNs = -1;
+                    Tracer.GLOBAL.instant(TRACE_RECOVERY, recreated ? 1 : 0, lastRecoveryNs / 1000);
+                }
+            }
+            maxPtsUs = Math.max(maxPtsUs, info.presentationTimeUs);
+            sink.onSample(data, info);
+        }
+    }
+
+    private class Output implements SampleSink {
+        private final int outputGeneration;
+
+        Output(int outputGeneration) {
+            this.outputGeneration = outputGeneration;
+        }
+
+        @Override
+        public void onFormat(TrackFormat format) {
+            SelfHealingEncoder.this.onFormat(outputGeneration, format);
+        }
+
+        @Override
+        public void onSample(ByteBuffer data, SampleInfo info) {
+            SelfHealingEncoder.this.onSample(outputGeneration, data, info);
+        }
+
+        @Override
+        public void onEnd() {
+            // Only the stream as a whole ends, in stop()
+        }
+    }
+
+    private class Faults implements ErrorListener {
+        private final int faultGeneration;
+
+        Faults(int faultGeneration) {
+            this.faultGeneration = faultGeneration;
+        }
+
+        @Override
+        public void onError(Exception e) {
+            onFault(faultGeneration, e);
+        }
+    }
+}
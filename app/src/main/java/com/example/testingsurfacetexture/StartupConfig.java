@@ -0,0 +1,165 @@
+package com.example.testingsurfacetexture;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+// Camera and encoder setup negotiated on an earlier launch, so later launches can open the
+// camera, size its preview and prepare the encoder without querying the camera service or
+// MediaCodecList.
+// Only trusted on the build it was stored on, an OS update may change what the codecs support.
+public class StartupConfig {
+    private static final String[] BITRATE_MODES = {"cq", "vbr", "cbr"};
+
+    public final String fingerprint;
+    public final String cameraId;
+    public final int videoWidth;
+    public final int videoHeight;
+    public final int maxEncoders;
+    public final EncoderCapabilities capabilities;
+    public final int sensorOrientation;
+    // The preview size chosen for a view of viewWidth x viewHeight at the video size; 0 until one is chosen
+    public final int previewWidth;
+    public final int previewHeight;
+    public final int viewWidth;
+    public final int viewHeight;
+
+    public StartupConfig(String fingerprint, String cameraId, int videoWidth, int videoHeight, int maxEncoders,
+                         EncoderCapabilities capabilities, int sensorOrientation) {
+        this(fingerprint, cameraId, videoWidth, videoHeight, maxEncoders, capabilities, sensorOrientation, 0, 0, 0, 0);
+    }
+
+    private StartupConfig(String fingerprint, String cameraId, int videoWidth, int videoHeight, int maxEncoders,
+                          EncoderCapabilities capabilities, int sensorOrientation, int previewWidth,
+                          int previewHeight, int viewWidth, int viewHeight) {
+        this.fingerprint = fingerprint;
+        this.cameraId = cameraId;
+        this.videoWidth = videoWidth;
+        this.videoHeight = videoHeight;
+        this.maxEncoders = maxEncoders;
+        this.capabilities = capabilities;
+        this.sensorOrientation = sensorOrientation;
+        this.previewWidth = previewWidth;
+        this.previewHeight = previewHeight;
+        this.viewWidth = viewWidth;
+        this.viewHeight = viewHeight;
+    }
+
+    public StartupConfig withPreview(int previewWidth, int previewHeight, int viewWidth, int viewHeight) {
+        return new StartupConfig(fingerprint, cameraId, videoWidth, videoHeight, maxEncoders, capabilities,
+                sensorOrientation, previewWidth, previewHeight, viewWidth, viewHeight);
+    }
+
+    // A different view or video size needs another preview size
+    public boolean hasPreviewFor(int viewWidth, int viewHeight, int videoWidth, int videoHeight) {
+        return previewWidth > 0 && previewHeight > 0 && viewWidth == this.viewWidth && viewHeight == this.viewHeight
+                && videoWidth == this.videoWidth && videoHeight == this.videoHeight;
+    }
+
+    public void store(OutputStream out) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("fingerprint", fingerprint);
+        p.setProperty("camera_id", cameraId);
+        p.setProperty("video_width", Integer.toString(videoWidth));
+        p.setProperty("video_height", Integer.toString(videoHeight));
+        p.setProperty("max_encoders", Integer.toString(maxEncoders));
+        p.setProperty("sensor_orientation", Integer.toString(sensorOrientation));
+        if (previewWidth > 0 && previewHeight > 0) {
+            p.setProperty("preview_width", Integer.toString(previewWidth));
+            p.setProperty("preview_height", Integer.toString(previewHeight));
+            p.setProperty("view_width", Integer.toString(viewWidth));
+            p.setProperty("view_height", Integer.toString(viewHeight));
+        }
+        p.setProperty("encoder.min_bitrate", Integer.toString(capabilities.minBitRate));
+        p.setProperty("encoder.max_bitrate", Integer.toString(capabilities.maxBitRate));
+        p.setProperty("encoder.max_frame_rate", Integer.toString(capabilities.maxFrameRate));
+        StringBuilder modes = new StringBuilder();
+        for (int mode = 0; mode < BITRATE_MODES.length; mode++) {
+            if (capabilities.isBitrateModeSupported(mode)) {
+                modes.append(modes.length() > 0 ? "," : "").append(BITRATE_MODES[mode]);
+            }
+        }
+        p.setProperty("encoder.bitrate_modes", modes.toString());
+        int[][] profileLevels = capabilities.getProfileLevels();
+        if (profileLevels != null) {
+            StringBuilder levels = new StringBuilder();
+            for (int[] profileLevel : profileLevels) {
+                levels.append(levels.length() > 0 ? "," : "").append(profileLevel[0]).append(':').append(profileLevel[1]);
+            }
+            p.setProperty("encoder.profile_levels", levels.toString());
+        }
+        p.setProperty("encoder.intra_refresh", Boolean.toString(capabilities.intraRefresh));
+        p.store(out, null);
+    }
+
+    // Returns null when the stream holds no usable config or one stored on another build
+    public static StartupConfig load(InputStream in, String fingerprint) throws IOException {
+        Properties p = new Properties();
+        p.load(in);
+        if (!fingerprint.equals(p.getProperty("fingerprint"))) {
+            return null;
+        }
+        try {
+            String cameraId = p.getProperty("camera_id");
+            if (cameraId == null) {
+                return null;
+            }
+            boolean[] modes = new boolean[BITRATE_MODES.length];
+            for (String mode : split(p.getProperty("encoder.bitrate_modes", ""))) {
+                for (int i = 0; i < BITRATE_MODES.length; i++) {
+                    modes[i] |= BITRATE_MODES[i].equals(mode);
+                }
+            }
+            int[][] profileLevels = null;
+            String levels = p.getProperty("encoder.profile_levels");
+            if (levels != null) {
+                List<String> pairs = split(levels);
+                profileLevels = new int[pairs.size()][];
+                for (int i = 0; i < profileLevels.length; i++) {
+                    String[] pair = pairs.get(i).split(":");
+                    profileLevels[i] = new int[]{Integer.parseInt(pair[0]), Integer.parseInt(pair[1])};
+                }
+            }
+            EncoderCapabilities capabilities = new EncoderCapabilities(getInt(p, "encoder.min_bitrate"),
+                    getInt(p, "encoder.max_bitrate"), getInt(p, "encoder.max_frame_rate"), modes, profileLevels,
+                    Boolean.parseBoolean(p.getProperty("encoder.intra_refresh")));
+            StartupConfig config = new StartupConfig(fingerprint, cameraId, getInt(p, "video_width"),
+                    getInt(p, "video_height"), getInt(p, "max_encoders"), capabilities,
+                    getInt(p, "sensor_orientation"));
+            if (p.getProperty("preview_width") == null) {
+                return config;
+            }
+            return config.withPreview(getInt(p, "preview_width"), getInt(p, "preview_height"),
+                    getInt(p, "view_width"), getInt(p, "view_height"));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private static int getInt(Properties p, String key) {
+        String value = p.getProperty(key);
+        if (value == null) {
+            throw new NumberFormatException("missing " + key);
+        }
+        return Integer.parseInt(value.trim());
+    }
+
+    private static List<String> split(String value) {
+        List<String> parts = new ArrayList<>();
+        for (String part : value.split(",")) {
+            if (!part.trim().isEmpty()) {
+                parts.add(part.trim());
+            }
+        }
+        return parts;
+    }
+
+    @Override
+    public String toString() {
+        return "camera " + cameraId + " " + videoWidth + "x" + videoHeight + ", " + maxEncoders + " encoders"
+                + (previewWidth > 0 ? ", preview " + previewWidth + "x" + previewHeight : "");
+    }
+}
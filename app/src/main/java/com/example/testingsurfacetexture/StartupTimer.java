@@ -0,0 +1,67 @@
+package com.example.testingsurfacetexture;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Times the phases of app startup relative to when the timer was created. Phases may overlap,
+// e.g. the camera opens while the layout is inflated. Only the first begin/end of a phase counts,
+// so calls on paths that run again later (preview restarts, second recording) are ignored.
+public class StartupTimer {
+    private final Clock clock;
+    private final long originNs;
+    // {start, end} offsets from originNs, end is -1 while running
+    private final Map<String, long[]> phases = new LinkedHashMap<>();
+
+    public StartupTimer(Clock clock) {
+        this.clock = clock;
+        this.originNs = clock.nanoTime();
+    }
+
+    public synchronized void begin(String phase) {
+        if (!phases.containsKey(phase)) {
+            phases.put(phase, new long[]{clock.nanoTime() - originNs, -1});
+        }
+    }
+
+    public synchronized void end(String phase) {
+        long[] times = phases.get(phase);
+        if (times != null && times[1] < 0) {
+            times[1] = clock.nanoTime() - originNs;
+        }
+    }
+
+    public synchronized boolean isEnded(String phase) {
+        long[] times = phases.get(phase);
+        return times != null && times[1] >= 0;
+    }
+
+    // -1 when the phase has not ended
+    public synchronized long getDurationNs(String phase) {
+        long[] times = phases.get(phase);
+        return times == null || times[1] < 0 ? -1 : times[1] - times[0];
+    }
+
+    // Offset of the phase's end from the timer's creation, -1 when it has not ended
+    public synchronized long getEndOffsetNs(String phase) {
+        long[] times = phases.get(phase);
+        return times == null ? -1 : times[1];
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, long[]> entry : phases.entrySet()) {
+            long[] times = entry.getValue();
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(entry.getKey()).append(" @").append(times[0] / 1000000).append("ms ");
+            if (times[1] < 0) {
+                sb.append("running");
+            } else {
+                sb.append(String.format("%.1fms", (times[1] - times[0]) / 1e6));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,210 @@
+package com.example.testingsurfacetexture;
+
+import java.nio.ByteBuffer;
+
+// Encodes static scenes cheaply. The size of each P frame, as a fraction of the delegate's budget
+// per encoded frame, measures how much the picture changed since the last encoded frame. Only
+// meaningful with a VBR encoder; CBR pads every frame to the budget. Once it stays low for a
+// while the bitrate drops and only one frame in skipFrames is encoded, leaving variable frame
+// rate timestamps in the stream. The first P frame with motion restores the full rate and starts
+// a new GOP, so the event is seekable and does not build on the low-rate frames.
+public class StaticSceneEncoder implements VideoEncoder {
+    private static final int TRACE_MODE = Tracer.registerEvent("static_scene", Tracer.LEVEL_SESSION, "static", "score_pct");
+
+    // Fractions of the bit budget per encoded frame
+    static final double ENTER_SCORE = 0.1;
+    static final double EXIT_SCORE = 0.3;
+    static final long ENTER_DWELL_US = 5000000;
+
+    private final VideoEncoder delegate;
+    private int frameRate;
+    private final int skipFrames;
+    private final double staticBitRateFactor;
+    private SampleSink sink;
+    private int bitRate;
+    private volatile boolean staticMode;
+    // Suspended by the caller, as opposed to skipping frames
+    private boolean paused;
+    private boolean suspended;
+    private long frameCount;
+    private boolean quiet;
+    private long quietSinceUs;
+    private double lastScore;
+    private int transitions;
+    private long skippedFrames;
+    private long staticDurationUs;
+    private long staticSinceUs;
+
+    // bitRate and frameRate are the full-rate configuration the delegate was created with
+    public StaticSceneEncoder(VideoEncoder delegate, int bitRate, int frameRate, int skipFrames,
+                              double staticBitRateFactor) {
+        this.delegate = delegate;
+        this.bitRate = bitRate;
+        this.frameRate = frameRate;
+        this.skipFrames = skipFrames;
+        this.staticBitRateFactor = staticBitRateFactor;
+    }
+
+    @Override
+    public void setSink(SampleSink sink) {
+        this.sink = sink;
+        delegate.setSink(scoringSink);
+    }
+
+    @Override
+    public void setErrorListener(ErrorListener listener) {
+        delegate.setErrorListener(listener);
+    }
+
+    @Override
+    public void start() {
+        delegate.start();
+    }
+
+    // With an input surface the suspension takes effect a frame or so late, which shifts the
+    // skipped frames but keeps one in skipFrames
+    @Override
+    public void onFrameAvailable(long timestampNs) {
+        synchronized (this) {
+            frameCount++;
+            if (staticMode && !paused) {
+                boolean skip = frameCount % skipFrames != 0;
+                if (skip) {
+                    skippedFrames++;
+                }
+                setDelegateSuspended(skip);
+            }
+        }
+        delegate.onFrameAvailable(timestampNs);
+    }
+
+    // The full rate; while the scene is static the delegate gets the reduced rate instead
+    @Override
+    public synchronized void setBitRate(int bitRate) {
+        this.bitRate = bitRate;
+        delegate.setBitRate(staticMode ? staticBitRate() : bitRate);
+    }
+
+    // When the camera frame rate changes, so each frame's share of the budget is scored right
+    public synchronized void setFrameRate(int frameRate) {
+        this.frameRate = frameRate;
+    }
+
+    @Override
+    public void requestKeyFrame() {
+        delegate.requestKeyFrame();
+    }
+
+    @Override
+    public synchronized void setSuspended(boolean suspended) {
+        paused = suspended;
+        setDelegateSuspended(suspended);
+    }
+
+    @Override
+    public void stop() {
+        delegate.stop();
+    }
+
+    @Override
+    public void release() {
+        delegate.release();
+    }
+
+    public boolean isStatic() {
+        return staticMode;
+    }
+
+    public synchronized int getTransitions() {
+        return transitions;
+    }
+
+    public synchronized long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    // Time spent in static mode, up to the last encoded sample
+    public synchronized long getStaticDurationUs() {
+        return staticDurationUs;
+    }
+
+    public synchronized double getLastScore() {
+        return lastScore;
+    }
+
+    private int staticBitRate() {
+        return (int) (bitRate * staticBitRateFactor);
+    }
+
+    private void setDelegateSuspended(boolean suspended) {
+        if (this.suspended != suspended) {
+            this.suspended = suspended;
+            delegate.setSuspended(suspended);
+        }
+    }
+
+    private synchronized void onEncoded(SampleInfo info) {
+        long ptsUs = info.presentationTimeUs;
+        if (staticMode) {
+            staticDurationUs += ptsUs - staticSinceUs;
+            staticSinceUs = ptsUs;
+        }
+        if (info.isKeyFrame() || (info.flags & SampleInfo.FLAG_CODEC_CONFIG) != 0 || info.size == 0) {
+            return;
+        }
+        // The budget the delegate currently has per encoded frame: in static mode the reduced rate
+        // spread over one frame in skipFrames, unless the caller paused it
+        double frameBits = (double) bitRate / frameRate;
+        if (staticMode) {
+            frameBits = (double) staticBitRate() / frameRate * (paused ? 1 : skipFrames);
+        }
+        double score = info.size * 8.0 / frameBits;
+        lastScore = score;
+        if (staticMode) {
+            if (score > EXIT_SCORE) {
+                leaveStatic(score);
+            }
+            return;
+        }
+        if (score >= ENTER_SCORE) {
+            quiet = false;
+        } else if (!quiet) {
+            quiet = true;
+            quietSinceUs = ptsUs;
+        } else if (ptsUs - quietSinceUs >= ENTER_DWELL_US) {
+            staticMode = true;
+            staticSinceUs = ptsUs;
+            transitions++;
+            delegate.setBitRate(staticBitRate());
+            Tracer.GLOBAL.instant(TRACE_MODE, 1, Math.round(score * 100));
+        }
+    }
+
+    private void leaveStatic(double score) {
+        staticMode = false;
+        quiet = false;
+        transitions++;
+        setDelegateSuspended(paused);
+        delegate.setBitRate(bitRate);
+        delegate.requestKeyFrame();
+        Tracer.GLOBAL.instant(TRACE_MODE, 0, Math.round(score * 100));
+    }
+
+    private final SampleSink scoringSink = new SampleSink() {
+        @Override
+        public void onFormat(TrackFormat format) {
+            sink.onFormat(format);
+        }
+
+        @Override
+        public void onSample(ByteBuffer data, SampleInfo info) {
+            onEncoded(info);
+            sink.onSample(data, info);
+        }
+
+        @Override
+        public void onEnd() {
+            sink.onEnd();
+        }
+    };
+}
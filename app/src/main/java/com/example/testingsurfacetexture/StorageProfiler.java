@@ -0,0 +1,217 @@
+package com.example.testingsurfacetexture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+
+// Measures whether a directory can keep up with a recording. A pre-flight benchmark gives the
+// initial bandwidth estimate; periodic write+fsync probes (a conservative figure, since they
+// pay the full sync cost) and the time spent inside sink writes keep it current while recording.
+public class StorageProfiler {
+    public enum Verdict {
+        OK, WARN, REFUSE
+    }
+
+    public static class BenchmarkResult {
+        public final double sequentialBytesPerSecond;
+        public final double syncedBytesPerSecond;
+        public final long p99SyncLatencyNs;
+
+        BenchmarkResult(double sequentialBytesPerSecond, double syncedBytesPerSecond, long p99SyncLatencyNs) {
+            this.sequentialBytesPerSecond = sequentialBytesPerSecond;
+            this.syncedBytesPerSecond = syncedBytesPerSecond;
+            this.p99SyncLatencyNs = p99SyncLatencyNs;
+        }
+
+        // Kept with the volume it was measured on and when, so later launches can skip the benchmark
+        public void store(OutputStream out, String volume, long measuredAtMs) throws IOException {
+            Properties p = new Properties();
+            p.setProperty("volume", volume);
+            p.setProperty("measured_at_ms", Long.toString(measuredAtMs));
+            p.setProperty("sequential_bytes_per_second", Double.toString(sequentialBytesPerSecond));
+            p.setProperty("synced_bytes_per_second", Double.toString(syncedBytesPerSecond));
+            p.setProperty("p99_sync_latency_ns", Long.toString(p99SyncLatencyNs));
+            p.store(out, null);
+        }
+
+        // Returns null for a result from another volume, older than maxAgeMs or unreadable
+        public static BenchmarkResult load(InputStream in, String volume, long nowMs, long maxAgeMs) throws IOException {
+            Properties p = new Properties();
+            p.load(in);
+            if (!volume.equals(p.getProperty("volume"))) {
+                return null;
+            }
+            try {
+                long measuredAtMs = Long.parseLong(p.getProperty("measured_at_ms", ""));
+                if (measuredAtMs > nowMs || nowMs - measuredAtMs > maxAgeMs) {
+                    return null;
+                }
+                return new BenchmarkResult(Double.parseDouble(p.getProperty("sequential_bytes_per_second", "")),
+                        Double.parseDouble(p.getProperty("synced_bytes_per_second", "")),
+                        Long.parseLong(p.getProperty("p99_sync_latency_ns", "")));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("sequential=%.1fMB/s synced=%.1fMB/s p99Sync=%dms",
+                    sequentialBytesPerSecond / 1e6, syncedBytesPerSecond / 1e6, p99SyncLatencyNs / 1000000);
+        }
+    }
+
+    // Required bandwidth = bitrate * this; covers muxer overhead, index writes and other apps
+    static final double WARN_HEADROOM = 4;
+    static final double REFUSE_HEADROOM = 1.5;
+    // A sink write blocking for longer than this stalls the codec callback thread
+    static final long MAX_WRITE_LATENCY_NS = 100000000L;
+    private static final double EWMA_WEIGHT = 0.3;
+    private static final int WINDOW_SAMPLES = 1024;
+
+    private final File directory;
+    private final Clock clock;
+    private double bandwidthBytesPerSecond = -1;
+    private LatencyHistogram currentWindow = new LatencyHistogram();
+    private LatencyHistogram previousWindow = new LatencyHistogram();
+    private ByteBuffer probeBuffer;
+
+    public StorageProfiler(File directory, Clock clock) {
+        this.directory = directory;
+        this.clock = clock;
+    }
+
+    public BenchmarkResult benchmark(long totalBytes, int chunkBytes) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocateDirect(chunkBytes);
+        File file = File.createTempFile("storage_benchmark", ".tmp", directory);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+
+            // Sequential: how fast the page cache drains to the device, one flush at the end
+            long start = clock.nanoTime();
+            long written = 0;
+            while (written < totalBytes) {
+                written += writeFully(channel, chunk);
+            }
+            channel.force(false);
+            double sequential = written * 1e9 / Math.max(1, clock.nanoTime() - start);
+
+            // Synced: every chunk is forced to the device, which is what a muxer flushing its
+            // interleave buffers sees at worst
+            LatencyHistogram syncLatency = new LatencyHistogram();
+            channel.position(0);
+            long syncedStart = clock.nanoTime();
+            long synced = 0;
+            while (synced < totalBytes / 4) {
+                long opStart = clock.nanoTime();
+                synced += writeFully(channel, chunk);
+                channel.force(false);
+                syncLatency.record(clock.nanoTime() - opStart);
+            }
+            double syncedRate = synced * 1e9 / Math.max(1, clock.nanoTime() - syncedStart);
+
+            BenchmarkResult result = new BenchmarkResult(sequential, syncedRate, syncLatency.getPercentile(99));
+            useBenchmark(result);
+            return result;
+        } finally {
+            raf.close();
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    // The initial estimate from an earlier benchmark of the same directory
+    public synchronized void useBenchmark(BenchmarkResult result) {
+        bandwidthBytesPerSecond = result.sequentialBytesPerSecond;
+    }
+
+    // Small write+fsync in the recording directory, run periodically while recording
+    public void probe(int bytes) throws IOException {
+        if (probeBuffer == null || probeBuffer.capacity() != bytes) {
+            probeBuffer = ByteBuffer.allocateDirect(bytes);
+        }
+        File file = new File(directory, ".storage_probe");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            long start = clock.nanoTime();
+            writeFully(channel, probeBuffer);
+            channel.force(false);
+            recordProbe(bytes, clock.nanoTime() - start);
+        } finally {
+            raf.close();
+            file.delete();
+        }
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+        return written;
+    }
+
+    public synchronized void recordProbe(long bytes, long durationNs) {
+        double rate = bytes * 1e9 / Math.max(1, durationNs);
+        if (bandwidthBytesPerSecond < 0) {
+            bandwidthBytesPerSecond = rate;
+        } else {
+            bandwidthBytesPerSecond += EWMA_WEIGHT * (rate - bandwidthBytesPerSecond);
+        }
+    }
+
+    // Time a sink spent blocked writing one sample
+    public synchronized void recordSinkWrite(long durationNs) {
+        if (currentWindow.getCount() >= WINDOW_SAMPLES) {
+            LatencyHistogram recycled = previousWindow;
+            previousWindow = currentWindow;
+            currentWindow = recycled;
+            currentWindow.reset();
+        }
+        currentWindow.record(durationNs);
+    }
+
+    public synchronized double getSustainedBytesPerSecond() {
+        return bandwidthBytesPerSecond;
+    }
+
+    // p99 of sink write latency over the last one to two windows of samples
+    public synchronized long getP99LatencyNs() {
+        return Math.max(currentWindow.getPercentile(99), previousWindow.getPercentile(99));
+    }
+
+    public synchronized boolean hasEstimate() {
+        return bandwidthBytesPerSecond >= 0;
+    }
+
+    public synchronized Verdict assess(int bitRate) {
+        if (bandwidthBytesPerSecond < 0) {
+            return Verdict.OK;
+        }
+        double required = bitRate / 8.0;
+        if (bandwidthBytesPerSecond < required * REFUSE_HEADROOM) {
+            return Verdict.REFUSE;
+        }
+        if (bandwidthBytesPerSecond < required * WARN_HEADROOM || getP99LatencyNs() > MAX_WRITE_LATENCY_NS) {
+            return Verdict.WARN;
+        }
+        return Verdict.OK;
+    }
+
+    // Highest bitrate not above the requested one that the storage sustains with full headroom
+    public synchronized int recommendBitRate(int requested) {
+        if (bandwidthBytesPerSecond < 0) {
+            return requested;
+        }
+        return (int) Math.min(requested, bandwidthBytesPerSecond * 8 / WARN_HEADROOM);
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.testingsurfacetexture;
+
+import java.util.List;
+
+// Frame rate and drop ratio of one stream over the interval between two sample() calls.
+public class StreamHealth {
+    public final String name;
+    private final PipelineStats stats;
+    private long lastCaptured;
+    private long lastEncoded;
+    private long lastSampleNs = -1;
+    private double captureFps;
+    private double encodeFps;
+    private double dropRatio;
+
+    public StreamHealth(String name, PipelineStats stats) {
+        this.name = name;
+        this.stats = stats;
+    }
+
+    public void sample(long nowNs) {
+        long captured = stats.getFramesCaptured();
+        long encoded = stats.getSamplesEncoded();
+        if (lastSampleNs >= 0 && nowNs > lastSampleNs) {
+            double seconds = (nowNs - lastSampleNs) / 1e9;
+            long capturedDelta = captured - lastCaptured;
+            long encodedDelta = encoded - lastEncoded;
+            captureFps = capturedDelta / seconds;
+            encodeFps = encodedDelta / seconds;
+            dropRatio = capturedDelta == 0 ? 0 : Math.max(0, capturedDelta - encodedDelta) / (double) capturedDelta;
+        }
+        lastCaptured = captured;
+        lastEncoded = encoded;
+        lastSampleNs = nowNs;
+    }
+
+    public double getCaptureFps() {
+        return captureFps;
+    }
+
+    public double getEncodeFps() {
+        return encodeFps;
+    }
+
+    public double getDropRatio() {
+        return dropRatio;
+    }
+
+    // The stream losing the largest share of its frames relative to the target rate
+    public static StreamHealth worst(List<StreamHealth> streams, double targetFps) {
+        StreamHealth worst = null;
+        double worstDeficit = -1;
+        for (StreamHealth stream : streams) {
+            double deficit = Math.max(0, 1 - stream.encodeFps / targetFps);
+            if (deficit > worstDeficit) {
+                worst = stream;
+                worstDeficit = deficit;
+            }
+        }
+        return worst;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: capture %.1f fps, encode %.1f fps, dropped %.1f%%",
+                name, captureFps, encodeFps, dropRatio * 100);
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.testingsurfacetexture;
+
+import java.nio.ByteBuffer;
+
+// Delivers every callback to each sink in turn, on the caller's thread.
+public class TeeSink implements SampleSink {
+    private final SampleSink[] sinks;
+
+    public TeeSink(SampleSink... sinks) {
+        this.sinks = sinks.clone();
+    }
+
+    @Override
+    public void onFormat(TrackFormat format) {
+        for (SampleSink sink : sinks) {
+            sink.onFormat(format);
+        }
+    }
+
+    @Override
+    public void onSample(ByteBuffer data, SampleInfo info) {
+        int position = data.position();
+        int limit = data.limit();
+        for (SampleSink sink : sinks) {
+            data.limit(limit).position(position);
+            sink.onSample(data, info);
+        }
+    }
+
+    @Override
+    public void onEnd() {
+        for (SampleSink sink : sinks) {
+            sink.onEnd();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.testingsurfacetexture;
+
+// Takes one frame every interval for a time-lapse. Between shots that are far enough apart the
+// camera stops streaming and restarts warmupNs before the next one, so auto-exposure and white
+// balance have converged by the time the frame is taken. Shots stay on a fixed grid from the start
+// time; a tick that comes too late skips the shots it missed instead of shifting the rest.
+//
+// The caller drives it: call onTick() at the time it returns, on the thread that owns the camera.
+public class TimeLapseController {
+    public interface Camera {
+        void startStreaming();
+
+        void stopStreaming();
+
+        void captureFrame();
+    }
+
+    private final long intervalNs;
+    private final long warmupNs;
+    private final Camera camera;
+    // Streaming through the whole interval costs less than restarting when shots are close
+    private final boolean idleBetweenShots;
+    private long nextShotNs;
+    private boolean streaming;
+    private long shots;
+    private long missedShots;
+    private long streamingNs;
+    private long streamingSinceNs;
+
+    public TimeLapseController(long intervalNs, long warmupNs, Camera camera) {
+        this.intervalNs = intervalNs;
+        this.warmupNs = warmupNs;
+        this.camera = camera;
+        idleBetweenShots = intervalNs >= 2 * warmupNs;
+    }
+
+    // The camera is expected to be streaming already, as it is for the preview; the first shot
+    // is taken right away. Returns when to call onTick() next.
+    public long start(long nowNs) {
+        streaming = true;
+        streamingSinceNs = nowNs;
+        nextShotNs = nowNs;
+        return onTick(nowNs);
+    }
+
+    public long onTick(long nowNs) {
+        if (nowNs >= nextShotNs) {
+            if (!streaming) {
+                // Too late to warm up; a frame with stale exposure beats a gap in the time-lapse
+                startStreaming(nowNs);
+            }
+            camera.captureFrame();
+            shots++;
+            long behind = (nowNs - nextShotNs) / intervalNs;
+            missedShots += behind;
+            nextShotNs += (behind + 1) * intervalNs;
+            if (idleBetweenShots) {
+                stopStreaming(nowNs);
+            }
+        } else if (idleBetweenShots && !streaming && nowNs >= nextShotNs - warmupNs) {
+            startStreaming(nowNs);
+        }
+        if (idleBetweenShots && !streaming) {
+            return Math.max(nowNs, nextShotNs - warmupNs);
+        }
+        return nextShotNs;
+    }
+
+    private void startStreaming(long nowNs) {
+        camera.startStreaming();
+        streaming = true;
+        streamingSinceNs = nowNs;
+    }
+
+    private void stopStreaming(long nowNs) {
+        camera.stopStreaming();
+        streaming = false;
+        streamingNs += nowNs - streamingSinceNs;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public long getShots() {
+        return shots;
+    }
+
+    public long getMissedShots() {
+        return missedShots;
+    }
+
+    // Time the camera streamed, up to the last time it stopped
+    public long getStreamingNs() {
+        return streamingNs;
+    }
+
+    public long getIntervalNs() {
+        return intervalNs;
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.testingsurfacetexture;
+
+import java.nio.ByteBuffer;
+
+// Restamps time-lapse samples so they play back at playbackFrameRate: sample n gets
+// n / playbackFrameRate, whatever the gap between the shots was. Encoders that already spaced
+// the timestamps through KEY_CAPTURE_RATE end up with the same values.
+public class TimeLapseSink implements SampleSink {
+    private final SampleSink delegate;
+    private final int playbackFrameRate;
+    private final SampleInfo restamped = new SampleInfo();
+    private long samples;
+
+    public TimeLapseSink(SampleSink delegate, int playbackFrameRate) {
+        this.delegate = delegate;
+        this.playbackFrameRate = playbackFrameRate;
+    }
+
+    @Override
+    public void onFormat(TrackFormat format) {
+        delegate.onFormat(format);
+    }
+
+    @Override
+    public void onSample(ByteBuffer data, SampleInfo info) {
+        restamped.copyFrom(info);
+        restamped.presentationTimeUs = samples * 1000000L / playbackFrameRate;
+        samples++;
+        delegate.onSample(data, restamped);
+    }
+
+    @Override
+    public void onEnd() {
+        delegate.onEnd();
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+}
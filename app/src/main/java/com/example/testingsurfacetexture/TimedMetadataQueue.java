@@ -0,0 +1,99 @@
+package com.example.testingsurfacetexture;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bounded lock-free queue from any number of producer threads (sensor callbacks, location
+// updates, the UI) to the one thread that writes the recording. Records are copied into
+// preallocated slots, so neither side allocates or blocks; a producer that finds the queue full
+// drops its record and it is counted.
+//
+// Each slot carries a sequence number, as in Vyukov's bounded queue: a producer claims a slot by
+// advancing the tail with a CAS, fills it, then publishes it by setting the slot's sequence; the
+// consumer only reads a slot once it is published and hands it back by moving the sequence one
+// lap ahead.
+public class TimedMetadataQueue {
+    public interface Reader {
+        // data is only valid until this call returns
+        void onRecord(int track, long timestampUs, byte[] data, int offset, int length);
+    }
+
+    private final int mask;
+    private final int maxRecordBytes;
+    private final AtomicLongArray sequences;
+    private final int[] tracks;
+    private final long[] timestamps;
+    private final int[] lengths;
+    private final byte[] payloads;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong droppedRecords = new AtomicLong();
+    // Only touched by the consumer
+    private long head;
+
+    // capacity is rounded up to a power of two
+    public TimedMetadataQueue(int capacity, int maxRecordBytes) {
+        int slots = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        mask = slots - 1;
+        this.maxRecordBytes = maxRecordBytes;
+        sequences = new AtomicLongArray(slots);
+        for (int i = 0; i < slots; i++) {
+            sequences.set(i, i);
+        }
+        tracks = new int[slots];
+        timestamps = new long[slots];
+        lengths = new int[slots];
+        payloads = new byte[slots * maxRecordBytes];
+    }
+
+    // Any thread. Returns false if the queue is full.
+    public boolean offer(int track, long timestampUs, byte[] data, int offset, int length) {
+        if (length > maxRecordBytes) {
+            throw new IllegalArgumentException("Record of " + length + " bytes, at most " + maxRecordBytes);
+        }
+        long position = tail.get();
+        int slot;
+        while (true) {
+            slot = (int) (position & mask);
+            long difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // The consumer has not freed this slot from the previous lap
+                droppedRecords.incrementAndGet();
+                return false;
+            } else {
+                // Another producer took it
+                position = tail.get();
+            }
+        }
+        tracks[slot] = track;
+        timestamps[slot] = timestampUs;
+        lengths[slot] = length;
+        System.arraycopy(data, offset, payloads, slot * maxRecordBytes, length);
+        sequences.set(slot, position + 1);
+        return true;
+    }
+
+    // Consumer thread only. Hands the oldest published record to reader; false if there is none.
+    public boolean poll(Reader reader) {
+        int slot = (int) (head & mask);
+        if (sequences.get(slot) != head + 1) {
+            return false;
+        }
+        reader.onRecord(tracks[slot], timestamps[slot], payloads, slot * maxRecordBytes, lengths[slot]);
+        sequences.set(slot, head + mask + 1);
+        head++;
+        return true;
+    }
+
+    public int getMaxRecordBytes() {
+        return maxRecordBytes;
+    }
+
+    public long getDroppedRecords() {
+        return droppedRecords.get();
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.testingsurfacetexture;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Reads back the records of one timed metadata track between two times. Every record is a sync
+// sample, so the extractor seeks straight to the first one through the file's sample table
+// instead of reading the track from the start.
+public class TimedMetadataReader implements Closeable {
+    public interface Callback {
+        // data is only valid until this call returns
+        void onRecord(long timestampUs, ByteBuffer data);
+    }
+
+    private final MediaExtractor extractor = new MediaExtractor();
+    private final ByteBuffer buffer;
+
+    public TimedMetadataReader(String path, String mime, int maxRecordBytes) throws IOException {
+        buffer = ByteBuffer.allocate(maxRecordBytes);
+        extractor.setDataSource(path);
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            if (mime.equals(extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME))) {
+                extractor.selectTrack(i);
+                return;
+            }
+        }
+        extractor.release();
+        throw new IOException("No " + mime + " track in " + path);
+    }
+
+    // Returns the number of records from startUs to endUs, both included
+    public int read(long startUs, long endUs, Callback callback) {
+        extractor.seekTo(startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        int records = 0;
+        long timestampUs;
+        while ((timestampUs = extractor.getSampleTime()) >= 0 && timestampUs <= endUs) {
+            if (timestampUs >= startUs) {
+                buffer.clear();
+                int size = extractor.readSampleData(buffer, 0);
+                buffer.position(0);
+                buffer.limit(Math.max(0, size));
+                callback.onRecord(timestampUs, buffer);
+                records++;
+            }
+            extractor.advance();
+        }
+        return records;
+    }
+
+    @Override
+    public void close() {
+        extractor.release();
+    }
+}
@@ -0,0 +1,10 @@
+package com.example.testingsurfacetexture;
+
+import java.nio.ByteBuffer;
+
+// Receives timed metadata (IMU, GPS, annotations) for the tracks a sink was created with. Called
+// on the same thread as the video samples, and in timestamp order within each track.
+public interface TimedMetadataSink {
+    // data is positioned on the record and is only valid until this call returns
+    void onMetadata(int track, ByteBuffer data, long timestampUs);
+}
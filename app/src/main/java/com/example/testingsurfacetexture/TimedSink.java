@@ -0,0 +1,37 @@
+package com.example.testingsurfacetexture;
+
+import java.nio.ByteBuffer;
+
+// Reports how long each sample write blocks in the wrapped sink to the storage profiler.
+public class TimedSink implements SampleSink {
+    private static final int TRACE_WRITE = Tracer.registerEvent("sink_write", Tracer.LEVEL_FRAME, "pts_us", "size");
+
+    private final SampleSink delegate;
+    private final StorageProfiler profiler;
+    private final Clock clock;
+
+    public TimedSink(SampleSink delegate, StorageProfiler profiler, Clock clock) {
+        this.delegate = delegate;
+        this.profiler = profiler;
+        this.clock = clock;
+    }
+
+    @Override
+    public void onFormat(TrackFormat format) {
+        delegate.onFormat(format);
+    }
+
+    @Override
+    public void onSample(ByteBuffer data, SampleInfo info) {
+        Tracer.GLOBAL.begin(TRACE_WRITE, info.presentationTimeUs, info.size);
+        long start = clock.nanoTime();
+        delegate.onSample(data, info);
+        profiler.recordSinkWrite(clock.nanoTime() - start);
+        Tracer.GLOBAL.end(TRACE_WRITE, info.presentationTimeUs, info.size);
+    }
+
+    @Override
+    public void onEnd() {
+        delegate.onEnd();
+    }
+}
@@ -0,0 +1,286 @@
+package com.example.testingsurfacetexture;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Fixed-size ring of binary trace events (event id, timestamp, thread, two long arguments) for the
+// capture hot paths. Recording neither allocates nor locks; the oldest events are overwritten.
+// Events are registered once with a level, and recording an event above the current level costs
+// an array load and a compare. ENABLED = false compiles every call site out.
+public class Tracer {
+    public static final boolean ENABLED = true;
+
+    public static final int LEVEL_OFF = 0;
+    // Start/stop, format changes, errors, parameter changes
+    public static final int LEVEL_SESSION = 1;
+    // Per-frame events
+    public static final int LEVEL_FRAME = 2;
+
+    static final int KIND_INSTANT = 0;
+    static final int KIND_BEGIN = 1;
+    static final int KIND_END = 2;
+    static final int KIND_COUNTER = 3;
+    // Chrome trace "ph" for each kind
+    private static final String[] PHASES = {"i", "B", "E", "C"};
+
+    private static final int MAX_EVENTS = 256;
+    private static final String[] eventNames = new String[MAX_EVENTS];
+    private static final String[][] argNames = new String[MAX_EVENTS][];
+    private static final int[] eventLevels = new int[MAX_EVENTS];
+    private static int eventCount;
+
+    public static final Tracer GLOBAL = new Tracer(16384, Clock.SYSTEM);
+
+    // Mirrors events into a platform tracer such as android.os.Trace. Begin and end are called
+    // on the thread that recorded them.
+    public interface Bridge {
+        void begin(String name);
+
+        void end(String name);
+
+        void counter(String name, long value);
+    }
+
+    private final Clock clock;
+    private final int mask;
+    // Atomic arrays rather than plain ones so the sequence check below is ordered against the fields
+    // it guards; Java 8 has no standalone fences
+    private final AtomicLongArray times;
+    private final AtomicLongArray threads;
+    private final AtomicLongArray events;
+    private final AtomicLongArray args0;
+    private final AtomicLongArray args1;
+    // Index of the event held by each slot, -1 while it is being written
+    private final AtomicLongArray sequences;
+    private final AtomicLong cursor = new AtomicLong();
+    // Events before this index were cleared
+    private volatile long firstIndex;
+    private volatile int level = LEVEL_SESSION;
+    private volatile Bridge bridge;
+
+    // capacity is rounded up to a power of two
+    public Tracer(int capacity, Clock clock) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.clock = clock;
+        mask = size - 1;
+        times = new AtomicLongArray(size);
+        threads = new AtomicLongArray(size);
+        events = new AtomicLongArray(size);
+        args0 = new AtomicLongArray(size);
+        args1 = new AtomicLongArray(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, -1);
+        }
+    }
+
+    // Call from static initializers; arg names may be null when the argument is unused
+    public static synchronized int registerEvent(String name, int level, String arg0, String arg1) {
+        for (int i = 0; i < eventCount; i++) {
+            if (eventNames[i].equals(name)) {
+                return i;
+            }
+        }
+        if (eventCount == MAX_EVENTS) {
+            throw new IllegalStateException("Too many trace events");
+        }
+        eventNames[eventCount] = name;
+        argNames[eventCount] = new String[]{arg0, arg1};
+        eventLevels[eventCount] = level;
+        return eventCount++;
+    }
+
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public void setBridge(Bridge bridge) {
+        this.bridge = bridge;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    public boolean isEnabled(int event) {
+        return ENABLED && eventLevels[event] <= level;
+    }
+
+    public void instant(int event, long arg0, long arg1) {
+        if (isEnabled(event)) {
+            record(KIND_INSTANT, event, arg0, arg1);
+        }
+    }
+
+    public void begin(int event, long arg0, long arg1) {
+        if (isEnabled(event)) {
+            record(KIND_BEGIN, event, arg0, arg1);
+            Bridge bridge = this.bridge;
+            if (bridge != null) {
+                bridge.begin(eventNames[event]);
+            }
+        }
+    }
+
+    public void end(int event, long arg0, long arg1) {
+        if (isEnabled(event)) {
+            Bridge bridge = this.bridge;
+            if (bridge != null) {
+                bridge.end(eventNames[event]);
+            }
+            record(KIND_END, event, arg0, arg1);
+        }
+    }
+
+    public void counter(int event, long value) {
+        if (isEnabled(event)) {
+            record(KIND_COUNTER, event, value, 0);
+            Bridge bridge = this.bridge;
+            if (bridge != null) {
+                bridge.counter(eventNames[event], value);
+            }
+        }
+    }
+
+    private void record(int kind, int event, long arg0, long arg1) {
+        long index = cursor.getAndIncrement();
+        int slot = (int) (index & mask);
+        // The volatile -1 is visible before any field: each ordered store below waits for the stores
+        // ahead of it, and the sequence is only put back after all of them
+        sequences.set(slot, -1);
+        times.lazySet(slot, clock.nanoTime());
+        threads.lazySet(slot, Thread.currentThread().getId());
+        events.lazySet(slot, event << 2 | kind);
+        args0.lazySet(slot, arg0);
+        args1.lazySet(slot, arg1);
+        sequences.lazySet(slot, index);
+    }
+
+    // Events overwritten since the last clear before they could be read
+    public long getOverwrittenEvents() {
+        return Math.max(0, cursor.get() - firstIndex - getCapacity());
+    }
+
+    // Drops the events recorded so far. Safe while other threads record: the cursor keeps
+    // counting, so no two writers ever share a slot's index.
+    public void clear() {
+        firstIndex = cursor.get();
+    }
+
+    public static class Event {
+        public final String name;
+        final int kind;
+        public final long timeNs;
+        public final long threadId;
+        public final long arg0;
+        public final long arg1;
+        final String[] argNames;
+
+        Event(String name, int kind, long timeNs, long threadId, long arg0, long arg1, String[] argNames) {
+            this.name = name;
+            this.kind = kind;
+            this.timeNs = timeNs;
+            this.threadId = threadId;
+            this.arg0 = arg0;
+            this.arg1 = arg1;
+            this.argNames = argNames;
+        }
+
+        public boolean isBegin() {
+            return kind == KIND_BEGIN;
+        }
+
+        public boolean isEnd() {
+            return kind == KIND_END;
+        }
+
+        public boolean isCounter() {
+            return kind == KIND_COUNTER;
+        }
+    }
+
+    // Copies out the events still in the ring, oldest first. Slots being rewritten while they are
+    // read are skipped, so recording may continue meanwhile.
+    public List<Event> snapshot() {
+        long end = cursor.get();
+        long start = Math.max(firstIndex, end - getCapacity());
+        List<Event> snapshot = new ArrayList<>((int) (end - start));
+        for (long index = start; index < end; index++) {
+            int slot = (int) (index & mask);
+            if (sequences.get(slot) != index) {
+                continue;
+            }
+            // Volatile reads, so none of them can be moved past the second sequence check
+            long time = times.get(slot);
+            long thread = threads.get(slot);
+            int packed = (int) events.get(slot);
+            long arg0 = args0.get(slot);
+            long arg1 = args1.get(slot);
+            if (sequences.get(slot) != index) {
+                continue;
+            }
+            int event = packed >>> 2;
+            snapshot.add(new Event(eventNames[event], packed & 3, time, thread, arg0, arg1, argNames[event]));
+        }
+        return snapshot;
+    }
+
+    // Chrome trace event format, which chrome://tracing and ui.perfetto.dev both open
+    public void writeChromeJson(Writer out) throws IOException {
+        List<Event> snapshot = snapshot();
+        // Events are in sequence order, but a thread can take its timestamp before another that
+        // records first, so the earliest time rather than the first event's keeps every ts positive
+        long originNs = snapshot.isEmpty() ? 0 : Long.MAX_VALUE;
+        for (Event event : snapshot) {
+            originNs = Math.min(originNs, event.timeNs);
+        }
+        out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+        for (Event event : snapshot) {
+            out.write(first ? "\n" : ",\n");
+            first = false;
+            out.write("{\"name\":\"");
+            out.write(event.name);
+            out.write("\",\"ph\":\"");
+            out.write(PHASES[event.kind]);
+            out.write("\",\"ts\":");
+            long sinceOriginNs = event.timeNs - originNs;
+            out.write(Long.toString(sinceOriginNs / 1000));
+            out.write('.');
+            out.write(String.format("%03d", sinceOriginNs % 1000));
+            out.write(",\"pid\":1,\"tid\":");
+            out.write(Long.toString(event.threadId));
+            if (event.kind == KIND_INSTANT) {
+                out.write(",\"s\":\"t\"");
+            }
+            out.write(",\"args\":{");
+            if (event.kind == KIND_COUNTER) {
+                out.write("\"value\":");
+                out.write(Long.toString(event.arg0));
+            } else {
+                boolean firstArg = true;
+                long[] values = {event.arg0, event.arg1};
+                for (int i = 0; i < 2; i++) {
+                    if (event.argNames[i] == null) {
+                        continue;
+                    }
+                    out.write(firstArg ? "\"" : ",\"");
+                    firstArg = false;
+                    out.write(event.argNames[i]);
+                    out.write("\":");
+                    out.write(Long.toString(values[i]));
+                }
+            }
+            out.write("}}");
+        }
+        out.write("\n]}\n");
+    }
+}
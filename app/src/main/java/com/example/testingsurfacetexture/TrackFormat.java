@@ -0,0 +1,57 @@
+package com.example.testingsurfacetexture;
+
+import java.nio.ByteBuffer;
+
+public class TrackFormat {
+    public final String mime;
+    public final int width;
+    public final int height;
+    private final ByteBuffer csd0;
+    private final ByteBuffer csd1;
+
+    public TrackFormat(String mime, int width, int height, ByteBuffer csd0, ByteBuffer csd1) {
+        this.mime = mime;
+        this.width = width;
+        this.height = height;
+        this.csd0 = csd0 != null ? csd0.asReadOnlyBuffer() : null;
+        this.csd1 = csd1 != null ? csd1.asReadOnlyBuffer() : null;
+    }
+
+    // For H.264 this is the SPS, Annex-B framed
+    public ByteBuffer getCsd0() {
+        return csd0 != null ? csd0.duplicate() : null;
+    }
+
+    // For H.264 this is the PPS, Annex-B framed
+    public ByteBuffer getCsd1() {
+        return csd1 != null ? csd1.duplicate() : null;
+    }
+
+    // Same codec, size and parameter sets
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TrackFormat)) {
+            return false;
+        }
+        TrackFormat other = (TrackFormat) o;
+        return mime.equals(other.mime) && width == other.width && height == other.height
+                && sameBuffer(csd0, other.csd0) && sameBuffer(csd1, other.csd1);
+    }
+
+    private static boolean sameBuffer(ByteBuffer a, ByteBuffer b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    @Override
+    public int hashCode() {
+        return (mime.hashCode() * 31 + width) * 31 + height;
+    }
+
+    @Override
+    public String toString() {
+        return mime + " " + width + "x" + height;
+    }
+}
@@ -0,0 +1,29 @@
+package com.example.testingsurfacetexture;
+
+public interface VideoEncoder {
+    interface ErrorListener {
+        void onError(Exception e);
+    }
+
+    void setSink(SampleSink sink);
+
+    void setErrorListener(ErrorListener listener);
+
+    void start();
+
+    // Notifies the encoder that a frame was captured. Encoders fed through an
+    // input surface receive the pixels directly and may ignore this.
+    void onFrameAvailable(long timestampNs);
+
+    // Runtime adjustments, applied without restarting the codec
+    void setBitRate(int bitRate);
+
+    void requestKeyFrame();
+
+    // While suspended the encoder drops incoming frames
+    void setSuspended(boolean suspended);
+
+    void stop();
+
+    void release();
+}
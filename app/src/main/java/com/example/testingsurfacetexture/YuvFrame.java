@@ -0,0 +1,88 @@
+package com.example.testingsurfacetexture;
+
+import java.nio.ByteBuffer;
+
+// A camera frame in YUV 4:2:0, with the planes exactly as the camera wrote them: nothing is
+// copied. Only valid during FrameAnalyzer.analyze(), after that the buffers go back to the camera
+// and the frame object is reused for another one.
+public class YuvFrame {
+    // The slot of FrameAnalysis this frame occupies
+    public final int index;
+    private int width;
+    private int height;
+    private long timestampNs;
+    private ByteBuffer y;
+    private ByteBuffer u;
+    private ByteBuffer v;
+    private int yRowStride;
+    private int uvRowStride;
+    private int uvPixelStride;
+    // When the frame reached FrameAnalysis, on its clock
+    long arrivalNs;
+
+    YuvFrame(int index) {
+        this.index = index;
+    }
+
+    // The luma plane has a pixel stride of 1 in YUV_420_888; the chroma planes may be
+    // interleaved, with a pixel stride of 2
+    public void set(int width, int height, long timestampNs, ByteBuffer y, int yRowStride,
+                    ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride) {
+        this.width = width;
+        this.height = height;
+        this.timestampNs = timestampNs;
+        this.y = y;
+        this.u = u;
+        this.v = v;
+        this.yRowStride = yRowStride;
+        this.uvRowStride = uvRowStride;
+        this.uvPixelStride = uvPixelStride;
+    }
+
+    void clear() {
+        y = null;
+        u = null;
+        v = null;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public long getTimestampNs() {
+        return timestampNs;
+    }
+
+    public ByteBuffer getY() {
+        return y;
+    }
+
+    public ByteBuffer getU() {
+        return u;
+    }
+
+    public ByteBuffer getV() {
+        return v;
+    }
+
+    public int getYRowStride() {
+        return yRowStride;
+    }
+
+    public int getUvRowStride() {
+        return uvRowStride;
+    }
+
+    public int getUvPixelStride() {
+        return uvPixelStride;
+    }
+
+    // Absolute read, the plane's position is left alone
+    public int luma(int x, int row) {
+        return y.get(row * yRowStride + x) & 0xff;
+    }
+}
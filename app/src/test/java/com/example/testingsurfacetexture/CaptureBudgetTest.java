@@ -0,0 +1,63 @@
+package com.example.testingsurfacetexture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CaptureBudgetTest {
+
+    @Test
+    public void grantsRequestedBitrateWhileThereIsRoom() {
+        CaptureBudget budget = new CaptureBudget(3, 30000000, 1000000);
+        assertEquals(10000000, budget.acquire("0", 10000000));
+        assertEquals(10000000, budget.acquire("1", 10000000));
+        assertEquals(2, budget.getActiveEncoders());
+        assertEquals(20000000, budget.getAllocatedBitRate());
+    }
+
+    @Test
+    public void lastStreamGetsWhatIsLeftOfTheBandwidth() {
+        CaptureBudget budget = new CaptureBudget(3, 25000000, 1000000);
+        budget.acquire("0", 20000000);
+        assertEquals(5000000, budget.acquire("1", 10000000));
+        assertEquals(0, budget.acquire("2", 10000000));
+        assertEquals(0, budget.getGrantedBitRate("2"));
+        assertEquals(2, budget.getActiveEncoders());
+    }
+
+    @Test
+    public void refusesWhenBelowMinimumBitrate() {
+        CaptureBudget budget = new CaptureBudget(3, 20500000, 1000000);
+        budget.acquire("0", 20000000);
+        assertEquals(0, budget.acquire("1", 10000000));
+    }
+
+    @Test
+    public void refusesBeyondEncoderInstances() {
+        CaptureBudget budget = new CaptureBudget(2, Long.MAX_VALUE, 1000000);
+        budget.acquire("0", 10000000);
+        budget.acquire("1", 10000000);
+        assertEquals(0, budget.acquire("2", 10000000));
+
+        budget.release("0");
+        assertEquals(10000000, budget.acquire("2", 10000000));
+    }
+
+    @Test
+    public void reacquiringReplacesThePreviousGrant() {
+        CaptureBudget budget = new CaptureBudget(1, 20000000, 1000000);
+        budget.acquire("0", 15000000);
+        assertEquals(20000000, budget.acquire("0", 20000000));
+        assertEquals(1, budget.getActiveEncoders());
+        assertEquals(20000000, budget.getAllocatedBitRate());
+    }
+
+    @Test
+    public void lowerTotalOnlyAffectsLaterGrants() {
+        CaptureBudget budget = new CaptureBudget(3, Long.MAX_VALUE, 1000000);
+        budget.acquire("0", 10000000);
+        budget.setMaxTotalBitRate(12000000);
+        assertEquals(10000000, budget.getGrantedBitRate("0"));
+        assertEquals(2000000, budget.acquire("1", 10000000));
+    }
+}
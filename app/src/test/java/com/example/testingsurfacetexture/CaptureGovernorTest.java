@@ -0,0 +1,213 @@
+package com.example.testingsurfacetexture;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CaptureGovernorTest {
+    private static final long SECOND_NS = 1000000000L;
+    private static final long TICK_NS = 5 * SECOND_NS;
+
+    // First-order thermal model: heat follows the encoder/sensor load of the current rung and
+    // leaks towards the ambient temperature. The HAL drops the frame rate once it gets hot.
+    private static class Device {
+        double ambient = 25;
+        double temperature = 25;
+        int battery = 80;
+        boolean charging;
+
+        void run(CaptureGovernor.Rung rung, long durationNs) {
+            double pixelRate = rung.width * (double) rung.height * rung.frameRate / (1920 * 1080 * 30.0);
+            double load = 0.6 * pixelRate + 0.4 * rung.bitRate / 10000000.0;
+            double equilibrium = ambient + 18 * load;
+            double seconds = durationNs / 1e9;
+            temperature = equilibrium + (temperature - equilibrium) * Math.exp(-seconds / 120);
+        }
+
+        int thermalStatus() {
+            if (temperature >= 53) {
+                return CaptureGovernor.THERMAL_CRITICAL;
+            } else if (temperature >= 49) {
+                return CaptureGovernor.THERMAL_SEVERE;
+            } else if (temperature >= 45) {
+                return CaptureGovernor.THERMAL_MODERATE;
+            } else if (temperature >= 40) {
+                return CaptureGovernor.THERMAL_LIGHT;
+            }
+            return CaptureGovernor.THERMAL_NONE;
+        }
+
+        float headroom() {
+            return (float) ((temperature - 25) / 22);
+        }
+
+        double fps(CaptureGovernor.Rung rung) {
+            return temperature >= 47 ? Math.min(rung.frameRate, 20) : rung.frameRate;
+        }
+    }
+
+    private static CaptureGovernor governor(List<CaptureGovernor.Rung> ladder) {
+        return new CaptureGovernor(ladder, CaptureGovernor.frameRateRung(ladder));
+    }
+
+    private static List<CaptureGovernor.Rung> ladder() {
+        return CaptureGovernor.defaultLadder(10000000, 30, 1920, 1080);
+    }
+
+    // Runs the device and governor for durationNs, returning the highest thermal status seen after warmupNs
+    private static int simulate(Device device, CaptureGovernor governor, long startNs, long durationNs,
+                                long warmupNs, boolean withHeadroom) {
+        int worst = 0;
+        for (long t = startNs; t < startNs + durationNs; t += TICK_NS) {
+            CaptureGovernor.Rung rung = governor.getRung();
+            device.run(rung, TICK_NS);
+            if (t - startNs >= warmupNs) {
+                worst = Math.max(worst, device.thermalStatus());
+            }
+            governor.update(t, device.thermalStatus(), withHeadroom ? device.headroom() : Float.NaN,
+                    device.battery, device.charging, device.fps(rung));
+        }
+        return worst;
+    }
+
+    @Test
+    public void defaultLadderStepsBitrateThenFrameRateThenResolution() {
+        List<CaptureGovernor.Rung> ladder = ladder();
+        assertEquals(6, ladder.size());
+        assertEquals("10000000bps 30fps 1920x1080", ladder.get(0).toString());
+        assertEquals("7000000bps 30fps 1920x1080", ladder.get(1).toString());
+        assertEquals("5000000bps 30fps 1920x1080", ladder.get(2).toString());
+        assertEquals("4000000bps 24fps 1920x1080", ladder.get(3).toString());
+        assertEquals("2500000bps 15fps 1920x1080", ladder.get(4).toString());
+        assertEquals("1280x720", ladder.get(5).width + "x" + ladder.get(5).height);
+        assertEquals(15, ladder.get(5).frameRate);
+        assertEquals(3, CaptureGovernor.frameRateRung(ladder));
+        for (int i = 1; i < ladder.size(); i++) {
+            assertTrue(ladder.get(i).bitRate < ladder.get(i - 1).bitRate);
+        }
+    }
+
+    @Test
+    public void coolDeviceStaysAtTheTop() {
+        Device device = new Device();
+        CaptureGovernor governor = governor(ladder());
+        simulate(device, governor, 0, 3600 * SECOND_NS, 0, true);
+        assertEquals(0, governor.getRungIndex());
+        assertEquals(0, governor.getStepsDown());
+    }
+
+    @Test
+    public void hotSessionSettlesBelowSevereAndRecoversWhenCooled() {
+        Device device = new Device();
+        device.ambient = 35;
+        CaptureGovernor governor = governor(ladder());
+        int worst = simulate(device, governor, 0, 3600 * SECOND_NS, 900 * SECOND_NS, true);
+
+        // Full quality would settle at 53 degrees; the governor holds it out of the severe band
+        assertTrue("worst status " + worst, worst < CaptureGovernor.THERMAL_SEVERE);
+        assertTrue(governor.getRungIndex() > 0);
+        assertTrue(governor.getRungIndex() < ladder().size() - 1);
+        // Not flapping between rungs for the whole hour
+        assertTrue("steps " + governor.getStepsDown() + "/" + governor.getStepsUp(),
+                governor.getStepsDown() + governor.getStepsUp() < 20);
+
+        device.ambient = 15;
+        simulate(device, governor, 3600 * SECOND_NS, 3600 * SECOND_NS, 0, true);
+        assertEquals(0, governor.getRungIndex());
+        assertEquals("headroom", governor.getReason());
+    }
+
+    @Test
+    public void statusAloneIsEnoughWithoutHeadroom() {
+        // Before API 30 there is no headroom forecast, only the thermal status
+        Device device = new Device();
+        device.ambient = 35;
+        CaptureGovernor governor = governor(ladder());
+        int worst = simulate(device, governor, 0, 3600 * SECOND_NS, 1200 * SECOND_NS, false);
+        assertTrue("worst status " + worst, worst < CaptureGovernor.THERMAL_SEVERE);
+    }
+
+    @Test
+    public void stepsDownInLadderOrder() {
+        CaptureGovernor governor = governor(ladder());
+        long t = 0;
+        governor.update(t, CaptureGovernor.THERMAL_NONE, Float.NaN, -1, true, 30);
+        int last = 0;
+        for (int i = 0; i < 10; i++) {
+            t += 30 * SECOND_NS;
+            governor.update(t, CaptureGovernor.THERMAL_MODERATE, Float.NaN, -1, true, 30);
+            assertTrue(governor.getRungIndex() == last + 1 || governor.getRungIndex() == ladder().size() - 1);
+            last = governor.getRungIndex();
+        }
+        assertEquals(ladder().size() - 1, governor.getRungIndex());
+        assertEquals("thermal moderate", governor.getReason());
+    }
+
+    @Test
+    public void moderateWaitsForTheDwellTimeSevereDoesNot() {
+        CaptureGovernor governor = governor(ladder());
+        governor.update(0, CaptureGovernor.THERMAL_NONE, Float.NaN, -1, true, 30);
+        assertFalse(governor.update(10 * SECOND_NS, CaptureGovernor.THERMAL_MODERATE, Float.NaN, -1, true, 30));
+        assertTrue(governor.update(20 * SECOND_NS, CaptureGovernor.THERMAL_MODERATE, Float.NaN, -1, true, 30));
+        assertFalse(governor.update(24 * SECOND_NS, CaptureGovernor.THERMAL_SEVERE, Float.NaN, -1, true, 30));
+        assertTrue(governor.update(25 * SECOND_NS, CaptureGovernor.THERMAL_SEVERE, Float.NaN, -1, true, 30));
+        assertEquals(2, governor.getRungIndex());
+        assertTrue(governor.update(30 * SECOND_NS, CaptureGovernor.THERMAL_CRITICAL, Float.NaN, -1, true, 30));
+        assertEquals(4, governor.getRungIndex());
+    }
+
+    @Test
+    public void halFrameRateThrottlingStepsDown() {
+        CaptureGovernor governor = governor(ladder());
+        long t = 0;
+        for (int i = 0; i < 6; i++, t += TICK_NS) {
+            governor.update(t, CaptureGovernor.THERMAL_LIGHT, Float.NaN, -1, true, 22);
+        }
+        assertEquals(1, governor.getRungIndex());
+        assertEquals("frame rate 22 below 30", governor.getReason());
+    }
+
+    @Test
+    public void lowFrameRateWhileCoolIsIgnored() {
+        // Low light: auto-exposure halves the frame rate, no reason to lower quality
+        CaptureGovernor governor = governor(ladder());
+        for (long t = 0; t < 600 * SECOND_NS; t += TICK_NS) {
+            governor.update(t, CaptureGovernor.THERMAL_NONE, 0.3f, -1, true, 15);
+        }
+        assertEquals(0, governor.getRungIndex());
+    }
+
+    @Test
+    public void lowBatteryCapsTheRungUntilCharging() {
+        CaptureGovernor governor = governor(ladder());
+        assertTrue(governor.update(0, CaptureGovernor.THERMAL_NONE, Float.NaN, 12, false, 30));
+        assertEquals(3, governor.getRungIndex());
+        assertEquals("battery 12%", governor.getReason());
+
+        // Headroom alone does not lift the cap
+        assertFalse(governor.update(300 * SECOND_NS, CaptureGovernor.THERMAL_NONE, Float.NaN, 12, false, 24));
+        assertTrue(governor.update(310 * SECOND_NS, CaptureGovernor.THERMAL_NONE, Float.NaN, 4, false, 24));
+        assertEquals(5, governor.getRungIndex());
+
+        assertFalse(governor.update(320 * SECOND_NS, CaptureGovernor.THERMAL_NONE, Float.NaN, 4, true, 15));
+        assertTrue(governor.update(400 * SECOND_NS, CaptureGovernor.THERMAL_NONE, Float.NaN, 4, true, 15));
+        assertEquals(4, governor.getRungIndex());
+    }
+
+    @Test
+    public void failedStepUpDoublesTheWait() {
+        CaptureGovernor governor = governor(ladder());
+        governor.update(0, CaptureGovernor.THERMAL_NONE, Float.NaN, -1, true, 30);
+        governor.update(20 * SECOND_NS, CaptureGovernor.THERMAL_MODERATE, Float.NaN, -1, true, 30);
+        assertEquals(1, governor.getRungIndex());
+        assertTrue(governor.update(80 * SECOND_NS, CaptureGovernor.THERMAL_NONE, Float.NaN, -1, true, 30));
+        assertEquals(0, governor.getRungIndex());
+        assertTrue(governor.update(100 * SECOND_NS, CaptureGovernor.THERMAL_MODERATE, Float.NaN, -1, true, 30));
+        assertEquals(120 * SECOND_NS, governor.getUpDwellNs());
+
+        assertFalse(governor.update(200 * SECOND_NS, CaptureGovernor.THERMAL_NONE, Float.NaN, -1, true, 30));
+        assertTrue(governor.update(220 * SECOND_NS, CaptureGovernor.THERMAL_NONE, Float.NaN, -1, true, 30));
+    }
+}
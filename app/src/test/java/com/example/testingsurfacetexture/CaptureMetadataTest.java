@@ -0,0 +1,221 @@
+package com.example.testingsurfacetexture;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class CaptureMetadataTest {
+    private static final long FRAME_NS = 33333333L;
+    private static final long START_NS = 5000000000L;
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    // Runs tasks only when asked, like a storage thread that has fallen behind
+    private static class QueuedExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            for (int i = 0; i < tasks.size(); i++) {
+                tasks.get(i).run();
+            }
+            tasks.clear();
+        }
+    }
+
+    private static final ByteBuffer DATA = ByteBuffer.allocate(16);
+
+    private static void sample(CaptureMetadataWriter writer, SampleInfo info, long ptsUs, int size, int flags) {
+        info.set(0, size, ptsUs, flags);
+        writer.onSample(DATA, info);
+    }
+
+    private static CaptureMetadata readBack(ByteArrayOutputStream out) throws IOException {
+        return CaptureMetadata.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    @Test
+    public void roundTripsColumnsAcrossBlocks() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CaptureMetadataWriter writer = new CaptureMetadataWriter(new NullSink(), out, 64, DIRECT);
+        SampleInfo info = new SampleInfo();
+        for (int i = 0; i < 1000; i++) {
+            long timestampNs = START_NS + i * FRAME_NS;
+            writer.onCaptureResult(i, timestampNs, 10000000 + i, FRAME_NS, 100 + i % 700, 0);
+            sample(writer, info, timestampNs / 1000, 2000 + i, i % 30 == 0 ? SampleInfo.FLAG_KEY_FRAME : 0);
+        }
+        writer.onEnd();
+        assertNull(writer.getError());
+        assertEquals(0, writer.getDroppedRecords());
+
+        CaptureMetadata metadata = readBack(out);
+        assertEquals(1000, metadata.frameCount);
+        assertEquals(1000, metadata.sampleCount);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, metadata.frameNumbers[i]);
+            assertEquals(START_NS + i * FRAME_NS, metadata.timestampsNs[i]);
+            assertEquals(10000000 + i, metadata.exposuresNs[i]);
+            assertEquals(FRAME_NS, metadata.frameDurationsNs[i]);
+            assertEquals(100 + i % 700, metadata.sensitivities[i]);
+            assertEquals((START_NS + i * FRAME_NS) / 1000, metadata.samplePtsUs[i]);
+            assertEquals(2000 + i, metadata.sampleSizes[i]);
+        }
+        assertEquals(SampleInfo.FLAG_KEY_FRAME, metadata.sampleFlags[30]);
+
+        CaptureMetadata.Alignment alignment = metadata.align();
+        assertEquals(1000, alignment.matchedSamples);
+        assertEquals(0, alignment.offsetNs, 1000);
+        assertEquals(0, alignment.encoderDrops);
+        assertEquals(0, alignment.sensorDrops);
+        assertEquals(0, alignment.missingResults);
+    }
+
+    // 900 frames with timestamp jitter and a clock offset between sensor and encoder: frame 500
+    // fails, the result for frame 600 never arrives, the sensor skips two frames after frame 300
+    // and the encoder drops frames 700 and 701
+    @Test
+    public void alignsSamplesAndCountsDropsBySource() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CaptureMetadataWriter writer = new CaptureMetadataWriter(new NullSink(), out, 128, DIRECT);
+        SampleInfo info = new SampleInfo();
+        Random random = new Random(7);
+        long offsetNs = 5000000;
+        long[] frameTimes = new long[900];
+        long timeNs = START_NS;
+        for (int frame = 0; frame < 900; frame++) {
+            timeNs += FRAME_NS;
+            if (frame == 301) {
+                timeNs += 2 * FRAME_NS;
+            }
+            long timestampNs = timeNs + random.nextInt(400000) - 200000;
+            frameTimes[frame] = timestampNs;
+            long frameNumber = 1000 + frame;
+            if (frame == 500) {
+                writer.onCaptureResult(frameNumber, 0, 0, 0, 0, CaptureMetadataWriter.FLAG_FAILED);
+                continue;
+            }
+            if (frame != 600) {
+                writer.onCaptureResult(frameNumber, timestampNs, 8000000, FRAME_NS, 200, 0);
+            }
+            if (frame != 700 && frame != 701) {
+                sample(writer, info, (timestampNs + offsetNs) / 1000, 1000, 0);
+            }
+        }
+        writer.onEnd();
+
+        CaptureMetadata metadata = readBack(out);
+        CaptureMetadata.Alignment alignment = metadata.align();
+        assertEquals(offsetNs, alignment.offsetNs, 1000);
+        assertEquals(FRAME_NS, alignment.frameIntervalNs, 400000);
+        assertEquals(2, alignment.sensorDrops);
+        assertEquals(2, alignment.missingResults);
+        assertEquals(2, alignment.encoderDrops);
+        // The sample of frame 600 has no result to join
+        assertEquals(metadata.sampleCount - 1, alignment.matchedSamples);
+
+        for (int s = 0; s < metadata.sampleCount; s++) {
+            int frame = alignment.sampleFrames[s];
+            if (frame < 0) {
+                assertEquals((frameTimes[600] + offsetNs) / 1000, metadata.samplePtsUs[s]);
+                continue;
+            }
+            long captured = metadata.frameNumbers[frame] - 1000;
+            assertEquals((frameTimes[(int) captured] + offsetNs) / 1000, metadata.samplePtsUs[s]);
+        }
+    }
+
+    @Test
+    public void keepsCompleteRowsOfTruncatedFile() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CaptureMetadataWriter writer = new CaptureMetadataWriter(new NullSink(), out, 100, DIRECT);
+        for (int i = 0; i < 250; i++) {
+            writer.onCaptureResult(i, START_NS + i * FRAME_NS, 0, FRAME_NS, 100, 0);
+        }
+        writer.onEnd();
+        byte[] file = out.toByteArray();
+
+        // Cuts the last block's flags column short by two and a half values
+        CaptureMetadata metadata = CaptureMetadata.read(new ByteArrayInputStream(Arrays.copyOf(file, file.length - 10)));
+        assertEquals(247, metadata.frameCount);
+        assertEquals(246, metadata.frameNumbers[246]);
+        assertEquals(START_NS + 246 * FRAME_NS, metadata.timestampsNs[246]);
+    }
+
+    @Test
+    public void dropsRecordsWhileStorageIsBehind() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        QueuedExecutor executor = new QueuedExecutor();
+        CaptureMetadataWriter writer = new CaptureMetadataWriter(new NullSink(), out, 10, executor);
+        for (int i = 0; i < 25; i++) {
+            writer.onCaptureResult(i, START_NS + i * FRAME_NS, 0, FRAME_NS, 100, 0);
+        }
+        assertEquals(5, writer.getDroppedRecords());
+
+        executor.runAll();
+        for (int i = 25; i < 30; i++) {
+            writer.onCaptureResult(i, START_NS + i * FRAME_NS, 0, FRAME_NS, 100, 0);
+        }
+        writer.onEnd();
+        executor.runAll();
+
+        CaptureMetadata metadata = readBack(out);
+        assertEquals(25, metadata.frameCount);
+        assertEquals(19, metadata.frameNumbers[19]);
+        assertEquals(25, metadata.frameNumbers[20]);
+        assertEquals(5, metadata.align().missingResults);
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() throws IOException {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        OutputStream discard = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        CaptureMetadataWriter writer = new CaptureMetadataWriter(new NullSink(), discard, 256, DIRECT);
+        SampleInfo info = new SampleInfo();
+        for (int i = 0; i < 20000; i++) {
+            writer.onCaptureResult(i, i * FRAME_NS, 10000000, FRAME_NS, 400, 0);
+            sample(writer, info, i * FRAME_NS / 1000, 1000, 0);
+        }
+
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 20000; i < 120000; i++) {
+            writer.onCaptureResult(i, i * FRAME_NS, 10000000, FRAME_NS, 400, 0);
+            sample(writer, info, i * FRAME_NS / 1000, 1000, 0);
+        }
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        assertTrue("allocated " + allocated, allocated < 4096);
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.testingsurfacetexture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+// Simulates long captures on the virtual clock; an hour of 30 fps capture runs in about a second.
+public class CapturePipelineSoakTest {
+    private static final long SECOND_NS = 1000000000L;
+    private static final long MS_NS = 1000000L;
+    private static final long HOUR_NS = 3600 * SECOND_NS;
+
+    @Test
+    public void threeHourCaptureWithJitterSpikesAndStalls() {
+        VirtualClock clock = new VirtualClock(0);
+        SyntheticFrameSource source = new SyntheticFrameSource(clock, 30, 4 * MS_NS, 42);
+        FakeVideoEncoder encoder = new FakeVideoEncoder(clock, 42)
+                .encodeLatency(6 * MS_NS, 12 * MS_NS)
+                .spikes(0.01, 4)
+                .stalls(1800, 250 * MS_NS);
+        RecordingSink sink = new RecordingSink();
+        CapturePipeline pipeline = new CapturePipeline(source, encoder, sink, clock);
+
+        pipeline.start();
+        long maxLatencyPerHour = 0;
+        for (int hour = 0; hour < 3; hour++) {
+            clock.runFor(HOUR_NS);
+            PipelineStats stats = pipeline.getStats();
+            // Throughput must not degrade over time
+            assertEquals(30, stats.getFrameRate(), 0.5);
+            assertTrue(stats.getMaxLatencyNs() >= maxLatencyPerHour);
+            maxLatencyPerHour = stats.getMaxLatencyNs();
+            // The event queue only ever holds the next frame and frames inside the encoder
+            assertTrue(clock.pendingEvents() <= 1 + 4);
+        }
+        source.stop();
+        clock.runFor(SECOND_NS);
+        pipeline.stop();
+
+        PipelineStats stats = pipeline.getStats();
+        assertEquals(3 * 3600 * 30, stats.getFramesCaptured(), 2);
+        assertEquals(stats.getFramesCaptured(), stats.getSamplesEncoded() + encoder.getDroppedFrames());
+        // Stalls are shorter than the queue can absorb most of the time; losses stay tiny
+        assertTrue(stats.getFramesDropped() < stats.getFramesCaptured() / 100);
+        assertTrue(stats.getMaxLatencyNs() < 400 * MS_NS);
+        assertTrue(sink.ptsMonotonic);
+        assertTrue(sink.framingValid);
+        assertEquals(sink.samples, stats.getSamplesEncoded());
+    }
+}
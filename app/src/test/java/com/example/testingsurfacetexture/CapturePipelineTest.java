@@ -0,0 +1,124 @@
+package com.example.testingsurfacetexture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CapturePipelineTest {
+    private static final long SECOND_NS = 1000000000L;
+    private static final long MS_NS = 1000000L;
+
+    private VirtualClock clock;
+    private SyntheticFrameSource source;
+    private FakeVideoEncoder encoder;
+    private RecordingSink sink;
+    private CapturePipeline pipeline;
+
+    private void setUp(long seed, long captureJitterNs) {
+        clock = new VirtualClock(1000 * SECOND_NS);
+        source = new SyntheticFrameSource(clock, 30, captureJitterNs, seed);
+        encoder = new FakeVideoEncoder(clock, seed);
+        sink = new RecordingSink();
+        pipeline = new CapturePipeline(source, encoder, sink, clock);
+    }
+
+    private void record(long durationNs) {
+        pipeline.start();
+        clock.runFor(durationNs);
+        // Let the encoder drain what it already accepted before stopping
+        source.stop();
+        clock.runFor(SECOND_NS);
+        pipeline.stop();
+    }
+
+    @Test
+    public void steadyStateEncodesEveryFrameAtTargetBitrate() {
+        setUp(1, 0);
+        record(60 * SECOND_NS);
+
+        PipelineStats stats = pipeline.getStats();
+        assertEquals(1801, stats.getFramesCaptured());
+        assertEquals(stats.getFramesCaptured(), stats.getSamplesEncoded());
+        assertEquals(0, stats.getFramesDropped());
+        assertEquals(61, stats.getKeyFrames());
+        assertEquals(30, stats.getFrameRate(), 0.1);
+        assertEquals(10000000, stats.getBitrate(), 10000000 * 0.05);
+        assertTrue(stats.getMaxLatencyNs() < 2 * source.getFrameIntervalNs());
+        assertTrue(sink.ended);
+        assertTrue(sink.ptsMonotonic);
+        assertTrue(sink.framingValid);
+        assertEquals("video/avc", sink.format.mime);
+    }
+
+    @Test
+    public void captureJitterDoesNotReorderOrDrop() {
+        setUp(2, 10 * MS_NS);
+        encoder.encodeLatency(10 * MS_NS, 15 * MS_NS);
+        record(30 * SECOND_NS);
+
+        PipelineStats stats = pipeline.getStats();
+        assertEquals(0, stats.getFramesDropped());
+        assertTrue(sink.ptsMonotonic);
+        assertTrue(stats.getMaxLatencyNs() >= 10 * MS_NS);
+        assertTrue(stats.getMaxLatencyNs() < 100 * MS_NS);
+    }
+
+    @Test
+    public void stallsDropFramesOnceInputQueueIsFull() {
+        setUp(3, 0);
+        encoder.maxInFlight(4).stalls(300, 500 * MS_NS);
+        record(60 * SECOND_NS);
+
+        PipelineStats stats = pipeline.getStats();
+        // Each 500 ms stall backs up ~15 frames; 4 fit in the queue, the rest are lost
+        long stalls = stats.getFramesCaptured() / 300;
+        assertTrue("dropped " + stats.getFramesDropped(), stats.getFramesDropped() >= stalls * 8);
+        assertTrue("dropped " + stats.getFramesDropped(), stats.getFramesDropped() <= stalls * 14);
+        assertEquals(encoder.getDroppedFrames(), stats.getFramesDropped());
+        assertTrue(stats.getMaxLatencyNs() >= 500 * MS_NS);
+        assertTrue(stats.getMaxLatencyNs() < 700 * MS_NS);
+        assertTrue(sink.ptsMonotonic);
+    }
+
+    @Test
+    public void bitrateSpikesShowUpInAchievedBitrate() {
+        setUp(4, 0);
+        encoder.spikes(0.05, 6);
+        record(60 * SECOND_NS);
+
+        PipelineStats stats = pipeline.getStats();
+        assertTrue(stats.getBitrate() > 12000000);
+        long keyFrameBytes = 10000000 / 8 / 30 * 30 * 4 / 33;
+        assertTrue(stats.getMaxSampleSize() > keyFrameBytes * 2);
+        assertEquals(0, stats.getFramesDropped());
+    }
+
+    @Test
+    public void sameSeedProducesIdenticalStream() {
+        setUp(5, 5 * MS_NS);
+        encoder.spikes(0.02, 3).stalls(90, 200 * MS_NS).encodeLatency(5 * MS_NS, 20 * MS_NS);
+        record(20 * SECOND_NS);
+        long first = sink.checksum();
+        long firstDropped = pipeline.getStats().getFramesDropped();
+
+        setUp(5, 5 * MS_NS);
+        encoder.spikes(0.02, 3).stalls(90, 200 * MS_NS).encodeLatency(5 * MS_NS, 20 * MS_NS);
+        record(20 * SECOND_NS);
+
+        assertEquals(first, sink.checksum());
+        assertEquals(firstDropped, pipeline.getStats().getFramesDropped());
+    }
+
+    @Test
+    public void framesInsideEncoderAtStopAreCountedAsDropped() {
+        setUp(6, 0);
+        encoder.encodeLatency(100 * MS_NS, 0);
+        pipeline.start();
+        clock.runFor(10 * SECOND_NS);
+        pipeline.stop();
+
+        PipelineStats stats = pipeline.getStats();
+        assertTrue(stats.getFramesDropped() > 0);
+        assertEquals(encoder.getDroppedFrames(), stats.getFramesDropped());
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.testingsurfacetexture;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class EncoderProfileTest {
+    private static final String PROFILES = ""
+            + "profile=live\n"
+            + "live.bitrate=4000000\n"
+            + "live.frame_rate=60\n"
+            + "live.i_frame_interval=0.5\n"
+            + "live.bitrate_mode=cbr\n"
+            + "live.avc_profile=baseline\n"
+            + "live.intra_refresh_period=60\n"
+            + "live.priority=realtime\n"
+            + "store.bitrate=8000000\n"
+            + "store.frame_rate=30\n"
+            + "store.i_frame_interval=5\n"
+            + "store.bitrate_mode=vbr\n"
+            + "store.avc_profile=high\n"
+            + "store.avc_level=4.1\n"
+            + "store.max_b_frames=2\n";
+
+    private static Map<String, EncoderProfile> load(String text) throws IOException {
+        return EncoderProfile.load(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static EncoderCapabilities capabilities(boolean cbr, int[][] profileLevels, boolean intraRefresh) {
+        return new EncoderCapabilities(64000, 20000000, 30, new boolean[]{false, true, cbr}, profileLevels, intraRefresh);
+    }
+
+    @Test
+    public void parsesAllProfiles() throws IOException {
+        Map<String, EncoderProfile> profiles = load(PROFILES);
+        assertEquals(2, profiles.size());
+
+        EncoderProfile live = profiles.get("live");
+        assertEquals(4000000, live.bitRate);
+        assertEquals(60, live.frameRate);
+        assertEquals(0.5f, live.iFrameIntervalSeconds, 0);
+        assertEquals(EncoderProfile.BITRATE_MODE_CBR, live.bitrateMode);
+        assertEquals(EncoderProfile.AVC_PROFILE_BASELINE, live.avcProfile);
+        assertEquals(EncoderProfile.UNSET, live.avcLevel);
+        assertEquals(EncoderProfile.PRIORITY_REALTIME, live.priority);
+        assertEquals(EncoderProfile.UNSET, live.maxBFrames);
+
+        EncoderProfile store = profiles.get("store");
+        assertEquals(EncoderProfile.AVC_PROFILE_HIGH, store.avcProfile);
+        assertEquals(0x1000, store.avcLevel);
+        assertEquals(2, store.maxBFrames);
+    }
+
+    @Test
+    public void shippedProfilesParseAndValidate() throws IOException {
+        File file = new File("src/main/assets/encoder_profiles.properties");
+        if (!file.exists()) {
+            file = new File("app/src/main/assets/encoder_profiles.properties");
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            Map<String, EncoderProfile> profiles = EncoderProfile.load(in);
+            assertTrue(profiles.containsKey("default"));
+            assertTrue(profiles.containsKey("low_latency"));
+            assertTrue(profiles.containsKey("archive"));
+            for (EncoderProfile profile : profiles.values()) {
+                assertEquals(profile.name, 0, profile.validate(EncoderCapabilities.ANY).size());
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingRequiredKeyIsRejected() throws IOException {
+        load("broken.bitrate=1000000\nbroken.frame_rate=30\n");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownEnumValueIsRejected() throws IOException {
+        load("broken.bitrate=1000000\nbroken.frame_rate=30\nbroken.i_frame_interval=1\nbroken.bitrate_mode=abr\n");
+    }
+
+    @Test
+    public void validationReportsUnsupportedSettings() throws IOException {
+        EncoderProfile live = load(PROFILES).get("live");
+        EncoderCapabilities caps = capabilities(false, new int[][]{{EncoderProfile.AVC_PROFILE_HIGH, 0x800}}, false);
+
+        List<String> problems = live.validate(caps);
+        // frame rate, bitrate mode, profile, intra refresh
+        assertEquals(problems.toString(), 4, problems.size());
+
+        EncoderProfile clamped = live.clampTo(caps);
+        assertEquals(0, clamped.validate(caps).size());
+        assertEquals(30, clamped.frameRate);
+        assertEquals(EncoderProfile.UNSET, clamped.bitrateMode);
+        assertEquals(EncoderProfile.UNSET, clamped.avcProfile);
+        assertEquals(EncoderProfile.UNSET, clamped.intraRefreshPeriod);
+        assertEquals(EncoderProfile.PRIORITY_REALTIME, clamped.priority);
+    }
+
+    @Test
+    public void levelIsClampedToProfileMaximum() throws IOException {
+        EncoderProfile store = load(PROFILES).get("store");
+        EncoderCapabilities caps = capabilities(true, new int[][]{{EncoderProfile.AVC_PROFILE_HIGH, 0x800}}, true);
+
+        assertEquals(1, store.validate(caps).size());
+        EncoderProfile clamped = store.clampTo(caps);
+        assertEquals(0x800, clamped.avcLevel);
+        assertEquals(0, clamped.validate(caps).size());
+    }
+
+    @Test
+    public void baselineWithBFramesIsInvalid() {
+        EncoderProfile profile = new EncoderProfile("b", 1000000, 30, 1, EncoderProfile.UNSET,
+                EncoderProfile.AVC_PROFILE_BASELINE, EncoderProfile.UNSET, EncoderProfile.UNSET, 2,
+                EncoderProfile.UNSET, EncoderProfile.UNSET, EncoderProfile.UNSET);
+        assertEquals(1, profile.validate(EncoderCapabilities.ANY).size());
+        assertEquals(0, profile.clampTo(EncoderCapabilities.ANY).maxBFrames);
+    }
+
+    @Test
+    public void bitrateIsClampedToEncoderRange() {
+        EncoderProfile profile = EncoderProfile.defaults("d", 50000000, 30, 1);
+        EncoderCapabilities caps = capabilities(true, null, true);
+        assertEquals(1, profile.validate(caps).size());
+        assertEquals(20000000, profile.clampTo(caps).bitRate);
+        assertEquals(64000, profile.withBitRate(1000).clampTo(caps).bitRate);
+    }
+
+    @Test
+    public void clampingTheSameProfileTwiceGivesEqualProfiles() throws IOException {
+        // The prewarmed encoder is reused only when its profile equals the one asked for
+        EncoderProfile store = load(PROFILES).get("store");
+        EncoderCapabilities caps = capabilities(true, null, true);
+        assertEquals(store.clampTo(caps), store.withBitRate(store.bitRate).clampTo(caps));
+        assertEquals(store.clampTo(caps).hashCode(), store.clampTo(caps).hashCode());
+        assertNotEquals(store, store.withBitRate(store.bitRate / 2));
+        assertNotEquals(store, store.withFrameRate(store.frameRate + 1));
+        assertEquals(0, store.withMaxBFrames(0).maxBFrames);
+        assertEquals(store, store.withMaxBFrames(0).withMaxBFrames(store.maxBFrames));
+    }
+
+    @Test
+    public void runtimeParametersApplyWithoutRestart() {
+        long secondNs = 1000000000L;
+        VirtualClock clock = new VirtualClock(0);
+        SyntheticFrameSource source = new SyntheticFrameSource(clock, 30, 0, 1);
+        FakeVideoEncoder encoder = new FakeVideoEncoder(clock, 1);
+        RecordingSink recording = new RecordingSink();
+        CapturePipeline pipeline = new CapturePipeline(source, encoder, recording, clock);
+        pipeline.start();
+        clock.runFor(5 * secondNs);
+        long keyFramesBefore = recording.keyFrames;
+
+        encoder.requestKeyFrame();
+        clock.runFor(secondNs / 60);
+        assertEquals(keyFramesBefore + 1, recording.keyFrames);
+
+        long bytesBefore = pipeline.getStats().getBytesEncoded();
+        encoder.setBitRate(2000000);
+        clock.runFor(10 * secondNs);
+        double bitRate = (pipeline.getStats().getBytesEncoded() - bytesBefore) * 8 / 10.0;
+        assertEquals(2000000, bitRate, 2000000 * 0.1);
+
+        long encodedBefore = pipeline.getStats().getSamplesEncoded();
+        encoder.setSuspended(true);
+        clock.runFor(2 * secondNs);
+        assertEquals(encodedBefore + 1, pipeline.getStats().getSamplesEncoded(), 1);
+        encoder.setSuspended(false);
+        clock.runFor(secondNs);
+        assertTrue(pipeline.getStats().getSamplesEncoded() > encodedBefore + 25);
+        pipeline.stop();
+    }
+}
@@ -0,0 +1,350 @@
+package com.example.testingsurfacetexture;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import javax.crypto.SecretKey;
+
+import static org.junit.Assert.*;
+
+public class EncryptedSegmentWriterTest {
+    private static final long FRAME_US = 33333;
+    private static final TrackFormat FORMAT = new TrackFormat("video/avc", 3840, 2160,
+            ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x67, 0x64, 0, 0x33}), ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x68, (byte) 0xee}));
+
+    // Keeps every segment in memory
+    private static class MemoryOutput implements EncryptedSegmentWriter.SegmentOutput {
+        final List<ByteArrayOutputStream> segments = new ArrayList<>();
+
+        @Override
+        public WritableByteChannel open(int segment) {
+            assertEquals(segments.size(), segment);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            segments.add(out);
+            return Channels.newChannel(out);
+        }
+    }
+
+    // A file that is synced when it is closed, so the write is timed all the way to the disk
+    private static class SyncedFileChannel implements WritableByteChannel {
+        final FileChannel channel;
+
+        SyncedFileChannel(File file) throws IOException {
+            channel = new FileOutputStream(file).getChannel();
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.force(false);
+            channel.close();
+        }
+    }
+
+    private static class ChecksumSink implements SampleSink {
+        final List<TrackFormat> formats = new ArrayList<>();
+        final CRC32 crc = new CRC32();
+        long samples;
+        long firstPtsUs = -1;
+        boolean startsWithKeyFrame;
+
+        @Override
+        public void onFormat(TrackFormat format) {
+            formats.add(format);
+        }
+
+        @Override
+        public void onSample(ByteBuffer data, SampleInfo info) {
+            if (samples == 0) {
+                firstPtsUs = info.presentationTimeUs;
+                startsWithKeyFrame = info.isKeyFrame();
+            }
+            samples++;
+            update(crc, data, info);
+        }
+
+        @Override
+        public void onEnd() {
+        }
+    }
+
+    private static void update(CRC32 crc, ByteBuffer data, SampleInfo info) {
+        ByteBuffer copy = data.duplicate();
+        while (copy.hasRemaining()) {
+            crc.update(copy.get());
+        }
+        crc.update((int) info.presentationTimeUs);
+        crc.update(info.flags);
+    }
+
+    private static KeyWrapper newMasterKey(SecureRandom random) throws GeneralSecurityException {
+        return new KeyWrapper(KeyWrapper.newDataKey(random));
+    }
+
+    private static EncryptedSegmentWriter newWriter(EncryptedSegmentWriter.SegmentOutput output, KeyWrapper master,
+                                                    long segmentUs, SecureRandom random) throws GeneralSecurityException {
+        SecretKey dataKey = KeyWrapper.newDataKey(random);
+        return new EncryptedSegmentWriter(output, dataKey, master.wrap(dataKey), 90, segmentUs, random);
+    }
+
+    // One-second GOPs with random payloads, as a codec would hand them out in direct buffers
+    private static ByteBuffer[] frames(int count, int keyFrameSize, int frameSize, long seed) {
+        Random random = new Random(seed);
+        ByteBuffer[] frames = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[i % 30 == 0 ? keyFrameSize : frameSize];
+            random.nextBytes(bytes);
+            frames[i] = ByteBuffer.allocateDirect(bytes.length);
+            frames[i].put(bytes).flip();
+        }
+        return frames;
+    }
+
+    private static int flags(int frame) {
+        return frame % 30 == 0 ? SampleInfo.FLAG_KEY_FRAME : 0;
+    }
+
+    @Test
+    public void roundTripsSegmentsSplitAtKeyFrames() throws Exception {
+        SecureRandom random = new SecureRandom();
+        KeyWrapper master = newMasterKey(random);
+        MemoryOutput output = new MemoryOutput();
+        EncryptedSegmentWriter writer = newWriter(output, master, 300 * FRAME_US, random);
+        ByteBuffer[] frames = frames(35 * 30, 4000, 1000, 1);
+        CRC32 written = new CRC32();
+        SampleInfo info = new SampleInfo();
+
+        writer.onFormat(FORMAT);
+        for (int i = 0; i < frames.length; i++) {
+            info.set(0, frames[i].remaining(), i * FRAME_US, flags(i));
+            writer.onSample(frames[i], info);
+            update(written, frames[i], info);
+        }
+        writer.onEnd();
+
+        assertNull(writer.getError());
+        assertEquals(0, writer.getDroppedSamples());
+        assertEquals(4, writer.getSegments());
+        assertEquals(4, output.segments.size());
+
+        EncryptedSegmentReader reader = new EncryptedSegmentReader(master);
+        ChecksumSink all = new ChecksumSink();
+        List<byte[]> ivs = new ArrayList<>();
+        long total = 0;
+        for (int s = 0; s < output.segments.size(); s++) {
+            byte[] bytes = output.segments.get(s).toByteArray();
+            total += bytes.length;
+            // The codec config is not in the clear
+            assertEquals(-1, indexOf(bytes, FORMAT.mime.getBytes()));
+
+            ChecksumSink segment = new ChecksumSink();
+            reader.read(new ByteArrayInputStream(bytes), segment);
+            assertEquals(s, reader.getSegment());
+            assertEquals(90, reader.getOrientation());
+            // Each segment stands alone: its own format, starting at a key frame on the 10 s grid
+            assertEquals(1, segment.formats.size());
+            assertEquals(3840, segment.formats.get(0).width);
+            assertEquals(FORMAT.getCsd1(), segment.formats.get(0).getCsd1());
+            assertTrue(segment.startsWithKeyFrame);
+            assertEquals(s * 300 * FRAME_US, segment.firstPtsUs);
+
+            reader.read(new ByteArrayInputStream(bytes), all);
+            int headerSize = 4 + 1 + 2 + (((bytes[5] & 0xff) << 8) | (bytes[6] & 0xff));
+            ivs.add(Arrays.copyOfRange(bytes, headerSize, headerSize + EncryptedSegmentWriter.IV_SIZE));
+        }
+        assertEquals(frames.length, all.samples);
+        assertEquals(written.getValue(), all.crc.getValue());
+        assertEquals(total, writer.getBytesWritten());
+        for (int i = 0; i < ivs.size(); i++) {
+            for (int j = i + 1; j < ivs.size(); j++) {
+                assertFalse(Arrays.equals(ivs.get(i), ivs.get(j)));
+            }
+        }
+    }
+
+    @Test
+    public void leavesTheSharedBufferAlone() throws Exception {
+        SecureRandom random = new SecureRandom();
+        EncryptedSegmentWriter writer = newWriter(new MemoryOutput(), newMasterKey(random), 10000000, random);
+        writer.onFormat(FORMAT);
+        ByteBuffer data = ByteBuffer.allocateDirect(64);
+        for (int i = 0; i < 64; i++) {
+            data.put((byte) i);
+        }
+        data.position(8).limit(40);
+        SampleInfo info = new SampleInfo();
+        info.set(8, 32, 0, SampleInfo.FLAG_KEY_FRAME);
+        writer.onSample(data, info);
+
+        // A tee hands the same buffer to the next sink
+        assertEquals(8, data.position());
+        assertEquals(40, data.limit());
+        for (int i = 8; i < 40; i++) {
+            assertEquals(i, data.get(i));
+        }
+    }
+
+    @Test
+    public void samplesBeforeTheFirstKeyFrameAreDropped() throws Exception {
+        SecureRandom random = new SecureRandom();
+        MemoryOutput output = new MemoryOutput();
+        EncryptedSegmentWriter writer = newWriter(output, newMasterKey(random), 10000000, random);
+        writer.onFormat(FORMAT);
+        SampleInfo info = new SampleInfo();
+        ByteBuffer data = ByteBuffer.allocate(16);
+        info.set(0, 16, 0, 0);
+        writer.onSample(data, info);
+        assertEquals(0, output.segments.size());
+        info.set(0, 16, FRAME_US, SampleInfo.FLAG_KEY_FRAME);
+        writer.onSample(data.duplicate(), info);
+        assertEquals(1, output.segments.size());
+        assertEquals(1, writer.getDroppedSamples());
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void anotherMasterKeyCannotUnwrap() throws Exception {
+        SecureRandom random = new SecureRandom();
+        MemoryOutput output = new MemoryOutput();
+        EncryptedSegmentWriter writer = newWriter(output, newMasterKey(random), 10000000, random);
+        writer.onFormat(FORMAT);
+        SampleInfo info = new SampleInfo();
+        info.set(0, 16, 0, SampleInfo.FLAG_KEY_FRAME);
+        writer.onSample(ByteBuffer.allocate(16), info);
+        writer.onEnd();
+
+        new EncryptedSegmentReader(newMasterKey(random))
+                .read(new ByteArrayInputStream(output.segments.get(0).toByteArray()), new ChecksumSink());
+    }
+
+    @Test
+    public void writeErrorsDropSamplesInsteadOfThrowing() throws Exception {
+        SecureRandom random = new SecureRandom();
+        EncryptedSegmentWriter writer = newWriter(new EncryptedSegmentWriter.SegmentOutput() {
+            @Override
+            public WritableByteChannel open(int segment) throws IOException {
+                throw new IOException("disk full");
+            }
+        }, newMasterKey(random), 10000000, random);
+        writer.onFormat(FORMAT);
+        SampleInfo info = new SampleInfo();
+        for (int i = 0; i < 10; i++) {
+            info.set(0, 16, i * FRAME_US, flags(i));
+            writer.onSample(ByteBuffer.allocate(16), info);
+        }
+        writer.onEnd();
+        assertEquals("disk full", writer.getError().getMessage());
+        assertEquals(10, writer.getDroppedSamples());
+    }
+
+    // 4K at 100 Mbps, 30 fps with one-second GOPs. Encrypting a second of video may only add 5% of a
+    // second to writing it in the clear to a file, so the storage thread keeps its headroom. Timing
+    // depends on the machine and its disk, so it only runs with -Pbenchmarks=true.
+    @Test
+    public void encryptionKeepsUpWith4kBitrates() throws Exception {
+        if (!Boolean.getBoolean("benchmarks")) {
+            return;
+        }
+        int seconds = 10;
+        ByteBuffer[] frames = frames(seconds * 30, 1200000, 375000, 2);
+        long bytes = 0;
+        for (ByteBuffer frame : frames) {
+            bytes += frame.remaining();
+        }
+        assertEquals(100e6, bytes * 8.0 / seconds, 10e6);
+
+        final File directory = File.createTempFile("segments", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        SecureRandom random = new SecureRandom();
+        KeyWrapper master = newMasterKey(random);
+        long plainNs = Long.MAX_VALUE;
+        long encryptedNs = Long.MAX_VALUE;
+        try {
+            // Best of several runs, after the first few have warmed the JIT up
+            for (int run = 0; run < 8; run++) {
+                File plain = new File(directory, "plain");
+                long start = System.nanoTime();
+                try (SyncedFileChannel channel = new SyncedFileChannel(plain)) {
+                    for (ByteBuffer frame : frames) {
+                        ByteBuffer data = frame.duplicate();
+                        while (data.hasRemaining()) {
+                            channel.write(data);
+                        }
+                    }
+                }
+                plainNs = Math.min(plainNs, System.nanoTime() - start);
+                assertEquals(bytes, plain.length());
+                assertTrue(plain.delete());
+
+                EncryptedSegmentWriter writer = newWriter(new EncryptedSegmentWriter.SegmentOutput() {
+                    @Override
+                    public WritableByteChannel open(int segment) throws IOException {
+                        return new SyncedFileChannel(new File(directory, "segment_" + segment));
+                    }
+                }, master, 2000000, random);
+                SampleInfo info = new SampleInfo();
+                start = System.nanoTime();
+                writer.onFormat(FORMAT);
+                for (int i = 0; i < frames.length; i++) {
+                    info.set(0, frames[i].remaining(), i * FRAME_US, flags(i));
+                    writer.onSample(frames[i], info);
+                }
+                writer.onEnd();
+                encryptedNs = Math.min(encryptedNs, System.nanoTime() - start);
+                assertNull(writer.getError());
+                long written = 0;
+                for (File segment : directory.listFiles()) {
+                    written += segment.length();
+                    assertTrue(segment.delete());
+                }
+                assertTrue(written > bytes);
+            }
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+        double overhead = (encryptedNs - plainNs) / (seconds * 1e9);
+        assertTrue("plain " + plainNs / 1000000 + " ms, encrypted " + encryptedNs / 1000000 + " ms for "
+                + seconds + " s of video", overhead < 0.05);
+    }
+
+    private static int indexOf(byte[] haystack, byte[] needle) {
+        outer:
+        for (int i = 0; i + needle.length <= haystack.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (haystack[i + j] != needle[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
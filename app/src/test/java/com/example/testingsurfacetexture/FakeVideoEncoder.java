@@ -0,0 +1,359 @@
+package com.example.testingsurfacetexture;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+// Deterministic stand-in for a hardware H.264 encoder. Frames are encoded one at a time
+// on the virtual clock; while the encoder is busy up to maxInFlight frames queue up and
+// anything beyond that is dropped, like a codec that runs out of input buffers. Faults can be
+// injected: a recoverable or fatal one breaks the encoder until it is reset or released.
+class FakeVideoEncoder implements VideoEncoder, SelfHealingEncoder.Resettable {
+    // How much the picture changes per frame interval, 1 for full motion
+    interface Scene {
+        double activity(long timestampNs);
+    }
+
+    static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x28, (byte) 0xda, 0x01, (byte) 0xe0, 0x08, (byte) 0x9f, (byte) 0x96};
+    static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x0f, (byte) 0xc8};
+    static final int NAL_IDR = 0x65;
+    static final int NAL_NON_IDR = 0x41;
+
+    private final VirtualClock clock;
+    private final Random random;
+    private int width = 1920;
+    private int height = 1080;
+    private int bitRate = 10000000;
+    private int frameRate = 30;
+    private int gopFrames = 30;
+    private double keyFrameWeight = 4;
+    private double sizeVariation = 0.1;
+    private long encodeLatencyNs = 8000000;
+    private long encodeJitterNs;
+    private double spikeProbability;
+    private double spikeFactor = 1;
+    private int stallEveryFrames;
+    private long stallDurationNs;
+    private int maxInFlight = 4;
+    private Scene scene;
+    private long lastAcceptedNs = -1;
+    private byte[] sps = SPS;
+    private boolean resetFails;
+    private int bFrames;
+
+    private SampleSink sink;
+    private ErrorListener errorListener;
+    private boolean running;
+    private boolean formatSent;
+    private boolean keyFrameRequested;
+    private boolean suspended;
+    private long acceptedFrames;
+    private long droppedFrames;
+    private boolean broken;
+    private boolean released;
+    private int resets;
+    private long lastCompletionNs;
+    private ByteBuffer output = ByteBuffer.allocate(1 << 16);
+    private final SampleInfo sampleInfo = new SampleInfo();
+
+    // Ring of frames accepted but not yet emitted
+    private long[] pendingPts;
+    private int[] pendingSizes;
+    private int[] pendingFlags;
+    private int pendingHead;
+    private int pendingCount;
+    // Decode order position in the current GOP, for reordering
+    private int sinceKeyFrame;
+    private long keyFramePtsUs;
+
+    FakeVideoEncoder(VirtualClock clock, long seed) {
+        this.clock = clock;
+        this.random = new Random(seed);
+    }
+
+    FakeVideoEncoder size(int width, int height) {
+        this.width = width;
+        this.height = height;
+        return this;
+    }
+
+    FakeVideoEncoder bitRate(int bitRate) {
+        this.bitRate = bitRate;
+        return this;
+    }
+
+    FakeVideoEncoder frameRate(int frameRate) {
+        this.frameRate = frameRate;
+        return this;
+    }
+
+    FakeVideoEncoder gopFrames(int gopFrames) {
+        this.gopFrames = gopFrames;
+        return this;
+    }
+
+    FakeVideoEncoder keyFrameWeight(double keyFrameWeight) {
+        this.keyFrameWeight = keyFrameWeight;
+        return this;
+    }
+
+    FakeVideoEncoder encodeLatency(long latencyNs, long jitterNs) {
+        this.encodeLatencyNs = latencyNs;
+        this.encodeJitterNs = jitterNs;
+        return this;
+    }
+
+    FakeVideoEncoder spikes(double probability, double factor) {
+        this.spikeProbability = probability;
+        this.spikeFactor = factor;
+        return this;
+    }
+
+    FakeVideoEncoder stalls(int everyFrames, long durationNs) {
+        this.stallEveryFrames = everyFrames;
+        this.stallDurationNs = durationNs;
+        return this;
+    }
+
+    // Makes P frames content dependent, like a VBR encoder: they shrink with the scene's activity
+    // and grow with the frames skipped since the last one, as the budget spreads over fewer frames
+    FakeVideoEncoder scene(Scene scene) {
+        this.scene = scene;
+        return this;
+    }
+
+    // Parameter sets other than the default, as a differently configured codec would produce
+    FakeVideoEncoder sps(byte[] sps) {
+        this.sps = sps;
+        return this;
+    }
+
+    // Makes reset() fail, like a codec that is beyond resetting
+    FakeVideoEncoder resetFails(boolean resetFails) {
+        this.resetFails = resetFails;
+        return this;
+    }
+
+    // Reports the fault as the codec would; all but transient ones stop it encoding
+    void injectFault(EncoderFault.Kind kind) {
+        if (kind != EncoderFault.Kind.TRANSIENT) {
+            broken = true;
+            running = false;
+        }
+        errorListener.onError(new EncoderFault(kind, 0x100, "injected " + kind, null));
+    }
+
+    boolean isReleased() {
+        return released;
+    }
+
+    int getResets() {
+        return resets;
+    }
+
+    FakeVideoEncoder maxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    ErrorListener getErrorListener() {
+        return errorListener;
+    }
+
+    @Override
+    public void setSink(SampleSink sink) {
+        this.sink = sink;
+    }
+
+    @Override
+    public void setErrorListener(ErrorListener listener) {
+        errorListener = listener;
+    }
+
+    @Override
+    public void start() {
+        if (broken || released) {
+            throw new IllegalStateException("start() on a broken encoder");
+        }
+        pendingPts = new long[maxInFlight];
+        pendingSizes = new int[maxInFlight];
+        pendingFlags = new int[maxInFlight];
+        pendingHead = 0;
+        pendingCount = 0;
+        lastCompletionNs = clock.nanoTime();
+        running = true;
+    }
+
+    // Emits frames in decode order with bFrames B frames between references, like a codec with
+    // B frames enabled: each reference comes out before the frames shown ahead of it, so the pts
+    // of the output go back and forth. Assumes frames arrive at the nominal frame rate.
+    FakeVideoEncoder bFrames(int bFrames) {
+        this.bFrames = bFrames;
+        return this;
+    }
+
+    @Override
+    public void onFrameAvailable(long timestampNs) {
+        if (!running) {
+            return;
+        }
+        if (suspended || pendingCount == maxInFlight) {
+            droppedFrames++;
+            return;
+        }
+        boolean keyFrame = acceptedFrames % gopFrames == 0 || keyFrameRequested;
+        keyFrameRequested = false;
+        long encodeNs = encodeLatencyNs;
+        if (encodeJitterNs > 0) {
+            encodeNs += (long) (random.nextDouble() * encodeJitterNs);
+        }
+        if (stallEveryFrames > 0 && acceptedFrames > 0 && acceptedFrames % stallEveryFrames == 0) {
+            encodeNs += stallDurationNs;
+        }
+        acceptedFrames++;
+
+        int tail = (pendingHead + pendingCount) % maxInFlight;
+        pendingPts[tail] = timestampNs / 1000;
+        pendingSizes[tail] = nextSampleSize(keyFrame);
+        if (scene != null) {
+            pendingSizes[tail] = sceneSampleSize(keyFrame, pendingSizes[tail], timestampNs);
+        }
+        pendingFlags[tail] = keyFrame ? SampleInfo.FLAG_KEY_FRAME : 0;
+        pendingCount++;
+
+        // One frame at a time, in submission order
+        lastCompletionNs = Math.max(clock.nanoTime(), lastCompletionNs) + encodeNs;
+        clock.schedule(lastCompletionNs, emitNext);
+    }
+
+    private int nextSampleSize(boolean keyFrame) {
+        // Split the per-GOP budget so that one key frame weighs keyFrameWeight P frames
+        double gopBytes = bitRate / 8.0 / frameRate * gopFrames;
+        double pFrameBytes = gopBytes / (gopFrames - 1 + keyFrameWeight);
+        double size = keyFrame ? pFrameBytes * keyFrameWeight : pFrameBytes;
+        size *= 1 + (random.nextDouble() * 2 - 1) * sizeVariation;
+        if (spikeProbability > 0 && random.nextDouble() < spikeProbability) {
+            size *= spikeFactor;
+        }
+        return Math.max(16, (int) size);
+    }
+
+    private int sceneSampleSize(boolean keyFrame, int size, long timestampNs) {
+        long intervalNs = 1000000000L / frameRate;
+        long spanned = lastAcceptedNs < 0 ? 1 : Math.max(1, Math.min(gopFrames, Math.round((timestampNs - lastAcceptedNs) / (double) intervalNs)));
+        lastAcceptedNs = timestampNs;
+        if (keyFrame) {
+            return size;
+        }
+        return Math.max(16, (int) (size * spanned * Math.min(1, scene.activity(timestampNs))));
+    }
+
+    private final Runnable emitNext = new Runnable() {
+        @Override
+        public void run() {
+            if (!running || pendingCount == 0) {
+                return;
+            }
+            long pts = pendingPts[pendingHead];
+            int size = pendingSizes[pendingHead];
+            int flags = pendingFlags[pendingHead];
+            pendingHead = (pendingHead + 1) % maxInFlight;
+            pendingCount--;
+            if (bFrames > 0) {
+                pts = decodeOrderPts(pts, (flags & SampleInfo.FLAG_KEY_FRAME) != 0);
+            }
+
+            if (!formatSent) {
+                formatSent = true;
+                sink.onFormat(new TrackFormat("video/avc", width, height, ByteBuffer.wrap(sps), ByteBuffer.wrap(PPS)));
+            }
+            if (output.capacity() < size) {
+                output = ByteBuffer.allocate(Integer.highestOneBit(size) << 1);
+            }
+            output.clear();
+            output.putInt(1);
+            output.put((byte) ((flags & SampleInfo.FLAG_KEY_FRAME) != 0 ? NAL_IDR : NAL_NON_IDR));
+            output.putLong(pts);
+            output.position(0);
+            output.limit(size);
+            sampleInfo.set(0, size, pts, flags);
+            sink.onSample(output, sampleInfo);
+        }
+    };
+
+    private long decodeOrderPts(long pts, boolean keyFrame) {
+        if (keyFrame) {
+            sinceKeyFrame = 0;
+            keyFramePtsUs = pts;
+            return pts;
+        }
+        sinceKeyFrame++;
+        // Mini-groups of a reference followed by its B frames; a group cut short by the end of
+        // the GOP stays in display order
+        int group = (sinceKeyFrame - 1) / (bFrames + 1);
+        int reference = (group + 1) * (bFrames + 1);
+        if (reference >= gopFrames) {
+            return pts;
+        }
+        int inGroup = (sinceKeyFrame - 1) % (bFrames + 1);
+        int shown = inGroup == 0 ? reference : group * (bFrames + 1) + inGroup;
+        return keyFramePtsUs + shown * 1000000L / frameRate;
+    }
+
+    @Override
+    public void setBitRate(int bitRate) {
+        this.bitRate = bitRate;
+    }
+
+    @Override
+    public void requestKeyFrame() {
+        keyFrameRequested = true;
+    }
+
+    @Override
+    public void setSuspended(boolean suspended) {
+        this.suspended = suspended;
+    }
+
+    int getBitRate() {
+        return bitRate;
+    }
+
+    @Override
+    public void reset() {
+        if (resetFails || released) {
+            throw new IllegalStateException("reset failed");
+        }
+        // Back to configured: the next frame is a key frame and the format is sent again
+        broken = false;
+        running = false;
+        droppedFrames += pendingCount;
+        pendingCount = 0;
+        acceptedFrames = 0;
+        formatSent = false;
+        resets++;
+    }
+
+    @Override
+    public void stop() {
+        if (broken) {
+            throw new IllegalStateException("stop() on a broken encoder");
+        }
+        // Like MediaCodec.stop(), frames still inside the encoder are discarded
+        running = false;
+        droppedFrames += pendingCount;
+        pendingCount = 0;
+        if (sink != null) {
+            sink.onEnd();
+        }
+    }
+
+    @Override
+    public void release() {
+        running = false;
+        released = true;
+    }
+}
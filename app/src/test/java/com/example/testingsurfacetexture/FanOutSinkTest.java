@@ -0,0 +1,277 @@
+package com.example.testingsurfacetexture;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FanOutSinkTest {
+    private static final int GOP = 5;
+
+    private static class ManualExecutor implements Executor {
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.poll().run();
+            }
+        }
+    }
+
+    // Keeps the pts of every sample and checks its bytes are the ones sent
+    private static class PtsSink implements SampleSink {
+        final List<Long> pts = new ArrayList<>();
+        final List<ByteBuffer> buffers = new ArrayList<>();
+        int formats;
+        int ends;
+        boolean contentValid = true;
+        long sleepMs;
+
+        @Override
+        public synchronized void onFormat(TrackFormat format) {
+            formats++;
+        }
+
+        @Override
+        public void onSample(ByteBuffer data, SampleInfo info) {
+            if (sleepMs > 0) {
+                try {
+                    Thread.sleep(sleepMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized (this) {
+                pts.add(info.presentationTimeUs);
+                buffers.add(data);
+                if (data.remaining() != info.size) {
+                    contentValid = false;
+                }
+                for (int i = 0; i < info.size; i++) {
+                    if (data.get(data.position() + i) != (byte) (info.presentationTimeUs + i)) {
+                        contentValid = false;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public synchronized void onEnd() {
+            ends++;
+        }
+    }
+
+    private static TrackFormat format() {
+        return new TrackFormat("video/avc", 1280, 720, null, null);
+    }
+
+    // A codec buffer with the sample somewhere in the middle
+    private static ByteBuffer sample(long ptsUs, int size) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size + 32);
+        buffer.position(16);
+        for (int i = 0; i < size; i++) {
+            buffer.put((byte) (ptsUs + i));
+        }
+        buffer.limit(buffer.position()).position(16);
+        return buffer;
+    }
+
+    private static void send(FanOutSink fanOut, long ptsUs) {
+        SampleInfo info = new SampleInfo();
+        info.set(16, 64, ptsUs, ptsUs % GOP == 0 ? SampleInfo.FLAG_KEY_FRAME : 0);
+        ByteBuffer data = sample(ptsUs, 64);
+        fanOut.onSample(data, info);
+        assertEquals(16, data.position());
+        assertEquals(80, data.limit());
+    }
+
+    @Test
+    public void inlineOutputsGetTheCodecBufferWithoutACopy() {
+        FanOutSink fanOut = new FanOutSink(Clock.SYSTEM);
+        PtsSink first = new PtsSink();
+        CountingSink second = new CountingSink();
+        fanOut.addInline("file", first);
+        int counting = fanOut.addInline("count", second);
+        fanOut.onFormat(format());
+        SampleInfo info = new SampleInfo();
+        info.set(16, 64, 0, SampleInfo.FLAG_KEY_FRAME);
+        ByteBuffer data = sample(0, 64);
+        fanOut.onSample(data, info);
+        fanOut.onEnd();
+
+        assertSame(data, first.buffers.get(0));
+        assertTrue(first.contentValid);
+        assertEquals(1, second.getSamples());
+        assertEquals(64, second.getBytes());
+        assertTrue(second.isEnded());
+        assertEquals(1, fanOut.getDelivered(counting));
+        assertEquals(0, fanOut.getAllocatedSamples());
+    }
+
+    @Test
+    public void slowOutputSkipsToTheNextKeyFrameWithoutHoldingUpTheOthers() {
+        FanOutSink fanOut = new FanOutSink(Clock.SYSTEM);
+        ManualExecutor slowThread = new ManualExecutor();
+        CountingSink fast = new CountingSink();
+        PtsSink slow = new PtsSink();
+        int fastOutput = fanOut.addInline("fast", fast);
+        int slowOutput = fanOut.addQueued("slow", slow, slowThread, 3, FanOutSink.Overflow.SKIP_TO_KEY_FRAME, 0);
+        fanOut.onFormat(format());
+        for (long pts = 0; pts < 7; pts++) {
+            send(fanOut, pts);
+            if (pts == 4) {
+                slowThread.runAll();
+            }
+        }
+        fanOut.onEnd();
+        slowThread.runAll();
+
+        assertEquals(7, fast.getSamples());
+        // 3 and 4 did not fit, and 5 is the next key frame
+        assertEquals("[0, 1, 2, 5, 6]", slow.pts.toString());
+        assertTrue(slow.contentValid);
+        assertEquals(1, slow.formats);
+        assertEquals(1, slow.ends);
+        assertEquals(2, fanOut.getDropped(slowOutput));
+        assertEquals(0, fanOut.getDropped(fastOutput));
+        assertEquals(3, fanOut.getMaxQueueDepth(slowOutput));
+        assertTrue(fanOut.isIdle());
+    }
+
+    @Test
+    public void queuedOutputsShareOnePooledCopy() {
+        FanOutSink fanOut = new FanOutSink(Clock.SYSTEM);
+        ManualExecutor first = new ManualExecutor();
+        ManualExecutor second = new ManualExecutor();
+        PtsSink a = new PtsSink();
+        PtsSink b = new PtsSink();
+        fanOut.addQueued("a", a, first, 4, FanOutSink.Overflow.SKIP_TO_KEY_FRAME, 0);
+        fanOut.addQueued("b", b, second, 4, FanOutSink.Overflow.SKIP_TO_KEY_FRAME, 0);
+        for (long pts = 0; pts < 100; pts++) {
+            send(fanOut, pts);
+            // b drains as it goes, a only every few samples
+            second.runAll();
+            if (pts % 4 == 3) {
+                first.runAll();
+            }
+        }
+
+        assertEquals(100, a.pts.size());
+        assertEquals(100, b.pts.size());
+        assertTrue(a.contentValid && b.contentValid);
+        // Both outputs saw the same bytes through their own views
+        assertNotSame(a.buffers.get(0), b.buffers.get(0));
+        // Buffers go back to the pool once both outputs are done with them
+        assertTrue("allocated " + fanOut.getAllocatedSamples(), fanOut.getAllocatedSamples() <= 5);
+    }
+
+    @Test
+    public void overflowingOutputCanBeDisconnected() {
+        FanOutSink fanOut = new FanOutSink(Clock.SYSTEM);
+        ManualExecutor stuck = new ManualExecutor();
+        PtsSink client = new PtsSink();
+        CountingSink file = new CountingSink();
+        int clientOutput = fanOut.addQueued("client", client, stuck, 2, FanOutSink.Overflow.DISCONNECT, 0);
+        fanOut.addInline("file", file);
+        fanOut.onFormat(format());
+        for (long pts = 0; pts < 10; pts++) {
+            send(fanOut, pts);
+        }
+        stuck.runAll();
+        fanOut.onEnd();
+        stuck.runAll();
+
+        assertTrue(fanOut.isDisconnected(clientOutput));
+        // What was queued is dropped with it; the client is ended exactly once
+        assertTrue(client.pts.isEmpty());
+        assertEquals(1, client.ends);
+        assertEquals(1, fanOut.getDropped(clientOutput));
+        assertEquals(10, file.getSamples());
+    }
+
+    @Test
+    public void failingSinkIsCountedAndTheOthersCarryOn() {
+        FanOutSink fanOut = new FanOutSink(Clock.SYSTEM);
+        SampleSink broken = new NullSink() {
+            @Override
+            public void onSample(ByteBuffer data, SampleInfo info) {
+                throw new IllegalStateException("muxer gone");
+            }
+        };
+        CountingSink counting = new CountingSink();
+        int brokenOutput = fanOut.addInline("broken", broken);
+        fanOut.addInline("count", counting);
+        for (long pts = 0; pts < 3; pts++) {
+            send(fanOut, pts);
+        }
+        assertEquals(3, fanOut.getSinkErrors(brokenOutput));
+        assertEquals(3, counting.getSamples());
+    }
+
+    @Test
+    public void waitingOutputRidesOutAShortStall() throws InterruptedException {
+        ExecutorService thread = Executors.newSingleThreadExecutor();
+        try {
+            FanOutSink fanOut = new FanOutSink(Clock.SYSTEM);
+            PtsSink file = new PtsSink();
+            file.sleepMs = 2;
+            int output = fanOut.addQueued("file", file, thread, 2, FanOutSink.Overflow.WAIT, 1000000000L);
+            for (long pts = 0; pts < 20; pts++) {
+                send(fanOut, pts);
+            }
+            fanOut.onEnd();
+            thread.shutdown();
+            assertTrue(thread.awaitTermination(5, TimeUnit.SECONDS));
+
+            assertEquals(20, file.pts.size());
+            assertTrue(file.contentValid);
+            assertEquals(0, fanOut.getDropped(output));
+            assertTrue(fanOut.getWaitNs(output) > 0);
+            assertTrue(fanOut.getSinkLatencyUs(output, 50) >= 2000);
+        } finally {
+            thread.shutdownNow();
+        }
+    }
+
+    @Test
+    public void fourKStreamPassesWithoutDropsOrExtraBuffers() {
+        FanOutSink fanOut = new FanOutSink(Clock.SYSTEM);
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        CountingSink counting = new CountingSink();
+        fanOut.addInline("null", new NullSink());
+        int queued = fanOut.addQueued("count", counting, direct, 8, FanOutSink.Overflow.SKIP_TO_KEY_FRAME, 0);
+        // 4K at 100 Mbps, 60 fps
+        int size = 100000000 / 8 / 60;
+        ByteBuffer data = ByteBuffer.allocateDirect(size);
+        SampleInfo info = new SampleInfo();
+        int samples = 3000;
+        for (int i = 0; i < samples; i++) {
+            info.set(0, size, i * 16667L, i % 60 == 0 ? SampleInfo.FLAG_KEY_FRAME : 0);
+            fanOut.onSample(data, info);
+        }
+
+        assertEquals(samples, counting.getSamples());
+        assertEquals((long) samples * size, counting.getBytes());
+        assertEquals(samples / 60, counting.getKeyFrames());
+        assertEquals(1, fanOut.getAllocatedSamples());
+        assertEquals(0, fanOut.getDropped(queued));
+    }
+}
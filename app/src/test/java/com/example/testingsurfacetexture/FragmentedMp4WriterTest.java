@@ -0,0 +1,418 @@
+package com.example.testingsurfacetexture;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class FragmentedMp4WriterTest {
+    private static final long SECOND_NS = 1000000000L;
+    private static final long MS_NS = 1000000L;
+    private static final long HOUR_NS = 3600 * SECOND_NS;
+    private static final long FRAGMENT_US = 500000;
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    // Runs tasks only when asked, like a storage thread stuck behind a slow write
+    private static class QueuedExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            for (int i = 0; i < tasks.size(); i++) {
+                tasks.get(i).run();
+            }
+            tasks.clear();
+        }
+    }
+
+    // A storage thread on the virtual clock where every write takes the same time
+    private static class StorageThread implements Executor {
+        final VirtualClock clock;
+        final long writeNs;
+        long busyUntilNs;
+
+        StorageThread(VirtualClock clock, long writeNs) {
+            this.clock = clock;
+            this.writeNs = writeNs;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            busyUntilNs = Math.max(busyUntilNs, clock.nanoTime()) + writeNs;
+            clock.schedule(busyUntilNs, command);
+        }
+    }
+
+    private static class CountingChannel implements WritableByteChannel {
+        long bytes;
+        boolean open = true;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            bytes += n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    // Walks the boxes of a fragmented MP4 and checks that every fragment's table matches its mdat
+    private static class Mp4 {
+        int matrixB;
+        int avcProfile;
+        int fragments;
+        int samples;
+        int syncSamples;
+        int fragmentsStartingWithSync;
+        long durationTicks;
+        boolean contiguous = true;
+        boolean nalsValid = true;
+
+        Mp4(byte[] file) {
+            ByteBuffer b = ByteBuffer.wrap(file);
+            assertEquals(FragmentedMp4Writer.fourcc("ftyp"), b.getInt(4));
+            b.position(b.getInt(0));
+            int moovSize = b.getInt(b.position());
+            assertEquals(FragmentedMp4Writer.fourcc("moov"), b.getInt(b.position() + 4));
+            parseMoov(slice(b, b.position(), moovSize));
+            b.position(b.position() + moovSize);
+            while (b.hasRemaining()) {
+                int moofStart = b.position();
+                int moofSize = b.getInt(moofStart);
+                assertEquals(FragmentedMp4Writer.fourcc("moof"), b.getInt(moofStart + 4));
+                int mdatStart = moofStart + moofSize;
+                assertEquals(FragmentedMp4Writer.fourcc("mdat"), b.getInt(mdatStart + 4));
+                parseFragment(b, moofStart, mdatStart);
+                b.position(mdatStart + b.getInt(mdatStart));
+            }
+        }
+
+        private static ByteBuffer slice(ByteBuffer b, int start, int size) {
+            ByteBuffer s = b.duplicate();
+            s.position(start);
+            s.limit(start + size);
+            return s.slice();
+        }
+
+        private static int find(ByteBuffer b, String type) {
+            int code = FragmentedMp4Writer.fourcc(type);
+            for (int i = 0; i + 8 <= b.limit(); i++) {
+                if (b.getInt(i) == code) {
+                    return i - 4;
+                }
+            }
+            fail("no " + type);
+            return -1;
+        }
+
+        private void parseMoov(ByteBuffer moov) {
+            int tkhd = find(moov, "tkhd");
+            // Matrix b, after version, times, track id, reserved, duration, reserved, layer,
+            // group, volume, reserved and matrix a
+            matrixB = moov.getInt(tkhd + 8 + 4 + 4 + 4 + 4 + 4 + 4 + 8 + 8 + 4);
+            int avcC = find(moov, "avcC");
+            avcProfile = moov.get(avcC + 9) & 0xff;
+            assertEquals(0xff, moov.get(avcC + 12) & 0xff);
+        }
+
+        private void parseFragment(ByteBuffer b, int moofStart, int mdatStart) {
+            int sequence = b.getInt(moofStart + 8 + 12);
+            assertEquals(fragments + 1, sequence);
+            ByteBuffer moof = slice(b, moofStart, mdatStart - moofStart);
+            int tfdt = find(moof, "tfdt");
+            assertEquals(0x01000000, moof.getInt(tfdt + 8));
+            long base = moof.getLong(tfdt + 12);
+            if (base != durationTicks) {
+                contiguous = false;
+            }
+            int trun = find(moof, "trun");
+            int count = moof.getInt(trun + 12);
+            int dataOffset = moof.getInt(trun + 16);
+            assertEquals(mdatStart - moofStart + 8, dataOffset);
+            int position = moofStart + dataOffset;
+            for (int i = 0; i < count; i++) {
+                int entry = trun + 20 + 12 * i;
+                int duration = moof.getInt(entry);
+                int size = moof.getInt(entry + 4);
+                boolean sync = moof.getInt(entry + 8) == 0x02000000;
+                if (sync) {
+                    syncSamples++;
+                    if (i == 0) {
+                        fragmentsStartingWithSync++;
+                    }
+                }
+                durationTicks += duration;
+                checkNals(b, position, size, sync);
+                position += size;
+            }
+            assertEquals(mdatStart + b.getInt(mdatStart), position);
+            samples += count;
+            fragments++;
+        }
+
+        // The NAL lengths add up to the sample, and it starts with the slice FakeVideoEncoder wrote
+        private void checkNals(ByteBuffer b, int position, int size, boolean sync) {
+            int end = position + size;
+            int type = b.get(position + 4) & 0x1f;
+            if (type != (sync ? 5 : 1)) {
+                nalsValid = false;
+            }
+            while (position < end) {
+                position += 4 + b.getInt(position);
+            }
+            if (position != end) {
+                nalsValid = false;
+            }
+        }
+    }
+
+    private static SampleInfo info(long ptsUs, int size, int flags) {
+        SampleInfo info = new SampleInfo();
+        info.set(0, size, ptsUs, flags);
+        return info;
+    }
+
+    // A single slice whose payload cannot contain a start code
+    private static ByteBuffer frame(boolean key, int size) {
+        ByteBuffer frame = ByteBuffer.allocate(size);
+        frame.putInt(1).put((byte) (key ? FakeVideoEncoder.NAL_IDR : FakeVideoEncoder.NAL_NON_IDR));
+        while (frame.hasRemaining()) {
+            frame.put((byte) 0x55);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    private static TrackFormat format() {
+        return new TrackFormat("video/avc", 1920, 1080,
+                ByteBuffer.wrap(FakeVideoEncoder.SPS), ByteBuffer.wrap(FakeVideoEncoder.PPS));
+    }
+
+    @Test
+    public void convertsAnnexBToLengthPrefixed() {
+        byte[] annexB = {0, 0, 0, 1, 0x09, (byte) 0xf0, 0, 0, 1, 0x65, 1, 2, 3, 0, 0, 0, 1, 0x41, 0, 0, 3, 1};
+        ByteBuffer src = ByteBuffer.wrap(annexB);
+        src.position(0);
+        ByteBuffer dst = ByteBuffer.allocate(64);
+        assertTrue(FragmentedMp4Writer.copyAsLengthPrefixed(src, dst));
+        dst.flip();
+        assertEquals(2, dst.getInt());
+        assertEquals(0x09, dst.get());
+        assertEquals((byte) 0xf0, dst.get());
+        assertEquals(4, dst.getInt());
+        assertEquals(0x65, dst.get());
+        dst.position(dst.position() + 3);
+        // Emulation prevention bytes are part of the NAL unit
+        assertEquals(5, dst.getInt());
+        assertEquals(0x41, dst.get());
+        dst.position(dst.position() + 4);
+        assertFalse(dst.hasRemaining());
+        // The source is untouched, and nothing is half written when it does not fit
+        assertEquals(0, src.position());
+        assertEquals(annexB.length, src.limit());
+        assertFalse(FragmentedMp4Writer.copyAsLengthPrefixed(src, ByteBuffer.allocate(10)));
+        assertEquals(0, src.position());
+    }
+
+    @Test
+    public void writesFragmentsThatStartAtKeyFrames() {
+        VirtualClock clock = new VirtualClock(0);
+        SyntheticFrameSource source = new SyntheticFrameSource(clock, 30, 2 * MS_NS, 7);
+        FakeVideoEncoder encoder = new FakeVideoEncoder(clock, 7).bitRate(2000000);
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        MemoryBudget budget = new MemoryBudget(4 * 1024 * 1024);
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(Channels.newChannel(file), 90, FRAGMENT_US,
+                1024 * 1024, 64, budget, DIRECT);
+        RecordingSink recorded = new RecordingSink();
+        CapturePipeline pipeline = new CapturePipeline(source, encoder, new TeeSink(writer, recorded), clock);
+
+        pipeline.start();
+        clock.runFor(20 * SECOND_NS);
+        source.stop();
+        clock.runFor(SECOND_NS);
+        pipeline.stop();
+
+        assertNull(writer.getError());
+        assertEquals(0, writer.getDroppedSamples());
+        assertEquals(0, budget.getUsedBytes());
+        Mp4 mp4 = new Mp4(file.toByteArray());
+        assertEquals(writer.getBytesWritten(), file.size());
+        assertEquals(0x10000, mp4.matrixB);
+        assertEquals(FakeVideoEncoder.SPS[5], mp4.avcProfile);
+        assertEquals(recorded.samples, mp4.samples);
+        assertEquals(recorded.keyFrames, mp4.syncSamples);
+        // One fragment per one-second GOP
+        assertEquals(20, mp4.fragments, 1);
+        assertEquals(mp4.fragments, mp4.fragmentsStartingWithSync);
+        assertEquals(mp4.fragments, writer.getFragmentsWritten());
+        assertTrue(mp4.contiguous);
+        assertTrue(mp4.nalsValid);
+        assertEquals(20.0, mp4.durationTicks / 90000.0, 0.1);
+    }
+
+    @Test
+    public void slowStorageDropsUntilTheNextKeyFrame() {
+        QueuedExecutor storage = new QueuedExecutor();
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(Channels.newChannel(file), 0, FRAGMENT_US,
+                64 * 1024, 64, new MemoryBudget(1024 * 1024), storage);
+        writer.onFormat(format());
+        storage.runAll();
+        // Three GOPs of ten frames; storage writes nothing until the second GOP is done
+        for (int i = 0; i < 30; i++) {
+            boolean key = i % 10 == 0;
+            writer.onSample(frame(key, 100), info(i * 100000L, 100, key ? SampleInfo.FLAG_KEY_FRAME : 0));
+            if (i == 25) {
+                storage.runAll();
+            }
+        }
+        writer.onEnd();
+        storage.runAll();
+
+        // The first GOP is written and the second fills the other fragment until it is cut at
+        // frame 20. The third GOP has nowhere to go, and once storage catches up at frame 25 the
+        // rest of it still has to wait for a key frame.
+        assertEquals(10, writer.getDroppedSamples());
+        Mp4 mp4 = new Mp4(file.toByteArray());
+        assertEquals(20, mp4.samples);
+        assertEquals(2, mp4.fragments);
+        assertEquals(2, mp4.syncSamples);
+    }
+
+    @Test
+    public void fragmentsFullBeforeTheirTimeAreCutEarly() {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(Channels.newChannel(file), 270, 10 * FRAGMENT_US,
+                64 * 1024, 8, new MemoryBudget(1024 * 1024), DIRECT);
+        writer.onFormat(format());
+        for (int i = 0; i < 20; i++) {
+            boolean key = i == 0;
+            writer.onSample(frame(key, 100), info(i * 33333L, 100, key ? SampleInfo.FLAG_KEY_FRAME : 0));
+        }
+        writer.onEnd();
+
+        Mp4 mp4 = new Mp4(file.toByteArray());
+        assertEquals(0, writer.getDroppedSamples());
+        assertEquals(-0x10000, mp4.matrixB);
+        assertEquals(3, mp4.fragments);
+        assertEquals(20, mp4.samples);
+        assertEquals(1, mp4.fragmentsStartingWithSync);
+        assertTrue(mp4.contiguous);
+        // The last sample lasts as long as the one before it
+        assertEquals(20 * 33333L * 9 / 100, mp4.durationTicks, 20);
+    }
+
+    @Test
+    public void refusesToStartOverBudget() {
+        MemoryBudget budget = new MemoryBudget(1024 * 1024);
+        budget.reserve(512 * 1024);
+        try {
+            new FragmentedMp4Writer(new CountingChannel(), 0, FRAGMENT_US, 256 * 1024, 64, budget, DIRECT);
+            fail("expected the budget to refuse");
+        } catch (IllegalStateException expected) {
+            // Two 256 KiB fragments do not fit in what is left
+        }
+        assertEquals(512 * 1024, budget.getUsedBytes());
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(new CountingChannel(), 0, FRAGMENT_US, 200 * 1024, 64, budget, DIRECT);
+        assertEquals(512 * 1024 + writer.getReservedBytes(), budget.getUsedBytes());
+        assertEquals(budget.getUsedBytes(), budget.getPeakBytes());
+        writer.onEnd();
+        assertEquals(512 * 1024, budget.getUsedBytes());
+    }
+
+    // A day of 30 fps recording on the virtual clock, with storage on its own simulated thread. The
+    // writer's memory is set aside at the start; heap allocation, direct memory and the event
+    // queue have to stay flat from the first hour to the last.
+    @Test
+    public void dayLongRecordingUsesConstantMemory() {
+        VirtualClock clock = new VirtualClock(0);
+        SyntheticFrameSource source = new SyntheticFrameSource(clock, 30, 2 * MS_NS, 11);
+        FakeVideoEncoder encoder = new FakeVideoEncoder(clock, 11).bitRate(100000).spikes(0.01, 3);
+        CountingChannel channel = new CountingChannel();
+        MemoryBudget budget = new MemoryBudget(1024 * 1024);
+        StorageThread storage = new StorageThread(clock, 40 * MS_NS);
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(channel, 90, FRAGMENT_US, 128 * 1024, 64, budget, storage);
+        CapturePipeline pipeline = new CapturePipeline(source, encoder, writer, clock);
+
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean threads = bean instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) bean : null;
+        long threadId = Thread.currentThread().getId();
+        BufferPoolMXBean direct = null;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                direct = pool;
+            }
+        }
+
+        pipeline.start();
+        long reserved = budget.getUsedBytes();
+        assertEquals(writer.getReservedBytes(), reserved);
+        long directAtStart = direct != null ? direct.getMemoryUsed() : 0;
+        long[] allocatedPerHour = new long[24];
+        long[] bytesPerHour = new long[24];
+        for (int hour = 0; hour < 24; hour++) {
+            long allocatedBefore = threads != null ? threads.getThreadAllocatedBytes(threadId) : 0;
+            long bytesBefore = channel.bytes;
+            clock.runFor(HOUR_NS);
+            allocatedPerHour[hour] = threads != null ? threads.getThreadAllocatedBytes(threadId) - allocatedBefore : 0;
+            bytesPerHour[hour] = channel.bytes - bytesBefore;
+            assertEquals(reserved, budget.getUsedBytes());
+            if (direct != null) {
+                // Earlier tests' buffers may still be getting freed, but nothing new is allocated
+                assertTrue(direct.getMemoryUsed() <= directAtStart);
+            }
+            // The next frame, frames in the encoder and at most both fragments waiting for storage
+            assertTrue(clock.pendingEvents() <= 1 + 4 + 2);
+        }
+        source.stop();
+        clock.runFor(SECOND_NS);
+        pipeline.stop();
+        clock.runFor(SECOND_NS);
+
+        assertNull(writer.getError());
+        assertFalse(channel.open);
+        assertEquals(0, budget.getUsedBytes());
+        assertEquals(reserved, budget.getPeakBytes());
+        assertEquals(0, writer.getDroppedSamples());
+        assertEquals(24 * 3600, writer.getFragmentsWritten(), 2);
+        assertEquals(channel.bytes, writer.getBytesWritten());
+        for (int hour = 1; hour < 24; hour++) {
+            assertEquals(bytesPerHour[1], bytesPerHour[hour], bytesPerHour[1] / 50);
+            if (threads != null) {
+                assertTrue("hour " + hour + ": " + allocatedPerHour[hour] + " vs " + allocatedPerHour[1],
+                        allocatedPerHour[hour] < allocatedPerHour[1] * 3 / 2 + 65536);
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.example.testingsurfacetexture;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class FrameAnalysisTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    // Runs tasks only when told to, like an analysis thread that has fallen behind
+    private static class ManualExecutor implements Executor {
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.poll().run();
+            }
+        }
+    }
+
+    private static class Releases implements FrameAnalysis.Releaser {
+        final List<Integer> slots = new ArrayList<>();
+
+        @Override
+        public void release(YuvFrame frame) {
+            slots.add(frame.index);
+        }
+    }
+
+    private static ByteBuffer plane(int rowStride, int rows) {
+        return ByteBuffer.allocateDirect(rowStride * rows);
+    }
+
+    private static boolean offer(FrameAnalysis analysis, ByteBuffer y, long timestampNs) {
+        YuvFrame frame = analysis.acquire();
+        if (frame == null) {
+            return false;
+        }
+        frame.set(WIDTH, HEIGHT, timestampNs, y, WIDTH + 16, plane(WIDTH + 16, HEIGHT / 2),
+                plane(WIDTH + 16, HEIGHT / 2), WIDTH + 16, 2);
+        analysis.submit(frame);
+        return true;
+    }
+
+    @Test
+    public void busyAnalyzersSkipFramesInsteadOfHoldingThem() {
+        ManualExecutor executor = new ManualExecutor();
+        Releases releases = new Releases();
+        final List<Long> seen = new ArrayList<>();
+        FrameAnalyzer analyzer = new FrameAnalyzer() {
+            @Override
+            public void analyze(YuvFrame frame) {
+                seen.add(frame.getTimestampNs());
+            }
+        };
+        FrameAnalysis analysis = new FrameAnalysis(new FrameAnalyzer[]{analyzer}, executor, Clock.SYSTEM, releases, 2);
+        ByteBuffer y = plane(WIDTH + 16, HEIGHT);
+
+        assertTrue(offer(analysis, y, 1));
+        assertTrue(offer(analysis, y, 2));
+        // Both slots taken: the next frames are skipped at once rather than queued
+        assertFalse(offer(analysis, y, 3));
+        assertFalse(offer(analysis, y, 4));
+        executor.runAll();
+        assertTrue(offer(analysis, y, 5));
+        executor.runAll();
+
+        assertEquals("[1, 2, 5]", seen.toString());
+        assertEquals(3, releases.slots.size());
+        assertEquals(5, analysis.getOfferedFrames());
+        assertEquals(2, analysis.getSkippedFrames());
+        assertEquals(3, analysis.getAnalyzedFrames());
+        assertEquals(0.4, analysis.getSkipRate(), 1e-9);
+    }
+
+    @Test
+    public void analyzersSeeTheCameraBuffersWithoutCopies() {
+        ManualExecutor executor = new ManualExecutor();
+        final ByteBuffer y = plane(WIDTH + 16, HEIGHT);
+        y.put((WIDTH + 16) * 3 + 5, (byte) 200);
+        final List<Object> planes = new ArrayList<>();
+        FrameAnalyzer analyzer = new FrameAnalyzer() {
+            @Override
+            public void analyze(YuvFrame frame) {
+                planes.add(frame.getY());
+                planes.add(frame.luma(5, 3));
+            }
+        };
+        FrameAnalysis analysis = new FrameAnalysis(new FrameAnalyzer[]{analyzer}, executor, Clock.SYSTEM, new Releases(), 1);
+        offer(analysis, y, 1);
+        executor.runAll();
+
+        assertSame(y, planes.get(0));
+        assertEquals(200, planes.get(1));
+        // The frame object is reused and lets go of the buffers once released
+        assertNull(analysis.acquire().getY());
+    }
+
+    @Test
+    public void failingAnalyzerStillReleasesTheFrame() {
+        ManualExecutor executor = new ManualExecutor();
+        Releases releases = new Releases();
+        final int[] calls = new int[1];
+        FrameAnalyzer broken = new FrameAnalyzer() {
+            @Override
+            public void analyze(YuvFrame frame) {
+                throw new IllegalStateException("bad frame");
+            }
+        };
+        FrameAnalyzer counting = new FrameAnalyzer() {
+            @Override
+            public void analyze(YuvFrame frame) {
+                calls[0]++;
+            }
+        };
+        FrameAnalysis analysis = new FrameAnalysis(new FrameAnalyzer[]{broken, counting}, executor, Clock.SYSTEM, releases, 1);
+        ByteBuffer y = plane(WIDTH + 16, HEIGHT);
+        offer(analysis, y, 1);
+        executor.runAll();
+        offer(analysis, y, 2);
+        executor.runAll();
+
+        assertEquals(2, releases.slots.size());
+        assertEquals(2, calls[0]);
+        assertEquals(2, analysis.getAnalyzerErrors());
+        analysis.stop();
+        assertTrue(analysis.isIdle());
+        assertNull(analysis.acquire());
+    }
+
+    @Test
+    public void slowAnalyzerAt30FpsSkipsHalfAndReportsItsLatency() {
+        final VirtualClock clock = new VirtualClock(0);
+        // The analysis thread picks frames up after 10 ms and spends 50 ms on each
+        final long analyzeNs = 50000000L;
+        Executor executor = new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                clock.schedule(clock.nanoTime() + 10000000L, command);
+            }
+        };
+        final Releases releases = new Releases();
+        FrameAnalyzer slow = new FrameAnalyzer() {
+            @Override
+            public void analyze(YuvFrame frame) {
+                // Time passes inside the analyzer, as on a real thread
+                clock.runUntil(clock.nanoTime() + analyzeNs);
+            }
+        };
+        final FrameAnalysis analysis = new FrameAnalysis(new FrameAnalyzer[]{slow}, executor, clock, releases, 1);
+        final ByteBuffer y = plane(WIDTH + 16, HEIGHT);
+        final long intervalNs = 1000000000L / 30;
+        for (int i = 0; i < 300; i++) {
+            final long timestampNs = i * intervalNs;
+            clock.schedule(timestampNs, new Runnable() {
+                @Override
+                public void run() {
+                    offer(analysis, y, timestampNs);
+                }
+            });
+        }
+        clock.runUntil(11 * 1000000000L);
+
+        assertEquals(300, analysis.getOfferedFrames());
+        assertEquals(releases.slots.size(), analysis.getAnalyzedFrames());
+        assertEquals(0.5, analysis.getSkipRate(), 0.05);
+        long analyzerUs = analysis.getAnalyzerLatencyUs(0, 50);
+        assertTrue("analyzer " + analyzerUs, analyzerUs >= 50000 && analyzerUs < 54000);
+        long frameUs = analysis.getFrameLatencyUs(99);
+        assertTrue("frame " + frameUs, frameUs >= 60000 && frameUs < 64000);
+    }
+
+    // Fine texture shifted right by shift pixels, or the same texture out of focus (a 5x5 box blur)
+    private static ByteBuffer pattern(int shift, boolean blurred) {
+        int[] texture = new int[(WIDTH + 8) * (HEIGHT + 4)];
+        Random random = new Random(7);
+        for (int i = 0; i < texture.length; i++) {
+            texture[i] = random.nextInt(256);
+        }
+        int stride = WIDTH + 16;
+        ByteBuffer y = plane(stride, HEIGHT);
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int value = 0;
+                int radius = blurred ? 2 : 0;
+                for (int dy = -radius; dy <= radius; dy++) {
+                    for (int dx = -radius; dx <= radius; dx++) {
+                        value += texture[(row + 2 + dy) * (WIDTH + 8) + x + 4 - shift + dx];
+                    }
+                }
+                y.put(row * stride + x, (byte) (value / ((2 * radius + 1) * (2 * radius + 1))));
+            }
+        }
+        return y;
+    }
+
+    @Test
+    public void lumaAnalyzerMeasuresMotionAndBlur() {
+        LumaAnalyzer analyzer = new LumaAnalyzer(16, 12);
+        YuvFrame frame = new YuvFrame(0);
+        ByteBuffer chroma = plane(WIDTH + 16, HEIGHT / 2);
+
+        frame.set(WIDTH, HEIGHT, 0, pattern(0, false), WIDTH + 16, chroma, chroma, WIDTH + 16, 2);
+        analyzer.analyze(frame);
+        assertEquals(0, analyzer.getMotion(), 0);
+        double sharp = analyzer.getSharpness();
+
+        analyzer.analyze(frame);
+        assertEquals(0, analyzer.getMotion(), 0);
+
+        frame.set(WIDTH, HEIGHT, 1, pattern(2, false), WIDTH + 16, chroma, chroma, WIDTH + 16, 2);
+        analyzer.analyze(frame);
+        assertTrue("motion " + analyzer.getMotion(), analyzer.getMotion() > 0.2);
+
+        frame.set(WIDTH, HEIGHT, 2, pattern(2, true), WIDTH + 16, chroma, chroma, WIDTH + 16, 2);
+        analyzer.analyze(frame);
+        assertTrue("sharpness " + analyzer.getSharpness() + " of " + sharp, analyzer.getSharpness() * 5 < sharp);
+        assertEquals(4, analyzer.getFrames());
+    }
+}
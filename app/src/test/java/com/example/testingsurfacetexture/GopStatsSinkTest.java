@@ -0,0 +1,164 @@
+package com.example.testingsurfacetexture;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GopStatsSinkTest {
+    private static final long SECOND_NS = 1000000000L;
+
+    private GopStatsSink record(FakeVideoEncoder encoder, VirtualClock clock, int targetBitRate, int seconds) {
+        SyntheticFrameSource source = new SyntheticFrameSource(clock, 30, 0, 1);
+        GopStatsSink stats = new GopStatsSink(new NullSink(), 1024, targetBitRate);
+        CapturePipeline pipeline = new CapturePipeline(source, encoder, stats, clock);
+        pipeline.start();
+        clock.runFor(seconds * SECOND_NS - 1);
+        source.stop();
+        clock.runFor(SECOND_NS);
+        pipeline.stop();
+        return stats;
+    }
+
+    private static List<GopAnalyzer.Gop> roundTrip(GopStatsSink stats) throws IOException {
+        StringWriter csv = new StringWriter();
+        stats.writeCsv(csv);
+        return GopAnalyzer.readCsv(new StringReader(csv.toString()));
+    }
+
+    @Test
+    public void recordsOneRowPerGop() throws IOException {
+        VirtualClock clock = new VirtualClock(0);
+        GopStatsSink stats = record(new FakeVideoEncoder(clock, 1), clock, 10000000, 10);
+
+        List<GopAnalyzer.Gop> gops = roundTrip(stats);
+        assertEquals(10, gops.size());
+        for (GopAnalyzer.Gop gop : gops) {
+            assertEquals(30, gop.frames);
+            assertEquals(1000000, gop.durationUs, 1);
+            assertEquals(10000000, gop.getBitRate(), 10000000 * 0.05);
+            assertTrue(gop.iBytes > 3 * gop.pMax / 2);
+            assertTrue(gop.pMin <= gop.pMax);
+            assertEquals(10000000, gop.targetBitRate);
+        }
+        assertTrue(stats.getIFramePercentileSize(50) > 3 * stats.getPFramePercentileSize(50));
+    }
+
+    @Test
+    public void ringKeepsMostRecentGops() throws IOException {
+        VirtualClock clock = new VirtualClock(0);
+        SyntheticFrameSource source = new SyntheticFrameSource(clock, 30, 0, 1);
+        GopStatsSink stats = new GopStatsSink(new NullSink(), 4, 10000000);
+        CapturePipeline pipeline = new CapturePipeline(source, new FakeVideoEncoder(clock, 1), stats, clock);
+        pipeline.start();
+        clock.runFor(10 * SECOND_NS + SECOND_NS / 2);
+        pipeline.stop();
+
+        List<GopAnalyzer.Gop> gops = roundTrip(stats);
+        assertEquals(4, gops.size());
+        assertEquals(11, stats.getGopCount());
+        assertEquals(7000000, gops.get(0).startUs, 10);
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        GopStatsSink stats = new GopStatsSink(new NullSink(), 64, 10000000);
+        ByteBuffer data = ByteBuffer.allocate(16);
+        SampleInfo info = new SampleInfo();
+        for (int i = 0; i < 20000; i++) {
+            info.set(0, 1000 + i % 100, i * 33333L, i % 30 == 0 ? SampleInfo.FLAG_KEY_FRAME : 0);
+            stats.onSample(data, info);
+        }
+
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 20000; i < 120000; i++) {
+            info.set(0, 1000 + i % 100, i * 33333L, i % 30 == 0 ? SampleInfo.FLAG_KEY_FRAME : 0);
+            stats.onSample(data, info);
+        }
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        assertTrue("allocated " + allocated, allocated < 4096);
+    }
+
+    @Test
+    public void heavyKeyFramesRecommendLongerGop() throws IOException {
+        VirtualClock clock = new VirtualClock(0);
+        FakeVideoEncoder encoder = new FakeVideoEncoder(clock, 2).keyFrameWeight(12);
+        List<GopAnalyzer.Gop> gops = roundTrip(record(encoder, clock, 10000000, 60));
+
+        GopAnalyzer.Recommendation archive = GopAnalyzer.analyze(gops, GopAnalyzer.ContentProfile.ARCHIVE);
+        assertEquals(1.0, archive.currentGopSeconds, 0.01);
+        assertEquals(12 / 41.0, archive.keyFrameShare, 0.02);
+        assertTrue(archive.gopSeconds >= 4);
+        assertTrue(archive.gopSeconds <= 10);
+        // Fewer key frames need fewer bits for the same quality
+        assertTrue(archive.bitRate < 10000000);
+
+        GopAnalyzer.Recommendation live = GopAnalyzer.analyze(gops, GopAnalyzer.ContentProfile.LIVE);
+        assertTrue(live.gopSeconds <= 2);
+        assertTrue(live.gopSeconds < archive.gopSeconds);
+    }
+
+    @Test
+    public void commandLinePrintsTheRecommendationForATraceFile() throws IOException {
+        VirtualClock clock = new VirtualClock(0);
+        FakeVideoEncoder encoder = new FakeVideoEncoder(clock, 2).keyFrameWeight(12);
+        GopStatsSink stats = record(encoder, clock, 10000000, 60);
+        File trace = File.createTempFile("video", ".mp4.gop.csv");
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        try {
+            try (FileWriter writer = new FileWriter(trace)) {
+                stats.writeCsv(writer);
+            }
+            System.setOut(new PrintStream(printed, true));
+            GopAnalyzer.main(new String[]{trace.getPath(), "archive"});
+        } finally {
+            System.setOut(stdout);
+            trace.delete();
+        }
+
+        String output = printed.toString();
+        assertTrue(output, output.contains("60 GOPs, archive profile"));
+        assertTrue(output, output.contains(GopAnalyzer.analyze(roundTrip(stats), GopAnalyzer.ContentProfile.ARCHIVE).toString()));
+    }
+
+    @Test
+    public void cheapKeyFramesKeepGop() throws IOException {
+        VirtualClock clock = new VirtualClock(0);
+        FakeVideoEncoder encoder = new FakeVideoEncoder(clock, 3).keyFrameWeight(1.5);
+        List<GopAnalyzer.Gop> gops = roundTrip(record(encoder, clock, 10000000, 30));
+
+        GopAnalyzer.Recommendation recommendation = GopAnalyzer.analyze(gops, GopAnalyzer.ContentProfile.RECORDING);
+        assertEquals(1.0, recommendation.gopSeconds, 0.01);
+        assertEquals(10000000, recommendation.bitRate);
+    }
+
+    @Test
+    public void undershootingEncoderLowersBitrate() throws IOException {
+        VirtualClock clock = new VirtualClock(0);
+        // Static content: the encoder only needs 4 Mbps of the 10 Mbps it was given
+        FakeVideoEncoder encoder = new FakeVideoEncoder(clock, 4).bitRate(4000000);
+        List<GopAnalyzer.Gop> gops = roundTrip(record(encoder, clock, 10000000, 60));
+
+        GopAnalyzer.Recommendation recommendation = GopAnalyzer.analyze(gops, GopAnalyzer.ContentProfile.RECORDING);
+        assertEquals(4000000, recommendation.achievedBitRate, 200000);
+        assertTrue(recommendation.bitRate >= 4000000);
+        assertTrue(recommendation.bitRate <= 5000000);
+    }
+}
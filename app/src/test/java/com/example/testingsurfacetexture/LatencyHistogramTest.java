@@ -0,0 +1,56 @@
+package com.example.testingsurfacetexture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test
+    public void bucketBoundsAreContiguous() {
+        for (int bucket = 1; bucket < 900; bucket++) {
+            long lower = LatencyHistogram.lowerBound(bucket);
+            assertEquals(bucket, LatencyHistogram.bucketOf(lower));
+            assertEquals(bucket - 1, LatencyHistogram.bucketOf(lower - 1));
+        }
+    }
+
+    @Test
+    public void percentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 10000; i++) {
+            histogram.record(i * 1000);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(5000000, histogram.getPercentile(50), 5000000 * 0.07);
+        assertEquals(9900000, histogram.getPercentile(99), 9900000 * 0.07);
+        assertEquals(10000000, histogram.getPercentile(100));
+        assertEquals(5000500, histogram.getMean());
+    }
+
+    @Test
+    public void outliersDominateTail() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 980; i++) {
+            histogram.record(2000000);
+        }
+        for (int i = 0; i < 20; i++) {
+            histogram.record(250000000);
+        }
+        assertTrue(histogram.getPercentile(50) < 2200000);
+        assertTrue(histogram.getPercentile(99) > 200000000);
+    }
+
+    @Test
+    public void addAndReset() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        a.record(10);
+        b.record(1000);
+        a.add(b);
+        assertEquals(2, a.getCount());
+        assertEquals(1000, a.getMax());
+        a.reset();
+        assertEquals(0, a.getCount());
+        assertEquals(0, a.getPercentile(99));
+    }
+}
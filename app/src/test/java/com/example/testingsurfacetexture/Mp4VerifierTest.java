@@ -0,0 +1,344 @@
+package com.example.testingsurfacetexture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class Mp4VerifierTest {
+    private static final int SAMPLES = 30;
+    private static final int GOP = 10;
+    private static final int SAMPLES_PER_CHUNK = 4;
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("recordings", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static ByteBuffer frame(boolean key, int size) {
+        ByteBuffer frame = ByteBuffer.allocate(size);
+        frame.putInt(1).put((byte) (key ? FakeVideoEncoder.NAL_IDR : FakeVideoEncoder.NAL_NON_IDR));
+        while (frame.hasRemaining()) {
+            frame.put((byte) 0x55);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    private File fragmented(String name) throws IOException {
+        File file = new File(directory, name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            FragmentedMp4Writer writer = new FragmentedMp4Writer(out.getChannel(), 0, 500000, 64 * 1024, 64,
+                    new MemoryBudget(1024 * 1024), DIRECT);
+            writer.onFormat(new TrackFormat("video/avc", 1280, 720,
+                    ByteBuffer.wrap(FakeVideoEncoder.SPS), ByteBuffer.wrap(FakeVideoEncoder.PPS)));
+            for (int i = 0; i < SAMPLES; i++) {
+                boolean key = i % GOP == 0;
+                SampleInfo info = new SampleInfo();
+                info.set(0, 200 + i, i * 100000L, key ? SampleInfo.FLAG_KEY_FRAME : 0);
+                writer.onSample(frame(key, 200 + i), info);
+            }
+            writer.onEnd();
+            assertNull(writer.getError());
+        }
+        return file;
+    }
+
+    private static int begin(ByteBuffer b, String type) {
+        int start = b.position();
+        b.putInt(0).putInt(Mp4Verifier.fourcc(type));
+        return start;
+    }
+
+    private static void end(ByteBuffer b, int start) {
+        b.putInt(start, b.position() - start);
+    }
+
+    // What MediaMuxer writes: ftyp, one mdat, then the moov with a track's sample tables
+    private File progressive(String name) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(64 * 1024);
+        int box = begin(b, "ftyp");
+        b.putInt(Mp4Verifier.fourcc("isom")).putInt(0);
+        end(b, box);
+        int mdat = begin(b, "mdat");
+        int[] offsets = new int[(SAMPLES + SAMPLES_PER_CHUNK - 1) / SAMPLES_PER_CHUNK];
+        for (int i = 0; i < SAMPLES; i++) {
+            if (i % SAMPLES_PER_CHUNK == 0) {
+                offsets[i / SAMPLES_PER_CHUNK] = b.position();
+            }
+            int size = 100 + i;
+            b.putInt(size - 4).put((byte) (i % GOP == 0 ? FakeVideoEncoder.NAL_IDR : FakeVideoEncoder.NAL_NON_IDR));
+            b.position(b.position() + size - 5);
+        }
+        end(b, mdat);
+
+        int moov = begin(b, "moov");
+        box = begin(b, "mvhd");
+        b.position(b.position() + 100);
+        end(b, box);
+        int trak = begin(b, "trak");
+        box = begin(b, "tkhd");
+        b.putInt(0).putInt(0).putInt(0).putInt(1);
+        b.position(b.position() + 68);
+        end(b, box);
+        int mdia = begin(b, "mdia");
+        box = begin(b, "hdlr");
+        b.putInt(0).putInt(0).putInt(Mp4Verifier.fourcc("vide")).putInt(0).putInt(0).putInt(0).put((byte) 0);
+        end(b, box);
+        int minf = begin(b, "minf");
+        int stbl = begin(b, "stbl");
+        int stsd = begin(b, "stsd");
+        b.putInt(0).putInt(1);
+        int avc1 = begin(b, "avc1");
+        b.position(b.position() + 78);
+        box = begin(b, "avcC");
+        b.put((byte) 1).put((byte) 0x42).put((byte) 0xc0).put((byte) 0x28).put((byte) 0xff).put((byte) 0xe0).put((byte) 0);
+        end(b, box);
+        end(b, avc1);
+        end(b, stsd);
+        box = begin(b, "stts");
+        b.putInt(0).putInt(1).putInt(SAMPLES).putInt(3000);
+        end(b, box);
+        box = begin(b, "stss");
+        b.putInt(0).putInt(SAMPLES / GOP);
+        for (int i = 0; i < SAMPLES; i += GOP) {
+            b.putInt(i + 1);
+        }
+        end(b, box);
+        box = begin(b, "stsc");
+        b.putInt(0).putInt(1).putInt(1).putInt(SAMPLES_PER_CHUNK).putInt(1);
+        end(b, box);
+        box = begin(b, "stsz");
+        b.putInt(0).putInt(0).putInt(SAMPLES);
+        for (int i = 0; i < SAMPLES; i++) {
+            b.putInt(100 + i);
+        }
+        end(b, box);
+        box = begin(b, "stco");
+        b.putInt(0).putInt(offsets.length);
+        for (int offset : offsets) {
+            b.putInt(offset);
+        }
+        end(b, box);
+        end(b, stbl);
+        end(b, minf);
+        end(b, mdia);
+        end(b, trak);
+        end(b, moov);
+
+        File file = new File(directory, name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(b.array(), 0, b.position());
+        }
+        return file;
+    }
+
+    private static void patch(File file, long position, int value) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(position);
+            raf.writeInt(value);
+        }
+    }
+
+    private static long find(File file, String type) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            ByteBuffer b = ByteBuffer.wrap(bytes);
+            for (int i = 0; i + 4 <= bytes.length; i++) {
+                if (b.getInt(i) == Mp4Verifier.fourcc(type)) {
+                    return i - 4;
+                }
+            }
+        }
+        throw new AssertionError("no " + type);
+    }
+
+    @Test
+    public void acceptsIntactRecordingsWhereverTheRegionsSplitThem() throws IOException {
+        File progressive = progressive("progressive.mp4");
+        File fragmented = fragmented("fragmented.mp4");
+        for (int regionBytes : new int[]{1 << 20, 1000, 7}) {
+            Mp4Verifier verifier = new Mp4Verifier(4, regionBytes);
+            Mp4Verifier.Report report = verifier.verify(progressive);
+            assertTrue(report.toString(), report.isValid());
+            assertFalse(report.fragmented);
+            assertEquals(SAMPLES, report.samples);
+            // Every fourth sample plus the key frames that are not among them
+            assertEquals(9, report.checkedSamples);
+
+            report = verifier.verify(fragmented);
+            assertTrue(report.toString(), report.isValid());
+            assertTrue(report.fragmented);
+            assertEquals(SAMPLES, report.samples);
+            assertEquals(9, report.checkedSamples);
+            assertEquals(-1, report.repairLength);
+        }
+    }
+
+    @Test
+    public void findsSampleTablesThatPointOutsideTheData() throws IOException {
+        File file = progressive("bad_offset.mp4");
+        long stco = find(file, "stco");
+        // Third chunk moved past the mdat
+        patch(file, stco + 16 + 2 * 4, (int) file.length());
+
+        Mp4Verifier.Report report = new Mp4Verifier(1).verify(file);
+        assertFalse(report.isValid());
+        assertTrue(report.toString(), report.problems.get(0).contains("sample 8 "));
+        assertTrue(report.toString(), report.problems.get(0).contains("outside the mdat"));
+        assertEquals(-1, report.repairLength);
+    }
+
+    @Test
+    public void findsBrokenNalFramingInCheckedSamples() throws IOException {
+        File file = progressive("bad_nal.mp4");
+        long mdat = find(file, "mdat");
+        // Sample 0's NAL claims two bytes more than the sample holds
+        patch(file, mdat + 8, 98);
+        // Sample 5 is not checked with a stride of 4; sample 10 is a sync sample turned into a P slice
+        long sample10 = mdat + 8 + 10 * 100 + 45;
+        patch(file, sample10 + 1, ((100 + 10 - 4) << 8) | FakeVideoEncoder.NAL_NON_IDR);
+
+        Mp4Verifier.Report report = new Mp4Verifier(4).verify(file);
+        assertEquals(report.toString(), 2, report.problems.size());
+        assertTrue(report.toString(), report.problems.get(0).contains("sample 0 "));
+        assertTrue(report.toString(), report.problems.get(1).contains("sample 10 "));
+        assertTrue(report.toString(), report.problems.get(1).contains("without an IDR"));
+    }
+
+    @Test
+    public void unfinalizedRecordingIsReportedButNotRepaired() throws IOException {
+        File file = progressive("unfinalized.mp4");
+        long moov = find(file, "moov");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(moov);
+        }
+        Mp4Verifier verifier = new Mp4Verifier(4);
+        Mp4Verifier.Report report = verifier.verify(file);
+        assertFalse(report.isValid());
+        assertTrue(report.toString(), report.problems.get(0).contains("never finalized"));
+
+        File queueFile = new File(directory, "repair_queue.txt");
+        RepairQueue queue = new RepairQueue(queueFile);
+        queue.add(report);
+        assertEquals(0, queue.repairAll(verifier));
+        assertEquals(moov, file.length());
+        assertEquals(1, new RepairQueue(queueFile).getPending().size());
+    }
+
+    @Test
+    public void truncatedFragmentedRecordingIsCutBackToItsLastFragment() throws IOException {
+        File file = fragmented("truncated.mp4");
+        long intact = file.length();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(intact - 50);
+        }
+        Mp4Verifier verifier = new Mp4Verifier(4);
+        Mp4Verifier.Report report = verifier.verify(file);
+        assertFalse(report.isValid());
+        assertTrue(report.repairLength > 0 && report.repairLength < intact - 50);
+
+        File queueFile = new File(directory, "repair_queue.txt");
+        RepairQueue queue = new RepairQueue(queueFile);
+        queue.add(report);
+        queue.add(report);
+        // The queue survives a restart, once per file
+        queue = new RepairQueue(queueFile);
+        assertEquals(1, queue.getPending().size());
+        assertEquals(1, queue.repairAll(verifier));
+        assertTrue(queue.getPending().isEmpty());
+
+        assertEquals(report.repairLength, file.length());
+        Mp4Verifier.Report repaired = verifier.verify(file);
+        assertTrue(repaired.toString(), repaired.isValid());
+        assertTrue(repaired.samples > 0 && repaired.samples < SAMPLES);
+        assertEquals(0, repaired.samples % GOP);
+    }
+
+    @Test
+    public void damagedFragmentFollowedByGoodOnesIsNotCutBack() throws IOException {
+        File file = fragmented("damaged_middle.mp4");
+        long intact = file.length();
+        // The first fragment's run claims more samples than it lists
+        patch(file, find(file, "trun") + 12, 1000);
+
+        Mp4Verifier verifier = new Mp4Verifier(4);
+        Mp4Verifier.Report report = verifier.verify(file);
+        assertFalse(report.isValid());
+        assertTrue(report.toString(), report.problems.get(0).contains("too short"));
+        assertEquals(-1, report.repairLength);
+
+        File queueFile = new File(directory, "repair_queue.txt");
+        RepairQueue queue = new RepairQueue(queueFile);
+        queue.add(report);
+        assertEquals(0, queue.repairAll(verifier));
+        assertEquals(intact, file.length());
+        assertEquals(1, new RepairQueue(queueFile).getPending().size());
+    }
+
+    @Test
+    public void scannerVerifiesTheDirectoryInParallel() throws IOException {
+        for (int i = 0; i < 8; i++) {
+            fragmented("ok_" + i + ".mp4");
+        }
+        File broken = progressive("broken.mp4");
+        try (RandomAccessFile raf = new RandomAccessFile(broken, "rw")) {
+            raf.setLength(broken.length() - 10);
+        }
+        new File(directory, "notes.txt").createNewFile();
+        for (File file : directory.listFiles()) {
+            assertTrue(file.setLastModified(System.currentTimeMillis() - 60000));
+        }
+        fragmented("recording.mp4");
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            RecordingScanner scanner = new RecordingScanner(pool, new Mp4Verifier(4), Clock.SYSTEM);
+            RecordingScanner.Result result = scanner.scan(directory, 10000);
+            // The file still being written and anything that is not an MP4 are left alone
+            assertEquals(9, result.reports.size());
+            assertEquals("broken.mp4", result.reports.get(0).file.getName());
+            assertEquals("ok_0.mp4", result.reports.get(1).file.getName());
+            List<Mp4Verifier.Report> brokenReports = result.getBroken();
+            assertEquals(1, brokenReports.size());
+            assertSame(result.reports.get(0), brokenReports.get(0));
+            assertTrue(brokenReports.get(0).problems.get(0).contains("moov"));
+            assertTrue(result.bytes > 0);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.testingsurfacetexture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PreviewGeometryTest {
+    private static final int[][] SIZES = {
+            {4032, 3024}, {1920, 1080}, {1440, 1080}, {1280, 720}, {960, 540}, {640, 480}, {640, 360}, {320, 240}};
+
+    private static float[] map(float[] m, float x, float y) {
+        return new float[]{m[0] * x + m[1] * y + m[2], m[3] * x + m[4] * y + m[5]};
+    }
+
+    // Where the corners of the stretched buffer, which fills the view, end up
+    private static float[] bounds(float[] m, int width, int height) {
+        float[] bounds = {Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (int[] corner : new int[][]{{0, 0}, {width, 0}, {0, height}, {width, height}}) {
+            float[] p = map(m, corner[0], corner[1]);
+            bounds[0] = Math.min(bounds[0], p[0]);
+            bounds[1] = Math.min(bounds[1], p[1]);
+            bounds[2] = Math.max(bounds[2], p[0]);
+            bounds[3] = Math.max(bounds[3], p[1]);
+        }
+        return bounds;
+    }
+
+    @Test
+    public void choosesTheSmallestSizeThatCoversThePortraitView() {
+        // A 1080x2340 portrait view of a 90 degree sensor: 2340 wide once center-cropped, but
+        // nothing larger than the video is used
+        assertArrayEquals(new int[]{1920, 1080}, PreviewGeometry.chooseSize(SIZES, 1080, 2340, 1920, 1080, 90));
+        // A small view gets a small buffer, with the recording's aspect ratio
+        assertArrayEquals(new int[]{960, 540}, PreviewGeometry.chooseSize(SIZES, 500, 900, 1920, 1080, 90));
+        assertArrayEquals(new int[]{640, 360}, PreviewGeometry.chooseSize(SIZES, 360, 640, 1920, 1080, 90));
+        // Height is the limit in a wide landscape view
+        assertArrayEquals(new int[]{1280, 720}, PreviewGeometry.chooseSize(SIZES, 1000, 700, 1920, 1080, 0));
+    }
+
+    @Test
+    public void keepsTheVideoAspectRatioOrFallsBackToTheVideoSize() {
+        assertArrayEquals(new int[]{640, 480}, PreviewGeometry.chooseSize(SIZES, 480, 640, 1440, 1080, 90));
+        assertArrayEquals(new int[]{1440, 1080}, PreviewGeometry.chooseSize(SIZES, 1080, 2340, 1440, 1080, 90));
+        assertArrayEquals(new int[]{1000, 500}, PreviewGeometry.chooseSize(SIZES, 500, 1000, 1000, 500, 90));
+    }
+
+    @Test
+    public void portraitTransformCropsTheSidesWithoutDistortion() {
+        float[] m = PreviewGeometry.transform(1080, 2340, 1280, 720, 90, 0);
+        float[] b = bounds(m, 1080, 2340);
+        // Upright 720x1280 content scaled to the view's height, cropped left and right
+        assertEquals(0, b[1], 0.5);
+        assertEquals(2340, b[3], 0.5);
+        assertEquals(720.0 / 1280, (b[2] - b[0]) / (b[3] - b[1]), 1e-4);
+        assertEquals(1080 / 2.0, (b[0] + b[2]) / 2, 0.5);
+        float[] top = map(m, 540, 0);
+        assertEquals(540, top[0], 0.5);
+        assertEquals(0, top[1], 0.5);
+    }
+
+    @Test
+    public void landscapeTransformTurnsThePictureUpright() {
+        // Display at ROTATION_90: the buffer's top, the device's natural top, goes to the left
+        float[] m = PreviewGeometry.transform(2340, 1080, 1280, 720, 90, 90);
+        float[] b = bounds(m, 2340, 1080);
+        assertEquals(0, b[0], 0.5);
+        assertEquals(2340, b[2], 0.5);
+        assertEquals(1280.0 / 720, (b[2] - b[0]) / (b[3] - b[1]), 1e-4);
+        float[] top = map(m, 1170, 0);
+        assertEquals(0, top[0], 0.5);
+        assertEquals(540, top[1], 0.5);
+
+        m = PreviewGeometry.transform(2340, 1080, 1280, 720, 90, 270);
+        assertEquals(2340, map(m, 1170, 0)[0], 0.5);
+
+        // Upside down: a plain half turn about the center
+        m = PreviewGeometry.transform(1080, 1920, 1920, 1080, 90, 180);
+        float[] corner = map(m, 0, 0);
+        assertEquals(1080, corner[0], 0.5);
+        assertEquals(1920, corner[1], 0.5);
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.testingsurfacetexture;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+// Test sink that checks ordering and folds everything it sees into a checksum.
+class RecordingSink implements SampleSink {
+    TrackFormat format;
+    long samples;
+    long keyFrames;
+    long lastPtsUs = Long.MIN_VALUE;
+    boolean ended;
+    boolean ptsMonotonic = true;
+    boolean framingValid = true;
+    private final CRC32 crc = new CRC32();
+
+    @Override
+    public void onFormat(TrackFormat format) {
+        this.format = format;
+    }
+
+    @Override
+    public void onSample(ByteBuffer data, SampleInfo info) {
+        samples++;
+        if (info.isKeyFrame()) {
+            keyFrames++;
+        }
+        if (info.presentationTimeUs <= lastPtsUs) {
+            ptsMonotonic = false;
+        }
+        lastPtsUs = info.presentationTimeUs;
+        // Annex-B start code followed by an IDR or non-IDR slice header
+        int p = data.position();
+        int nal = data.get(p + 4) & 0x1f;
+        if (data.getInt(p) != 1 || (info.isKeyFrame() ? nal != 5 : nal != 1)) {
+            framingValid = false;
+        }
+        crc.update((int) info.presentationTimeUs);
+        crc.update(info.size);
+        crc.update(info.flags);
+    }
+
+    @Override
+    public void onEnd() {
+        ended = true;
+    }
+
+    long checksum() {
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.testingsurfacetexture;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// Test-side reassembly of single NAL unit and FU-A packets back into NAL units.
+class RtpDepacketizer {
+    final List<byte[]> nals = new ArrayList<>();
+    final List<Long> timestamps = new ArrayList<>();
+    int markers;
+    int lostPackets;
+    private int expectedSequence = -1;
+    private ByteArrayOutputStream fragment;
+
+    void onPacket(byte[] packet, int length) {
+        if ((packet[0] & 0xc0) != 0x80) {
+            throw new IllegalStateException("Not RTP version 2");
+        }
+        int sequence = ((packet[2] & 0xff) << 8) | (packet[3] & 0xff);
+        if (expectedSequence >= 0 && sequence != expectedSequence) {
+            lostPackets++;
+        }
+        expectedSequence = (sequence + 1) & 0xffff;
+        if ((packet[1] & 0x80) != 0) {
+            markers++;
+        }
+        long timestamp = ((packet[4] & 0xffL) << 24) | ((packet[5] & 0xff) << 16) | ((packet[6] & 0xff) << 8) | (packet[7] & 0xff);
+        int offset = RtpPacketizer.RTP_HEADER_SIZE;
+        int type = packet[offset] & 0x1f;
+        if (type == RtpPacketizer.FU_A) {
+            int fuHeader = packet[offset + 1] & 0xff;
+            if ((fuHeader & 0x80) != 0) {
+                fragment = new ByteArrayOutputStream();
+                fragment.write((packet[offset] & 0xe0) | (fuHeader & 0x1f));
+            }
+            fragment.write(packet, offset + 2, length - offset - 2);
+            if ((fuHeader & 0x40) != 0) {
+                nals.add(fragment.toByteArray());
+                timestamps.add(timestamp);
+                fragment = null;
+            }
+        } else {
+            byte[] nal = new byte[length - offset];
+            System.arraycopy(packet, offset, nal, 0, nal.length);
+            nals.add(nal);
+            timestamps.add(timestamp);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.testingsurfacetexture;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class RtpPacketizerTest {
+    private static byte[] nal(int header, int size) {
+        byte[] nal = new byte[size];
+        nal[0] = (byte) header;
+        for (int i = 1; i < size; i++) {
+            // Avoid accidental start codes in the payload
+            nal[i] = (byte) (2 + i % 200);
+        }
+        return nal;
+    }
+
+    private static byte[] annexB(byte[]... nals) {
+        int size = 0;
+        for (byte[] nal : nals) {
+            size += 4 + nal.length;
+        }
+        byte[] out = new byte[size];
+        int position = 0;
+        for (byte[] nal : nals) {
+            out[position + 3] = 1;
+            System.arraycopy(nal, 0, out, position + 4, nal.length);
+            position += 4 + nal.length;
+        }
+        return out;
+    }
+
+    private static RtpDepacketizer roundTrip(RtpPacketizer packetizer, byte[] accessUnit, long ptsUs) throws IOException {
+        final RtpDepacketizer depacketizer = new RtpDepacketizer();
+        packetizer.packetize(accessUnit, 0, accessUnit.length, ptsUs, new RtpPacketizer.PacketListener() {
+            @Override
+            public void onPacket(byte[] header, int headerLength, byte[] payload, int offset, int length) {
+                assertTrue(headerLength + length <= 1400);
+                byte[] packet = new byte[headerLength + length];
+                System.arraycopy(header, 0, packet, 0, headerLength);
+                System.arraycopy(payload, offset, packet, headerLength, length);
+                depacketizer.onPacket(packet, packet.length);
+            }
+        });
+        return depacketizer;
+    }
+
+    @Test
+    public void smallNalsGoOutWhole() throws IOException {
+        byte[] sei = nal(0x06, 20);
+        byte[] slice = nal(0x41, 900);
+        RtpDepacketizer result = roundTrip(new RtpPacketizer(1400, 7), annexB(sei, slice), 1000000);
+
+        assertEquals(2, result.nals.size());
+        assertArrayEquals(sei, result.nals.get(0));
+        assertArrayEquals(slice, result.nals.get(1));
+        assertEquals(1, result.markers);
+        assertEquals(90000L, (long) result.timestamps.get(0));
+    }
+
+    @Test
+    public void largeNalsAreFragmented() throws IOException {
+        byte[] idr = nal(0x65, 50000);
+        RtpPacketizer packetizer = new RtpPacketizer(1400, 7);
+        RtpDepacketizer result = roundTrip(packetizer, annexB(idr), 33333);
+
+        assertEquals(1, result.nals.size());
+        assertArrayEquals(idr, result.nals.get(0));
+        assertEquals(1, result.markers);
+        assertEquals(0, result.lostPackets);
+        // 49999 payload bytes over 1386 byte fragments
+        assertEquals(37, packetizer.getSequence());
+    }
+
+    @Test
+    public void threeByteStartCodesAndTrailingZeros() throws IOException {
+        byte[] a = nal(0x67, 10);
+        byte[] b = nal(0x68, 4);
+        byte[] unit = new byte[3 + a.length + 1 + 3 + b.length];
+        unit[2] = 1;
+        System.arraycopy(a, 0, unit, 3, a.length);
+        // a zero_byte before the next start code
+        unit[3 + a.length + 3] = 1;
+        System.arraycopy(b, 0, unit, 3 + a.length + 4, b.length);
+
+        RtpDepacketizer result = roundTrip(new RtpPacketizer(1400, 7), unit, 0);
+        assertEquals(2, result.nals.size());
+        assertArrayEquals(a, result.nals.get(0));
+        assertArrayEquals(b, result.nals.get(1));
+    }
+
+    @Test
+    public void sequenceNumbersWrap() throws IOException {
+        RtpPacketizer packetizer = new RtpPacketizer(200, 7);
+        byte[] unit = annexB(nal(0x41, 10));
+        for (int i = 0; i < 70000; i++) {
+            packetizer.packetize(unit, 0, unit.length, i, new RtpPacketizer.PacketListener() {
+                @Override
+                public void onPacket(byte[] header, int headerLength, byte[] payload, int offset, int length) {
+                }
+            });
+        }
+        assertEquals(70000 & 0xffff, packetizer.getSequence());
+    }
+
+    @Test
+    public void base64MatchesReference() {
+        assertEquals("Z0LAKA==", RtspServer.base64(new byte[]{0x67, 0x42, (byte) 0xc0, 0x28}));
+        assertEquals("aM4PyA==", RtspServer.base64(new byte[]{0x68, (byte) 0xce, 0x0f, (byte) 0xc8}));
+        assertEquals("YWJj", RtspServer.base64("abc".getBytes()));
+        assertEquals("", RtspServer.base64(new byte[0]));
+        assertTrue(Arrays.equals(new byte[]{0x68}, RtspServer.stripStartCode(ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x68}))));
+    }
+}
@@ -0,0 +1,289 @@
+package com.example.testingsurfacetexture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class RtspServerTest {
+    private static final long TIMEOUT_MS = 10000;
+
+    private RtspServer server;
+
+    // Loopback RTSP client using interleaved TCP transport
+    private static class Client {
+        final Socket socket;
+        final DataInputStream in;
+        final OutputStream out;
+        final RtpDepacketizer depacketizer = new RtpDepacketizer();
+        int cseq;
+
+        Client(int port) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setSoTimeout((int) TIMEOUT_MS);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = socket.getOutputStream();
+        }
+
+        String request(String method, String extraHeaders) throws IOException {
+            String url = "rtsp://127.0.0.1/live";
+            out.write((method + " " + url + " RTSP/1.0\r\nCSeq: " + (++cseq) + "\r\n" + extraHeaders + "\r\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            StringBuilder response = new StringBuilder();
+            int contentLength = 0;
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                response.append(line).append('\n');
+                if (line.startsWith("Content-Length:")) {
+                    contentLength = Integer.parseInt(line.substring(15).trim());
+                }
+            }
+            byte[] body = new byte[contentLength];
+            in.readFully(body);
+            return response.append('\n').append(new String(body, StandardCharsets.UTF_8)).toString();
+        }
+
+        String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) {
+                    throw new IOException("closed");
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        void play() throws IOException {
+            assertTrue(request("OPTIONS", "").startsWith("RTSP/1.0 200 OK"));
+            String sdp = request("DESCRIBE", "Accept: application/sdp\r\n");
+            assertTrue(sdp, sdp.contains("a=rtpmap:96 H264/90000"));
+            assertTrue(request("SETUP", "Transport: RTP/AVP/TCP;unicast;interleaved=0-1\r\n").contains("interleaved=0-1"));
+            assertTrue(request("PLAY", "Session: 1\r\n").startsWith("RTSP/1.0 200 OK"));
+        }
+
+        // Reads interleaved packets until the given number of access units (markers) arrived
+        void readAccessUnits(int count) throws IOException {
+            byte[] packet = new byte[65536];
+            while (depacketizer.markers < count) {
+                assertEquals('$', in.readUnsignedByte());
+                assertEquals(0, in.readUnsignedByte());
+                int length = in.readUnsignedShort();
+                in.readFully(packet, 0, length);
+                depacketizer.onPacket(packet, length);
+            }
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = new RtspServer(InetAddress.getLoopbackAddress(), 0, 8);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private void awaitPlaying(int clients) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (server.getPlayingClients() != clients) {
+            assertTrue("timed out waiting for clients", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    // The server hung up, with a reset if the request was left unread
+    private static void assertClosed(Client client) throws IOException {
+        try {
+            assertEquals(-1, client.in.read());
+        } catch (SocketException e) {
+            // Reset
+        }
+    }
+
+    private static byte[] accessUnit(int nalHeader, int size, int seed) {
+        byte[] unit = new byte[size];
+        unit[3] = 1;
+        unit[4] = (byte) nalHeader;
+        for (int i = 5; i < size; i++) {
+            unit[i] = (byte) (2 + (i * seed) % 250);
+        }
+        return unit;
+    }
+
+    private void send(byte[] unit, long ptsUs, boolean keyFrame) {
+        SampleInfo info = new SampleInfo();
+        info.set(0, unit.length, ptsUs, keyFrame ? SampleInfo.FLAG_KEY_FRAME : 0);
+        server.onSample(ByteBuffer.wrap(unit), info);
+    }
+
+    @Test
+    public void streamsToLoopbackClientStartingAtKeyFrame() throws Exception {
+        server.onFormat(new TrackFormat("video/avc", 1920, 1080,
+                ByteBuffer.wrap(FakeVideoEncoder.SPS), ByteBuffer.wrap(FakeVideoEncoder.PPS)));
+        Client client = new Client(server.getPort());
+        client.play();
+        awaitPlaying(1);
+
+        // A P-frame before any key frame cannot be decoded and is skipped
+        send(accessUnit(0x41, 3000, 1), 0, false);
+        byte[] idr = accessUnit(0x65, 60000, 3);
+        byte[] p = accessUnit(0x41, 5000, 5);
+        send(idr, 100000, true);
+        send(p, 133333, false);
+        client.readAccessUnits(2);
+
+        // SPS and PPS are sent in band in front of the key frame
+        assertEquals(4, client.depacketizer.nals.size());
+        assertEquals(0x67, client.depacketizer.nals.get(0)[0]);
+        assertEquals(0x68, client.depacketizer.nals.get(1)[0]);
+        assertArrayEquals(Arrays.copyOfRange(idr, 4, idr.length), client.depacketizer.nals.get(2));
+        assertArrayEquals(Arrays.copyOfRange(p, 4, p.length), client.depacketizer.nals.get(3));
+        assertEquals(9000L, (long) client.depacketizer.timestamps.get(2));
+        assertEquals(0, client.depacketizer.lostPackets);
+        client.close();
+    }
+
+    @Test
+    public void describeAdvertisesParameterSets() throws Exception {
+        server.onFormat(new TrackFormat("video/avc", 1920, 1080,
+                ByteBuffer.wrap(FakeVideoEncoder.SPS), ByteBuffer.wrap(FakeVideoEncoder.PPS)));
+        Client client = new Client(server.getPort());
+        String sdp = client.request("DESCRIBE", "");
+        assertTrue(sdp, sdp.contains("sprop-parameter-sets=" + RtspServer.base64(RtspServer.stripStartCode(ByteBuffer.wrap(FakeVideoEncoder.SPS)))));
+        assertTrue(client.request("SETUP", "Transport: RTP/AVP;unicast;client_port=5000-5001\r\n").startsWith("RTSP/1.0 461"));
+        assertTrue(client.request("RECORD", "").startsWith("RTSP/1.0 501"));
+        client.close();
+    }
+
+    @Test
+    public void malformedRequestsCloseOnlyThatClient() throws Exception {
+        // Blank lines between requests are skipped
+        Client blank = new Client(server.getPort());
+        blank.out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+        assertTrue(blank.request("OPTIONS", "").startsWith("RTSP/1.0 200 OK"));
+
+        Client badLength = new Client(server.getPort());
+        String response = badLength.request("OPTIONS", "Content-Length: lots\r\n");
+        assertTrue(response, response.startsWith("RTSP/1.0 400"));
+        assertClosed(badLength);
+
+        Client longLine = new Client(server.getPort());
+        char[] header = new char[RtspServer.MAX_LINE_LENGTH + 1];
+        Arrays.fill(header, 'x');
+        longLine.out.write(("OPTIONS * RTSP/1.0\r\nX: " + new String(header) + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        assertClosed(longLine);
+
+        Client manyHeaders = new Client(server.getPort());
+        StringBuilder headers = new StringBuilder();
+        for (int i = 0; i <= RtspServer.MAX_HEADERS; i++) {
+            headers.append("X-").append(i).append(": 1\r\n");
+        }
+        manyHeaders.out.write(("OPTIONS * RTSP/1.0\r\n" + headers + "\r\n").getBytes(StandardCharsets.UTF_8));
+        assertClosed(manyHeaders);
+
+        // The server and the other connection carry on
+        assertTrue(blank.request("OPTIONS", "").startsWith("RTSP/1.0 200 OK"));
+        Client next = new Client(server.getPort());
+        assertTrue(next.request("OPTIONS", "").startsWith("RTSP/1.0 200 OK"));
+        blank.close();
+        badLength.close();
+        longLine.close();
+        manyHeaders.close();
+        next.close();
+    }
+
+    @Test
+    public void connectionsBeyondTheCapAreRefused() throws Exception {
+        Client[] connected = new Client[RtspServer.MAX_CLIENTS];
+        for (int i = 0; i < connected.length; i++) {
+            connected[i] = new Client(server.getPort());
+            assertTrue(connected[i].request("OPTIONS", "").startsWith("RTSP/1.0 200 OK"));
+        }
+        Client extra = new Client(server.getPort());
+        assertClosed(extra);
+
+        connected[0].close();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (true) {
+            Client retry = new Client(server.getPort());
+            try {
+                if (retry.request("OPTIONS", "").startsWith("RTSP/1.0 200 OK")) {
+                    retry.close();
+                    break;
+                }
+            } catch (IOException e) {
+                // The closed connection is not gone yet
+            }
+            retry.close();
+            assertTrue("timed out waiting for a free slot", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        for (Client client : connected) {
+            client.close();
+        }
+        extra.close();
+    }
+
+    @Test
+    public void slowClientIsEvictedWithoutAffectingOthers() throws Exception {
+        Client slow = new Client(server.getPort());
+        slow.play();
+        final Client fast = new Client(server.getPort());
+        fast.play();
+        awaitPlaying(2);
+
+        final int frames = 400;
+        final Exception[] readerError = new Exception[1];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fast.readAccessUnits(frames);
+                } catch (Exception e) {
+                    readerError[0] = e;
+                }
+            }
+        });
+        reader.start();
+
+        // The slow client never reads: its socket buffers fill, then its queue, then it is dropped
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            send(accessUnit(i % 30 == 0 ? 0x65 : 0x41, 100000, i + 1), i * 33333L, i % 30 == 0);
+            // The encoder thread must never block on a client
+            assertTrue(System.nanoTime() - start < TIMEOUT_MS * 1000000L);
+            // Pace like an encoder so the healthy client keeps up
+            Thread.sleep(2);
+        }
+        reader.join(TIMEOUT_MS);
+        assertNull(readerError[0]);
+        assertEquals(1, server.getEvictedClients());
+        assertEquals(frames, fast.depacketizer.markers);
+        assertEquals(0, fast.depacketizer.lostPackets);
+        slow.close();
+        fast.close();
+    }
+}
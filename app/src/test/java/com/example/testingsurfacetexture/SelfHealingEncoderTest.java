@@ -0,0 +1,321 @@
+package com.example.testingsurfacetexture;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class SelfHealingEncoderTest {
+    private static final long MS_NS = 1000000L;
+    private static final long SECOND_NS = 1000 * MS_NS;
+    // How long the recovery executor takes to reset or create a codec
+    private static final long SETUP_NS = 80 * MS_NS;
+
+    private static class Timeline extends RecordingSink {
+        final List<Long> pts = new ArrayList<>();
+        final List<Boolean> keyFrameFlags = new ArrayList<>();
+        int formats;
+
+        @Override
+        public void onFormat(TrackFormat format) {
+            formats++;
+            super.onFormat(format);
+        }
+
+        @Override
+        public void onSample(ByteBuffer data, SampleInfo info) {
+            pts.add(info.presentationTimeUs);
+            keyFrameFlags.add(info.isKeyFrame());
+            super.onSample(data, info);
+        }
+
+        // Index of the first sample at or after timeUs
+        int firstAt(long timeUs) {
+            for (int i = 0; i < pts.size(); i++) {
+                if (pts.get(i) >= timeUs) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    // Creates fakes on the clock, failing the first failures times like a codec that is not free yet
+    private static class Factory implements SelfHealingEncoder.Factory {
+        final VirtualClock clock;
+        final List<FakeVideoEncoder> created = new ArrayList<>();
+        int failures;
+        int bFrames;
+        byte[] sps = FakeVideoEncoder.SPS;
+
+        Factory(VirtualClock clock) {
+            this.clock = clock;
+        }
+
+        @Override
+        public VideoEncoder create() throws IOException {
+            if (failures > 0) {
+                failures--;
+                throw new IOException("insufficient resources");
+            }
+            FakeVideoEncoder encoder = new FakeVideoEncoder(clock, 100 + created.size()).sps(sps).bFrames(bFrames);
+            created.add(encoder);
+            return encoder;
+        }
+    }
+
+    private final VirtualClock clock = new VirtualClock(0);
+    private final Factory factory = new Factory(clock);
+    private final List<Exception> unrecovered = new ArrayList<>();
+
+    private static Executor delayed(final VirtualClock clock, final long delayNs) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                clock.schedule(clock.nanoTime() + delayNs, command);
+            }
+        };
+    }
+
+    private SelfHealingEncoder healing(FakeVideoEncoder first, int maxRecoveries) {
+        SelfHealingEncoder encoder = new SelfHealingEncoder(first, factory, delayed(clock, SETUP_NS), clock,
+                maxRecoveries, 60 * SECOND_NS);
+        encoder.setErrorListener(new VideoEncoder.ErrorListener() {
+            @Override
+            public void onError(Exception e) {
+                unrecovered.add(e);
+            }
+        });
+        return encoder;
+    }
+
+    private CapturePipeline pipeline(VideoEncoder encoder, SampleSink sink) {
+        CapturePipeline pipeline = new CapturePipeline(new SyntheticFrameSource(clock, 30, 0, 1), encoder, sink, clock);
+        pipeline.start();
+        return pipeline;
+    }
+
+    private static void assertResumesWithKeyFrame(Timeline timeline, long faultUs) {
+        int resumed = timeline.firstAt(faultUs);
+        assertTrue(resumed > 0);
+        assertTrue(timeline.keyFrameFlags.get(resumed));
+        // Nothing of the broken encoder's after the fault, and the gap is the setup time plus a frame or two
+        long gapUs = timeline.pts.get(resumed) - timeline.pts.get(resumed - 1);
+        assertTrue("gap " + gapUs, gapUs >= SETUP_NS / 1000 && gapUs < SETUP_NS / 1000 + 100000);
+    }
+
+    @Test
+    public void recoverableErrorResetsTheCodecAndTheStreamContinues() {
+        FakeVideoEncoder first = new FakeVideoEncoder(clock, 1);
+        SelfHealingEncoder encoder = healing(first, 3);
+        Timeline timeline = new Timeline();
+        CapturePipeline pipeline = pipeline(encoder, timeline);
+
+        clock.runFor(3 * SECOND_NS);
+        first.injectFault(EncoderFault.Kind.RECOVERABLE);
+        assertTrue(encoder.isRecovering());
+        clock.runFor(3 * SECOND_NS);
+        pipeline.stop();
+
+        assertEquals(1, first.getResets());
+        assertEquals(1, encoder.getResets());
+        assertEquals(0, encoder.getRecreations());
+        assertTrue(factory.created.isEmpty());
+        assertTrue(unrecovered.isEmpty());
+        // One track: the reset codec's format is the same and is not passed on again
+        assertEquals(1, timeline.formats);
+        assertEquals(0, encoder.getFormatChanges());
+        assertTrue(timeline.ptsMonotonic);
+        assertTrue(timeline.framingValid);
+        assertTrue(timeline.ended);
+        assertResumesWithKeyFrame(timeline, 3000000);
+        assertTrue(encoder.getDroppedFrames() >= 2);
+        assertTrue(encoder.getLastRecoveryNs() >= SETUP_NS);
+        assertTrue(encoder.getLastRecoveryNs() < SETUP_NS + 100 * MS_NS);
+        assertEquals(encoder.getLastRecoveryNs(), encoder.getTotalRecoveryNs());
+    }
+
+    @Test
+    public void reclaimedCodecIsRecreatedWithTheCurrentSettings() {
+        FakeVideoEncoder first = new FakeVideoEncoder(clock, 1);
+        SelfHealingEncoder encoder = healing(first, 3);
+        Timeline timeline = new Timeline();
+        CapturePipeline pipeline = pipeline(encoder, timeline);
+        factory.failures = 1;
+
+        clock.runFor(2 * SECOND_NS);
+        encoder.setBitRate(4000000);
+        first.injectFault(EncoderFault.Kind.FATAL);
+        clock.runFor(2 * SECOND_NS);
+        pipeline.stop();
+
+        assertTrue(first.isReleased());
+        assertEquals(1, factory.created.size());
+        assertEquals(1, encoder.getRecreations());
+        assertEquals(1, encoder.getFailedAttempts());
+        assertEquals(4000000, factory.created.get(0).getBitRate());
+        assertTrue(timeline.ptsMonotonic);
+        assertTrue(timeline.framingValid);
+        assertResumesWithKeyFrame(timeline, 2000000);
+        assertTrue(unrecovered.isEmpty());
+    }
+
+    @Test
+    public void reorderedTimestampsAreKeptBeforeAndAfterARecovery() {
+        FakeVideoEncoder first = new FakeVideoEncoder(clock, 1).bFrames(2);
+        factory.bFrames = 2;
+        SelfHealingEncoder encoder = healing(first, 3);
+        Timeline timeline = new Timeline();
+        CapturePipeline pipeline = pipeline(encoder, timeline);
+
+        clock.runFor(2 * SECOND_NS);
+        // B frames come out behind the reference shown after them, and none are dropped
+        assertFalse(timeline.ptsMonotonic);
+        assertEquals(0, encoder.getDroppedSamples());
+        int before = timeline.pts.size();
+        long maxBeforeUs = Long.MIN_VALUE;
+        for (long pts : timeline.pts) {
+            maxBeforeUs = Math.max(maxBeforeUs, pts);
+        }
+
+        first.injectFault(EncoderFault.Kind.FATAL);
+        clock.runFor(2 * SECOND_NS);
+        pipeline.stop();
+
+        assertEquals(1, encoder.getRecreations());
+        assertTrue(timeline.pts.size() > before);
+        assertTrue(timeline.keyFrameFlags.get(before));
+        // The new codec starts after everything the old one showed, then reorders as before
+        boolean reordered = false;
+        for (int i = before; i < timeline.pts.size(); i++) {
+            assertTrue(timeline.pts.get(i) > maxBeforeUs);
+            if (i > before && timeline.pts.get(i) < timeline.pts.get(i - 1)) {
+                reordered = true;
+            }
+        }
+        assertTrue(reordered);
+        assertTrue(timeline.framingValid);
+        assertTrue(unrecovered.isEmpty());
+    }
+
+    @Test
+    public void failedResetFallsBackToANewCodec() {
+        FakeVideoEncoder first = new FakeVideoEncoder(clock, 1).resetFails(true);
+        SelfHealingEncoder encoder = healing(first, 3);
+        Timeline timeline = new Timeline();
+        CapturePipeline pipeline = pipeline(encoder, timeline);
+
+        clock.runFor(2 * SECOND_NS);
+        first.injectFault(EncoderFault.Kind.RECOVERABLE);
+        clock.runFor(2 * SECOND_NS);
+        pipeline.stop();
+
+        assertEquals(0, encoder.getResets());
+        assertEquals(1, encoder.getRecreations());
+        assertTrue(first.isReleased());
+        assertResumesWithKeyFrame(timeline, 2000000);
+    }
+
+    @Test
+    public void newParameterSetsContinueInTheNextSegment() {
+        FakeVideoEncoder first = new FakeVideoEncoder(clock, 1);
+        SelfHealingEncoder encoder = healing(first, 3);
+        final List<Timeline> segments = new ArrayList<>();
+        segments.add(new Timeline());
+        SegmentingSink sink = new SegmentingSink(segments.get(0), new SegmentingSink.Factory() {
+            @Override
+            public SampleSink open(int segment) {
+                assertEquals(segments.size(), segment);
+                segments.add(new Timeline());
+                return segments.get(segment);
+            }
+        });
+        CapturePipeline pipeline = pipeline(encoder, sink);
+        byte[] sps = FakeVideoEncoder.SPS.clone();
+        sps[sps.length - 1] ^= 1;
+        factory.sps = sps;
+
+        clock.runFor(2 * SECOND_NS);
+        first.injectFault(EncoderFault.Kind.FATAL);
+        clock.runFor(2 * SECOND_NS);
+        pipeline.stop();
+
+        assertEquals(1, encoder.getFormatChanges());
+        assertEquals(1, sink.getSegment());
+        assertEquals(2, segments.size());
+        Timeline before = segments.get(0);
+        Timeline after = segments.get(1);
+        assertTrue(before.ended);
+        assertTrue(after.ended);
+        assertEquals(ByteBuffer.wrap(sps), after.format.getCsd0());
+        assertTrue(after.keyFrameFlags.get(0));
+        assertTrue(after.framingValid);
+        // Timestamps carry on across the files
+        assertTrue(after.pts.get(0) > before.lastPtsUs);
+        assertTrue(before.lastPtsUs < 2000000);
+    }
+
+    @Test
+    public void transientErrorsAndStaleFaultsKeepTheCodec() {
+        FakeVideoEncoder first = new FakeVideoEncoder(clock, 1).gopFrames(300);
+        SelfHealingEncoder encoder = healing(first, 3);
+        Timeline timeline = new Timeline();
+        CapturePipeline pipeline = pipeline(encoder, timeline);
+
+        clock.runFor(2 * SECOND_NS);
+        int before = timeline.pts.size();
+        first.injectFault(EncoderFault.Kind.TRANSIENT);
+        assertFalse(encoder.isRecovering());
+        clock.runFor(2 * SECOND_NS);
+        assertEquals(1, encoder.getTransientErrors());
+        // A key frame in case the error damaged one, without waiting for the 10 s GOP
+        assertTrue(timeline.keyFrameFlags.subList(before, before + 3).contains(true));
+
+        // A fatal fault replaces the codec; the old one reporting again changes nothing
+        first.injectFault(EncoderFault.Kind.FATAL);
+        clock.runFor(SECOND_NS);
+        first.injectFault(EncoderFault.Kind.FATAL);
+        clock.runFor(SECOND_NS);
+        pipeline.stop();
+
+        assertEquals(1, encoder.getRecreations());
+        assertEquals(1, factory.created.size());
+        assertTrue(timeline.ptsMonotonic);
+        assertTrue(unrecovered.isEmpty());
+    }
+
+    @Test
+    public void repeatedFaultsGiveUpAndReport() {
+        FakeVideoEncoder first = new FakeVideoEncoder(clock, 1);
+        SelfHealingEncoder encoder = healing(first, 2);
+        Timeline timeline = new Timeline();
+        CapturePipeline pipeline = pipeline(encoder, timeline);
+
+        FakeVideoEncoder current = first;
+        for (int i = 0; i < 2; i++) {
+            clock.runFor(SECOND_NS);
+            current.injectFault(EncoderFault.Kind.FATAL);
+            clock.runFor(SECOND_NS);
+            current = factory.created.get(i);
+        }
+        assertTrue(unrecovered.isEmpty());
+        clock.runFor(SECOND_NS);
+        current.injectFault(EncoderFault.Kind.FATAL);
+        long samples = timeline.samples;
+        clock.runFor(SECOND_NS);
+        pipeline.stop();
+
+        assertEquals(1, unrecovered.size());
+        assertEquals(EncoderFault.Kind.FATAL, ((EncoderFault) unrecovered.get(0)).kind);
+        assertEquals(2, encoder.getRecreations());
+        // Nothing after giving up, but the recording is still closed properly
+        assertEquals(samples, timeline.samples);
+        assertTrue(encoder.getDroppedFrames() >= 29);
+        assertTrue(timeline.ended);
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.testingsurfacetexture;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class StartupConfigTest {
+    private static final String FINGERPRINT = "vendor/device/device:14/AP1A.240405.002/11480754:user/release-keys";
+
+    private static byte[] store(StartupConfig config) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        config.store(out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void roundTripsCameraAndEncoderCapabilities() throws IOException {
+        EncoderCapabilities capabilities = new EncoderCapabilities(64000, 40000000, 60,
+                new boolean[]{false, true, true}, new int[][]{{1, 0x1000}, {8, 0x800}}, true);
+        StartupConfig config = new StartupConfig(FINGERPRINT, "1", 1920, 1080, 3, capabilities, 270);
+
+        StartupConfig loaded = StartupConfig.load(new ByteArrayInputStream(store(config)), FINGERPRINT);
+        assertNotNull(loaded);
+        assertEquals("1", loaded.cameraId);
+        assertEquals(1920, loaded.videoWidth);
+        assertEquals(1080, loaded.videoHeight);
+        assertEquals(3, loaded.maxEncoders);
+        assertEquals(270, loaded.sensorOrientation);
+        assertFalse(loaded.hasPreviewFor(1080, 2400, 1920, 1080));
+        assertEquals(64000, loaded.capabilities.minBitRate);
+        assertEquals(40000000, loaded.capabilities.maxBitRate);
+        assertEquals(60, loaded.capabilities.maxFrameRate);
+        assertFalse(loaded.capabilities.isBitrateModeSupported(EncoderProfile.BITRATE_MODE_CQ));
+        assertTrue(loaded.capabilities.isBitrateModeSupported(EncoderProfile.BITRATE_MODE_VBR));
+        assertTrue(loaded.capabilities.isBitrateModeSupported(EncoderProfile.BITRATE_MODE_CBR));
+        assertEquals(0x1000, loaded.capabilities.getMaxLevel(EncoderProfile.AVC_PROFILE_BASELINE));
+        assertEquals(0x800, loaded.capabilities.getMaxLevel(EncoderProfile.AVC_PROFILE_HIGH));
+        assertFalse(loaded.capabilities.isProfileSupported(EncoderProfile.AVC_PROFILE_MAIN));
+        assertTrue(loaded.capabilities.intraRefresh);
+    }
+
+    @Test
+    public void roundTripsThePreviewChosenForAView() throws IOException {
+        StartupConfig config = new StartupConfig(FINGERPRINT, "0", 1920, 1080, 2, EncoderCapabilities.ANY, 90)
+                .withPreview(1280, 720, 720, 1600);
+
+        StartupConfig loaded = StartupConfig.load(new ByteArrayInputStream(store(config)), FINGERPRINT);
+        assertEquals(90, loaded.sensorOrientation);
+        assertEquals(1280, loaded.previewWidth);
+        assertEquals(720, loaded.previewHeight);
+        assertTrue(loaded.hasPreviewFor(720, 1600, 1920, 1080));
+        // Rotated or resized view, or a recording the governor moved to another size
+        assertFalse(loaded.hasPreviewFor(1600, 720, 1920, 1080));
+        assertFalse(loaded.hasPreviewFor(720, 1600, 1280, 720));
+    }
+
+    @Test
+    public void unknownProfileLevelsStayUnknown() throws IOException {
+        StartupConfig config = new StartupConfig(FINGERPRINT, "0", 1280, 720, 1, EncoderCapabilities.ANY, 90);
+
+        StartupConfig loaded = StartupConfig.load(new ByteArrayInputStream(store(config)), FINGERPRINT);
+        assertTrue(loaded.capabilities.isProfileSupported(EncoderProfile.AVC_PROFILE_MAIN));
+        assertEquals(Integer.MAX_VALUE, loaded.capabilities.maxBitRate);
+    }
+
+    @Test
+    public void configFromAnotherBuildIsIgnored() throws IOException {
+        StartupConfig config = new StartupConfig(FINGERPRINT, "0", 1920, 1080, 2, EncoderCapabilities.ANY, 90);
+
+        assertNull(StartupConfig.load(new ByteArrayInputStream(store(config)), FINGERPRINT + ".1"));
+    }
+
+    @Test
+    public void malformedConfigIsIgnored() throws IOException {
+        String truncated = "fingerprint=" + FINGERPRINT.replace(":", "\\:") + "\ncamera_id=0\nvideo_width=1920\n";
+        assertNull(StartupConfig.load(new ByteArrayInputStream(truncated.getBytes("UTF-8")), FINGERPRINT));
+
+        String garbled = "fingerprint=" + FINGERPRINT.replace(":", "\\:") + "\ncamera_id=0\nvideo_width=1920\n"
+                + "video_height=1080\nmax_encoders=2\nencoder.min_bitrate=1\nencoder.max_bitrate=2\n"
+                + "encoder.max_frame_rate=30\nencoder.profile_levels=8\n";
+        assertNull(StartupConfig.load(new ByteArrayInputStream(garbled.getBytes("UTF-8")), FINGERPRINT));
+        assertNull(StartupConfig.load(new ByteArrayInputStream(new byte[0]), FINGERPRINT));
+
+        // Stored before the sensor orientation was
+        String old = "fingerprint=" + FINGERPRINT.replace(":", "\\:") + "\ncamera_id=0\nvideo_width=1920\n"
+                + "video_height=1080\nmax_encoders=2\nencoder.min_bitrate=1\nencoder.max_bitrate=2\n"
+                + "encoder.max_frame_rate=30\n";
+        assertNull(StartupConfig.load(new ByteArrayInputStream(old.getBytes("UTF-8")), FINGERPRINT));
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.testingsurfacetexture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StartupTimerTest {
+    private static final long MS_NS = 1000000L;
+
+    @Test
+    public void overlappingPhasesAreTimedIndependently() {
+        VirtualClock clock = new VirtualClock(0);
+        StartupTimer timer = new StartupTimer(clock);
+        timer.begin("startup");
+        clock.runFor(5 * MS_NS);
+        timer.begin("camera_open");
+        timer.begin("layout");
+        clock.runFor(40 * MS_NS);
+        timer.end("layout");
+        clock.runFor(80 * MS_NS);
+        timer.end("camera_open");
+        clock.runFor(30 * MS_NS);
+        timer.end("startup");
+
+        assertEquals(40 * MS_NS, timer.getDurationNs("layout"));
+        assertEquals(120 * MS_NS, timer.getDurationNs("camera_open"));
+        assertEquals(155 * MS_NS, timer.getDurationNs("startup"));
+        assertEquals(125 * MS_NS, timer.getEndOffsetNs("camera_open"));
+        assertEquals("startup @0ms 155.0ms, camera_open @5ms 120.0ms, layout @5ms 40.0ms", timer.toString());
+    }
+
+    @Test
+    public void onlyTheFirstOccurrenceOfAPhaseCounts() {
+        VirtualClock clock = new VirtualClock(0);
+        StartupTimer timer = new StartupTimer(clock);
+        timer.begin("record_start");
+        clock.runFor(100 * MS_NS);
+        timer.end("record_start");
+        clock.runFor(1000 * MS_NS);
+        timer.begin("record_start");
+        clock.runFor(10 * MS_NS);
+        timer.end("record_start");
+
+        assertEquals(100 * MS_NS, timer.getDurationNs("record_start"));
+    }
+
+    @Test
+    public void unfinishedPhasesHaveNoDuration() {
+        StartupTimer timer = new StartupTimer(new VirtualClock(0));
+        timer.end("never_started");
+        timer.begin("encoder_prewarm");
+
+        assertFalse(timer.isEnded("never_started"));
+        assertFalse(timer.isEnded("encoder_prewarm"));
+        assertEquals(-1, timer.getDurationNs("encoder_prewarm"));
+        assertEquals(-1, timer.getDurationNs("never_started"));
+        assertEquals("encoder_prewarm @0ms running", timer.toString());
+    }
+}
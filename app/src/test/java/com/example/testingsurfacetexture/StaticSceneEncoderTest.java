@@ -0,0 +1,200 @@
+package com.example.testingsurfacetexture;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StaticSceneEncoderTest {
+    private static final long SECOND_NS = 1000000000L;
+    private static final int BIT_RATE = 10000000;
+
+    private static class CollectingSink implements SampleSink {
+        final List<Long> pts = new ArrayList<>();
+        final List<Boolean> keyFrames = new ArrayList<>();
+        long bytes;
+
+        @Override
+        public void onFormat(TrackFormat format) {
+        }
+
+        @Override
+        public void onSample(ByteBuffer data, SampleInfo info) {
+            pts.add(info.presentationTimeUs);
+            keyFrames.add(info.isKeyFrame());
+            bytes += info.size;
+        }
+
+        @Override
+        public void onEnd() {
+        }
+
+        int countBetween(long fromUs, long toUs) {
+            int count = 0;
+            for (long p : pts) {
+                if (p >= fromUs && p < toUs) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        long firstKeyFrameAfter(long fromUs) {
+            for (int i = 0; i < pts.size(); i++) {
+                if (pts.get(i) >= fromUs && keyFrames.get(i)) {
+                    return pts.get(i);
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    // Sensor noise on a still picture, with motion in the given [start, end) seconds
+    private static FakeVideoEncoder.Scene surveillance(final int[][] motionSeconds) {
+        return new FakeVideoEncoder.Scene() {
+            @Override
+            public double activity(long timestampNs) {
+                for (int[] burst : motionSeconds) {
+                    if (timestampNs >= burst[0] * SECOND_NS && timestampNs < burst[1] * SECOND_NS) {
+                        return 1;
+                    }
+                }
+                return 0.04 + 0.01 * Math.sin(timestampNs / 1e8);
+            }
+        };
+    }
+
+    private static CollectingSink record(VideoEncoder encoder, VirtualClock clock, int seconds) {
+        CollectingSink sink = new CollectingSink();
+        CapturePipeline pipeline = new CapturePipeline(new SyntheticFrameSource(clock, 30, 0, 1), encoder, sink, clock);
+        pipeline.start();
+        clock.runFor(seconds * SECOND_NS);
+        pipeline.stop();
+        return sink;
+    }
+
+    @Test
+    public void staticSurveillanceNeedsAFractionOfTheStorage() {
+        int[][] motion = {{300, 310}, {900, 910}, {1500, 1510}};
+        VirtualClock baselineClock = new VirtualClock(0);
+        CollectingSink baseline = record(new FakeVideoEncoder(baselineClock, 1).scene(surveillance(motion)), baselineClock, 1800);
+
+        VirtualClock clock = new VirtualClock(0);
+        StaticSceneEncoder adaptive = new StaticSceneEncoder(
+                new FakeVideoEncoder(clock, 1).scene(surveillance(motion)), BIT_RATE, 30, 5, 0.25);
+        CollectingSink sink = record(adaptive, clock, 1800);
+
+        assertTrue(baseline.bytes + " vs " + sink.bytes, sink.bytes * 3 < baseline.bytes);
+        assertTrue(baseline.pts.size() + " vs " + sink.pts.size(), sink.pts.size() * 3 < baseline.pts.size());
+        // Static from the start, then out and back in around each burst
+        assertEquals(7, adaptive.getTransitions());
+        assertTrue(adaptive.getStaticDurationUs() > 1700 * 1000000L);
+
+        for (int[] burst : motion) {
+            long startUs = burst[0] * 1000000L;
+            long endUs = burst[1] * 1000000L;
+            // The event starts on a key frame a few frames in, then runs at the full frame rate
+            assertTrue(sink.firstKeyFrameAfter(startUs) - startUs < 300000);
+            assertEquals(30 * (burst[1] - burst[0]) - 9, sink.countBetween(startUs + 300000, endUs), 1);
+        }
+        // One frame in five between events
+        assertEquals(6 * 100, sink.countBetween(500000000L, 600000000L), 2);
+    }
+
+    @Test
+    public void briefPausesInMotionKeepFullRate() {
+        final long periodNs = 6 * SECOND_NS;
+        VirtualClock clock = new VirtualClock(0);
+        FakeVideoEncoder.Scene scene = new FakeVideoEncoder.Scene() {
+            @Override
+            public double activity(long timestampNs) {
+                // 3 s of motion, then 3 s still
+                return timestampNs % periodNs < periodNs / 2 ? 1 : 0.04;
+            }
+        };
+        StaticSceneEncoder adaptive = new StaticSceneEncoder(new FakeVideoEncoder(clock, 2).scene(scene), BIT_RATE, 30, 5, 0.25);
+        CollectingSink sink = record(adaptive, clock, 120);
+
+        assertEquals(0, adaptive.getTransitions());
+        assertEquals(0, adaptive.getSkippedFrames());
+        assertEquals(30 * 120, sink.pts.size(), 1);
+    }
+
+    @Test
+    public void bitRateChangesApplyToBothModes() {
+        VirtualClock clock = new VirtualClock(0);
+        FakeVideoEncoder.Scene still = new FakeVideoEncoder.Scene() {
+            @Override
+            public double activity(long timestampNs) {
+                return timestampNs < 20 * SECOND_NS ? 0.03 : 1;
+            }
+        };
+        FakeVideoEncoder fake = new FakeVideoEncoder(clock, 3).scene(still);
+        StaticSceneEncoder adaptive = new StaticSceneEncoder(fake, BIT_RATE, 30, 5, 0.25);
+        CapturePipeline pipeline = new CapturePipeline(new SyntheticFrameSource(clock, 30, 0, 1), adaptive, new CollectingSink(), clock);
+        pipeline.start();
+
+        clock.runFor(10 * SECOND_NS);
+        assertTrue(adaptive.isStatic());
+        assertEquals(BIT_RATE / 4, fake.getBitRate());
+        // A governor lowering the rate while the scene is still
+        adaptive.setBitRate(8000000);
+        assertEquals(2000000, fake.getBitRate());
+
+        clock.runFor(11 * SECOND_NS);
+        assertFalse(adaptive.isStatic());
+        assertEquals(8000000, fake.getBitRate());
+        pipeline.stop();
+    }
+
+    @Test
+    public void staticFramesAreScoredAgainstTheReducedBudget() {
+        VirtualClock clock = new VirtualClock(0);
+        FakeVideoEncoder.Scene drifting = new FakeVideoEncoder.Scene() {
+            @Override
+            public double activity(long timestampNs) {
+                // Still, then a slow change such as the light moving, below the exit score
+                return timestampNs < 10 * SECOND_NS ? 0.03 : 0.29;
+            }
+        };
+        StaticSceneEncoder adaptive = new StaticSceneEncoder(new FakeVideoEncoder(clock, 5).scene(drifting), BIT_RATE, 30, 5, 0.25);
+        CollectingSink sink = record(adaptive, clock, 30);
+
+        // Each static frame spans five frames at a quarter of the rate: the larger frames are
+        // what that budget buys, not motion
+        assertTrue(adaptive.isStatic());
+        assertEquals(1, adaptive.getTransitions());
+        assertTrue(String.valueOf(adaptive.getLastScore()), adaptive.getLastScore() < StaticSceneEncoder.EXIT_SCORE);
+        assertEquals(6 * 10, sink.countBetween(20000000L, 30000000L), 2);
+    }
+
+    @Test
+    public void pauseOverridesFrameSkipping() {
+        VirtualClock clock = new VirtualClock(0);
+        FakeVideoEncoder.Scene still = new FakeVideoEncoder.Scene() {
+            @Override
+            public double activity(long timestampNs) {
+                return 0.03;
+            }
+        };
+        StaticSceneEncoder adaptive = new StaticSceneEncoder(new FakeVideoEncoder(clock, 4).scene(still), BIT_RATE, 30, 5, 0.25);
+        CollectingSink sink = new CollectingSink();
+        CapturePipeline pipeline = new CapturePipeline(new SyntheticFrameSource(clock, 30, 0, 1), adaptive, sink, clock);
+        pipeline.start();
+        clock.runFor(10 * SECOND_NS);
+        assertTrue(adaptive.isStatic());
+
+        adaptive.setSuspended(true);
+        int before = sink.pts.size();
+        clock.runFor(5 * SECOND_NS);
+        assertEquals(before, sink.pts.size());
+
+        adaptive.setSuspended(false);
+        clock.runFor(5 * SECOND_NS);
+        assertEquals(before + 6 * 5, sink.pts.size(), 2);
+        pipeline.stop();
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.testingsurfacetexture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class StorageProfilerTest {
+    private static final int TEN_MBPS = 10000000;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("storage", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void benchmarkMeasuresAndCleansUp() throws IOException {
+        StorageProfiler profiler = new StorageProfiler(directory, Clock.SYSTEM);
+        assertFalse(profiler.hasEstimate());
+
+        StorageProfiler.BenchmarkResult result = profiler.benchmark(4 * 1024 * 1024, 256 * 1024);
+
+        assertTrue(result.sequentialBytesPerSecond > 0);
+        assertTrue(result.syncedBytesPerSecond > 0);
+        assertTrue(result.p99SyncLatencyNs > 0);
+        assertTrue(profiler.hasEstimate());
+        assertEquals(0, directory.listFiles().length);
+
+        profiler.probe(64 * 1024);
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void storedBenchmarkIsReusedOnlyForTheSameVolumeWhileFresh() throws IOException {
+        long dayMs = 24 * 3600 * 1000L;
+        StorageProfiler.BenchmarkResult result = new StorageProfiler.BenchmarkResult(80e6, 20e6, 15000000L);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        result.store(out, "primary:/sdcard/Android/data/app/files", 10 * dayMs);
+        byte[] stored = out.toByteArray();
+
+        StorageProfiler.BenchmarkResult loaded = StorageProfiler.BenchmarkResult.load(new ByteArrayInputStream(stored),
+                "primary:/sdcard/Android/data/app/files", 12 * dayMs, 7 * dayMs);
+        assertEquals(80e6, loaded.sequentialBytesPerSecond, 0);
+        assertEquals(20e6, loaded.syncedBytesPerSecond, 0);
+        assertEquals(15000000L, loaded.p99SyncLatencyNs);
+        StorageProfiler profiler = new StorageProfiler(directory, Clock.SYSTEM);
+        profiler.useBenchmark(loaded);
+        assertTrue(profiler.hasEstimate());
+
+        // Another card, too old, or from a clock that went back: measured again
+        assertNull(StorageProfiler.BenchmarkResult.load(new ByteArrayInputStream(stored),
+                "1234-ABCD:/storage/1234-ABCD/Android/data/app/files", 12 * dayMs, 7 * dayMs));
+        assertNull(StorageProfiler.BenchmarkResult.load(new ByteArrayInputStream(stored),
+                "primary:/sdcard/Android/data/app/files", 18 * dayMs, 7 * dayMs));
+        assertNull(StorageProfiler.BenchmarkResult.load(new ByteArrayInputStream(stored),
+                "primary:/sdcard/Android/data/app/files", 9 * dayMs, 7 * dayMs));
+        assertNull(StorageProfiler.BenchmarkResult.load(new ByteArrayInputStream("volume=primary".getBytes("UTF-8")),
+                "primary", 0, 7 * dayMs));
+    }
+
+    @Test
+    public void noEstimateNeverBlocksRecording() {
+        StorageProfiler profiler = new StorageProfiler(directory, Clock.SYSTEM);
+        assertEquals(StorageProfiler.Verdict.OK, profiler.assess(TEN_MBPS));
+        assertEquals(TEN_MBPS, profiler.recommendBitRate(TEN_MBPS));
+    }
+
+    @Test
+    public void verdictFollowsBandwidthHeadroom() {
+        StorageProfiler fast = new StorageProfiler(directory, Clock.SYSTEM);
+        fast.recordProbe(50000000, 1000000000L);
+        assertEquals(StorageProfiler.Verdict.OK, fast.assess(TEN_MBPS));
+
+        StorageProfiler marginal = new StorageProfiler(directory, Clock.SYSTEM);
+        marginal.recordProbe(3000000, 1000000000L);
+        assertEquals(StorageProfiler.Verdict.WARN, marginal.assess(TEN_MBPS));
+        // 3 MB/s with 4x headroom sustains 6 Mbps
+        assertEquals(6000000, marginal.recommendBitRate(TEN_MBPS));
+        assertEquals(StorageProfiler.Verdict.OK, marginal.assess(marginal.recommendBitRate(TEN_MBPS)));
+
+        StorageProfiler slow = new StorageProfiler(directory, Clock.SYSTEM);
+        slow.recordProbe(1500000, 1000000000L);
+        assertEquals(StorageProfiler.Verdict.REFUSE, slow.assess(TEN_MBPS));
+    }
+
+    @Test
+    public void slowSinkWritesRaiseWarning() {
+        StorageProfiler profiler = new StorageProfiler(directory, Clock.SYSTEM);
+        profiler.recordProbe(50000000, 1000000000L);
+        for (int i = 0; i < 1000; i++) {
+            profiler.recordSinkWrite(i % 50 == 0 ? 300000000L : 1000000L);
+        }
+        assertTrue(profiler.getP99LatencyNs() > StorageProfiler.MAX_WRITE_LATENCY_NS);
+        assertEquals(StorageProfiler.Verdict.WARN, profiler.assess(TEN_MBPS));
+
+        // Once the slow period rolls out of both windows the warning clears
+        for (int i = 0; i < 2100; i++) {
+            profiler.recordSinkWrite(1000000L);
+        }
+        assertEquals(StorageProfiler.Verdict.OK, profiler.assess(TEN_MBPS));
+    }
+
+    @Test
+    public void rollingBandwidthTracksDegradation() {
+        StorageProfiler profiler = new StorageProfiler(directory, Clock.SYSTEM);
+        profiler.recordProbe(40000000, 1000000000L);
+        for (int i = 0; i < 20; i++) {
+            profiler.recordProbe(1000000, 1000000000L);
+        }
+        assertEquals(1000000, profiler.getSustainedBytesPerSecond(), 50000);
+        assertEquals(StorageProfiler.Verdict.REFUSE, profiler.assess(TEN_MBPS));
+    }
+}
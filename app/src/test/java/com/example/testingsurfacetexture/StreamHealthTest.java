@@ -0,0 +1,56 @@
+package com.example.testingsurfacetexture;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class StreamHealthTest {
+    private static final long SECOND_NS = 1000000000L;
+    private static final long MS_NS = 1000000L;
+
+    @Test
+    public void reportsRatesOverTheLastInterval() {
+        VirtualClock clock = new VirtualClock(1000 * SECOND_NS);
+        CapturePipeline pipeline = new CapturePipeline(new SyntheticFrameSource(clock, 30, 0, 1),
+                new FakeVideoEncoder(clock, 1), new NullSink(), clock);
+        StreamHealth health = new StreamHealth("back", pipeline.getStats());
+
+        pipeline.start();
+        health.sample(clock.nanoTime());
+        assertEquals(0, health.getEncodeFps(), 0);
+        clock.runFor(10 * SECOND_NS);
+        health.sample(clock.nanoTime());
+
+        assertEquals(30, health.getCaptureFps(), 0.5);
+        assertEquals(30, health.getEncodeFps(), 0.5);
+        assertEquals(0, health.getDropRatio(), 0.01);
+    }
+
+    @Test
+    public void worstStreamIsTheOneThatDegradesFirst() {
+        // Two cameras on one clock; the front encoder stalls periodically and backs up
+        VirtualClock clock = new VirtualClock(1000 * SECOND_NS);
+        CapturePipeline back = new CapturePipeline(new SyntheticFrameSource(clock, 30, 2 * MS_NS, 1),
+                new FakeVideoEncoder(clock, 1), new NullSink(), clock);
+        FakeVideoEncoder frontEncoder = new FakeVideoEncoder(clock, 2).maxInFlight(4).stalls(60, 500 * MS_NS);
+        CapturePipeline front = new CapturePipeline(new SyntheticFrameSource(clock, 30, 2 * MS_NS, 2),
+                frontEncoder, new NullSink(), clock);
+        StreamHealth backHealth = new StreamHealth("back", back.getStats());
+        StreamHealth frontHealth = new StreamHealth("front", front.getStats());
+
+        back.start();
+        front.start();
+        backHealth.sample(clock.nanoTime());
+        frontHealth.sample(clock.nanoTime());
+        clock.runFor(30 * SECOND_NS);
+        backHealth.sample(clock.nanoTime());
+        frontHealth.sample(clock.nanoTime());
+
+        assertEquals(0, backHealth.getDropRatio(), 0.01);
+        assertTrue(frontHealth.toString(), frontHealth.getDropRatio() > 0.1);
+        assertTrue(frontHealth.getEncodeFps() < backHealth.getEncodeFps());
+        assertSame(frontHealth, StreamHealth.worst(Arrays.asList(backHealth, frontHealth), 30));
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.testingsurfacetexture;
+
+import java.util.Random;
+
+// Emits frames at a nominal rate with uniformly distributed capture jitter.
+class SyntheticFrameSource implements FrameSource {
+    private final VirtualClock clock;
+    private final long frameIntervalNs;
+    private final long jitterNs;
+    private final Random random;
+    private FrameListener listener;
+    private boolean running;
+    private long frameIndex;
+    private long startNs;
+    private long lastTimestampNs;
+
+    SyntheticFrameSource(VirtualClock clock, int frameRate, long jitterNs, long seed) {
+        this.clock = clock;
+        this.frameIntervalNs = 1000000000L / frameRate;
+        this.jitterNs = jitterNs;
+        this.random = new Random(seed);
+    }
+
+    @Override
+    public void setFrameListener(FrameListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        frameIndex = 0;
+        startNs = clock.nanoTime();
+        lastTimestampNs = Long.MIN_VALUE;
+        scheduleNext();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+    }
+
+    long getFrameIntervalNs() {
+        return frameIntervalNs;
+    }
+
+    private void scheduleNext() {
+        long jitter = jitterNs > 0 ? (long) ((random.nextDouble() * 2 - 1) * jitterNs) : 0;
+        // Jitter never reorders frames
+        long timestampNs = Math.max(startNs + frameIndex * frameIntervalNs + jitter, lastTimestampNs + 1);
+        frameIndex++;
+        clock.schedule(timestampNs, new Runnable() {
+            @Override
+            public void run() {
+                if (!running) {
+                    return;
+                }
+                lastTimestampNs = clock.nanoTime();
+                listener.onFrame(lastTimestampNs);
+                scheduleNext();
+            }
+        });
+    }
+}
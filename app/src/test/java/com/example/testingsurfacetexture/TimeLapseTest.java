@@ -0,0 +1,229 @@
+package com.example.testingsurfacetexture;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class TimeLapseTest {
+    private static final long SECOND_NS = 1000000000L;
+    private static final long MS_NS = 1000000L;
+    private static final long HOUR_NS = 3600 * SECOND_NS;
+
+    // A camera on the virtual clock that only delivers a frame when asked to capture one, and
+    // checks that it had time to warm up first
+    private static class FakeCamera implements TimeLapseController.Camera, FrameSource {
+        final VirtualClock clock;
+        final long warmupNs;
+        FrameListener listener;
+        boolean streaming = true;
+        long streamingSinceNs;
+        long starts;
+        long stops;
+        long coldShots;
+
+        FakeCamera(VirtualClock clock, long warmupNs) {
+            this.clock = clock;
+            this.warmupNs = warmupNs;
+        }
+
+        @Override
+        public void startStreaming() {
+            assertFalse(streaming);
+            streaming = true;
+            streamingSinceNs = clock.nanoTime();
+            starts++;
+        }
+
+        @Override
+        public void stopStreaming() {
+            assertTrue(streaming);
+            streaming = false;
+            stops++;
+        }
+
+        @Override
+        public void captureFrame() {
+            assertTrue(streaming);
+            if (clock.nanoTime() - streamingSinceNs < warmupNs && starts > 0) {
+                coldShots++;
+            }
+            if (listener != null) {
+                listener.onFrame(clock.nanoTime());
+            }
+        }
+
+        @Override
+        public void setFrameListener(FrameListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void stop() {
+        }
+    }
+
+    // Calls onTick() when it asks to be called, like a handler posting itself
+    private static class Driver implements Runnable {
+        final VirtualClock clock;
+        final TimeLapseController controller;
+        long delayNs;
+        long ticks;
+
+        Driver(VirtualClock clock, TimeLapseController controller) {
+            this.clock = clock;
+            this.controller = controller;
+        }
+
+        void start() {
+            clock.schedule(controller.start(clock.nanoTime()) + delayNs, this);
+        }
+
+        @Override
+        public void run() {
+            ticks++;
+            clock.schedule(controller.onTick(clock.nanoTime()) + delayNs, this);
+        }
+    }
+
+    private static class CheckingSink implements SampleSink {
+        long samples;
+        long lastPtsUs = -1;
+        boolean evenlySpaced = true;
+        long bytes;
+
+        @Override
+        public void onFormat(TrackFormat format) {
+        }
+
+        @Override
+        public void onSample(ByteBuffer data, SampleInfo info) {
+            if (info.presentationTimeUs != samples * 1000000L / 30) {
+                evenlySpaced = false;
+            }
+            lastPtsUs = info.presentationTimeUs;
+            samples++;
+            bytes += info.size;
+        }
+
+        @Override
+        public void onEnd() {
+        }
+    }
+
+    @Test
+    public void dayLongTimeLapseStaysFlat() {
+        VirtualClock clock = new VirtualClock(0);
+        long intervalNs = 5 * SECOND_NS;
+        long warmupNs = 500 * MS_NS;
+        FakeCamera camera = new FakeCamera(clock, warmupNs);
+        CheckingSink sink = new CheckingSink();
+        FakeVideoEncoder encoder = new FakeVideoEncoder(clock, 37);
+        CapturePipeline pipeline = new CapturePipeline(camera, encoder, new TimeLapseSink(sink, 30), clock);
+        TimeLapseController controller = new TimeLapseController(intervalNs, warmupNs, camera);
+        Driver driver = new Driver(clock, controller);
+
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean threads = bean instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) bean : null;
+        long threadId = Thread.currentThread().getId();
+
+        pipeline.start();
+        driver.start();
+        long[] allocatedPerHour = new long[24];
+        long[] ticksPerHour = new long[24];
+        for (int hour = 0; hour < 24; hour++) {
+            long allocatedBefore = threads != null ? threads.getThreadAllocatedBytes(threadId) : 0;
+            long ticksBefore = driver.ticks;
+            clock.runFor(HOUR_NS);
+            allocatedPerHour[hour] = threads != null ? threads.getThreadAllocatedBytes(threadId) - allocatedBefore : 0;
+            ticksPerHour[hour] = driver.ticks - ticksBefore;
+            // Nothing queues up: the next tick and at most one frame inside the encoder
+            assertTrue(clock.pendingEvents() <= 2);
+        }
+        // Let the last shot leave the encoder
+        clock.runFor(SECOND_NS);
+        pipeline.stop();
+
+        long expectedShots = 24 * 3600 / 5;
+        assertEquals(expectedShots, controller.getShots(), 1);
+        assertEquals(0, controller.getMissedShots());
+        assertEquals(0, camera.coldShots);
+        assertEquals(controller.getShots(), sink.samples);
+        assertTrue(sink.evenlySpaced);
+        // A day in under ten minutes of playback
+        assertEquals(expectedShots * 1000000L / 30, sink.lastPtsUs, 100000);
+        // The camera streams for the warm-up only, a tenth of the time
+        assertEquals(0.1, controller.getStreamingNs() / (double) (24 * HOUR_NS), 0.01);
+        assertEquals(camera.stops, camera.starts + 1);
+
+        // The same work every hour, and no more allocation at the end of the day than at the start
+        for (int hour = 1; hour < 24; hour++) {
+            assertEquals(ticksPerHour[0], ticksPerHour[hour], 1);
+            if (threads != null) {
+                assertTrue("hour " + hour + ": " + allocatedPerHour[hour] + " vs " + allocatedPerHour[1],
+                        allocatedPerHour[hour] < allocatedPerHour[1] * 3 / 2 + 65536);
+            }
+        }
+    }
+
+    @Test
+    public void closeShotsKeepTheCameraStreaming() {
+        VirtualClock clock = new VirtualClock(0);
+        FakeCamera camera = new FakeCamera(clock, 500 * MS_NS);
+        TimeLapseController controller = new TimeLapseController(600 * MS_NS, 500 * MS_NS, camera);
+        Driver driver = new Driver(clock, controller);
+        driver.start();
+        clock.runFor(60 * SECOND_NS);
+
+        assertEquals(101, controller.getShots());
+        assertEquals(0, camera.starts);
+        assertEquals(0, camera.stops);
+        assertTrue(controller.isStreaming());
+    }
+
+    @Test
+    public void lateTicksSkipShotsWithoutDrifting() {
+        VirtualClock clock = new VirtualClock(0);
+        FakeCamera camera = new FakeCamera(clock, 500 * MS_NS);
+        TimeLapseController controller = new TimeLapseController(10 * SECOND_NS, 500 * MS_NS, camera);
+        controller.start(0);
+
+        // The device dozed through two shots
+        long next = controller.onTick(32 * SECOND_NS);
+        assertEquals(2, controller.getMissedShots());
+        assertEquals(2, controller.getShots());
+        assertEquals(39500 * MS_NS, next);
+        assertFalse(controller.isStreaming());
+        // The late shot could not wait for the warm-up, and neither can one whose warm-up tick is missed
+        assertEquals(1, camera.coldShots);
+        assertEquals(49500 * MS_NS, controller.onTick(40 * SECOND_NS));
+        assertEquals(3, controller.getShots());
+        assertEquals(2, camera.coldShots);
+    }
+
+    @Test
+    public void restampsSamplesAtPlaybackRate() {
+        CheckingSink sink = new CheckingSink();
+        TimeLapseSink timeLapse = new TimeLapseSink(sink, 30);
+        ByteBuffer data = ByteBuffer.allocate(16);
+        SampleInfo info = new SampleInfo();
+        long[] capturePtsUs = {5000000, 15000000, 25000000, 65000000, 75000000};
+        for (long pts : capturePtsUs) {
+            info.set(0, 100, pts, pts == 5000000 ? SampleInfo.FLAG_KEY_FRAME : 0);
+            timeLapse.onSample(data, info);
+            // The encoder's own info is left alone
+            assertEquals(pts, info.presentationTimeUs);
+        }
+        assertTrue(sink.evenlySpaced);
+        assertEquals(5, timeLapse.getSamples());
+        assertEquals(4 * 1000000L / 30, sink.lastPtsUs);
+    }
+}
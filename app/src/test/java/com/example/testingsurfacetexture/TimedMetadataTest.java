@@ -0,0 +1,226 @@
+package com.example.testingsurfacetexture;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class TimedMetadataTest {
+
+    // Writes down what reaches the muxer, in order
+    private static class MuxerLog implements SampleSink, TimedMetadataSink {
+        final List<String> events = new ArrayList<>();
+        final long[] lastTimestampUs = new long[4];
+        long lastVideoPtsUs = Long.MIN_VALUE;
+        boolean tracksMonotonic = true;
+        // Metadata that reached the muxer after a video sample later than it
+        long behindVideo;
+        boolean ended;
+
+        @Override
+        public void onFormat(TrackFormat format) {
+        }
+
+        @Override
+        public void onSample(ByteBuffer data, SampleInfo info) {
+            events.add("V" + info.presentationTimeUs);
+            lastVideoPtsUs = info.presentationTimeUs;
+        }
+
+        @Override
+        public void onMetadata(int track, ByteBuffer data, long timestampUs) {
+            events.add("M" + track + "@" + timestampUs + "=" + data.get(data.position()));
+            assertEquals(1, data.remaining());
+            if (timestampUs < lastTimestampUs[track]) {
+                tracksMonotonic = false;
+            }
+            if (timestampUs < lastVideoPtsUs) {
+                behindVideo++;
+            }
+            lastTimestampUs[track] = timestampUs;
+        }
+
+        @Override
+        public void onEnd() {
+            ended = true;
+        }
+    }
+
+    private static void offer(TimedMetadataQueue queue, int track, long timestampUs, int value) {
+        assertTrue(queue.offer(track, timestampUs, new byte[]{(byte) value}, 0, 1));
+    }
+
+    private static void video(SampleSink sink, long ptsUs) {
+        SampleInfo info = new SampleInfo();
+        info.set(0, 16, ptsUs, 0);
+        sink.onSample(ByteBuffer.allocate(16), info);
+    }
+
+    @Test
+    public void concurrentProducersLoseNothingAndKeepTheirOrder() throws Exception {
+        final int producers = 4;
+        final int records = 50000;
+        final TimedMetadataQueue queue = new TimedMetadataQueue(256, 8);
+        final long[] full = new long[producers];
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int track = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] record = new byte[8];
+                    for (int i = 0; i < records; i++) {
+                        ByteBuffer.wrap(record).putInt(0, track).putInt(4, i);
+                        while (!queue.offer(track, i, record, 0, 8)) {
+                            full[track]++;
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        final long[] next = new long[producers];
+        final AtomicBoolean valid = new AtomicBoolean(true);
+        TimedMetadataQueue.Reader reader = new TimedMetadataQueue.Reader() {
+            @Override
+            public void onRecord(int track, long timestampUs, byte[] data, int offset, int length) {
+                ByteBuffer record = ByteBuffer.wrap(data, offset, length);
+                // Each producer's records come out whole and in the order it queued them
+                if (length != 8 || record.getInt(offset) != track || record.getInt(offset + 4) != next[track]
+                        || timestampUs != next[track]) {
+                    valid.set(false);
+                }
+                next[track]++;
+            }
+        };
+        long received = 0;
+        while (received < (long) producers * records) {
+            if (queue.poll(reader)) {
+                received++;
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(valid.get());
+        assertFalse(queue.poll(reader));
+        long retries = 0;
+        for (int p = 0; p < producers; p++) {
+            assertEquals(records, next[p]);
+            retries += full[p];
+        }
+        assertEquals(retries, queue.getDroppedRecords());
+    }
+
+    @Test
+    public void fullQueueRefusesAndCounts() {
+        TimedMetadataQueue queue = new TimedMetadataQueue(4, 1);
+        for (int i = 0; i < 4; i++) {
+            offer(queue, 0, i, i);
+        }
+        assertFalse(queue.offer(0, 4, new byte[]{4}, 0, 1));
+        assertEquals(1, queue.getDroppedRecords());
+        MuxerLog log = new MuxerLog();
+        MetadataInterleaver interleaver = new MetadataInterleaver(log, log, queue, 1, 8);
+        video(interleaver, 10);
+        // The slots are free again
+        offer(queue, 0, 11, 5);
+        interleaver.onEnd();
+        assertEquals("[M0@0=0, M0@1=1, M0@2=2, M0@3=3, V10, M0@11=5]", log.events.toString());
+        assertTrue(log.ended);
+    }
+
+    @Test
+    public void interleavesTracksWithVideoByTimestamp() {
+        TimedMetadataQueue queue = new TimedMetadataQueue(64, 1);
+        MuxerLog log = new MuxerLog();
+        MetadataInterleaver interleaver = new MetadataInterleaver(log, log, queue, 2, 16);
+
+        // An IMU on track 0 ahead of the video, a GPS fix on track 1 that arrives late
+        offer(queue, 0, 5, 1);
+        offer(queue, 0, 40, 2);
+        offer(queue, 0, 75, 3);
+        video(interleaver, 0);
+        video(interleaver, 33);
+        offer(queue, 1, 20, 9);
+        offer(queue, 0, 110, 4);
+        video(interleaver, 66);
+        video(interleaver, 100);
+        interleaver.onEnd();
+
+        assertEquals("[V0, M0@5=1, V33, M1@20=9, M0@40=2, V66, M0@75=3, V100, M0@110=4]", log.events.toString());
+        assertTrue(log.tracksMonotonic);
+        assertEquals(5, interleaver.getEmittedRecords());
+    }
+
+    @Test
+    public void fullWindowFlushesEarlyAndLateRecordsAreDropped() {
+        TimedMetadataQueue queue = new TimedMetadataQueue(64, 1);
+        MuxerLog log = new MuxerLog();
+        MetadataInterleaver interleaver = new MetadataInterleaver(log, log, queue, 2, 4);
+        // The video stalls while ten records pile up; only four may wait
+        for (int i = 0; i < 10; i++) {
+            offer(queue, 0, 100 + i, i);
+        }
+        video(interleaver, 0);
+        assertEquals(6, interleaver.getEmittedRecords());
+        // Older than what track 0 already wrote; track 1 has written nothing yet
+        offer(queue, 0, 103, 42);
+        offer(queue, 1, 50, 7);
+        video(interleaver, 200);
+        interleaver.onEnd();
+
+        assertEquals(1, interleaver.getLateRecords());
+        assertEquals(11, interleaver.getEmittedRecords());
+        assertTrue(log.tracksMonotonic);
+        assertEquals("M1@50=7", log.events.get(8));
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocate() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        TimedMetadataQueue queue = new TimedMetadataQueue(64, 16);
+        NullSink video = new NullSink();
+        TimedMetadataSink metadata = new TimedMetadataSink() {
+            @Override
+            public void onMetadata(int track, ByteBuffer data, long timestampUs) {
+            }
+        };
+        MetadataInterleaver interleaver = new MetadataInterleaver(video, metadata, queue, 2, 32);
+        byte[] record = new byte[13];
+        ByteBuffer data = ByteBuffer.allocate(64);
+        SampleInfo info = new SampleInfo();
+        long threadId = Thread.currentThread().getId();
+        long allocated = 0;
+        long frame = 0;
+        // The first round warms up the JIT
+        for (int round = 0; round < 2; round++) {
+            long before = threads.getThreadAllocatedBytes(threadId);
+            for (int n = 0; n < 100000; n++, frame++) {
+                long ptsUs = frame * 33333L;
+                for (int i = 0; i < 7; i++) {
+                    queue.offer(i & 1, ptsUs - 30000 + i * 4762, record, 0, record.length);
+                }
+                info.set(0, 64, ptsUs, 0);
+                interleaver.onSample(data, info);
+            }
+            allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        }
+        assertEquals(7 * frame, interleaver.getEmittedRecords());
+        assertEquals(0, interleaver.getLateRecords());
+        assertTrue("allocated " + allocated, allocated < 4096);
+    }
+}
@@ -0,0 +1,235 @@
+package com.example.testingsurfacetexture;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TracerTest {
+    private static final long US_NS = 1000L;
+    private static final int FRAME = Tracer.registerEvent("test_frame", Tracer.LEVEL_FRAME, "pts_us", "size");
+    private static final int SESSION = Tracer.registerEvent("test_session", Tracer.LEVEL_SESSION, "code", null);
+    private static final int COUNTER = Tracer.registerEvent("test_counter", Tracer.LEVEL_SESSION, null, null);
+
+    @Test
+    public void recordsEventsInOrder() {
+        VirtualClock clock = new VirtualClock(0);
+        Tracer tracer = new Tracer(16, clock);
+        tracer.setLevel(Tracer.LEVEL_FRAME);
+        tracer.begin(FRAME, 33333, 1200);
+        clock.runFor(500 * US_NS);
+        tracer.end(FRAME, 33333, 1200);
+        tracer.instant(SESSION, 7, 0);
+        tracer.counter(COUNTER, 5000000);
+
+        List<Tracer.Event> events = tracer.snapshot();
+        assertEquals(4, events.size());
+        assertTrue(events.get(0).isBegin());
+        assertEquals("test_frame", events.get(0).name);
+        assertEquals(33333, events.get(0).arg0);
+        assertEquals(1200, events.get(0).arg1);
+        assertTrue(events.get(1).isEnd());
+        assertEquals(500 * US_NS, events.get(1).timeNs - events.get(0).timeNs);
+        assertEquals("test_session", events.get(2).name);
+        assertEquals(7, events.get(2).arg0);
+        assertTrue(events.get(3).isCounter());
+        assertEquals(Thread.currentThread().getId(), events.get(3).threadId);
+    }
+
+    @Test
+    public void eventsAboveTheLevelAreNotRecorded() {
+        Tracer tracer = new Tracer(16, new VirtualClock(0));
+        tracer.setLevel(Tracer.LEVEL_SESSION);
+        tracer.begin(FRAME, 1, 1);
+        tracer.instant(SESSION, 1, 0);
+        assertEquals(1, tracer.snapshot().size());
+        assertFalse(tracer.isEnabled(FRAME));
+
+        tracer.setLevel(Tracer.LEVEL_OFF);
+        tracer.instant(SESSION, 2, 0);
+        assertEquals(1, tracer.snapshot().size());
+    }
+
+    @Test
+    public void registeringTheSameNameReturnsTheSameId() {
+        assertEquals(FRAME, Tracer.registerEvent("test_frame", Tracer.LEVEL_FRAME, "pts_us", "size"));
+        assertNotEquals(FRAME, SESSION);
+    }
+
+    @Test
+    public void ringKeepsTheNewestEvents() {
+        Tracer tracer = new Tracer(100, new VirtualClock(0));
+        tracer.setLevel(Tracer.LEVEL_FRAME);
+        assertEquals(128, tracer.getCapacity());
+        for (int i = 0; i < 1000; i++) {
+            tracer.instant(FRAME, i, 0);
+        }
+
+        List<Tracer.Event> events = tracer.snapshot();
+        assertEquals(128, events.size());
+        assertEquals(872, events.get(0).arg0);
+        assertEquals(999, events.get(127).arg0);
+        assertEquals(872, tracer.getOverwrittenEvents());
+
+        tracer.clear();
+        assertEquals(0, tracer.snapshot().size());
+        assertEquals(0, tracer.getOverwrittenEvents());
+        tracer.instant(FRAME, 1000, 0);
+        events = tracer.snapshot();
+        assertEquals(1, events.size());
+        assertEquals(1000, events.get(0).arg0);
+    }
+
+    @Test
+    public void bridgeSeesMatchingSections() {
+        final List<String> calls = new ArrayList<>();
+        Tracer tracer = new Tracer(16, new VirtualClock(0));
+        tracer.setLevel(Tracer.LEVEL_FRAME);
+        tracer.setBridge(new Tracer.Bridge() {
+            @Override
+            public void begin(String name) {
+                calls.add("begin " + name);
+            }
+
+            @Override
+            public void end(String name) {
+                calls.add("end " + name);
+            }
+
+            @Override
+            public void counter(String name, long value) {
+                calls.add(name + "=" + value);
+            }
+        });
+        tracer.begin(FRAME, 0, 0);
+        tracer.end(FRAME, 0, 0);
+        tracer.instant(SESSION, 0, 0);
+        tracer.counter(COUNTER, 3);
+
+        assertEquals("[begin test_frame, end test_frame, test_counter=3]", calls.toString());
+    }
+
+    @Test
+    public void exportsChromeTraceJson() throws IOException {
+        VirtualClock clock = new VirtualClock(5000 * US_NS);
+        Tracer tracer = new Tracer(16, clock);
+        tracer.setLevel(Tracer.LEVEL_FRAME);
+        tracer.begin(FRAME, 33333, 1200);
+        clock.runFor(1500);
+        tracer.end(FRAME, 33333, 1200);
+        tracer.instant(SESSION, -5, 0);
+        tracer.counter(COUNTER, 8000000);
+
+        StringWriter out = new StringWriter();
+        tracer.writeChromeJson(out);
+        long tid = Thread.currentThread().getId();
+        assertEquals("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n"
+                + "{\"name\":\"test_frame\",\"ph\":\"B\",\"ts\":0.000,\"pid\":1,\"tid\":" + tid
+                + ",\"args\":{\"pts_us\":33333,\"size\":1200}},\n"
+                + "{\"name\":\"test_frame\",\"ph\":\"E\",\"ts\":1.500,\"pid\":1,\"tid\":" + tid
+                + ",\"args\":{\"pts_us\":33333,\"size\":1200}},\n"
+                + "{\"name\":\"test_session\",\"ph\":\"i\",\"ts\":1.500,\"pid\":1,\"tid\":" + tid
+                + ",\"s\":\"t\",\"args\":{\"code\":-5}},\n"
+                + "{\"name\":\"test_counter\",\"ph\":\"C\",\"ts\":1.500,\"pid\":1,\"tid\":" + tid
+                + ",\"args\":{\"value\":8000000}}\n"
+                + "]}\n", out.toString());
+    }
+
+    @Test
+    public void exportStartsAtTheEarliestTimestamp() throws IOException {
+        // Another thread's event, timed before the first one recorded but written after it
+        final long[] times = {10 * US_NS + 250, 8 * US_NS};
+        Tracer tracer = new Tracer(16, new Clock() {
+            int calls;
+
+            @Override
+            public long nanoTime() {
+                return times[calls++];
+            }
+        });
+        tracer.setLevel(Tracer.LEVEL_FRAME);
+        tracer.instant(SESSION, 1, 0);
+        tracer.instant(SESSION, 2, 0);
+
+        StringWriter out = new StringWriter();
+        tracer.writeChromeJson(out);
+        String json = out.toString();
+        assertTrue(json, json.contains("\"ts\":2.250,"));
+        assertTrue(json, json.contains("\"ts\":0.000,"));
+        assertFalse(json, json.contains("-"));
+    }
+
+    @Test
+    public void concurrentWritersNeverTearEvents() throws InterruptedException {
+        final Tracer tracer = new Tracer(1 << 16, Clock.SYSTEM);
+        tracer.setLevel(Tracer.LEVEL_FRAME);
+        final int perThread = 10000;
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        tracer.instant(FRAME, id, id * 1000000L + i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        // Reading while the writers run only ever skips slots, it never returns mixed fields
+        while (threads[0].isAlive()) {
+            for (Tracer.Event event : tracer.snapshot()) {
+                assertEquals(event.arg0, event.arg1 / 1000000);
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        List<Tracer.Event> events = tracer.snapshot();
+        assertEquals(threads.length * perThread, events.size());
+        long[] next = new long[threads.length];
+        for (Tracer.Event event : events) {
+            int id = (int) event.arg0;
+            assertEquals(id * 1000000L + next[id]++, event.arg1);
+        }
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Tracer tracer = new Tracer(1024, Clock.SYSTEM);
+        tracer.setLevel(Tracer.LEVEL_SESSION);
+        for (int i = 0; i < 20000; i++) {
+            tracer.begin(FRAME, i, i);
+            tracer.instant(SESSION, i, 0);
+            tracer.end(FRAME, i, i);
+        }
+
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < 100000; i++) {
+            // FRAME is above the level and SESSION records
+            tracer.begin(FRAME, i, i);
+            tracer.instant(SESSION, i, 0);
+            tracer.end(FRAME, i, i);
+        }
+        tracer.setLevel(Tracer.LEVEL_FRAME);
+        for (int i = 0; i < 100000; i++) {
+            tracer.begin(FRAME, i, i);
+            tracer.end(FRAME, i, i);
+        }
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        assertTrue("allocated " + allocated, allocated < 4096);
+    }
+}
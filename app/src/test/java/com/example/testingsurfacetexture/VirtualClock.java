@@ -0,0 +1,60 @@
+package com.example.testingsurfacetexture;
+
+import java.util.PriorityQueue;
+
+// Discrete event clock: time only moves when runUntil() executes scheduled events.
+class VirtualClock implements Clock {
+    private static class Event implements Comparable<Event> {
+        final long timeNs;
+        final long sequence;
+        final Runnable action;
+
+        Event(long timeNs, long sequence, Runnable action) {
+            this.timeNs = timeNs;
+            this.sequence = sequence;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (timeNs != other.timeNs) {
+                return Long.compare(timeNs, other.timeNs);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private long nowNs;
+    private long sequence;
+
+    VirtualClock(long startNs) {
+        nowNs = startNs;
+    }
+
+    @Override
+    public long nanoTime() {
+        return nowNs;
+    }
+
+    void schedule(long timeNs, Runnable action) {
+        events.add(new Event(Math.max(timeNs, nowNs), sequence++, action));
+    }
+
+    void runUntil(long timeNs) {
+        while (!events.isEmpty() && events.peek().timeNs <= timeNs) {
+            Event event = events.poll();
+            nowNs = event.timeNs;
+            event.action.run();
+        }
+        nowNs = Math.max(nowNs, timeNs);
+    }
+
+    void runFor(long durationNs) {
+        runUntil(nowNs + durationNs);
+    }
+
+    int pendingEvents() {
+        return events.size();
+    }
+}